@@ -91,6 +91,11 @@ public final class Constants {
         public static final String FILE_USE_COMPRESSION = "useFileCompression";
         public static final String TEXT_USE_COMPRESSION = "useTextCompression";
         public static final String USE_ARMOR = "useArmor";
+        public static final String KEY_REFRESH_ENABLED = "keyRefreshEnabled";
+        public static final String KEY_REFRESH_PERIOD_DAYS = "keyRefreshPeriodDays";
+        public static final String KEY_POOL_ENABLED = "keyPoolEnabled";
+        public static final String S2K_COUNT = "s2kCount";
+        public static final String DATABASE_BACKFILL_PENDING = "databaseBackfillPending";
     }
 
     public static final class Defaults {
@@ -34,7 +34,10 @@ import android.widget.Toast;
 
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.provider.TemporaryStorageProvider;
+import org.sufficientlysecure.keychain.service.DatabaseBackfillService;
+import org.sufficientlysecure.keychain.service.KeyPoolService;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.PRNGFixes;
 import org.sufficientlysecure.keychain.util.Preferences;
@@ -101,6 +104,17 @@ public class KeychainApplication extends Application {
         TemporaryStorageProvider.cleanUp(this);
 
         checkConsolidateRecovery();
+
+        KeyUpdateHelper.scheduleKeyRefresh(this);
+
+        if (Preferences.getPreferences(this).isKeyPoolEnabled()) {
+            startService(new Intent(this, KeyPoolService.class));
+        }
+
+        // continue a backfill which was interrupted after a database upgrade
+        if (Preferences.getPreferences(this).isDatabaseBackfillPending()) {
+            startService(new Intent(this, DatabaseBackfillService.class));
+        }
     }
 
     public static HashMap<String,Bitmap> qrCodeCache = new HashMap<>();
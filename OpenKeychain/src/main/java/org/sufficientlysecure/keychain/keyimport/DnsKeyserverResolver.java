@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import de.measite.minidns.Client;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.record.SRV;
+
+/**
+ * Resolves the keyserver of a domain using its _hkp._tcp SRV record.
+ */
+public class DnsKeyserverResolver implements KeyserverResolver {
+
+    /** ttl used for domains without SRV record, which carry no ttl of their own */
+    public static final long NEGATIVE_TTL_SECONDS = 60 * 60;
+
+    @Override
+    public Result resolve(String domain) throws Exception {
+        DNSMessage response = new Client().query(new Question("_hkp._tcp." + domain, Record.TYPE.SRV));
+        if (response == null) {
+            throw new Exception("No DNS response for " + domain);
+        }
+
+        Record[] records = response.getAnswers();
+        if (records.length > 0) {
+            Arrays.sort(records, new Comparator<Record>() {
+                @Override
+                public int compare(Record lhs, Record rhs) {
+                    if (lhs.getPayload().getType() != Record.TYPE.SRV) return 1;
+                    if (rhs.getPayload().getType() != Record.TYPE.SRV) return -1;
+                    return ((SRV) lhs.getPayload()).getPriority() - ((SRV) rhs.getPayload()).getPriority();
+                }
+            });
+            Record record = records[0]; // This is our best choice
+            if (record.getPayload().getType() == Record.TYPE.SRV) {
+                SRV srv = (SRV) record.getPayload();
+                return new Result(new HkpKeyserver(srv.getName(), (short) srv.getPort()), record.getTtl());
+            }
+        }
+        return new Result(null, NEGATIVE_TTL_SECONDS);
+    }
+
+}
@@ -34,19 +34,12 @@ import java.net.URL;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Comparator;
 import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.TimeZone;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import de.measite.minidns.Client;
-import de.measite.minidns.Question;
-import de.measite.minidns.Record;
-import de.measite.minidns.record.SRV;
-
 public class HkpKeyserver extends Keyserver {
     private static class HttpError extends Exception {
         private static final long serialVersionUID = 1718783705229428893L;
@@ -401,22 +394,8 @@ public class HkpKeyserver extends Keyserver {
      */
     public static HkpKeyserver resolve(String domain) {
         try {
-            Record[] records = new Client().query(new Question("_hkp._tcp." + domain, Record.TYPE.SRV)).getAnswers();
-            if (records.length > 0) {
-                Arrays.sort(records, new Comparator<Record>() {
-                    @Override
-                    public int compare(Record lhs, Record rhs) {
-                        if (lhs.getPayload().getType() != Record.TYPE.SRV) return 1;
-                        if (rhs.getPayload().getType() != Record.TYPE.SRV) return -1;
-                        return ((SRV) lhs.getPayload()).getPriority() - ((SRV) rhs.getPayload()).getPriority();
-                    }
-                });
-                Record record = records[0]; // This is our best choice
-                if (record.getPayload().getType() == Record.TYPE.SRV) {
-                    return new HkpKeyserver(((SRV) record.getPayload()).getName(),
-                            (short) ((SRV) record.getPayload()).getPort());
-                }
-            }
+            KeyserverResolver.Result result = new DnsKeyserverResolver().resolve(domain);
+            return (HkpKeyserver) result.mKeyserver;
         } catch (Exception ignored) {
         }
         return null;
@@ -18,42 +18,193 @@ package org.sufficientlysecure.keychain.keyimport;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.Locale;
 
 /**
  * Just an ArrayList, only with a synchronized dupe-merging add/addAll, and a sign-off method
+ *
+ * Duplicates are looked up in hash indexes rather than by scanning the list, so merging
+ * large result sets from several suppliers is linear in the number of entries. Entries
+ * are indexed by fingerprint, and additionally by long key id so that entries which come
+ * without a full fingerprint (e.g. from older HKP servers) can still be merged. All
+ * modifying methods of ArrayList are overridden to keep the indexes up to date.
  */
 public class ImportKeysList extends ArrayList<ImportKeysListEntry> {
 
     private int mSupplierCount;
 
+    private final HashMap<String, ImportKeysListEntry> mByFingerprint = new HashMap<>();
+    private final HashMap<String, ImportKeysListEntry> mByKeyId = new HashMap<>();
+
     public ImportKeysList(int supplierCount) {
         mSupplierCount = supplierCount;
     }
 
     @Override
     public boolean add(ImportKeysListEntry toAdd) {
-        addOrMerge(toAdd);
+        addOrMerge(-1, toAdd);
         return true; // that’s what the ArrayList#add contract says
     }
 
+    @Override
+    public void add(int index, ImportKeysListEntry toAdd) {
+        addOrMerge(index, toAdd);
+    }
+
     @Override
     public boolean addAll(Collection<? extends ImportKeysListEntry> addThese) {
         boolean modified = false;
         for (ImportKeysListEntry toAdd : addThese) {
-            modified = addOrMerge(toAdd) || modified;
+            modified = addOrMerge(-1, toAdd) || modified;
+        }
+        return modified;
+    }
+
+    @Override
+    public synchronized boolean addAll(int index, Collection<? extends ImportKeysListEntry> addThese) {
+        boolean modified = false;
+        for (ImportKeysListEntry toAdd : addThese) {
+            int sizeBefore = size();
+            modified = addOrMerge(index, toAdd) || modified;
+            // only advance if the entry was inserted rather than merged
+            index += size() - sizeBefore;
         }
         return modified;
     }
 
+    @Override
+    public synchronized ImportKeysListEntry set(int index, ImportKeysListEntry element) {
+        ImportKeysListEntry previous = super.set(index, element);
+        rebuildIndexes();
+        return previous;
+    }
+
+    @Override
+    public synchronized ImportKeysListEntry remove(int index) {
+        ImportKeysListEntry removed = super.remove(index);
+        rebuildIndexes();
+        return removed;
+    }
+
+    @Override
+    public synchronized boolean remove(Object o) {
+        boolean modified = super.remove(o);
+        if (modified) {
+            rebuildIndexes();
+        }
+        return modified;
+    }
+
+    @Override
+    public synchronized boolean removeAll(Collection<?> c) {
+        boolean modified = super.removeAll(c);
+        if (modified) {
+            rebuildIndexes();
+        }
+        return modified;
+    }
+
+    @Override
+    public synchronized boolean retainAll(Collection<?> c) {
+        boolean modified = super.retainAll(c);
+        if (modified) {
+            rebuildIndexes();
+        }
+        return modified;
+    }
+
+    @Override
+    protected synchronized void removeRange(int fromIndex, int toIndex) {
+        super.removeRange(fromIndex, toIndex);
+        rebuildIndexes();
+    }
+
+    /** Rebuilds both indexes from the list, after entries were removed or replaced. */
+    private void rebuildIndexes() {
+        mByFingerprint.clear();
+        mByKeyId.clear();
+        for (ImportKeysListEntry entry : this) {
+            index(entry);
+        }
+    }
+
+    private void index(ImportKeysListEntry entry) {
+        String fingerprint = normalizeFingerprint(entry.getFingerprintHex());
+        String keyId = normalizeKeyId(entry.getKeyIdHex());
+        if (fingerprint != null) {
+            mByFingerprint.put(fingerprint, entry);
+        }
+        if (keyId != null && !mByKeyId.containsKey(keyId)) {
+            mByKeyId.put(keyId, entry);
+        }
+    }
+
     // NOTE: side-effects
     // NOTE: synchronized
-    private synchronized boolean addOrMerge(ImportKeysListEntry toAdd) {
-        for (ImportKeysListEntry existing : this) {
-            if (toAdd.hasSameKeyAs(existing)) {
-                return mergeDupes(toAdd, existing);
+    private synchronized boolean addOrMerge(int index, ImportKeysListEntry toAdd) {
+        String fingerprint = normalizeFingerprint(toAdd.getFingerprintHex());
+        String keyId = normalizeKeyId(toAdd.getKeyIdHex());
+
+        ImportKeysListEntry existing = null;
+        if (fingerprint != null) {
+            existing = mByFingerprint.get(fingerprint);
+        }
+        if (existing == null && keyId != null) {
+            ImportKeysListEntry candidate = mByKeyId.get(keyId);
+            // only merge by key id if at most one of the two entries knows its fingerprint,
+            // two different fingerprints with the same key id are two different keys
+            if (candidate != null && (fingerprint == null
+                    || normalizeFingerprint(candidate.getFingerprintHex()) == null)) {
+                existing = candidate;
+            }
+        }
+
+        if (existing != null) {
+            // the existing entry learns the fingerprint, if it didn't know it yet
+            if (fingerprint != null && normalizeFingerprint(existing.getFingerprintHex()) == null) {
+                existing.setFingerprintHex(toAdd.getFingerprintHex());
+                mByFingerprint.put(fingerprint, existing);
             }
+            return mergeDupes(toAdd, existing);
+        }
+
+        index(toAdd);
+        if (index < 0) {
+            return super.add(toAdd);
+        }
+        super.add(index, toAdd);
+        return true;
+    }
+
+    @Override
+    public synchronized void clear() {
+        super.clear();
+        mByFingerprint.clear();
+        mByKeyId.clear();
+    }
+
+    private static String normalizeFingerprint(String fingerprintHex) {
+        if (fingerprintHex == null || fingerprintHex.isEmpty()) {
+            return null;
+        }
+        return fingerprintHex.toLowerCase(Locale.ENGLISH);
+    }
+
+    /** Returns the lower case long key id without "0x" prefix, or null for short key ids. */
+    private static String normalizeKeyId(String keyIdHex) {
+        if (keyIdHex == null) {
+            return null;
+        }
+        String keyId = keyIdHex.toLowerCase(Locale.ENGLISH);
+        if (keyId.startsWith("0x")) {
+            keyId = keyId.substring(2);
+        }
+        // short key ids collide far too easily to be used for merging
+        if (keyId.length() != 16) {
+            return null;
         }
-        return super.add(toAdd);
+        return keyId;
     }
 
     // being a little anal about the ArrayList#addAll contract here
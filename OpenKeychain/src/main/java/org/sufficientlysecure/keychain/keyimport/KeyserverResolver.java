@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+/**
+ * Finds the keyserver responsible for a mail domain. The default implementation is
+ * {@link DnsKeyserverResolver}, which looks up _hkp._tcp SRV records, tests can plug in a
+ * local stub instead.
+ */
+public interface KeyserverResolver {
+
+    /**
+     * @return the resolved keyserver, or a result with a null keyserver if the domain has none.
+     * @throws Exception if the lookup itself failed, such results must not be cached.
+     */
+    Result resolve(String domain) throws Exception;
+
+    class Result {
+        public final Keyserver mKeyserver;
+        /** time in seconds this result may be cached */
+        public final long mTtlSeconds;
+
+        public Result(Keyserver keyserver, long ttlSeconds) {
+            mKeyserver = keyserver;
+            mTtlSeconds = ttlSeconds;
+        }
+    }
+
+}
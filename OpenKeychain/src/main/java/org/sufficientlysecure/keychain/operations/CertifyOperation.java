@@ -21,6 +21,7 @@ import android.content.Context;
 
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
+import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.keyimport.Keyserver.AddKeyException;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
@@ -47,6 +48,15 @@ import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** An operation which implements a high level user id certification operation.
@@ -60,6 +70,11 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class CertifyOperation extends BaseOperation {
 
+    /** maximum number of concurrent requests to the keyserver */
+    public static final int MAX_UPLOAD_THREADS = 4;
+    public static final int UPLOAD_MAX_ATTEMPTS = 3;
+    public static final long UPLOAD_INITIAL_BACKOFF_MILLIS = 1000;
+
     public CertifyOperation(Context context, ProviderHelper providerHelper, Progressable progressable, AtomicBoolean cancelled) {
         super(context, providerHelper, progressable, cancelled);
     }
@@ -118,17 +133,13 @@ public class CertifyOperation extends BaseOperation {
             return new CertifyResult(CertifyResult.RESULT_ERROR, log);
         }
 
-        ArrayList<UncachedKeyRing> certifiedKeys = new ArrayList<>();
-
         log.add(LogType.MSG_CRT_CERTIFYING, 1);
 
         int certifyOk = 0, certifyError = 0, uploadOk = 0, uploadError = 0;
 
-        NfcSignOperationsBuilder allRequiredInput = new NfcSignOperationsBuilder(
-                cryptoInput.getSignatureTime(), certificationKey.getKeyId(),
-                certificationKey.getKeyId());
-
-        // Work through all requested certifications
+        // Fetch all keyrings to certify first, the database is accessed from this thread only
+        ArrayList<CertifyAction> actions = new ArrayList<>();
+        ArrayList<CanonicalizedPublicKeyRing> publicRings = new ArrayList<>();
         for (CertifyAction action : parcel.mCertifyActions) {
 
             // Check if we were cancelled
@@ -137,38 +148,46 @@ public class CertifyOperation extends BaseOperation {
                 return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
             }
 
-            try {
+            if (action.mMasterKeyId == parcel.mMasterKeyId) {
+                log.add(LogType.MSG_CRT_ERROR_SELF, 2);
+                certifyError += 1;
+                continue;
+            }
 
-                if (action.mMasterKeyId == parcel.mMasterKeyId) {
-                    log.add(LogType.MSG_CRT_ERROR_SELF, 2);
-                    certifyError += 1;
-                    continue;
-                }
+            try {
+                publicRings.add(mProviderHelper.getCanonicalizedPublicKeyRing(action.mMasterKeyId));
+                actions.add(action);
+            } catch (NotFoundException e) {
+                certifyError += 1;
+                log.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
+            }
 
-                CanonicalizedPublicKeyRing publicRing =
-                        mProviderHelper.getCanonicalizedPublicKeyRing(action.mMasterKeyId);
+        }
 
-                PgpCertifyOperation op = new PgpCertifyOperation();
-                PgpCertifyResult result = op.certify(certificationKey, publicRing,
-                        log, 2, action, cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+        // Generate certifications in parallel, the unlocked key is only read from here on
+        ArrayList<PgpCertifyResult> results = certifyAll(certificationKey, publicRings, actions,
+                cryptoInput, log);
+        if (results == null || checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
+        }
 
-                if (!result.success()) {
-                    certifyError += 1;
-                    continue;
-                }
-                if (result.nfcInputRequired()) {
-                    RequiredInputParcel requiredInput = result.getRequiredInput();
-                    allRequiredInput.addAll(requiredInput);
-                    continue;
-                }
+        ArrayList<UncachedKeyRing> certifiedKeys = new ArrayList<>();
 
-                certifiedKeys.add(result.getCertifiedRing());
+        NfcSignOperationsBuilder allRequiredInput = new NfcSignOperationsBuilder(
+                cryptoInput.getSignatureTime(), certificationKey.getKeyId(),
+                certificationKey.getKeyId());
 
-            } catch (NotFoundException e) {
+        for (PgpCertifyResult result : results) {
+            if (result == null || !result.success()) {
                 certifyError += 1;
-                log.add(LogType.MSG_CRT_WARN_NOT_FOUND, 3);
+                continue;
             }
-
+            if (result.nfcInputRequired()) {
+                allRequiredInput.addAll(result.getRequiredInput());
+                continue;
+            }
+            certifiedKeys.add(result.getCertifiedRing());
         }
 
         if ( ! allRequiredInput.isEmpty()) {
@@ -184,14 +203,8 @@ public class CertifyOperation extends BaseOperation {
             return new CertifyResult(CertifyResult.RESULT_CANCELLED, log);
         }
 
-        HkpKeyserver keyServer = null;
-        ImportExportOperation importExportOperation = null;
-        if (parcel.keyServerUri != null) {
-            keyServer = new HkpKeyserver(parcel.keyServerUri);
-            importExportOperation = new ImportExportOperation(mContext, mProviderHelper, mProgressable);
-        }
-
         // Write all certified keys into the database
+        ArrayList<UncachedKeyRing> savedKeys = new ArrayList<>();
         for (UncachedKeyRing certifiedKey : certifiedKeys) {
 
             // Check if we were cancelled
@@ -206,19 +219,9 @@ public class CertifyOperation extends BaseOperation {
             mProviderHelper.clearLog();
             SaveKeyringResult result = mProviderHelper.savePublicKeyRing(certifiedKey);
 
-            if (importExportOperation != null) {
-                // TODO use subresult, get rid of try/catch!
-                try {
-                    importExportOperation.uploadKeyRingToServer(keyServer, certifiedKey);
-                    uploadOk += 1;
-                } catch (AddKeyException e) {
-                    Log.e(Constants.TAG, "error uploading key", e);
-                    uploadError += 1;
-                }
-            }
-
             if (result.success()) {
                 certifyOk += 1;
+                savedKeys.add(certifiedKey);
             } else {
                 log.add(LogType.MSG_CRT_WARN_SAVE_FAILED, 3);
             }
@@ -227,16 +230,189 @@ public class CertifyOperation extends BaseOperation {
 
         }
 
+        // Upload all saved keys, with a bounded number of concurrent requests
+        HashMap<Long, Integer> uploadStatus = new HashMap<>();
+        if (parcel.keyServerUri != null && !savedKeys.isEmpty()) {
+            log.add(LogType.MSG_CRT_UPLOADING, 1, savedKeys.size());
+            uploadAll(createKeyserver(parcel.keyServerUri), savedKeys, log, uploadStatus);
+            for (Integer status : uploadStatus.values()) {
+                if (status == CertifyResult.UPLOAD_OK) {
+                    uploadOk += 1;
+                } else {
+                    uploadError += 1;
+                }
+            }
+        }
+
         if (certifyOk == 0) {
             log.add(LogType.MSG_CRT_ERROR_NOTHING, 0);
-            return new CertifyResult(CertifyResult.RESULT_ERROR, log, certifyOk, certifyError, uploadOk, uploadError);
+            return new CertifyResult(CertifyResult.RESULT_ERROR, log, certifyOk, certifyError, uploadOk, uploadError,
+                    uploadStatus);
         }
 
         log.add(LogType.MSG_CRT_SUCCESS, 0);
         //since only verified keys are synced to contacts, we need to initiate a sync now
         ContactSyncAdapterService.requestSync();
         
-        return new CertifyResult(CertifyResult.RESULT_OK, log, certifyOk, certifyError, uploadOk, uploadError);
+        return new CertifyResult(CertifyResult.RESULT_OK, log, certifyOk, certifyError, uploadOk, uploadError,
+                uploadStatus);
+
+    }
+
+    /** Certifies all keyrings concurrently, one task per keyring. Each task writes
+     * into its own log, which are appended to the main log in the original order.
+     *
+     * @return the certification results in the order of publicRings, with null for keyrings
+     *         which failed or were skipped due to cancellation, or null if interrupted
+     */
+    private ArrayList<PgpCertifyResult> certifyAll(
+            final CanonicalizedSecretKey certificationKey,
+            List<CanonicalizedPublicKeyRing> publicRings, List<CertifyAction> actions,
+            final CryptoInputParcel cryptoInput, OperationLog log) {
+
+        int threads = Math.max(1, Math.min(publicRings.size(),
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+        try {
+            ArrayList<OperationLog> logs = new ArrayList<>();
+            ArrayList<Future<PgpCertifyResult>> futures = new ArrayList<>();
+            for (int i = 0; i < publicRings.size(); i++) {
+                final CanonicalizedPublicKeyRing publicRing = publicRings.get(i);
+                final CertifyAction action = actions.get(i);
+                final OperationLog taskLog = new OperationLog();
+                logs.add(taskLog);
+                futures.add(executor.submit(new Callable<PgpCertifyResult>() {
+                    @Override
+                    public PgpCertifyResult call() throws Exception {
+                        if (checkCancelled()) {
+                            return null;
+                        }
+                        PgpCertifyOperation op = new PgpCertifyOperation();
+                        return op.certify(certificationKey, publicRing, taskLog, 2, action,
+                                cryptoInput.getCryptoData(), cryptoInput.getSignatureTime());
+                    }
+                }));
+            }
+
+            ArrayList<PgpCertifyResult> results = new ArrayList<>();
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                    log.addAll(logs.get(i));
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "certification failed", e.getCause());
+                    log.addAll(logs.get(i));
+                    log.add(LogType.MSG_CRT_WARN_CERT_FAILED, 3);
+                    results.add(null);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+    /** Returns the keyserver certified keys are uploaded to, may be overridden for testing. */
+    protected Keyserver createKeyserver(String keyServerUri) {
+        return new HkpKeyserver(keyServerUri);
+    }
+
+    /** Waits before an upload is retried, may be overridden for testing. */
+    protected void waitBeforeRetry(long millis) throws InterruptedException {
+        Thread.sleep(millis);
+    }
+
+    /** Uploads the keyrings to the keyserver, with at most MAX_UPLOAD_THREADS concurrent
+     * requests. Failed uploads are retried with exponential backoff. The outcome for each
+     * key is put into uploadStatus, keyed by master key id.
+     */
+    private void uploadAll(final Keyserver keyServer, List<UncachedKeyRing> keys,
+                           OperationLog log, HashMap<Long, Integer> uploadStatus) {
+
+        final ImportExportOperation importExportOperation =
+                new ImportExportOperation(mContext, mProviderHelper, mProgressable);
+
+        int threads = Math.min(keys.size(), MAX_UPLOAD_THREADS);
+        ExecutorService executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+
+        try {
+            ArrayList<OperationLog> logs = new ArrayList<>();
+            ArrayList<Future<Integer>> futures = new ArrayList<>();
+            for (final UncachedKeyRing key : keys) {
+                final OperationLog taskLog = new OperationLog();
+                logs.add(taskLog);
+                futures.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return uploadWithRetry(importExportOperation, keyServer, key, taskLog);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); i++) {
+                long masterKeyId = keys.get(i).getMasterKeyId();
+                int status;
+                try {
+                    status = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Log.e(Constants.TAG, "error uploading key", e.getCause());
+                    status = CertifyResult.UPLOAD_ERROR;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    status = CertifyResult.UPLOAD_CANCELLED;
+                }
+                log.addAll(logs.get(i));
+                uploadStatus.put(masterKeyId, status);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+    }
+
+    private int uploadWithRetry(ImportExportOperation importExportOperation,
+                                Keyserver keyServer, UncachedKeyRing key, OperationLog log) {
+
+        String keyIdHex = KeyFormattingUtils.convertKeyIdToHex(key.getMasterKeyId());
+        log.add(LogType.MSG_CRT_UPLOAD, 2, keyIdHex);
+
+        long backoff = UPLOAD_INITIAL_BACKOFF_MILLIS;
+        for (int attempt = 1; ; attempt++) {
+            if (checkCancelled()) {
+                log.add(LogType.MSG_CRT_UPLOAD_CANCELLED, 3);
+                return CertifyResult.UPLOAD_CANCELLED;
+            }
+            try {
+                importExportOperation.uploadKeyRingToServer(keyServer, key);
+                log.add(LogType.MSG_CRT_UPLOAD_SUCCESS, 3);
+                return CertifyResult.UPLOAD_OK;
+            } catch (AddKeyException e) {
+                Log.e(Constants.TAG, "error uploading key", e);
+            }
+
+            if (attempt >= UPLOAD_MAX_ATTEMPTS) {
+                log.add(LogType.MSG_CRT_WARN_UPLOAD_FAILED, 3);
+                return CertifyResult.UPLOAD_ERROR;
+            }
+            // logs the number of the attempt which is about to be made
+            log.add(LogType.MSG_CRT_UPLOAD_RETRY, 3, attempt + 1, UPLOAD_MAX_ATTEMPTS);
+
+            try {
+                waitBeforeRetry(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.add(LogType.MSG_CRT_UPLOAD_CANCELLED, 3);
+                return CertifyResult.UPLOAD_CANCELLED;
+            }
+            backoff *= 2;
+        }
 
     }
 
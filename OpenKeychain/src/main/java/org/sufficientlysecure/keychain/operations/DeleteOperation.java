@@ -19,16 +19,16 @@ package org.sufficientlysecure.keychain.operations;
 
 import android.content.Context;
 
-import org.sufficientlysecure.keychain.operations.results.ConsolidateResult;
 import org.sufficientlysecure.keychain.operations.results.DeleteResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.Progressable;
-import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.ContactSyncAdapterService;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 
+import java.util.HashSet;
+
 /** An operation which implements a high level keyring delete operation.
  *
  * This operation takes a list of masterKeyIds as input, deleting all
@@ -36,6 +36,9 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
  * be deleted as well, but only explicitly and individually, not as
  * a list.
  *
+ * All keyrings are deleted in a single transaction. Certificates made by
+ * a deleted secret key are removed along with it, so the database does
+ * not need to be consolidated afterwards.
  */
 public class DeleteOperation extends BaseOperation {
 
@@ -59,17 +62,17 @@ public class DeleteOperation extends BaseOperation {
 
         log.add(LogType.MSG_DEL, 0, masterKeyIds.length);
 
-        boolean cancelled = false;
+        if (checkCancelled()) {
+            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
+            return new DeleteResult(DeleteResult.RESULT_CANCELLED, log, 0, 0);
+        }
+
+        // all keyrings are deleted in a single transaction
+        HashSet<Long> deleted = mProviderHelper.deleteKeyRings(masterKeyIds);
+
         int success = 0, fail = 0;
         for (long masterKeyId : masterKeyIds) {
-            if (checkCancelled()) {
-                cancelled = true;
-                break;
-            }
-            int count = mProviderHelper.getContentResolver().delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null
-            );
-            if (count > 0) {
+            if (deleted.contains(masterKeyId)) {
                 log.add(LogType.MSG_DEL_KEY, 1, KeyFormattingUtils.beautifyKeyId(masterKeyId));
                 success += 1;
             } else {
@@ -78,12 +81,6 @@ public class DeleteOperation extends BaseOperation {
             }
         }
 
-        if (isSecret && success > 0) {
-            log.add(LogType.MSG_DEL_CONSOLIDATE, 1);
-            ConsolidateResult sub = mProviderHelper.consolidateDatabaseStep1(mProgressable);
-            log.add(sub, 2);
-        }
-
         int result = DeleteResult.RESULT_OK;
         if (success > 0) {
             // make sure new data is synced into contacts
@@ -98,10 +95,6 @@ public class DeleteOperation extends BaseOperation {
                 result |= DeleteResult.RESULT_ERROR;
             }
         }
-        if (cancelled) {
-            log.add(LogType.MSG_OPERATION_CANCELLED, 0);
-            result |= DeleteResult.RESULT_CANCELLED;
-        }
 
         return new DeleteResult(result, log, success, fail);
 
@@ -19,6 +19,8 @@ package org.sufficientlysecure.keychain.operations;
 
 import android.content.Context;
 
+import org.spongycastle.openpgp.PGPException;
+import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.EditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
@@ -27,8 +29,10 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult.Operat
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
+import org.sufficientlysecure.keychain.pgp.PgpConstants;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.S2kCalibrator;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
@@ -37,6 +41,8 @@ import org.sufficientlysecure.keychain.service.PassphraseCacheService;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -72,6 +78,7 @@ public class EditKeyOperation extends BaseOperation<SaveKeyringParcel> {
         {
             PgpKeyOperation keyOperations =
                     new PgpKeyOperation(new ProgressScaler(mProgressable, 10, 60, 100), mCancelled);
+            keyOperations.setS2kCount(getS2kCount(log, 1));
 
             // If a key id is specified, fetch and edit
             if (saveParcel.mMasterKeyId != null) {
@@ -150,4 +157,28 @@ public class EditKeyOperation extends BaseOperation<SaveKeyringParcel> {
 
     }
 
+    /**
+     * Returns the s2k count for secret key encryption on this device. It is calibrated
+     * once, so unlocking a key takes about the same time on every device.
+     */
+    private int getS2kCount(OperationLog log, int indent) {
+        Preferences prefs = Preferences.getPreferences(mContext);
+        int s2kCount = prefs.getS2kCount();
+        if (s2kCount != 0) {
+            return s2kCount;
+        }
+
+        try {
+            s2kCount = S2kCalibrator.calibrate(
+                    PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO, S2kCalibrator.TARGET_MILLIS);
+        } catch (PGPException e) {
+            Log.e(Constants.TAG, "S2K calibration failed, using default", e);
+            return PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+        }
+        prefs.setS2kCount(s2kCount);
+        log.add(LogType.MSG_ED_S2K_CALIBRATED, indent,
+                Long.toString(S2kCalibrator.decodeCount(s2kCount)));
+        return s2kCount;
+    }
+
 }
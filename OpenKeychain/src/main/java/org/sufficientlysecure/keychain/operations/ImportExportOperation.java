@@ -59,9 +59,18 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /** An operation class which implements high level import and export
@@ -89,6 +98,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public class ImportExportOperation extends BaseOperation {
 
+    /** Imports of more keys than this keep only the first and last LOG_LIMIT log entries */
+    public static final int LOG_LIMIT_THRESHOLD = 100;
+    public static final int LOG_LIMIT = 500;
+
+    /** Number of keyrings per worker thread which may be in flight during export */
+    static final int EXPORT_WINDOW_PER_THREAD = 4;
+
     public ImportExportOperation(Context context, ProviderHelper providerHelper, Progressable progressable) {
         super(context, providerHelper, progressable);
     }
@@ -98,11 +114,11 @@ public class ImportExportOperation extends BaseOperation {
         super(context, providerHelper, progressable, cancelled);
     }
 
-    public void uploadKeyRingToServer(HkpKeyserver server, CanonicalizedPublicKeyRing keyring) throws AddKeyException {
+    public void uploadKeyRingToServer(Keyserver server, CanonicalizedPublicKeyRing keyring) throws AddKeyException {
         uploadKeyRingToServer(server, keyring.getUncachedKeyRing());
     }
 
-    public void uploadKeyRingToServer(HkpKeyserver server, UncachedKeyRing keyring) throws AddKeyException {
+    public void uploadKeyRingToServer(Keyserver server, UncachedKeyRing keyring) throws AddKeyException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
         ArmoredOutputStream aos = null;
         try {
@@ -168,7 +184,8 @@ public class ImportExportOperation extends BaseOperation {
     public ImportKeyResult importKeyRings(Iterator<ParcelableKeyRing> entries, int num, String keyServerUri) {
         updateProgress(R.string.progress_importing, 0, 100);
 
-        OperationLog log = new OperationLog();
+        OperationLog log = num > LOG_LIMIT_THRESHOLD
+                ? new OperationLog(LOG_LIMIT, LOG_LIMIT) : new OperationLog();
         log.add(LogType.MSG_IMPORT, 0, num);
 
         // If there aren't even any keys, do nothing here.
@@ -337,6 +354,11 @@ public class ImportExportOperation extends BaseOperation {
             log.add(result, 1);
         }
 
+        // large imports leave a large write-ahead log behind, fold it back into the database
+        if (newKeys + updatedKeys > LOG_LIMIT_THRESHOLD) {
+            mProviderHelper.checkpoint();
+        }
+
         // Special: make sure new data is synced into contacts
         // disabling sync right now since it reduces speed while multi-threading
         // so, we expect calling functions to take care of it. KeychainService handles this
@@ -449,6 +471,82 @@ public class ImportExportOperation extends BaseOperation {
 
     }
 
+    /** A single keyring to export, encoded and armored by a worker thread. The public
+     * and secret parts are armored separately, just as they were written sequentially.
+     *
+     * Stored keyring data which has an export checksum is exported as is, if the checksum
+     * matches. Data without a checksum, i.e. which was stored by an older version or
+     * contains local signatures, is decoded and canonicalized for export.
+     */
+    private static class KeyExportTask implements Callable<KeyExportTask> {
+        final long mMasterKeyId;
+        byte[] mPublicData, mPublicChecksum, mSecretData, mSecretChecksum;
+        final OperationLog mLog = new OperationLog();
+
+        byte[] mArmored;
+        boolean mOkPublic, mOkSecret;
+
+        KeyExportTask(long masterKeyId, byte[] publicData, byte[] publicChecksum,
+                      byte[] secretData, byte[] secretChecksum) {
+            mMasterKeyId = masterKeyId;
+            mPublicData = publicData;
+            mPublicChecksum = publicChecksum;
+            mSecretData = secretData;
+            mSecretChecksum = secretChecksum;
+        }
+
+        @Override
+        public KeyExportTask call() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try {
+                mLog.add(LogType.MSG_EXPORT_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(mMasterKeyId));
+                encodeArmored(mPublicData, mPublicChecksum, out);
+                mOkPublic = true;
+
+                if (mSecretData != null) {
+                    mLog.add(LogType.MSG_EXPORT_SECRET, 2, KeyFormattingUtils.beautifyKeyId(mMasterKeyId));
+                    encodeArmored(mSecretData, mSecretChecksum, out);
+                    mOkSecret = true;
+                }
+            } catch (PgpGeneralException e) {
+                mLog.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
+            }
+            mArmored = out.toByteArray();
+            // the raw blobs aren't needed anymore while this waits for the writer
+            mPublicData = mSecretData = null;
+            return this;
+        }
+
+        private void encodeArmored(byte[] data, byte[] checksum, OutputStream out)
+                throws IOException, PgpGeneralException {
+            ArmoredOutputStream arOutStream = new ArmoredOutputStream(out);
+            try {
+                if (checksum != null) {
+                    if (Arrays.equals(checksum, CanonicalizedKeyRing.getDigest(data))) {
+                        mLog.add(LogType.MSG_EXPORT_STORED, 3);
+                        arOutStream.write(data);
+                        return;
+                    }
+                    mLog.add(LogType.MSG_EXPORT_WARN_CHECKSUM, 3);
+                }
+                CanonicalizedKeyRing ring =
+                        UncachedKeyRing.decodeFromData(data).canonicalize(mLog, 2, true);
+                ring.encode(arOutStream);
+            } finally {
+                arOutStream.close();
+            }
+        }
+    }
+
+    /** Exports keyrings to outStream.
+     *
+     * Keyrings are read from the database in order of master key id, then checked or
+     * canonicalized, and armored on a pool of worker threads. A single writer takes the
+     * results in the same order and streams them to outStream. At most
+     * EXPORT_WINDOW_PER_THREAD keyrings per thread are in flight at any time, so memory
+     * use doesn't depend on the number of exported keys. Progress is reported in stored
+     * keyring bytes of the exported keys, relative to the total summed up front.
+     */
     ExportResult exportKeyRings(OperationLog log, long[] masterKeyIds, boolean exportSecret,
                                  OutputStream outStream) {
 
@@ -463,9 +561,10 @@ public class ImportExportOperation extends BaseOperation {
             outStream = new BufferedOutputStream(outStream);
         }
 
-        int okSecret = 0, okPublic = 0, progress = 0;
+        int[] okCount = new int[2];
 
         Cursor cursor = null;
+        ExecutorService executor = null;
         try {
 
             String selection = null, ids[] = null;
@@ -489,86 +588,80 @@ public class ImportExportOperation extends BaseOperation {
             cursor = mProviderHelper.getContentResolver().query(
                     KeyRings.buildUnifiedKeyRingsUri(), new String[]{
                             KeyRings.MASTER_KEY_ID, KeyRings.PUBKEY_DATA,
-                            KeyRings.PRIVKEY_DATA, KeyRings.HAS_ANY_SECRET
+                            KeyRings.PRIVKEY_DATA, KeyRings.HAS_ANY_SECRET,
+                            KeyRings.PUBKEY_EXPORT_CHECKSUM, KeyRings.PRIVKEY_EXPORT_CHECKSUM
                     }, selection, ids, Tables.KEYS + "." + KeyRings.MASTER_KEY_ID
             );
 
             if (cursor == null || !cursor.moveToFirst()) {
                 log.add(LogType.MSG_EXPORT_ERROR_DB, 1);
-                return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
+                return new ExportResult(ExportResult.RESULT_ERROR, log);
             }
 
             int numKeys = cursor.getCount();
 
-            updateProgress(
-                    mContext.getResources().getQuantityString(R.plurals.progress_exporting_key,
-                            numKeys), 0, numKeys);
-
-            // For each public masterKey id
-            while (!cursor.isAfterLast()) {
+            // sum up the stored sizes first, so progress follows the actual amount of data
+            long totalBytes = 0;
+            do {
+                totalBytes += storedSize(cursor, exportSecret);
+            } while (cursor.moveToNext());
+            cursor.moveToFirst();
 
-                long keyId = cursor.getLong(0);
-                ArmoredOutputStream arOutStream = null;
+            String progressMessage = mContext.getResources().getQuantityString(
+                    R.plurals.progress_exporting_key, numKeys);
+            updateProgress(progressMessage, 0, numKeys);
 
-                // Create an output stream
-                try {
-                    arOutStream = new ArmoredOutputStream(outStream);
+            int threads = Math.max(1, Math.min(numKeys, Runtime.getRuntime().availableProcessors()));
+            executor = new ThreadPoolExecutor(threads, threads,
+                    0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+            int window = threads * EXPORT_WINDOW_PER_THREAD;
 
-                    log.add(LogType.MSG_EXPORT_PUBLIC, 1, KeyFormattingUtils.beautifyKeyId(keyId));
+            ArrayDeque<Future<KeyExportTask>> pending = new ArrayDeque<>();
+            ArrayDeque<Long> pendingSizes = new ArrayDeque<>();
+            long bytesDone = 0;
 
-                    byte[] data = cursor.getBlob(1);
-                    CanonicalizedKeyRing ring =
-                            UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-                    ring.encode(arOutStream);
+            while (!cursor.isAfterLast()) {
 
-                    okPublic += 1;
-                } catch (PgpGeneralException e) {
-                    log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
-                    updateProgress(progress++, numKeys);
-                    continue;
-                } finally {
-                    // make sure this is closed
-                    if (arOutStream != null) {
-                        arOutStream.close();
-                    }
-                    arOutStream = null;
+                if (checkCancelled()) {
+                    log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+                    return new ExportResult(ExportResult.RESULT_CANCELLED, log, okCount[0], okCount[1]);
                 }
 
-                if (exportSecret && cursor.getInt(3) > 0) {
-                    try {
-                        arOutStream = new ArmoredOutputStream(outStream);
-
-                        // export secret key part
-                        log.add(LogType.MSG_EXPORT_SECRET, 2, KeyFormattingUtils.beautifyKeyId(keyId));
-                        byte[] data = cursor.getBlob(2);
-                        CanonicalizedKeyRing ring =
-                                UncachedKeyRing.decodeFromData(data).canonicalize(log, 2, true);
-                        ring.encode(arOutStream);
-
-                        okSecret += 1;
-                    } catch (PgpGeneralException e) {
-                        log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
-                        updateProgress(progress++, numKeys);
-                        continue;
-                    } finally {
-                        // make sure this is closed
-                        if (arOutStream != null) {
-                            arOutStream.close();
-                        }
-                    }
+                // wait for the oldest keyring before reading more, to bound memory use
+                if (pending.size() >= window) {
+                    writeExported(pending.removeFirst(), outStream, log, okCount);
+                    bytesDone += pendingSizes.removeFirst();
+                    updateExportProgress(progressMessage, bytesDone, totalBytes);
                 }
 
-                updateProgress(progress++, numKeys);
+                boolean withSecret = exportSecret && cursor.getInt(3) > 0;
+                pendingSizes.addLast(storedSize(cursor, exportSecret));
+                pending.addLast(executor.submit(new KeyExportTask(cursor.getLong(0),
+                        cursor.getBlob(1), cursor.getBlob(4),
+                        withSecret ? cursor.getBlob(2) : null, withSecret ? cursor.getBlob(5) : null)));
 
                 cursor.moveToNext();
             }
 
+            while (!pending.isEmpty()) {
+                writeExported(pending.removeFirst(), outStream, log, okCount);
+                bytesDone += pendingSizes.removeFirst();
+                updateExportProgress(progressMessage, bytesDone, totalBytes);
+            }
+
             updateProgress(R.string.progress_done, numKeys, numKeys);
 
         } catch (IOException e) {
             log.add(LogType.MSG_EXPORT_ERROR_IO, 1);
-            return new ExportResult(ExportResult.RESULT_ERROR, log, okPublic, okSecret);
+            return new ExportResult(ExportResult.RESULT_ERROR, log, okCount[0], okCount[1]);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.add(LogType.MSG_OPERATION_CANCELLED, 1);
+            return new ExportResult(ExportResult.RESULT_CANCELLED, log, okCount[0], okCount[1]);
         } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
             // Make sure the stream is closed
             if (outStream != null) try {
                 outStream.close();
@@ -582,8 +675,49 @@ public class ImportExportOperation extends BaseOperation {
 
 
         log.add(LogType.MSG_EXPORT_SUCCESS, 1);
-        return new ExportResult(ExportResult.RESULT_OK, log, okPublic, okSecret);
+        return new ExportResult(ExportResult.RESULT_OK, log, okCount[0], okCount[1]);
+
+    }
+
+    /** Waits for an export task, and writes its output and log in order.
+     *
+     * @param okCount number of successfully exported public and secret keyrings, updated
+     */
+    private static void writeExported(Future<KeyExportTask> future, OutputStream outStream,
+                                      OperationLog log, int[] okCount)
+            throws IOException, InterruptedException {
+        KeyExportTask task;
+        try {
+            task = future.get();
+        } catch (ExecutionException e) {
+            Log.e(Constants.TAG, "error exporting key", e.getCause());
+            log.add(LogType.MSG_EXPORT_ERROR_KEY, 2);
+            return;
+        }
 
+        log.addAll(task.mLog);
+        outStream.write(task.mArmored);
+        okCount[0] += task.mOkPublic ? 1 : 0;
+        okCount[1] += task.mOkSecret ? 1 : 0;
+    }
+
+    /** Returns the stored size of the keyring data the cursor's current row exports. */
+    private static long storedSize(Cursor cursor, boolean exportSecret) {
+        byte[] publicData = cursor.getBlob(1);
+        long size = publicData != null ? publicData.length : 0;
+        if (exportSecret && cursor.getInt(3) > 0) {
+            byte[] secretData = cursor.getBlob(2);
+            size += secretData != null ? secretData.length : 0;
+        }
+        return size;
+    }
+
+    private void updateExportProgress(String message, long bytesDone, long totalBytes) {
+        if (totalBytes == 0) {
+            return;
+        }
+        // scale to int range, using permille of the total stored size
+        updateProgress(message, (int) (bytesDone * 1000 / totalBytes), 1000);
     }
 
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations;
+
+import android.content.Context;
+import android.database.Cursor;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper.RefreshCandidate;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** An operation which refreshes a slice of the stored public keys from a keyserver.
+ *
+ * Keys are selected by KeyUpdateHelper, and fetched through the regular import
+ * path of ImportExportOperation, so merging and canonicalization work exactly
+ * like a manual refresh. Requests to the same keyserver are spaced out by
+ * MIN_REQUEST_INTERVAL_MILLIS, across all running refresh operations.
+ *
+ */
+public class KeyRefreshOperation extends BaseOperation {
+
+    /** minimum time between two requests to the same keyserver */
+    public static final long MIN_REQUEST_INTERVAL_MILLIS = 2 * 1000;
+
+    /** time of last request per keyserver, shared among all instances */
+    private static final HashMap<String, Long> sLastRequest = new HashMap<>();
+
+    public KeyRefreshOperation(Context context, ProviderHelper providerHelper,
+                               Progressable progressable, AtomicBoolean cancelled) {
+        super(context, providerHelper, progressable, cancelled);
+    }
+
+    public ImportKeyResult refresh(String keyServerUri, long periodMillis, long runIntervalMillis) {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_REFRESH, 0);
+
+        List<RefreshCandidate> candidates;
+        try {
+            candidates = loadCandidates();
+        } catch (IllegalStateException e) {
+            Log.e(Constants.TAG, "error loading keys for refresh", e);
+            log.add(LogType.MSG_REFRESH_ERROR_DB, 1);
+            return new ImportKeyResult(ImportKeyResult.RESULT_ERROR, log);
+        }
+
+        int sliceSize = KeyUpdateHelper.getSliceSize(candidates.size(), runIntervalMillis, periodMillis);
+        List<RefreshCandidate> slice = KeyUpdateHelper.selectKeysToRefresh(candidates,
+                System.currentTimeMillis() / 1000, periodMillis, sliceSize, new SecureRandom());
+
+        if (slice.isEmpty()) {
+            log.add(LogType.MSG_REFRESH_NOTHING, 1);
+            return new ImportKeyResult(ImportKeyResult.RESULT_OK, log);
+        }
+        log.add(LogType.MSG_REFRESH_SLICE, 1, slice.size(), candidates.size());
+
+        RateLimitedIterator it = new RateLimitedIterator(slice, keyServerUri);
+        ImportKeyResult result = new ImportExportOperation(mContext, mProviderHelper,
+                mProgressable, mCancelled).importKeyRings(it, slice.size(), keyServerUri);
+        log.add(result, 1);
+
+        // keys which could not be fetched are marked as well, otherwise keys missing on
+        // the keyserver would be retried in every run
+        long now = System.currentTimeMillis() / 1000;
+        for (long masterKeyId : it.mRequested) {
+            mProviderHelper.renewKeyLastUpdatedTime(masterKeyId, now);
+        }
+
+        return new ImportKeyResult(result.getResult(), log, result.mNewKeys, result.mUpdatedKeys,
+                result.mBadKeys, result.mSecret, result.mImportedMasterKeyIds);
+    }
+
+    private List<RefreshCandidate> loadCandidates() {
+        HashMap<Long, Long> lastUpdated = new HashMap<>();
+        Cursor cursor = mProviderHelper.getContentResolver().query(UpdatedKeys.CONTENT_URI,
+                new String[]{ UpdatedKeys.MASTER_KEY_ID, UpdatedKeys.LAST_UPDATED }, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("updated keys query failed");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                lastUpdated.put(cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        ArrayList<RefreshCandidate> candidates = new ArrayList<>();
+        cursor = mProviderHelper.getContentResolver().query(KeyRings.buildUnifiedKeyRingsUri(),
+                new String[]{ KeyRings.MASTER_KEY_ID, KeyRings.FINGERPRINT }, null, null, null);
+        if (cursor == null) {
+            throw new IllegalStateException("key rings query failed");
+        }
+        try {
+            while (cursor.moveToNext()) {
+                long masterKeyId = cursor.getLong(0);
+                String fingerprint = KeyFormattingUtils.convertFingerprintToHex(cursor.getBlob(1));
+                Long updated = lastUpdated.get(masterKeyId);
+                candidates.add(new RefreshCandidate(masterKeyId, fingerprint,
+                        updated != null ? updated : 0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return candidates;
+    }
+
+    /** Hands out keys to the import operation, waiting as needed between two of them
+     * so the keyserver isn't hit with a burst of requests. Keeps track of all keys that
+     * were handed out.
+     */
+    private class RateLimitedIterator implements Iterator<ParcelableKeyRing> {
+
+        final Iterator<RefreshCandidate> mIterator;
+        final String mKeyServerUri;
+        final ArrayList<Long> mRequested = new ArrayList<>();
+
+        RateLimitedIterator(List<RefreshCandidate> candidates, String keyServerUri) {
+            mIterator = candidates.iterator();
+            mKeyServerUri = keyServerUri;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !checkCancelled() && mIterator.hasNext();
+        }
+
+        @Override
+        public ParcelableKeyRing next() {
+            waitForKeyserver();
+            RefreshCandidate candidate = mIterator.next();
+            mRequested.add(candidate.mMasterKeyId);
+            return new ParcelableKeyRing(candidate.mFingerprint, null, null);
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        private void waitForKeyserver() {
+            while (!checkCancelled()) {
+                long wait;
+                synchronized (sLastRequest) {
+                    Long last = sLastRequest.get(mKeyServerUri);
+                    long now = System.currentTimeMillis();
+                    wait = last == null ? 0 : last + MIN_REQUEST_INTERVAL_MILLIS - now;
+                    if (wait <= 0) {
+                        sLastRequest.put(mKeyServerUri, now);
+                        return;
+                    }
+                }
+                try {
+                    // sleep in short steps, to react to cancellation in time
+                    Thread.sleep(Math.min(wait, 200));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+}
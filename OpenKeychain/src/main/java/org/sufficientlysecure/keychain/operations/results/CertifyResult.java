@@ -31,8 +31,18 @@ import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
 
+import java.util.HashMap;
+import java.util.Map;
+
 public class CertifyResult extends InputPendingResult {
+
+    public static final int UPLOAD_OK = 0;
+    public static final int UPLOAD_ERROR = 1;
+    public static final int UPLOAD_CANCELLED = 2;
+
     int mCertifyOk, mCertifyError, mUploadOk, mUploadError;
+    // upload status per master key id, only contains keys for which an upload was attempted
+    HashMap<Long, Integer> mUploadStatus = new HashMap<>();
 
     public CertifyResult(int result, OperationLog log) {
         super(result, log);
@@ -50,13 +60,27 @@ public class CertifyResult extends InputPendingResult {
         mUploadError = uploadError;
     }
 
-    /** Construct from a parcel - trivial because we have no extra data. */
+    public CertifyResult(int result, OperationLog log, int certifyOk, int certifyError, int uploadOk, int uploadError,
+                         HashMap<Long, Integer> uploadStatus) {
+        this(result, log, certifyOk, certifyError, uploadOk, uploadError);
+        mUploadStatus = uploadStatus;
+    }
+
     public CertifyResult(Parcel source) {
         super(source);
         mCertifyOk = source.readInt();
         mCertifyError = source.readInt();
         mUploadOk = source.readInt();
         mUploadError = source.readInt();
+        int numUploads = source.readInt();
+        for (int i = 0; i < numUploads; i++) {
+            mUploadStatus.put(source.readLong(), source.readInt());
+        }
+    }
+
+    /** Returns the upload status of a key, or null if no upload was attempted for it. */
+    public Integer getUploadStatus(long masterKeyId) {
+        return mUploadStatus.get(masterKeyId);
     }
 
     @Override
@@ -66,6 +90,11 @@ public class CertifyResult extends InputPendingResult {
         dest.writeInt(mCertifyError);
         dest.writeInt(mUploadOk);
         dest.writeInt(mUploadError);
+        dest.writeInt(mUploadStatus.size());
+        for (Map.Entry<Long, Integer> entry : mUploadStatus.entrySet()) {
+            dest.writeLong(entry.getKey());
+            dest.writeInt(entry.getValue());
+        }
     }
 
     public static Creator<CertifyResult> CREATOR = new Creator<CertifyResult>() {
@@ -116,6 +145,14 @@ public class CertifyResult extends InputPendingResult {
                 str += " " + activity.getResources().getQuantityString(
                         R.plurals.certify_keys_with_errors, mCertifyError, mCertifyError);
             }
+            if (mUploadError > 0) {
+                duration = 0;
+                if (style == Style.OK) {
+                    style = Style.WARN;
+                }
+                str += " " + activity.getResources().getQuantityString(
+                        R.plurals.certify_keys_upload_errors, mUploadError, mUploadError);
+            }
 
         } else {
             duration = 0;
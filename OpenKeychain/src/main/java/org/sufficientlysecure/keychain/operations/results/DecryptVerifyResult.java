@@ -35,6 +35,11 @@ public class DecryptVerifyResult extends InputPendingResult {
     // This holds the charset which was specified in the ascii armor, if specified
     // https://tools.ietf.org/html/rfc4880#page56
     String mCharset;
+    // key ids of all asymmetrically encrypted session keys, and whether we have a secret key for one
+    long[] mRecipientKeyIds;
+    boolean mDecryptable;
+    // key id of the first one-pass signature, only read when decrypting metadata only
+    long mSignatureKeyId;
 
     byte[] mOutputBytes;
 
@@ -50,6 +55,9 @@ public class DecryptVerifyResult extends InputPendingResult {
         super(source);
         mSignatureResult = source.readParcelable(OpenPgpSignatureResult.class.getClassLoader());
         mDecryptMetadata = source.readParcelable(OpenPgpMetadata.class.getClassLoader());
+        mRecipientKeyIds = source.createLongArray();
+        mDecryptable = source.readInt() != 0;
+        mSignatureKeyId = source.readLong();
     }
 
 
@@ -81,6 +89,30 @@ public class DecryptVerifyResult extends InputPendingResult {
         mCharset = charset;
     }
 
+    public long[] getRecipientKeyIds() {
+        return mRecipientKeyIds;
+    }
+
+    public void setRecipientKeyIds(long[] recipientKeyIds) {
+        mRecipientKeyIds = recipientKeyIds;
+    }
+
+    public boolean isDecryptable() {
+        return mDecryptable;
+    }
+
+    public void setDecryptable(boolean decryptable) {
+        mDecryptable = decryptable;
+    }
+
+    public long getSignatureKeyId() {
+        return mSignatureKeyId;
+    }
+
+    public void setSignatureKeyId(long signatureKeyId) {
+        mSignatureKeyId = signatureKeyId;
+    }
+
     public void setOutputBytes(byte[] outputBytes) {
         mOutputBytes = outputBytes;
     }
@@ -97,6 +129,9 @@ public class DecryptVerifyResult extends InputPendingResult {
         super.writeToParcel(dest, flags);
         dest.writeParcelable(mSignatureResult, 0);
         dest.writeParcelable(mDecryptMetadata, 0);
+        dest.writeLongArray(mRecipientKeyIds);
+        dest.writeInt(mDecryptable ? 1 : 0);
+        dest.writeLong(mSignatureKeyId);
     }
 
     public static final Creator<DecryptVerifyResult> CREATOR = new Creator<DecryptVerifyResult>() {
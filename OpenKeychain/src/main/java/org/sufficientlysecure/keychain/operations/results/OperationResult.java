@@ -31,14 +31,15 @@ import org.sufficientlysecure.keychain.ui.util.Notify;
 import org.sufficientlysecure.keychain.ui.util.Notify.ActionListener;
 import org.sufficientlysecure.keychain.ui.util.Notify.Showable;
 import org.sufficientlysecure.keychain.ui.util.Notify.Style;
-import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.ParcelableCache;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * Represent the result of an operation.
@@ -59,7 +60,12 @@ public abstract class OperationResult implements Parcelable {
      */
     private static ParcelableCache<OperationLog> logCache;
     static {
-        logCache = new ParcelableCache<>();
+        logCache = new ParcelableCache<>(new ParcelableCache.SizeEstimator<OperationLog>() {
+            @Override
+            public long estimateSize(OperationLog log) {
+                return log.estimateSize();
+            }
+        });
     }
 
     /** Holds the overall result, the number specifying varying degrees of success:
@@ -85,7 +91,13 @@ public abstract class OperationResult implements Parcelable {
     public OperationResult(Parcel source) {
         mResult = source.readInt();
         // get log out of cache based on UUID from source
-        mLog = logCache.readFromParcelAndGetFromCache(source);
+        OperationLog log = logCache.readFromParcelAndGetFromCache(source);
+        if (log == null) {
+            // the log was released from the cache before it was read
+            log = new OperationLog();
+            log.add(LogType.MSG_LOG_EXPIRED, 0);
+        }
+        mLog = log;
     }
 
     public int getResult() {
@@ -109,6 +121,12 @@ public abstract class OperationResult implements Parcelable {
         return mLog;
     }
 
+    /** Kinds of log parameters, used in the parameter table of OperationLog and in parcels */
+    static final byte PARAM_INT = 1;
+    static final byte PARAM_LONG = 2;
+    static final byte PARAM_STRING = 3;
+    static final byte PARAM_OBJECT = 4;
+
     /** One entry in the log. */
     public static class LogEntryParcel implements Parcelable {
         public final LogType mType;
@@ -116,18 +134,74 @@ public abstract class OperationResult implements Parcelable {
         public final int mIndent;
 
         public LogEntryParcel(LogType type, int indent, Object... parameters) {
+            this(type, indent, parameters, true);
+        }
+
+        /** Creates an entry, printing it to the debug log only if logEntry is set. */
+        LogEntryParcel(LogType type, int indent, Object[] parameters, boolean logEntry) {
             mType = type;
             mParameters = parameters;
             mIndent = indent;
-            Log.v(Constants.TAG, "log: " + this);
+            // don't format the entry unless it is actually printed
+            if (logEntry && Constants.DEBUG) {
+                Log.v(Constants.TAG, "log: " + this);
+            }
         }
 
         public LogEntryParcel(Parcel source) {
             mType = LogType.values()[source.readInt()];
-            mParameters = (Object[]) source.readSerializable();
+            mParameters = readParameters(source);
             mIndent = source.readInt();
         }
 
+        /** Writes parameters with their type, instead of as one Serializable array. */
+        static void writeParameters(Parcel dest, Object[] parameters) {
+            if (parameters == null) {
+                dest.writeInt(-1);
+                return;
+            }
+            dest.writeInt(parameters.length);
+            for (Object parameter : parameters) {
+                if (parameter instanceof Integer) {
+                    dest.writeByte(PARAM_INT);
+                    dest.writeInt((Integer) parameter);
+                } else if (parameter instanceof Long) {
+                    dest.writeByte(PARAM_LONG);
+                    dest.writeLong((Long) parameter);
+                } else if (parameter instanceof String) {
+                    dest.writeByte(PARAM_STRING);
+                    dest.writeString((String) parameter);
+                } else {
+                    dest.writeByte(PARAM_OBJECT);
+                    dest.writeValue(parameter);
+                }
+            }
+        }
+
+        static Object[] readParameters(Parcel source) {
+            int length = source.readInt();
+            if (length < 0) {
+                return null;
+            }
+            Object[] parameters = new Object[length];
+            for (int i = 0; i < length; i++) {
+                switch (source.readByte()) {
+                    case PARAM_INT:
+                        parameters[i] = source.readInt();
+                        break;
+                    case PARAM_LONG:
+                        parameters[i] = source.readLong();
+                        break;
+                    case PARAM_STRING:
+                        parameters[i] = source.readString();
+                        break;
+                    default:
+                        parameters[i] = source.readValue(LogEntryParcel.class.getClassLoader());
+                }
+            }
+            return parameters;
+        }
+
         @Override
         public int describeContents() {
             return 0;
@@ -137,7 +211,7 @@ public abstract class OperationResult implements Parcelable {
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(0);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
+            writeParameters(dest, mParameters);
             dest.writeInt(mIndent);
         }
 
@@ -172,10 +246,13 @@ public abstract class OperationResult implements Parcelable {
         OperationResult mSubResult;
 
         public SubLogEntryParcel(OperationResult subResult, LogType type, int indent, Object... parameters) {
-            super(type, indent, parameters);
-            mSubResult = subResult;
+            this(subResult, type, indent, parameters, true);
+        }
 
-            Log.v(Constants.TAG, "log: " + this);
+        SubLogEntryParcel(OperationResult subResult, LogType type, int indent, Object[] parameters,
+                          boolean logEntry) {
+            super(type, indent, parameters, logEntry);
+            mSubResult = subResult;
         }
 
         public SubLogEntryParcel(Parcel source) {
@@ -196,7 +273,7 @@ public abstract class OperationResult implements Parcelable {
         public void writeToParcel(Parcel dest, int flags) {
             dest.writeInt(1);
             dest.writeInt(mType.ordinal());
-            dest.writeSerializable(mParameters);
+            writeParameters(dest, mParameters);
             dest.writeInt(mIndent);
             dest.writeParcelable(mSubResult, 0);
         }
@@ -273,6 +350,8 @@ public abstract class OperationResult implements Parcelable {
 
         MSG_INTERNAL_ERROR (LogLevel.ERROR, R.string.msg_internal_error),
         MSG_OPERATION_CANCELLED (LogLevel.CANCELLED, R.string.msg_cancelled),
+        MSG_LOG_OMITTED (LogLevel.DEBUG, R.plurals.msg_log_omitted),
+        MSG_LOG_EXPIRED (LogLevel.WARN, R.string.msg_log_expired),
 
         // import public
         MSG_IP(LogLevel.START, R.string.msg_ip),
@@ -414,6 +493,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_KC_SUB_UNKNOWN_ALGO (LogLevel.WARN, R.string.msg_kc_sub_unknown_algo),
         MSG_KC_SUB_ALGO_BAD_ENCRYPT (LogLevel.WARN, R.string.msg_kc_sub_algo_bad_encrpyt),
         MSG_KC_SUB_ALGO_BAD_SIGN (LogLevel.WARN, R.string.msg_kc_sub_algo_bad_sign),
+        MSG_KC_VERIFY_CACHED (LogLevel.DEBUG, R.plurals.msg_kc_verify_cached),
         MSG_KC_SUCCESS_BAD (LogLevel.OK, R.plurals.msg_kc_success_bad),
         MSG_KC_SUCCESS_BAD_AND_RED (LogLevel.OK, R.string.msg_kc_success_bad_and_red),
         MSG_KC_SUCCESS_REDUNDANT (LogLevel.OK, R.plurals.msg_kc_success_redundant),
@@ -460,6 +540,7 @@ public abstract class OperationResult implements Parcelable {
 
         // secret key create
         MSG_CR (LogLevel.START, R.string.msg_cr),
+        MSG_CR_KEY_FROM_POOL (LogLevel.DEBUG, R.string.msg_cr_key_from_pool),
         MSG_CR_ERROR_NO_MASTER (LogLevel.ERROR, R.string.msg_cr_error_no_master),
         MSG_CR_ERROR_NO_USER_ID (LogLevel.ERROR, R.string.msg_cr_error_no_user_id),
         MSG_CR_ERROR_NO_CERTIFY (LogLevel.ERROR, R.string.msg_cr_error_no_certify),
@@ -563,6 +644,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_ED_ERROR_NO_PARCEL (LogLevel.ERROR, R.string.msg_ed_error_no_parcel),
         MSG_ED_ERROR_KEY_NOT_FOUND (LogLevel.ERROR, R.string.msg_ed_error_key_not_found),
         MSG_ED_FETCHING (LogLevel.DEBUG, R.string.msg_ed_fetching),
+        MSG_ED_S2K_CALIBRATED (LogLevel.DEBUG, R.string.msg_ed_s2k_calibrated),
         MSG_ED_SUCCESS (LogLevel.OK, R.string.msg_ed_success),
 
         // promote key
@@ -608,6 +690,7 @@ public abstract class OperationResult implements Parcelable {
         MSG_DC_ERROR_UNSUPPORTED_HASH_ALGO (LogLevel.ERROR, R.string.msg_dc_error_unsupported_hash_algo),
         MSG_DC_INTEGRITY_CHECK_OK (LogLevel.INFO, R.string.msg_dc_integrity_check_ok),
         MSG_DC_OK_META_ONLY (LogLevel.OK, R.string.msg_dc_ok_meta_only),
+        MSG_DC_OK_META_RECIPIENTS (LogLevel.OK, R.string.msg_dc_ok_meta_recipients),
         MSG_DC_OK (LogLevel.OK, R.string.msg_dc_ok),
         MSG_DC_PASS_CACHED (LogLevel.DEBUG, R.string.msg_dc_pass_cached),
         MSG_DC_PENDING_NFC (LogLevel.INFO, R.string.msg_dc_pending_nfc),
@@ -685,6 +768,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_CRT_WARN_NOT_FOUND (LogLevel.WARN, R.string.msg_crt_warn_not_found),
         MSG_CRT_WARN_CERT_FAILED (LogLevel.WARN, R.string.msg_crt_warn_cert_failed),
         MSG_CRT_WARN_SAVE_FAILED (LogLevel.WARN, R.string.msg_crt_warn_save_failed),
+        MSG_CRT_WARN_UPLOAD_FAILED (LogLevel.WARN, R.string.msg_crt_warn_upload_failed),
+        MSG_CRT_UPLOADING (LogLevel.DEBUG, R.plurals.msg_crt_uploading),
+        MSG_CRT_UPLOAD (LogLevel.DEBUG, R.string.msg_crt_upload),
+        MSG_CRT_UPLOAD_RETRY (LogLevel.INFO, R.string.msg_crt_upload_retry),
+        MSG_CRT_UPLOAD_CANCELLED (LogLevel.WARN, R.string.msg_crt_upload_cancelled),
 
         MSG_IMPORT (LogLevel.START, R.plurals.msg_import),
 
@@ -704,6 +792,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_IMPORT_PARTIAL (LogLevel.ERROR, R.string.msg_import_partial),
         MSG_IMPORT_SUCCESS (LogLevel.OK, R.string.msg_import_success),
 
+        MSG_REFRESH (LogLevel.START, R.string.msg_refresh),
+        MSG_REFRESH_SLICE (LogLevel.INFO, R.string.msg_refresh_slice),
+        MSG_REFRESH_NOTHING (LogLevel.OK, R.string.msg_refresh_nothing),
+        MSG_REFRESH_ERROR_DB (LogLevel.ERROR, R.string.msg_refresh_error_db),
+
         MSG_EXPORT (LogLevel.START, R.plurals.msg_export),
         MSG_EXPORT_PUBLIC (LogLevel.DEBUG, R.string.msg_export_public),
         MSG_EXPORT_SECRET (LogLevel.DEBUG, R.string.msg_export_secret),
@@ -716,9 +809,11 @@ public abstract class OperationResult implements Parcelable {
         MSG_EXPORT_ERROR_DB (LogLevel.ERROR, R.string.msg_export_error_db),
         MSG_EXPORT_ERROR_IO (LogLevel.ERROR, R.string.msg_export_error_io),
         MSG_EXPORT_ERROR_KEY (LogLevel.ERROR, R.string.msg_export_error_key),
+        MSG_EXPORT_STORED (LogLevel.DEBUG, R.string.msg_export_stored),
+        MSG_EXPORT_WARN_CHECKSUM (LogLevel.WARN, R.string.msg_export_warn_checksum),
         MSG_EXPORT_SUCCESS (LogLevel.OK, R.string.msg_export_success),
 
-        MSG_CRT_UPLOAD_SUCCESS (LogLevel.OK, R.string.msg_crt_upload_success),
+        MSG_CRT_UPLOAD_SUCCESS (LogLevel.DEBUG, R.string.msg_crt_upload_success),
 
         MSG_ACC_SAVED (LogLevel.INFO, R.string.api_settings_save_msg),
 
@@ -741,7 +836,6 @@ public abstract class OperationResult implements Parcelable {
         MSG_DEL (LogLevel.START, R.plurals.msg_del),
         MSG_DEL_KEY (LogLevel.DEBUG, R.string.msg_del_key),
         MSG_DEL_KEY_FAIL (LogLevel.WARN, R.string.msg_del_key_fail),
-        MSG_DEL_CONSOLIDATE (LogLevel.DEBUG, R.string.msg_del_consolidate),
         MSG_DEL_OK (LogLevel.OK, R.plurals.msg_del_ok),
         MSG_DEL_FAIL (LogLevel.WARN, R.plurals.msg_del_fail),
 
@@ -787,44 +881,251 @@ public abstract class OperationResult implements Parcelable {
         logCache.cacheAndWriteToParcel(mLog, dest);
     }
 
+    /** The log of an operation.
+     *
+     * Entries are not kept as LogEntryParcel objects, but in a compact table:
+     * LogType and indent are packed into one int per entry, and parameters
+     * are stored with their kind in a shared parameter table, so ints and
+     * longs don't need to be boxed. LogEntryParcel objects are only created
+     * when the log is read, usually for display.
+     *
+     * A log can optionally be bounded, for operations which may produce a
+     * very large number of entries, like the import of many keys. A bounded
+     * log keeps only the first and last entries, and replaces the ones in
+     * between with a single MSG_LOG_OMITTED entry. It still counts all
+     * entries per LogType, so containsType and containsWarnings are exact.
+     */
     public static class OperationLog implements Iterable<LogEntryParcel> {
 
-        private final List<LogEntryParcel> mParcels = new ArrayList<>();
+        private static final LogType[] LOG_TYPES = LogType.values();
+
+        /** LogType ordinal in the lower, indent in the upper 16 bits of each entry */
+        private int[] mEntries = new int[8];
+        /** Index of the first parameter of each entry. Parameters of entry i end where those
+         * of entry i+1 start, so there is always one more offset than entries. */
+        private int[] mParamOffsets = new int[9];
+        /** Index of the sub result of each entry in mObjects, or -1 */
+        private int[] mSubResults = new int[8];
+        private int mSize;
+
+        private byte[] mParamKinds = new byte[8];
+        /** The value of int and long parameters, or the index of any other in mObjects */
+        private long[] mParamValues = new long[8];
+        private int mParamCount;
+
+        private final ArrayList<Object> mObjects = new ArrayList<>();
+
+        // only used in bounded mode
+        private final int mHeadLimit;
+        private final int mTailLimit;
+        private ArrayDeque<LogEntryParcel> mTail;
+        private int[] mTypeCounts;
+        private int mOmitted;
+
+        public OperationLog() {
+            mHeadLimit = 0;
+            mTailLimit = 0;
+        }
+
+        /** Creates a bounded log, which keeps the first headLimit and the last tailLimit entries. */
+        public OperationLog(int headLimit, int tailLimit) {
+            if (headLimit < 1 || tailLimit < 1) {
+                throw new IllegalArgumentException("limits must be positive!");
+            }
+            mHeadLimit = headLimit;
+            mTailLimit = tailLimit;
+            mTail = new ArrayDeque<>(tailLimit + 1);
+            mTypeCounts = new int[LOG_TYPES.length];
+        }
 
         /// Simple convenience method
         public void add(LogType type, int indent, Object... parameters) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, parameters));
+            append(type, indent, parameters, null);
         }
 
         public void add(LogType type, int indent) {
-            mParcels.add(new OperationResult.LogEntryParcel(type, indent, (Object[]) null));
+            append(type, indent, null, null);
         }
 
         public void add(OperationResult subResult, int indent) {
             OperationLog subLog = subResult.getLog();
-            mParcels.add(new SubLogEntryParcel(subResult, subLog.getFirst().mType, indent, subLog.getFirst().mParameters));
+            LogEntryParcel first = subLog.getFirst();
+            append(first.mType, indent, first.mParameters, subResult);
+        }
+
+        private void append(LogType type, int indent, Object[] parameters, OperationResult subResult) {
+            // entries are printed once when added, not each time they are read
+            if (Constants.DEBUG) {
+                Log.v(Constants.TAG, "log: " + new LogEntryParcel(type, indent, parameters, false));
+            }
+
+            if (mTypeCounts != null) {
+                mTypeCounts[type.ordinal()] += 1;
+
+                // head is full, keep only the most recent entries
+                if (mSize >= mHeadLimit) {
+                    mTail.addLast(subResult != null
+                            ? new SubLogEntryParcel(subResult, type, indent, parameters, false)
+                            : new LogEntryParcel(type, indent, parameters, false));
+                    if (mTail.size() > mTailLimit) {
+                        mTail.removeFirst();
+                        mOmitted += 1;
+                    }
+                    return;
+                }
+            }
+
+            if (mSize == mEntries.length) {
+                int capacity = mSize * 2;
+                mEntries = Arrays.copyOf(mEntries, capacity);
+                mSubResults = Arrays.copyOf(mSubResults, capacity);
+                mParamOffsets = Arrays.copyOf(mParamOffsets, capacity + 1);
+            }
+
+            mEntries[mSize] = (indent << 16) | type.ordinal();
+            if (subResult != null) {
+                mSubResults[mSize] = mObjects.size();
+                mObjects.add(subResult);
+            } else {
+                mSubResults[mSize] = -1;
+            }
+
+            if (parameters != null) {
+                for (Object parameter : parameters) {
+                    appendParameter(parameter);
+                }
+            }
+
+            mSize += 1;
+            mParamOffsets[mSize] = mParamCount;
+        }
+
+        private void appendParameter(Object parameter) {
+            if (mParamCount == mParamKinds.length) {
+                int capacity = mParamCount * 2;
+                mParamKinds = Arrays.copyOf(mParamKinds, capacity);
+                mParamValues = Arrays.copyOf(mParamValues, capacity);
+            }
+
+            if (parameter instanceof Integer) {
+                mParamKinds[mParamCount] = PARAM_INT;
+                mParamValues[mParamCount] = (Integer) parameter;
+            } else if (parameter instanceof Long) {
+                mParamKinds[mParamCount] = PARAM_LONG;
+                mParamValues[mParamCount] = (Long) parameter;
+            } else {
+                mParamKinds[mParamCount] = parameter instanceof String ? PARAM_STRING : PARAM_OBJECT;
+                mParamValues[mParamCount] = mObjects.size();
+                mObjects.add(parameter);
+            }
+            mParamCount += 1;
+        }
+
+        /** Creates the LogEntryParcel for an entry of the compact table. */
+        private LogEntryParcel getEntry(int index) {
+            LogType type = LOG_TYPES[mEntries[index] & 0xffff];
+            int indent = mEntries[index] >> 16;
+
+            Object[] parameters = null;
+            int start = mParamOffsets[index], end = mParamOffsets[index + 1];
+            if (end > start) {
+                parameters = new Object[end - start];
+                for (int i = start; i < end; i++) {
+                    switch (mParamKinds[i]) {
+                        case PARAM_INT:
+                            parameters[i - start] = (int) mParamValues[i];
+                            break;
+                        case PARAM_LONG:
+                            parameters[i - start] = mParamValues[i];
+                            break;
+                        default:
+                            parameters[i - start] = mObjects.get((int) mParamValues[i]);
+                    }
+                }
+            }
+
+            if (mSubResults[index] >= 0) {
+                OperationResult subResult = (OperationResult) mObjects.get(mSubResults[index]);
+                return new SubLogEntryParcel(subResult, type, indent, parameters, false);
+            }
+            return new LogEntryParcel(type, indent, parameters, false);
+        }
+
+        private LogType getType(int index) {
+            return LOG_TYPES[mEntries[index] & 0xffff];
         }
 
         boolean isSingleCompound() {
-            return mParcels.size() == 1 && getFirst() instanceof SubLogEntryParcel;
+            return size() == 1 && mSize == 1 && mSubResults[0] >= 0;
         }
 
         public void clear() {
-            mParcels.clear();
+            mSize = 0;
+            mParamCount = 0;
+            mObjects.clear();
+            if (mTypeCounts != null) {
+                mTail.clear();
+                Arrays.fill(mTypeCounts, 0);
+                mOmitted = 0;
+            }
         }
 
-        public boolean containsType(LogType type) {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType == type) {
-                    return true;
+        /** Returns the number of entries of the given type, including omitted ones. */
+        public int getCount(LogType type) {
+            if (mTypeCounts != null) {
+                return mTypeCounts[type.ordinal()];
+            }
+            int count = 0;
+            for (int i = 0; i < mSize; i++) {
+                if (getType(i) == type) {
+                    count += 1;
                 }
             }
-            return false;
+            return count;
+        }
+
+        /** Returns the number of entries which were omitted from a bounded log. */
+        public int getOmittedCount() {
+            return mOmitted;
+        }
+
+        /** Returns a rough estimate of the memory used by this log and its sub results, in bytes. */
+        long estimateSize() {
+            // entry, sub result and parameter offset tables, parameter kinds and values
+            long size = mEntries.length * 12L + mParamKinds.length * 9L;
+            for (Object object : mObjects) {
+                if (object instanceof OperationResult) {
+                    OperationLog subLog = ((OperationResult) object).mLog;
+                    size += subLog != null ? subLog.estimateSize() : 16;
+                } else if (object instanceof String) {
+                    size += 40 + ((String) object).length() * 2;
+                } else {
+                    size += 16;
+                }
+            }
+            if (mTail != null) {
+                size += mTail.size() * 64L;
+            }
+            return size;
+        }
+
+        public boolean containsType(LogType type) {
+            return getCount(type) > 0;
         }
 
         public boolean containsWarnings() {
-            for(LogEntryParcel entry : new IterableIterator<>(mParcels.iterator())) {
-                if (entry.mType.mLevel == LogLevel.WARN || entry.mType.mLevel == LogLevel.ERROR) {
+            if (mTypeCounts != null) {
+                for (int i = 0; i < mTypeCounts.length; i++) {
+                    if (mTypeCounts[i] > 0 && (LOG_TYPES[i].mLevel == LogLevel.WARN
+                            || LOG_TYPES[i].mLevel == LogLevel.ERROR)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            for (int i = 0; i < mSize; i++) {
+                LogLevel level = getType(i).mLevel;
+                if (level == LogLevel.WARN || level == LogLevel.ERROR) {
                     return true;
                 }
             }
@@ -832,34 +1133,94 @@ public abstract class OperationResult implements Parcelable {
         }
 
         public void addAll(List<LogEntryParcel> parcels) {
-            mParcels.addAll(parcels);
+            for (LogEntryParcel parcel : parcels) {
+                append(parcel.mType, parcel.mIndent, parcel.mParameters,
+                        parcel instanceof SubLogEntryParcel
+                                ? ((SubLogEntryParcel) parcel).getSubResult() : null);
+            }
         }
 
+        public void addAll(OperationLog log) {
+            for (LogEntryParcel parcel : log) {
+                append(parcel.mType, parcel.mIndent, parcel.mParameters,
+                        parcel instanceof SubLogEntryParcel
+                                ? ((SubLogEntryParcel) parcel).getSubResult() : null);
+            }
+        }
+
+        /** Returns a new list of all entries. Changes to the list are not reflected in the log. */
         public List<LogEntryParcel> toList() {
-            return mParcels;
+            ArrayList<LogEntryParcel> result = new ArrayList<>(size());
+            for (LogEntryParcel parcel : this) {
+                result.add(parcel);
+            }
+            return result;
+        }
+
+        /** Returns the number of entries, counting omitted entries as one. */
+        public int size() {
+            if (mTypeCounts == null) {
+                return mSize;
+            }
+            return mSize + (mOmitted > 0 ? 1 : 0) + mTail.size();
         }
 
         public boolean isEmpty() {
-            return mParcels.isEmpty();
+            return size() == 0;
         }
 
         public LogEntryParcel getFirst() {
-            if (mParcels.isEmpty()) {
+            if (mSize == 0) {
                 return null;
             }
-            return mParcels.get(0);
+            return getEntry(0);
         }
 
         public LogEntryParcel getLast() {
-            if (mParcels.isEmpty()) {
+            if (mTail != null && !mTail.isEmpty()) {
+                return mTail.getLast();
+            }
+            if (mSize == 0) {
                 return null;
             }
-            return mParcels.get(mParcels.size() -1);
+            return getEntry(mSize - 1);
         }
 
         @Override
         public Iterator<LogEntryParcel> iterator() {
-            return mParcels.iterator();
+            return new Iterator<LogEntryParcel>() {
+                int mPosition = 0;
+                Iterator<LogEntryParcel> mTailIterator;
+
+                @Override
+                public boolean hasNext() {
+                    return mPosition < size();
+                }
+
+                @Override
+                public LogEntryParcel next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    int position = mPosition++;
+                    if (position < mSize) {
+                        return getEntry(position);
+                    }
+                    if (mOmitted > 0 && position == mSize) {
+                        return new LogEntryParcel(LogType.MSG_LOG_OMITTED, 1,
+                                new Object[] { mOmitted }, false);
+                    }
+                    if (mTailIterator == null) {
+                        mTailIterator = mTail.iterator();
+                    }
+                    return mTailIterator.next();
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
         }
     }
 
@@ -20,13 +20,17 @@ package org.sufficientlysecure.keychain.pgp;
 
 import org.spongycastle.openpgp.PGPKeyRing;
 import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.Iterator;
 
 /** A generic wrapped PGPKeyRing object.
  *
@@ -139,4 +143,29 @@ public abstract class CanonicalizedKeyRing extends KeyRing {
         return getRing().getEncoded();
     }
 
+    /** Returns true if this keyring contains no local signatures which would be removed
+     * by canonicalization for export, i.e. if its encoded form can be exported as is.
+     */
+    public boolean isExportable() {
+        Iterator<PGPSignature> it = getRing().getPublicKey().getKeySignatures();
+        while (it.hasNext()) {
+            if (new WrappedSignature(it.next()).isLocal()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the digest which is stored along with keyring data. It is used to detect
+     * unchanged keyrings on import, and, as checksum of exportable keyrings, to detect
+     * corruption before the data is exported without canonicalization.
+     */
+    public static byte[] getDigest(byte[] encoded) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(encoded);
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 must be available!");
+        }
+    }
+
 }
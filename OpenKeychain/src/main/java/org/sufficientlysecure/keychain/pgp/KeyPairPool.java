@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.jce.spec.ElGamalParameterSpec;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Primes;
+
+import java.math.BigInteger;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+/**
+ * An in-process cache of pre-generated key pairs, which PgpKeyOperation takes from
+ * instead of generating key material while the user waits.
+ *
+ * The pool is filled in the background (see KeyPoolService) up to a target depth
+ * per key type. Each key pair is handed out exactly once. If no key pair of the
+ * requested type is available, the caller generates one synchronously as before.
+ *
+ * Key pairs are only held in memory and are never written to disk, so the pool is
+ * empty again whenever the process is restarted. This is deliberate: below API 23
+ * there is no platform keystore for symmetric keys, so an on-disk pool could only be
+ * encrypted with a key stored right next to it. Private key material which has never
+ * been used must not be left on disk in that form.
+ */
+public class KeyPairPool {
+
+    private static final KeyPairPool sInstance = new KeyPairPool();
+
+    public static KeyPairPool getInstance() {
+        return sInstance;
+    }
+
+    /** Type of a key pair, as determined by the algorithm and key size or curve. */
+    public static class Spec {
+        public final Algorithm mAlgorithm;
+        public final Integer mKeySize;
+        public final Curve mCurve;
+
+        public Spec(Algorithm algorithm, Integer keySize, Curve curve) {
+            mAlgorithm = algorithm;
+            // only one of key size and curve is relevant, depending on algorithm
+            boolean isEcc = algorithm == Algorithm.ECDSA || algorithm == Algorithm.ECDH;
+            mKeySize = isEcc ? null : keySize;
+            mCurve = isEcc ? curve : null;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Spec)) {
+                return false;
+            }
+            Spec other = (Spec) o;
+            return mAlgorithm == other.mAlgorithm && mCurve == other.mCurve
+                    && (mKeySize == null ? other.mKeySize == null : mKeySize.equals(other.mKeySize));
+        }
+
+        @Override
+        public int hashCode() {
+            int result = mAlgorithm.hashCode();
+            result = 31 * result + (mKeySize != null ? mKeySize : 0);
+            result = 31 * result + (mCurve != null ? mCurve.hashCode() : 0);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return mAlgorithm + "-" + (mCurve != null ? mCurve : mKeySize);
+        }
+    }
+
+    /** The key pairs needed to create a key with the default settings. */
+    public static final Spec DEFAULT_SPEC = new Spec(Algorithm.RSA, 4096, null);
+    public static final int DEFAULT_DEPTH = 3;
+
+    private final LinkedHashMap<Spec, Integer> mTargetDepths = new LinkedHashMap<>();
+    private final HashMap<Spec, ArrayDeque<KeyPair>> mPool = new HashMap<>();
+
+    private int mHits, mMisses;
+    private final HashMap<Spec, Long> mGenerationMillis = new HashMap<>();
+    private final HashMap<Spec, Integer> mGenerationCount = new HashMap<>();
+
+    KeyPairPool() {
+        mTargetDepths.put(DEFAULT_SPEC, DEFAULT_DEPTH);
+    }
+
+    /** Sets the number of key pairs to keep available for a type, 0 to not pool it at all. */
+    public synchronized void setTargetDepth(Spec spec, int depth) {
+        if (depth > 0) {
+            mTargetDepths.put(spec, depth);
+        } else {
+            mTargetDepths.remove(spec);
+        }
+
+        ArrayDeque<KeyPair> pairs = mPool.get(spec);
+        while (pairs != null && pairs.size() > depth) {
+            pairs.removeFirst();
+        }
+    }
+
+    /** Takes a pre-generated key pair out of the pool, or returns null if none is available. */
+    public synchronized KeyPair take(Spec spec) {
+        ArrayDeque<KeyPair> pairs = mPool.get(spec);
+        if (pairs == null || pairs.isEmpty()) {
+            mMisses += 1;
+            return null;
+        }
+        mHits += 1;
+        return pairs.removeFirst();
+    }
+
+    /** Adds a key pair to the pool, unless the pool is full for its type. */
+    public synchronized boolean put(Spec spec, KeyPair keyPair) {
+        Integer target = mTargetDepths.get(spec);
+        if (target == null) {
+            return false;
+        }
+        ArrayDeque<KeyPair> pairs = mPool.get(spec);
+        if (pairs == null) {
+            pairs = new ArrayDeque<>();
+            mPool.put(spec, pairs);
+        }
+        if (pairs.size() >= target) {
+            return false;
+        }
+        pairs.addLast(keyPair);
+        return true;
+    }
+
+    /** Returns a type for which the pool is below its target depth, or null if it is full. */
+    public synchronized Spec getMissingSpec() {
+        for (Entry<Spec, Integer> entry : mTargetDepths.entrySet()) {
+            if (getDepth(entry.getKey()) < entry.getValue()) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Generates one key pair for a type which is below its target depth.
+     *
+     * @return false if the pool is already full
+     */
+    public boolean fillOne() throws NoSuchAlgorithmException {
+        Spec spec = getMissingSpec();
+        if (spec == null) {
+            return false;
+        }
+        put(spec, generate(spec));
+        return true;
+    }
+
+    /** Removes all key pairs from the pool. */
+    public synchronized void clear() {
+        mPool.clear();
+    }
+
+    public synchronized int getDepth(Spec spec) {
+        ArrayDeque<KeyPair> pairs = mPool.get(spec);
+        return pairs != null ? pairs.size() : 0;
+    }
+
+    /** Number of key pairs taken from the pool. */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /** Number of requests for which no key pair was available. */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /** Average time it took to generate a key pair of the given type, or -1 if unknown. */
+    public synchronized long getAverageGenerationMillis(Spec spec) {
+        Integer count = mGenerationCount.get(spec);
+        if (count == null) {
+            return -1;
+        }
+        return mGenerationMillis.get(spec) / count;
+    }
+
+    private synchronized void addGenerationTime(Spec spec, long millis) {
+        Integer count = mGenerationCount.get(spec);
+        Long total = mGenerationMillis.get(spec);
+        mGenerationCount.put(spec, count == null ? 1 : count + 1);
+        mGenerationMillis.put(spec, total == null ? millis : total + millis);
+    }
+
+    /** Generates a new key pair of the given type, keeping track of the time it takes. */
+    public KeyPair generate(Spec spec) throws NoSuchAlgorithmException {
+        long start = System.currentTimeMillis();
+        KeyPair keyPair = generateKeyPair(spec);
+        long millis = System.currentTimeMillis() - start;
+
+        addGenerationTime(spec, millis);
+        Log.d(Constants.TAG, "generated " + spec + " key pair in " + millis + "ms");
+        return keyPair;
+    }
+
+    private static KeyPair generateKeyPair(Spec spec) throws NoSuchAlgorithmException {
+        try {
+            KeyPairGenerator keyGen;
+            switch (spec.mAlgorithm) {
+                case DSA: {
+                    keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(spec.mKeySize, new SecureRandom());
+                    break;
+                }
+
+                case ELGAMAL: {
+                    keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    BigInteger p = Primes.getBestPrime(spec.mKeySize);
+                    BigInteger g = new BigInteger("2");
+
+                    ElGamalParameterSpec elParams = new ElGamalParameterSpec(p, g);
+
+                    keyGen.initialize(elParams);
+                    break;
+                }
+
+                case RSA: {
+                    keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(spec.mKeySize, new SecureRandom());
+                    break;
+                }
+
+                case ECDSA: {
+                    keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(getEccParameterSpec(spec.mCurve), new SecureRandom());
+                    break;
+                }
+
+                case ECDH: {
+                    keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
+                    keyGen.initialize(getEccParameterSpec(spec.mCurve), new SecureRandom());
+                    break;
+                }
+
+                default: {
+                    throw new NoSuchAlgorithmException("unknown algorithm " + spec.mAlgorithm);
+                }
+            }
+            return keyGen.generateKeyPair();
+
+        } catch (NoSuchProviderException | InvalidAlgorithmParameterException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ECGenParameterSpec getEccParameterSpec(Curve curve) {
+        switch (curve) {
+            case NIST_P256: return new ECGenParameterSpec("P-256");
+            case NIST_P384: return new ECGenParameterSpec("P-384");
+            case NIST_P521: return new ECGenParameterSpec("P-521");
+
+            // @see SaveKeyringParcel
+            // case BRAINPOOL_P256: return new ECGenParameterSpec("brainpoolp256r1");
+            // case BRAINPOOL_P384: return new ECGenParameterSpec("brainpoolp384r1");
+            // case BRAINPOOL_P512: return new ECGenParameterSpec("brainpoolp512r1");
+        }
+        throw new RuntimeException("Invalid choice! (can't happen)");
+    }
+
+}
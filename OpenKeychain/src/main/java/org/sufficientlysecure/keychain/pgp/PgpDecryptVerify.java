@@ -73,6 +73,7 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URLConnection;
 import java.security.SignatureException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.Iterator;
 
@@ -365,6 +366,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
         Passphrase passphrase = null;
         boolean skippedDisallowedKey = false;
+        ArrayList<Long> recipientKeyIds = new ArrayList<>();
 
         // go through all objects and find one we can decrypt
         while (it.hasNext()) {
@@ -377,6 +379,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
                 PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
                 long subKeyId = encData.getKeyID();
+                recipientKeyIds.add(subKeyId);
 
                 log.add(LogType.MSG_DC_ASYM, indent,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
@@ -427,6 +430,11 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
                 encryptedDataAsymmetric = encData;
 
+                // we know we could decrypt, but don't need the passphrase for that
+                if (input.isSkipSessionKeyDecryption()) {
+                    break;
+                }
+
                 if (secretEncryptionKey.getSecretKeyType() == SecretKeyType.DIVERT_TO_CARD) {
                     passphrase = null;
                 } else if (cryptoInput.hasPassphrase()) {
@@ -472,6 +480,10 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
 
                 encryptedDataSymmetric = (PGPPBEEncryptedData) obj;
 
+                if (input.isSkipSessionKeyDecryption()) {
+                    break;
+                }
+
                 // if no passphrase is given, return here
                 // indicating that a passphrase is missing!
                 if (!cryptoInput.hasPassphrase()) {
@@ -493,6 +505,7 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             if (obj instanceof PGPPublicKeyEncryptedData) {
                 PGPPublicKeyEncryptedData encData = (PGPPublicKeyEncryptedData) obj;
                 long subKeyId = encData.getKeyID();
+                recipientKeyIds.add(subKeyId);
                 log.add(LogType.MSG_DC_TRAIL_ASYM, indent,
                         KeyFormattingUtils.convertKeyIdToHex(subKeyId));
             } else if (obj instanceof PGPPBEEncryptedData) {
@@ -502,6 +515,18 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
             }
         }
 
+        // return here if only the recipients were requested, unless there is an error to report below
+        if (input.isSkipSessionKeyDecryption() && anyPacketFound
+                && (asymmetricPacketFound || symmetricPacketFound || !skippedDisallowedKey)) {
+            log.add(LogType.MSG_DC_OK_META_RECIPIENTS, indent);
+            DecryptVerifyResult result =
+                    new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
+            result.setCharset(charset);
+            result.setRecipientKeyIds(toLongArray(recipientKeyIds));
+            result.setDecryptable(asymmetricPacketFound || symmetricPacketFound);
+            return result;
+        }
+
         log.add(LogType.MSG_DC_PREP_STREAMS, indent);
 
         // we made sure above one of these two would be true
@@ -601,7 +626,18 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         }
 
         PGPOnePassSignature signature = null;
-        if (dataChunk instanceof PGPOnePassSignatureList) {
+        long signatureKeyId = 0;
+        if (dataChunk instanceof PGPOnePassSignatureList && input.isDecryptMetadataOnly()) {
+            log.add(LogType.MSG_DC_CLEAR_SIGNATURE, indent + 1);
+
+            // the signature can't be verified without the data anyways, so skip loading the key
+            PGPOnePassSignatureList sigList = (PGPOnePassSignatureList) dataChunk;
+            if (!sigList.isEmpty()) {
+                signatureKeyId = sigList.get(0).getKeyID();
+            }
+
+            dataChunk = plainFact.nextObject();
+        } else if (dataChunk instanceof PGPOnePassSignatureList) {
             log.add(LogType.MSG_DC_CLEAR_SIGNATURE, indent + 1);
             currentProgress += 2;
             updateProgress(R.string.progress_processing_signature, currentProgress, 100);
@@ -714,6 +750,9 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
                         new DecryptVerifyResult(DecryptVerifyResult.RESULT_OK, log);
                 result.setCharset(charset);
                 result.setDecryptMetadata(metadata);
+                result.setRecipientKeyIds(toLongArray(recipientKeyIds));
+                result.setDecryptable(true);
+                result.setSignatureKeyId(signatureKeyId);
                 return result;
             }
 
@@ -821,10 +860,20 @@ public class PgpDecryptVerify extends BaseOperation<PgpDecryptVerifyInputParcel>
         result.setDecryptMetadata(metadata);
         result.setSignatureResult(signatureResultBuilder.build());
         result.setCharset(charset);
+        result.setRecipientKeyIds(toLongArray(recipientKeyIds));
+        result.setDecryptable(true);
         return result;
 
     }
 
+    private static long[] toLongArray(ArrayList<Long> list) {
+        long[] array = new long[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
     /**
      * This method verifies cleartext signatures
      * as defined in http://tools.ietf.org/html/rfc4880#section-7
@@ -33,6 +33,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
     private boolean mAllowSymmetricDecryption;
     private HashSet<Long> mAllowedKeyIds;
     private boolean mDecryptMetadataOnly;
+    private boolean mSkipSessionKeyDecryption;
     private byte[] mDetachedSignature;
     private String mRequiredSignerFingerprint;
     private boolean mSignedLiteralData;
@@ -58,6 +59,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         mAllowSymmetricDecryption = source.readInt() != 0;
         mAllowedKeyIds  = (HashSet<Long>) source.readSerializable();
         mDecryptMetadataOnly = source.readInt() != 0;
+        mSkipSessionKeyDecryption = source.readInt() != 0;
         mDetachedSignature = source.createByteArray();
         mRequiredSignerFingerprint = source.readString();
         mSignedLiteralData = source.readInt() != 0;
@@ -77,6 +79,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         dest.writeInt(mAllowSymmetricDecryption ? 1 : 0);
         dest.writeSerializable(mAllowedKeyIds);
         dest.writeInt(mDecryptMetadataOnly ? 1 : 0);
+        dest.writeInt(mSkipSessionKeyDecryption ? 1 : 0);
         dest.writeByteArray(mDetachedSignature);
         dest.writeString(mRequiredSignerFingerprint);
         dest.writeInt(mSignedLiteralData ? 1 : 0);
@@ -113,7 +116,7 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
     }
 
     boolean isDecryptMetadataOnly() {
-        return mDecryptMetadataOnly;
+        return mDecryptMetadataOnly || mSkipSessionKeyDecryption;
     }
 
     public PgpDecryptVerifyInputParcel setDecryptMetadataOnly(boolean decryptMetadataOnly) {
@@ -121,6 +124,19 @@ public class PgpDecryptVerifyInputParcel implements Parcelable {
         return this;
     }
 
+    boolean isSkipSessionKeyDecryption() {
+        return mSkipSessionKeyDecryption;
+    }
+
+    /**
+     * Only look at the recipients of the encrypted data, without unlocking any secret key.
+     * The result contains no metadata then, but never requires user input. Implies metadata only.
+     */
+    public PgpDecryptVerifyInputParcel setSkipSessionKeyDecryption(boolean skipSessionKeyDecryption) {
+        mSkipSessionKeyDecryption = skipSessionKeyDecryption;
+        return this;
+    }
+
     byte[] getDetachedSignature() {
         return mDetachedSignature;
     }
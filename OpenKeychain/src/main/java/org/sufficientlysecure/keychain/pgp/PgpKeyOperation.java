@@ -22,7 +22,6 @@ import org.spongycastle.bcpg.PublicKeyAlgorithmTags;
 import org.spongycastle.bcpg.S2K;
 import org.spongycastle.bcpg.sig.Features;
 import org.spongycastle.bcpg.sig.KeyFlags;
-import org.spongycastle.jce.spec.ElGamalParameterSpec;
 import org.spongycastle.openpgp.PGPException;
 import org.spongycastle.openpgp.PGPKeyFlags;
 import org.spongycastle.openpgp.PGPKeyPair;
@@ -57,7 +56,6 @@ import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
-import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.SubkeyAdd;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -67,19 +65,13 @@ import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.IterableIterator;
 import org.sufficientlysecure.keychain.util.Log;
 import org.sufficientlysecure.keychain.util.Passphrase;
-import org.sufficientlysecure.keychain.util.Primes;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.KeyPairGenerator;
+import java.security.KeyPair;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SecureRandom;
 import java.security.SignatureException;
-import java.security.spec.ECGenParameterSpec;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.Iterator;
@@ -99,6 +91,7 @@ public class PgpKeyOperation {
 
     private Stack<Progressable> mProgress;
     private AtomicBoolean mCancelled;
+    private int mS2kCount = PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
 
     public PgpKeyOperation(Progressable progress) {
         super();
@@ -113,6 +106,11 @@ public class PgpKeyOperation {
         mCancelled = cancelled;
     }
 
+    /** Sets the s2k count used to encrypt new secret keys and for new passphrases. */
+    public void setS2kCount(int s2kCount) {
+        mS2kCount = s2kCount;
+    }
+
     private boolean checkCancelled() {
         return mCancelled != null && mCancelled.get();
     }
@@ -141,20 +139,6 @@ public class PgpKeyOperation {
         mProgress.peek().setProgress(message, current, 100);
     }
 
-    private ECGenParameterSpec getEccParameterSpec(Curve curve) {
-        switch (curve) {
-            case NIST_P256: return new ECGenParameterSpec("P-256");
-            case NIST_P384: return new ECGenParameterSpec("P-384");
-            case NIST_P521: return new ECGenParameterSpec("P-521");
-
-            // @see SaveKeyringParcel
-            // case BRAINPOOL_P256: return new ECGenParameterSpec("brainpoolp256r1");
-            // case BRAINPOOL_P384: return new ECGenParameterSpec("brainpoolp384r1");
-            // case BRAINPOOL_P512: return new ECGenParameterSpec("brainpoolp512r1");
-        }
-        throw new RuntimeException("Invalid choice! (can't happen)");
-    }
-
     /** Creates new secret key. */
     private PGPKeyPair createKey(SubkeyAdd add, Date creationTime, OperationLog log, int indent) {
 
@@ -177,7 +161,6 @@ public class PgpKeyOperation {
             }
 
             int algorithm;
-            KeyPairGenerator keyGen;
 
             switch (add.mAlgorithm) {
                 case DSA: {
@@ -186,8 +169,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_dsa, 30);
-                    keyGen = KeyPairGenerator.getInstance("DSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(add.mKeySize, new SecureRandom());
                     algorithm = PGPPublicKey.DSA;
                     break;
                 }
@@ -198,22 +179,12 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_elgamal, 30);
-                    keyGen = KeyPairGenerator.getInstance("ElGamal", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    BigInteger p = Primes.getBestPrime(add.mKeySize);
-                    BigInteger g = new BigInteger("2");
-
-                    ElGamalParameterSpec elParams = new ElGamalParameterSpec(p, g);
-
-                    keyGen.initialize(elParams);
                     algorithm = PGPPublicKey.ELGAMAL_ENCRYPT;
                     break;
                 }
 
                 case RSA: {
                     progress(R.string.progress_generating_rsa, 30);
-                    keyGen = KeyPairGenerator.getInstance("RSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(add.mKeySize, new SecureRandom());
-
                     algorithm = PGPPublicKey.RSA_GENERAL;
                     break;
                 }
@@ -224,10 +195,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_ecdsa, 30);
-                    ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
-                    keyGen = KeyPairGenerator.getInstance("ECDSA", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(ecParamSpec, new SecureRandom());
-
                     algorithm = PGPPublicKey.ECDSA;
                     break;
                 }
@@ -239,10 +206,6 @@ public class PgpKeyOperation {
                         return null;
                     }
                     progress(R.string.progress_generating_ecdh, 30);
-                    ECGenParameterSpec ecParamSpec = getEccParameterSpec(add.mCurve);
-                    keyGen = KeyPairGenerator.getInstance("ECDH", Constants.BOUNCY_CASTLE_PROVIDER_NAME);
-                    keyGen.initialize(ecParamSpec, new SecureRandom());
-
                     algorithm = PGPPublicKey.ECDH;
                     break;
                 }
@@ -253,11 +216,19 @@ public class PgpKeyOperation {
                 }
             }
 
+            // use pre-generated key material if available, otherwise generate it now
+            KeyPairPool pool = KeyPairPool.getInstance();
+            KeyPairPool.Spec spec = new KeyPairPool.Spec(add.mAlgorithm, add.mKeySize, add.mCurve);
+            KeyPair keyPair = pool.take(spec);
+            if (keyPair != null) {
+                log.add(LogType.MSG_CR_KEY_FROM_POOL, indent, spec.toString());
+            } else {
+                keyPair = pool.generate(spec);
+            }
+
             // build new key pair
-            return new JcaPGPKeyPair(algorithm, keyGen.generateKeyPair(), creationTime);
+            return new JcaPGPKeyPair(algorithm, keyPair, creationTime);
 
-        } catch(NoSuchProviderException | InvalidAlgorithmParameterException e) {
-            throw new RuntimeException(e);
         } catch(NoSuchAlgorithmException e) {
             log.add(LogType.MSG_CR_ERROR_UNKNOWN_ALGO, indent);
             return null;
@@ -318,7 +289,7 @@ public class PgpKeyOperation {
                     .build().get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
             PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                     PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO,
-                    encryptorHashCalc, PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                    encryptorHashCalc, mS2kCount)
                     .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build("".toCharArray());
 
             PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
@@ -1005,7 +976,7 @@ public class PgpKeyOperation {
                             .build().get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
                     PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
                             PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                            PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                            mS2kCount)
                             .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(
                                     cryptoInput.getPassphrase().getCharArray());
 
@@ -1148,7 +1119,7 @@ public class PgpKeyOperation {
     }
 
 
-    private static PGPSecretKeyRing applyNewUnlock(
+    private PGPSecretKeyRing applyNewUnlock(
             PGPSecretKeyRing sKR,
             PGPPublicKey masterPublicKey,
             PGPPrivateKey masterPrivateKey,
@@ -1233,7 +1204,7 @@ public class PgpKeyOperation {
         return false;
     }
 
-    private static PGPSecretKeyRing applyNewPassphrase(
+    private PGPSecretKeyRing applyNewPassphrase(
             PGPSecretKeyRing sKR,
             PGPPublicKey masterPublicKey,
             Passphrase passphrase,
@@ -1247,7 +1218,7 @@ public class PgpKeyOperation {
         // Build key encryptor based on new passphrase
         PBESecretKeyEncryptor keyEncryptorNew = new JcePBESecretKeyEncryptorBuilder(
                 PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc,
-                PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT)
+                mS2kCount)
                 .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(newPassphrase.getCharArray());
 
         // noinspection unchecked
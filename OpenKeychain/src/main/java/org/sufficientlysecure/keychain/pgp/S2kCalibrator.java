@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.bcpg.S2K;
+import org.spongycastle.bcpg.SymmetricKeyAlgorithmTags;
+import org.spongycastle.openpgp.PGPException;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Picks the iterated and salted S2K count for secret key encryption, such that
+ * unlocking a key takes about the same time on every device.
+ *
+ * The time to unlock is dominated by hashing the salted passphrase over and over,
+ * until the number of bytes encoded in the s2k count have been hashed (rfc4880,
+ * 3.7.1.3). We measure how many bytes per millisecond the device hashes, and pick
+ * the smallest count which takes at least the target time.
+ */
+public class S2kCalibrator {
+
+    /** Target time for the S2K of a single key. */
+    public static final long TARGET_MILLIS = 250;
+
+    /**
+     * The count is never calibrated below the previous fixed count, so calibration
+     * only ever makes keys stronger, even on very slow devices.
+     */
+    public static final int MIN_S2K_COUNT = PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT;
+    public static final int MAX_S2K_COUNT = 0xff;
+
+    /** Time to hash for a single throughput measurement. */
+    private static final long MEASURE_MILLIS = 100;
+    private static final int MEASURE_RUNS = 3;
+    /** Count used for measuring, 65536 bytes, small enough for several S2Ks per run. */
+    private static final int MEASURE_S2K_COUNT = 0x60;
+    private static final char[] MEASURE_PASSPHRASE = "calibration".toCharArray();
+
+    /** Returns the number of bytes hashed for an encoded s2k count, see rfc4880, 3.7.1.3. */
+    public static long decodeCount(int s2kCount) {
+        return (16L + (s2kCount & 15)) << ((s2kCount >> 4) + 6);
+    }
+
+    /**
+     * Returns the smallest encoded s2k count which hashes at least the given number
+     * of bytes, limited to MIN_S2K_COUNT and MAX_S2K_COUNT.
+     */
+    public static int encodeCount(long bytes) {
+        for (int s2kCount = MIN_S2K_COUNT; s2kCount < MAX_S2K_COUNT; s2kCount++) {
+            if (decodeCount(s2kCount) >= bytes) {
+                return s2kCount;
+            }
+        }
+        return MAX_S2K_COUNT;
+    }
+
+    /**
+     * Returns the encoded s2k count for which the S2K with the given hash algorithm
+     * takes about targetMillis on this device.
+     */
+    public static int calibrate(int hashAlgorithm, long targetMillis) throws PGPException {
+        long bytesPerMilli = measureThroughput(hashAlgorithm);
+        int s2kCount = encodeCount(bytesPerMilli * targetMillis);
+        Log.d(Constants.TAG, "S2K throughput " + bytesPerMilli + " bytes/ms, calibrated count 0x"
+                + Integer.toHexString(s2kCount) + " (" + decodeCount(s2kCount) + " bytes)");
+        return s2kCount;
+    }
+
+    /** Measures the throughput of the S2K key derivation, in hashed bytes per millisecond. */
+    public static long measureThroughput(int hashAlgorithm) throws PGPException {
+        PBESecretKeyDecryptor decryptor = new JcePBESecretKeyDecryptorBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(MEASURE_PASSPHRASE);
+        S2K s2k = new S2K(hashAlgorithm, new byte[8], MEASURE_S2K_COUNT);
+        long bytesPerS2k = decodeCount(MEASURE_S2K_COUNT);
+
+        long best = 1;
+        // the first run warms up the JIT and is not counted
+        for (int run = 0; run <= MEASURE_RUNS; run++) {
+            long bytes = 0;
+            long start = System.nanoTime();
+            long elapsed;
+            do {
+                decryptor.makeKeyFromPassPhrase(SymmetricKeyAlgorithmTags.AES_256, s2k);
+                bytes += bytesPerS2k;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MEASURE_MILLIS * 1000000L);
+
+            if (run > 0) {
+                best = Math.max(best, bytes * 1000000L / elapsed);
+            }
+        }
+        return best;
+    }
+
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSignature;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+
+/** A set of signature verifications which are known to be good.
+ *
+ * Each entry is a digest over a signature packet, the fingerprint of the key which
+ * made it, and the data it was made over. A signature with an entry here doesn't need
+ * to be verified again, which saves most of the work when a keyring is imported or
+ * consolidated repeatedly. Only successful verifications are cached.
+ *
+ * This class only holds the entries in memory, loading and persisting them is done
+ * by ProviderHelper.
+ *
+ * @see WrappedSignature#init(CanonicalizedPublicKey, SignatureVerificationCache)
+ */
+public class SignatureVerificationCache {
+
+    // what a signature is made over, to keep digests over different kinds of data apart
+    static final int SIGNED_KEY = 0;
+    static final int SIGNED_USER_ID = 1;
+    static final int SIGNED_USER_ATTRIBUTE = 2;
+    static final int SIGNED_SUBKEY = 3;
+
+    private final HashSet<ByteBuffer> mVerified = new HashSet<>();
+    private final ArrayList<byte[]> mAdded = new ArrayList<>();
+    private final ArrayList<byte[]> mHit = new ArrayList<>();
+    private final HashSet<ByteBuffer> mPreverified = new HashSet<>();
+    private final SignatureVerificationCache mKnown;
+    private int mHits, mMisses;
+
+    public SignatureVerificationCache() {
+        mKnown = null;
+    }
+
+    public SignatureVerificationCache(Collection<byte[]> verified) {
+        mKnown = null;
+        for (byte[] digest : verified) {
+            mVerified.add(ByteBuffer.wrap(digest));
+        }
+    }
+
+    /** Creates a cache for verifications done in advance. Verifications known to the given
+     * cache are skipped, but not counted as hits or added here.
+     */
+    SignatureVerificationCache(SignatureVerificationCache known) {
+        mKnown = known;
+    }
+
+    synchronized boolean isVerified(byte[] digest) {
+        ByteBuffer key = ByteBuffer.wrap(digest);
+        if (mVerified.contains(key)) {
+            mHits += 1;
+            mHit.add(digest);
+            return true;
+        }
+        if (mKnown != null && mKnown.contains(key)) {
+            return true;
+        }
+        mMisses += 1;
+        // verified in advance, this counts as if it was verified just now
+        if (mPreverified.remove(key)) {
+            addVerified(digest);
+            return true;
+        }
+        return false;
+    }
+
+    private synchronized boolean contains(ByteBuffer key) {
+        return mVerified.contains(key);
+    }
+
+    /** Adds verifications which were done in advance. Unlike cached ones, these are only
+     * counted and added once they are looked up.
+     */
+    synchronized void addPreverified(List<byte[]> digests) {
+        for (byte[] digest : digests) {
+            mPreverified.add(ByteBuffer.wrap(digest));
+        }
+    }
+
+    synchronized void addVerified(byte[] digest) {
+        if (mVerified.add(ByteBuffer.wrap(digest))) {
+            mAdded.add(digest);
+        }
+    }
+
+    /** Returns all entries which were added since this cache was created. */
+    public synchronized List<byte[]> getAdded() {
+        return new ArrayList<>(mAdded);
+    }
+
+    /** Returns all entries which were looked up or added since this cache was created,
+     * i.e. those which are still needed for the keyring it was used on.
+     */
+    public synchronized List<byte[]> getUsed() {
+        ArrayList<byte[]> used = new ArrayList<>(mHit.size() + mAdded.size());
+        HashSet<ByteBuffer> seen = new HashSet<>();
+        for (byte[] digest : mHit) {
+            if (seen.add(ByteBuffer.wrap(digest))) {
+                used.add(digest);
+            }
+        }
+        for (byte[] digest : mAdded) {
+            if (seen.add(ByteBuffer.wrap(digest))) {
+                used.add(digest);
+            }
+        }
+        return used;
+    }
+
+    /** Number of verifications which were skipped, because they were cached. */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /** Number of verifications which had to be done, because they were not cached. */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    static byte[] getDigest(PGPSignature sig, PGPPublicKey signer, int signedType,
+                            byte[]... signedData) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update((byte) signedType);
+            updateWithLength(digest, sig.getEncoded());
+            updateWithLength(digest, signer.getFingerprint());
+            for (byte[] data : signedData) {
+                updateWithLength(digest, data);
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 must be available!");
+        }
+    }
+
+    private static void updateWithLength(MessageDigest digest, byte[] data) {
+        digest.update(ByteBuffer.allocate(4).putInt(data.length).array());
+        digest.update(data);
+    }
+
+}
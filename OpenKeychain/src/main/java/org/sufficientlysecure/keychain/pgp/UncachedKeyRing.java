@@ -48,16 +48,24 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Set;
 import java.util.TimeZone;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Wrapper around PGPKeyRing class, to be constructed from bytes.
  *
@@ -80,12 +88,24 @@ import java.util.TreeSet;
 @SuppressWarnings("unchecked")
 public class UncachedKeyRing {
 
+    // below this number of user ids, user attributes and keys, verifying in parallel isn't worth it
+    static final int PARALLEL_VERIFY_MIN_COMPONENTS = 6;
+    private static final long VERIFY_THREAD_TIMEOUT = 30 * 1000;
+
     final PGPKeyRing mRing;
     final boolean mIsSecret;
+    // the data this keyring was decoded from, if known. used to detect identical keyrings
+    // without encoding them again
+    private final byte[] mInput;
 
     UncachedKeyRing(PGPKeyRing ring) {
+        this(ring, null);
+    }
+
+    private UncachedKeyRing(PGPKeyRing ring, byte[] input) {
         mRing = ring;
         mIsSecret = ring instanceof PGPSecretKeyRing;
+        mInput = input;
     }
 
     public long getMasterKeyId() {
@@ -151,7 +171,7 @@ public class UncachedKeyRing {
             throw new PgpGeneralException("Expected single keyring in stream, found at least two");
         }
 
-        return ring;
+        return new UncachedKeyRing(ring.mRing, data);
 
     }
 
@@ -304,8 +324,29 @@ public class UncachedKeyRing {
      * @return A canonicalized key, or null on fatal error (log will include a message in this case)
      *
      */
-    @SuppressWarnings("ConstantConditions")
     public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport) {
+        return canonicalize(log, indent, forExport, null);
+    }
+
+    /** Canonicalizes a key as above, skipping verification of self-certificates which are
+     * known to be good from the given cache, and adding newly verified ones to it.
+     *
+     * @param cache a cache of good verifications, may be null
+     */
+    public CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+                                             SignatureVerificationCache cache) {
+        boolean verifyInParallel = Runtime.getRuntime().availableProcessors() > 1
+                && getComponentCount() >= PARALLEL_VERIFY_MIN_COMPONENTS;
+        return canonicalize(log, indent, forExport, cache, verifyInParallel);
+    }
+
+    /** Canonicalizes a key as above. If verifyInParallel is true, the self-certificates of
+     * all user ids, user attributes and subkeys are verified in advance, in parallel. The
+     * keyring and log are still assembled in order, so the outcome is the same either way.
+     */
+    @SuppressWarnings("ConstantConditions")
+    CanonicalizedKeyRing canonicalize(OperationLog log, int indent, boolean forExport,
+                                      SignatureVerificationCache cache, boolean verifyInParallel) {
 
         log.add(isSecret() ? LogType.MSG_KC_SECRET : LogType.MSG_KC_PUBLIC,
                 indent, KeyFormattingUtils.convertKeyIdToHex(getMasterKeyId()));
@@ -317,12 +358,20 @@ public class UncachedKeyRing {
             return null;
         }
 
+        if (verifyInParallel) {
+            if (cache == null) {
+                cache = new SignatureVerificationCache();
+            }
+            verifyInAdvance(cache);
+        }
+
         Calendar nowCal = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
         // allow for diverging clocks up to one day when checking creation time
         nowCal.add(Calendar.DAY_OF_YEAR, 1);
         final Date nowPlusOneDay = nowCal.getTime();
 
         int redundantCerts = 0, badCerts = 0;
+        int cacheHits = cache != null ? cache.getHitCount() : 0;
 
         PGPKeyRing ring = mRing;
         PGPPublicKey masterKey = mRing.getPublicKey();
@@ -375,7 +424,7 @@ public class UncachedKeyRing {
                 }
 
                 try {
-                    cert.init(masterKey);
+                    cert.init(masterKey, cache);
                     if (!cert.verifySignature(masterKey)) {
                         log.add(LogType.MSG_KC_MASTER_BAD, indent);
                         modified = PGPPublicKey.removeCertification(modified, zert);
@@ -528,7 +577,7 @@ public class UncachedKeyRing {
 
                         // Otherwise, first make sure it checks out
                         try {
-                            cert.init(masterKey);
+                            cert.init(masterKey, cache);
                             if (!cert.verifySignature(masterKey, rawUserId)) {
                                 log.add(LogType.MSG_KC_UID_BAD,
                                         indent, userId);
@@ -693,7 +742,7 @@ public class UncachedKeyRing {
 
                             // Otherwise, first make sure it checks out
                             try {
-                                cert.init(masterKey);
+                                cert.init(masterKey, cache);
                                 if (!cert.verifySignature(masterKey, userAttribute)) {
                                     log.add(LogType.MSG_KC_UAT_BAD,
                                             indent);
@@ -883,7 +932,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
+                        cert.init(masterKey, cache);
                         if (!cert.verifySignature(masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_BAD, indent);
                             badCerts += 1;
@@ -924,7 +973,7 @@ public class UncachedKeyRing {
                             for (int i = 0; i < list.size(); i++) {
                                 WrappedSignature subsig = new WrappedSignature(list.get(i));
                                 if (subsig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
-                                    subsig.init(key);
+                                    subsig.init(key, cache);
                                     if (subsig.verifySignature(masterKey, key)) {
                                         ok = true;
                                     } else {
@@ -967,7 +1016,7 @@ public class UncachedKeyRing {
 
                     // make sure the certificate checks out
                     try {
-                        cert.init(masterKey);
+                        cert.init(masterKey, cache);
                         if (!cert.verifySignature(masterKey, key)) {
                             log.add(LogType.MSG_KC_SUB_REVOKE_BAD, indent);
                             badCerts += 1;
@@ -1029,6 +1078,10 @@ public class UncachedKeyRing {
             indent -= 1;
         }
 
+        if (cache != null && cache.getHitCount() > cacheHits) {
+            log.add(LogType.MSG_KC_VERIFY_CACHED, indent, cache.getHitCount() - cacheHits);
+        }
+
         if (badCerts > 0 && redundantCerts > 0) {
             // multi plural would make this complex, just leaving this as is...
             log.add(LogType.MSG_KC_SUCCESS_BAD_AND_RED,
@@ -1073,31 +1126,27 @@ public class UncachedKeyRing {
             return null;
         }
 
-        // remember which certs we already added. this is cheaper than semantic deduplication
-        Set<byte[]> certs = new TreeSet<>(new Comparator<byte[]>() {
-            public int compare(byte[] left, byte[] right) {
-                // check for length equality
-                if (left.length != right.length) {
-                    return left.length - right.length;
-                }
-                // compare byte-by-byte
-                for (int i = 0; i < left.length; i++) {
-                    if (left[i] != right[i]) {
-                        return (left[i] & 0xff) - (right[i] & 0xff);
-                    }
-                }
-                // ok they're the same
-                return 0;
-        }});
-
         try {
             PGPKeyRing result = mRing;
             PGPKeyRing candidate = other.mRing;
 
+            // nothing to merge from an identical keyring, e.g. if a key refresh brought no news.
+            // this compares the data both were decoded from, since encoding them again would
+            // cost about as much as the merge itself
+            if (mInput != null && isSecret() == other.isSecret()
+                    && Arrays.equals(mInput, other.mInput)) {
+                log.add(LogType.MSG_MG_UNCHANGED, indent);
+                return this;
+            }
+
+            // remember which certs we already added, by their encoding. each cert is encoded
+            // exactly once, and looked up by hash. this is cheaper than semantic deduplication
+            Set<ByteBuffer> certs = new HashSet<>();
+
             // Pre-load all existing certificates
             for (PGPPublicKey key : new IterableIterator<PGPPublicKey>(result.getPublicKeys())) {
                 for (PGPSignature cert : new IterableIterator<PGPSignature>(key.getSignatures())) {
-                    certs.add(cert.getEncoded());
+                    certs.add(ByteBuffer.wrap(cert.getEncoded()));
                 }
             }
 
@@ -1130,12 +1179,10 @@ public class UncachedKeyRing {
                         continue;
                     }
 
-                    byte[] encoded = cert.getEncoded();
                     // Known cert, skip it
-                    if (certs.contains(encoded)) {
+                    if (!certs.add(ByteBuffer.wrap(cert.getEncoded()))) {
                         continue;
                     }
-                    certs.add(encoded);
                     modified = PGPPublicKey.addCertification(modified, cert);
                     newCerts += 1;
                 }
@@ -1161,13 +1208,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(ByteBuffer.wrap(cert.getEncoded()))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, rawUserId, cert);
                     }
                 }
@@ -1186,13 +1231,11 @@ public class UncachedKeyRing {
                         if (cert.getKeyID() != masterKeyId && isSecret()) {
                             continue;
                         }
-                        byte[] encoded = cert.getEncoded();
                         // Known cert, skip it
-                        if (certs.contains(encoded)) {
+                        if (!certs.add(ByteBuffer.wrap(cert.getEncoded()))) {
                             continue;
                         }
                         newCerts += 1;
-                        certs.add(encoded);
                         modified = PGPPublicKey.addCertification(modified, vector, cert);
                     }
                 }
@@ -1211,7 +1254,8 @@ public class UncachedKeyRing {
                 log.add(LogType.MSG_MG_UNCHANGED, indent);
             }
 
-            return new UncachedKeyRing(result);
+            // if nothing was added, keep this keyring, which may still know its input data
+            return result == mRing ? this : new UncachedKeyRing(result);
 
         } catch (IOException e) {
             log.add(LogType.MSG_MG_ERROR_ENCODE, indent);
@@ -1220,6 +1264,178 @@ public class UncachedKeyRing {
 
     }
 
+    private int getComponentCount() {
+        int count = 0;
+        for (Iterator<?> it = mRing.getPublicKey().getRawUserIDs(); it.hasNext(); it.next()) {
+            count += 1;
+        }
+        for (Iterator<?> it = mRing.getPublicKey().getUserAttributes(); it.hasNext(); it.next()) {
+            count += 1;
+        }
+        for (Iterator<?> it = mRing.getPublicKeys(); it.hasNext(); it.next()) {
+            count += 1;
+        }
+        return count;
+    }
+
+    private static ExecutorService sVerifyExecutor;
+
+    /** Returns the executor shared by all canonicalizations, which is bounded by the number
+     * of processors. Its threads time out when idle.
+     */
+    private static synchronized ExecutorService getVerifyExecutor() {
+        if (sVerifyExecutor == null) {
+            int threads = Runtime.getRuntime().availableProcessors();
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                    VERIFY_THREAD_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "canonicalize-verify");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            sVerifyExecutor = executor;
+        }
+        return sVerifyExecutor;
+    }
+
+    /** Verifies all self-certificates in parallel, one task per component of the keyring.
+     * Good verifications are handed to canonicalization through the cache, which looks
+     * them up in its usual order. Bad ones are left to be found there again, so they are
+     * logged in order as well.
+     */
+    private void verifyInAdvance(SignatureVerificationCache cache) {
+        final PGPPublicKey masterKey = mRing.getPublicKey();
+        final long masterKeyId = masterKey.getKeyID();
+        final SignatureVerificationCache advance = new SignatureVerificationCache(cache);
+
+        ArrayList<Callable<Void>> tasks = new ArrayList<>();
+        tasks.add(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                for (PGPSignature zert : new IterableIterator<PGPSignature>(masterKey.getKeySignatures())) {
+                    if (zert.getKeyID() == masterKeyId) {
+                        WrappedSignature cert = new WrappedSignature(zert);
+                        cert.init(masterKey, advance);
+                        cert.verifySignature(masterKey);
+                    }
+                }
+                return null;
+            }
+        });
+        for (final byte[] rawUserId : new IterableIterator<byte[]>(masterKey.getRawUserIDs())) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Iterator<PGPSignature> signaturesIt = masterKey.getSignaturesForID(rawUserId);
+                    if (signaturesIt == null) {
+                        return null;
+                    }
+                    for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                        if (zert.getKeyID() == masterKeyId) {
+                            WrappedSignature cert = new WrappedSignature(zert);
+                            cert.init(masterKey, advance);
+                            cert.verifySignature(masterKey, rawUserId);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        for (final PGPUserAttributeSubpacketVector userAttribute :
+                new IterableIterator<PGPUserAttributeSubpacketVector>(masterKey.getUserAttributes())) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    Iterator<PGPSignature> signaturesIt =
+                            masterKey.getSignaturesForUserAttribute(userAttribute);
+                    if (signaturesIt == null) {
+                        return null;
+                    }
+                    for (PGPSignature zert : new IterableIterator<>(signaturesIt)) {
+                        if (zert.getKeyID() == masterKeyId) {
+                            WrappedSignature cert = new WrappedSignature(zert);
+                            cert.init(masterKey, advance);
+                            cert.verifySignature(masterKey, userAttribute);
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+        for (final PGPPublicKey key : new IterableIterator<PGPPublicKey>(mRing.getPublicKeys())) {
+            if (key.isMasterKey()) {
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    for (PGPSignature zert : new IterableIterator<PGPSignature>(key.getSignatures())) {
+                        if (zert.getKeyID() != masterKeyId) {
+                            continue;
+                        }
+                        WrappedSignature cert = new WrappedSignature(zert);
+                        cert.init(masterKey, advance);
+                        cert.verifySignature(masterKey, key);
+                        if (zert.getUnhashedSubPackets() == null) {
+                            continue;
+                        }
+                        PGPSignatureList list = zert.getUnhashedSubPackets().getEmbeddedSignatures();
+                        for (int i = 0; i < list.size(); i++) {
+                            WrappedSignature subsig = new WrappedSignature(list.get(i));
+                            if (subsig.getSignatureType() == PGPSignature.PRIMARYKEY_BINDING) {
+                                subsig.init(key, advance);
+                                subsig.verifySignature(masterKey, key);
+                            }
+                        }
+                    }
+                    return null;
+                }
+            });
+        }
+
+        // set once canonicalization is interrupted, tasks which haven't started yet are skipped
+        final AtomicBoolean aborted = new AtomicBoolean();
+        ExecutorService executor = getVerifyExecutor();
+        ArrayList<Future<Void>> futures = new ArrayList<>(tasks.size());
+        for (final Callable<Void> task : tasks) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    return aborted.get() ? null : task.call();
+                }
+            }));
+        }
+
+        // running tasks work on the same signature objects as canonicalization, so this must
+        // wait for all of them, even if interrupted. canonicalization verifies whatever
+        // wasn't verified in advance.
+        boolean interrupted = false;
+        for (Future<Void> future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                    aborted.set(true);
+                } catch (ExecutionException e) {
+                    // nothing was lost, canonicalization will run into this again and log it
+                    Log.d(Constants.TAG, "error verifying certificates in advance", e.getCause());
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        cache.addPreverified(advance.getAdded());
+    }
+
     public UncachedKeyRing extractPublicKeyRing() throws IOException {
         if(!isSecret()) {
             throw new RuntimeException("Tried to extract public keyring from non-secret keyring. " +
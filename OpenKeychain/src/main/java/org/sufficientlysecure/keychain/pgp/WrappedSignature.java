@@ -31,6 +31,7 @@ import org.spongycastle.openpgp.PGPSignature;
 import org.spongycastle.openpgp.PGPSignatureList;
 import org.spongycastle.openpgp.PGPUserAttributeSubpacketVector;
 import org.spongycastle.openpgp.operator.jcajce.JcaPGPContentVerifierBuilderProvider;
+import org.spongycastle.util.Strings;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
 import org.sufficientlysecure.keychain.util.Log;
@@ -58,6 +59,9 @@ public class WrappedSignature {
 
     final PGPSignature mSig;
 
+    private PGPPublicKey mSigner;
+    private SignatureVerificationCache mVerificationCache;
+
     WrappedSignature(PGPSignature sig) {
         mSig = sig;
     }
@@ -144,7 +148,20 @@ public class WrappedSignature {
         init(key.getPublicKey());
     }
 
+    /** Initializes this signature for verification of a certification made by the given
+     * key. Successful verifications are added to the cache, and skipped if they are in it
+     * already. This does not apply to signatures over data which is passed to update().
+     */
+    public void init(CanonicalizedPublicKey key, SignatureVerificationCache cache)
+            throws PgpGeneralException {
+        init(key.getPublicKey(), cache);
+    }
+
     void init(PGPPublicKey key) throws PgpGeneralException {
+        init(key, null);
+    }
+
+    void init(PGPPublicKey key, SignatureVerificationCache cache) throws PgpGeneralException {
         try {
             JcaPGPContentVerifierBuilderProvider contentVerifierBuilderProvider =
                     new JcaPGPContentVerifierBuilderProvider()
@@ -153,6 +170,32 @@ public class WrappedSignature {
         } catch(PGPException e) {
             throw new PgpGeneralException(e);
         }
+        mSigner = key;
+        mVerificationCache = cache;
+    }
+
+    /** Returns the digest this certification is cached under, or null if there is no cache. */
+    private byte[] getCacheDigest(int signedType, byte[]... signedData) {
+        if (mVerificationCache == null) {
+            return null;
+        }
+        try {
+            return SignatureVerificationCache.getDigest(mSig, mSigner, signedType, signedData);
+        } catch (IOException e) {
+            // we just won't cache this one
+            return null;
+        }
+    }
+
+    private boolean isCachedVerified(byte[] cacheDigest) {
+        return cacheDigest != null && mVerificationCache.isVerified(cacheDigest);
+    }
+
+    private boolean cacheVerified(byte[] cacheDigest, boolean verified) {
+        if (verified && cacheDigest != null) {
+            mVerificationCache.addVerified(cacheDigest);
+        }
+        return verified;
     }
 
     public void update(byte[] data, int offset, int length) {
@@ -172,40 +215,70 @@ public class WrappedSignature {
     }
 
     boolean verifySignature(PGPPublicKey key) throws PgpGeneralException {
+        byte[] cacheDigest = getCacheDigest(SignatureVerificationCache.SIGNED_KEY,
+                key.getFingerprint());
+        if (isCachedVerified(cacheDigest)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(key);
+            return cacheVerified(cacheDigest, mSig.verifyCertification(key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey masterKey, PGPPublicKey subKey) throws PgpGeneralException {
+        byte[] cacheDigest = getCacheDigest(SignatureVerificationCache.SIGNED_SUBKEY,
+                masterKey.getFingerprint(), subKey.getFingerprint());
+        if (isCachedVerified(cacheDigest)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(masterKey, subKey);
+            return cacheVerified(cacheDigest, mSig.verifyCertification(masterKey, subKey));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, String uid) throws PgpGeneralException {
+        byte[] cacheDigest = getCacheDigest(SignatureVerificationCache.SIGNED_USER_ID,
+                key.getFingerprint(), Strings.toUTF8ByteArray(uid));
+        if (isCachedVerified(cacheDigest)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(uid, key);
+            return cacheVerified(cacheDigest, mSig.verifyCertification(uid, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, byte[] rawUserId) throws PgpGeneralException {
+        byte[] cacheDigest = getCacheDigest(SignatureVerificationCache.SIGNED_USER_ID,
+                key.getFingerprint(), rawUserId);
+        if (isCachedVerified(cacheDigest)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(rawUserId, key);
+            return cacheVerified(cacheDigest, mSig.verifyCertification(rawUserId, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
     }
 
     boolean verifySignature(PGPPublicKey key, PGPUserAttributeSubpacketVector attribute) throws PgpGeneralException {
+        byte[] cacheDigest = null;
+        if (mVerificationCache != null) try {
+            cacheDigest = getCacheDigest(SignatureVerificationCache.SIGNED_USER_ATTRIBUTE,
+                    key.getFingerprint(), new WrappedUserAttribute(attribute).getEncoded());
+        } catch (IOException e) {
+            // we just won't cache this one
+        }
+        if (isCachedVerified(cacheDigest)) {
+            return true;
+        }
         try {
-            return mSig.verifyCertification(attribute, key);
+            return cacheVerified(cacheDigest, mSig.verifyCertification(attribute, key));
         } catch (PGPException e) {
             throw new PgpGeneralException("Error!", e);
         }
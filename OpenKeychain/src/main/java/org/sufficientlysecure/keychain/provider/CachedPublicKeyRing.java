@@ -42,6 +42,9 @@ import org.sufficientlysecure.keychain.util.Log;
  * query, while object construction is (almost) free. A common pattern is
  * mProviderHelper.getCachedKeyRing(uri).getterMethod()
  *
+ * Where several getters are needed, getSnapshot() loads all of their data in
+ * a single query.
+ *
  * TODO Ensure that the values returned here always match the ones returned by
  * the parsed KeyRing!
  *
@@ -203,4 +206,167 @@ public class CachedPublicKeyRing extends KeyRing {
         return SecretKeyType.fromNum(((Long) data).intValue());
     }
 
+    /** Loads a snapshot of this keyring, with all data of the getters above in a single query. */
+    public Snapshot getSnapshot() throws PgpKeyNotFoundException {
+        Cursor cursor = mProviderHelper.getContentResolver().query(
+                mUri, Snapshot.PROJECTION, null, null, null);
+        try {
+            if (cursor == null || !cursor.moveToFirst()) {
+                throw new PgpKeyNotFoundException("keyring not found: " + mUri);
+            }
+            return new Snapshot(cursor);
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /** An immutable snapshot of the commonly needed data about a keyring.
+     *
+     * All data is loaded from the database at once, so unlike the getters of
+     * CachedPublicKeyRing, the getters of this class don't query the database.
+     * This makes it the better choice wherever more than one of them is needed.
+     *
+     * @see CachedPublicKeyRing#getSnapshot()
+     * @see ProviderHelper#getCachedKeyRingSnapshots(long[])
+     */
+    public static class Snapshot extends KeyRing {
+
+        static final String[] PROJECTION = new String[] {
+                KeyRings.MASTER_KEY_ID,
+                KeyRings.FINGERPRINT,
+                KeyRings.USER_ID,
+                KeyRings.CREATION,
+                KeyRings.IS_REVOKED,
+                KeyRings.IS_EXPIRED,
+                KeyRings.HAS_CERTIFY,
+                KeyRings.HAS_ENCRYPT,
+                KeyRings.HAS_SIGN,
+                KeyRings.VERIFIED,
+                KeyRings.HAS_ANY_SECRET,
+                KeyRings.HAS_DUPLICATE_USER_ID,
+                KeyRings.EXPIRY,
+        };
+        static final int INDEX_MASTER_KEY_ID = 0;
+        static final int INDEX_FINGERPRINT = 1;
+        static final int INDEX_USER_ID = 2;
+        static final int INDEX_CREATION = 3;
+        static final int INDEX_IS_REVOKED = 4;
+        static final int INDEX_IS_EXPIRED = 5;
+        static final int INDEX_HAS_CERTIFY = 6;
+        static final int INDEX_HAS_ENCRYPT = 7;
+        static final int INDEX_HAS_SIGN = 8;
+        static final int INDEX_VERIFIED = 9;
+        static final int INDEX_HAS_ANY_SECRET = 10;
+        static final int INDEX_HAS_DUPLICATE_USER_ID = 11;
+        static final int INDEX_EXPIRY = 12;
+
+        private final long mMasterKeyId;
+        private final byte[] mFingerprint;
+        private final String mPrimaryUserId;
+        private final long mCreation;
+        private final boolean mIsRevoked;
+        private final boolean mIsExpired;
+        private final boolean mCanCertify;
+        private final long mEncryptId;
+        private final long mSecretSignId;
+        private final int mVerified;
+        private final boolean mHasAnySecret;
+        private final boolean mHasDuplicateUserId;
+        private final long mExpiry;
+
+        /** Reads a snapshot from the current row of a cursor with the projection above. */
+        Snapshot(Cursor cursor) {
+            mMasterKeyId = cursor.getLong(INDEX_MASTER_KEY_ID);
+            mFingerprint = cursor.getBlob(INDEX_FINGERPRINT);
+            mPrimaryUserId = cursor.getString(INDEX_USER_ID);
+            mCreation = cursor.getLong(INDEX_CREATION);
+            mIsRevoked = cursor.getLong(INDEX_IS_REVOKED) > 0;
+            mIsExpired = cursor.getInt(INDEX_IS_EXPIRED) != 0;
+            mCanCertify = !cursor.isNull(INDEX_HAS_CERTIFY);
+            mEncryptId = cursor.getLong(INDEX_HAS_ENCRYPT);
+            mSecretSignId = cursor.getLong(INDEX_HAS_SIGN);
+            mVerified = cursor.getInt(INDEX_VERIFIED);
+            mHasAnySecret = cursor.getLong(INDEX_HAS_ANY_SECRET) > 0;
+            mHasDuplicateUserId = cursor.getLong(INDEX_HAS_DUPLICATE_USER_ID) > 0;
+            mExpiry = cursor.isNull(INDEX_EXPIRY) ? 0 : cursor.getLong(INDEX_EXPIRY);
+        }
+
+        @Override
+        public long getMasterKeyId() {
+            return mMasterKeyId;
+        }
+
+        public byte[] getFingerprint() {
+            return mFingerprint.clone();
+        }
+
+        @Override
+        public String getPrimaryUserId() {
+            return mPrimaryUserId;
+        }
+
+        @Override
+        public String getPrimaryUserIdWithFallback() {
+            return getPrimaryUserId();
+        }
+
+        /** Returns the creation time of the master key, in seconds. */
+        public long getCreation() {
+            return mCreation;
+        }
+
+        @Override
+        public boolean isRevoked() {
+            return mIsRevoked;
+        }
+
+        public boolean isExpired() {
+            return mIsExpired;
+        }
+
+        /** Returns the expiry time of the master key, in seconds, or 0 if it doesn't expire. */
+        public long getExpiry() {
+            return mExpiry;
+        }
+
+        @Override
+        public boolean canCertify() {
+            return mCanCertify;
+        }
+
+        @Override
+        public long getEncryptId() {
+            return mEncryptId;
+        }
+
+        @Override
+        public boolean hasEncrypt() {
+            return mEncryptId != 0;
+        }
+
+        /** Returns the key id which should be used for signing, or 0 if there is none.
+         *
+         * @see CachedPublicKeyRing#getSecretSignId()
+         */
+        public long getSecretSignId() {
+            return mSecretSignId;
+        }
+
+        @Override
+        public int getVerified() {
+            return mVerified;
+        }
+
+        public boolean hasAnySecret() {
+            return mHasAnySecret;
+        }
+
+        public boolean hasDuplicateUserId() {
+            return mHasDuplicateUserId;
+        }
+
+    }
+
 }
@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+
+import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing.Snapshot;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/** Resolves email addresses to the keys which can be used to encrypt to them.
+ *
+ * All addresses of a request are looked up together, in the email column of the user
+ * packets, which is filled in when keyrings are saved. The candidate keyrings are then
+ * checked with a single query for their snapshots, so the number of queries doesn't
+ * grow with the number of addresses.
+ *
+ * Results are cached per account, and the whole cache is invalidated whenever a keyring
+ * changes. Cached results are also dropped once one of their keys expires.
+ */
+public class EmailKeyResolver {
+
+    /** Number of emails looked up per query, well below the limit of sqlite variables */
+    static final int QUERY_CHUNK_SIZE = 500;
+    private static final int MAX_CACHED_ACCOUNTS = 16;
+
+    /** The result of the lookup of a single email address. */
+    public static class EmailStatus {
+        final String mEmail;
+        final long[] mMasterKeyIds;
+        final boolean mHasRevoked;
+        final boolean mHasExpired;
+        /** Earliest expiry of the usable keys, in seconds, or 0 if none of them expires */
+        final long mExpiry;
+
+        EmailStatus(String email, long[] masterKeyIds, boolean hasRevoked, boolean hasExpired,
+                    long expiry) {
+            mEmail = email;
+            mMasterKeyIds = masterKeyIds;
+            mHasRevoked = hasRevoked;
+            mHasExpired = hasExpired;
+            mExpiry = expiry;
+        }
+
+        /** True if one of the usable keys has expired since this status was resolved. */
+        boolean isOutdated(long nowSeconds) {
+            return mExpiry != 0 && mExpiry <= nowSeconds;
+        }
+
+        /** Returns the normalized email, or null if the given address was empty. */
+        public String getEmail() {
+            return mEmail;
+        }
+
+        /** Returns the master key ids of all usable keys for this email. */
+        public long[] getMasterKeyIds() {
+            return mMasterKeyIds.clone();
+        }
+
+        /** True if there is no usable key for this email. */
+        public boolean isMissing() {
+            return mMasterKeyIds.length == 0;
+        }
+
+        /** True if there is more than one usable key for this email. */
+        public boolean isDuplicate() {
+            return mMasterKeyIds.length > 1;
+        }
+
+        /** True if a key for this email was found, but not used because it is revoked. */
+        public boolean hasRevoked() {
+            return mHasRevoked;
+        }
+
+        /** True if a key for this email was found, but not used because it is expired. */
+        public boolean hasExpired() {
+            return mHasExpired;
+        }
+    }
+
+    private static EmailKeyResolver sInstance;
+
+    /** Returns the resolver shared by the whole app, which is invalidated on keyring changes. */
+    public static synchronized EmailKeyResolver getInstance(Context context) {
+        return getInstance(context, false);
+    }
+
+    static synchronized EmailKeyResolver getInstance(Context context, boolean forceNew) {
+        if (sInstance == null || forceNew) {
+            final EmailKeyResolver resolver = new EmailKeyResolver(context.getApplicationContext());
+            // a null handler delivers changes on the binder thread, which is fine for this
+            context.getContentResolver().registerContentObserver(KeyRings.CONTENT_URI, true,
+                    new ContentObserver(null) {
+                        @Override
+                        public void onChange(boolean selfChange) {
+                            resolver.invalidate();
+                        }
+                    });
+            sInstance = resolver;
+        }
+        return sInstance;
+    }
+
+    private final Context mContext;
+
+    /** Cached results by normalized email, per account. Least recently used accounts are dropped. */
+    private final LinkedHashMap<String, HashMap<String, EmailStatus>> mCache =
+            new LinkedHashMap<String, HashMap<String, EmailStatus>>(MAX_CACHED_ACCOUNTS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, HashMap<String, EmailStatus>> eldest) {
+                    return size() > MAX_CACHED_ACCOUNTS;
+                }
+            };
+    /** Incremented on every invalidation, so results of lookups running meanwhile aren't cached */
+    private long mGeneration;
+
+    private int mQueryCount;
+
+    EmailKeyResolver(Context context) {
+        mContext = context;
+    }
+
+    /** Normalizes an email address for lookups, as it is stored in the email column.
+     *
+     * @return the email in lower case, without surrounding angle brackets, or null if empty
+     */
+    public static String normalizeEmail(String email) {
+        if (email == null) {
+            return null;
+        }
+        email = email.trim();
+        int start = email.lastIndexOf('<');
+        if (start >= 0 && email.endsWith(">")) {
+            email = email.substring(start + 1, email.length() - 1).trim();
+        }
+        if (email.isEmpty()) {
+            return null;
+        }
+        return email.toLowerCase(Locale.ENGLISH);
+    }
+
+    /** Extracts the email of a user id, as it is stored in the email column. This is the
+     * address in the trailing angle brackets, which may directly follow the name or make
+     * up the whole user id, or the whole user id if it is a plain address.
+     *
+     * @return the normalized email, or null if the user id has none
+     */
+    public static String extractEmail(String userId) {
+        if (userId == null) {
+            return null;
+        }
+        userId = userId.trim();
+        int start = userId.lastIndexOf('<');
+        if (start >= 0 && userId.endsWith(">")) {
+            return normalizeEmail(userId.substring(start));
+        }
+        if (isPlainAddress(userId)) {
+            return normalizeEmail(userId);
+        }
+        return null;
+    }
+
+    private static boolean isPlainAddress(String userId) {
+        int at = userId.indexOf('@');
+        if (at <= 0 || at == userId.length() - 1) {
+            return false;
+        }
+        for (int i = 0; i < userId.length(); i++) {
+            char c = userId.charAt(i);
+            if (Character.isWhitespace(c) || c == '<' || c == '>' || c == '(' || c == ')') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Drops all cached results. */
+    public void invalidate() {
+        synchronized (mCache) {
+            mCache.clear();
+            mGeneration += 1;
+        }
+    }
+
+    /** Number of database queries made by this resolver so far. */
+    public synchronized int getQueryCount() {
+        return mQueryCount;
+    }
+
+    /**
+     * Resolves a number of email addresses at once.
+     *
+     * @param account the account for which results are cached, or null to not cache them
+     * @return the status of each email, in the order of the given emails
+     */
+    public List<EmailStatus> resolve(String account, String[] emails) {
+        String[] normalized = new String[emails.length];
+        HashMap<String, EmailStatus> known = new HashMap<>();
+        LinkedHashSet<String> unknown = new LinkedHashSet<>();
+
+        long nowSeconds = System.currentTimeMillis() / 1000;
+        long generation;
+        synchronized (mCache) {
+            generation = mGeneration;
+            HashMap<String, EmailStatus> accountCache = account != null ? mCache.get(account) : null;
+            for (int i = 0; i < emails.length; i++) {
+                normalized[i] = normalizeEmail(emails[i]);
+                if (normalized[i] == null) {
+                    continue;
+                }
+                EmailStatus cached = accountCache != null ? accountCache.get(normalized[i]) : null;
+                if (cached != null && !cached.isOutdated(nowSeconds)) {
+                    known.put(normalized[i], cached);
+                } else {
+                    unknown.add(normalized[i]);
+                }
+            }
+        }
+
+        if (!unknown.isEmpty()) {
+            HashMap<String, EmailStatus> resolved = resolveUncached(unknown);
+            known.putAll(resolved);
+
+            synchronized (mCache) {
+                // if keyrings changed in the meantime, these results may be outdated already
+                if (account != null && generation == mGeneration) {
+                    HashMap<String, EmailStatus> accountCache = mCache.get(account);
+                    if (accountCache == null) {
+                        accountCache = new HashMap<>();
+                        mCache.put(account, accountCache);
+                    }
+                    accountCache.putAll(resolved);
+                }
+            }
+        }
+
+        ArrayList<EmailStatus> result = new ArrayList<>(emails.length);
+        for (String email : normalized) {
+            result.add(email != null ? known.get(email)
+                    : new EmailStatus(null, new long[0], false, false, 0));
+        }
+        return result;
+    }
+
+    private HashMap<String, EmailStatus> resolveUncached(LinkedHashSet<String> emails) {
+        HashMap<String, LinkedHashSet<Long>> candidates = new HashMap<>();
+        for (String email : emails) {
+            candidates.put(email, new LinkedHashSet<Long>());
+        }
+
+        if (Preferences.getPreferences(mContext).isDatabaseBackfillPending()) {
+            // the email column isn't filled in for all user ids yet
+            findCandidatesByUserId(new ArrayList<>(emails), candidates);
+        } else {
+            findCandidates(new ArrayList<>(emails), candidates);
+        }
+
+        LinkedHashSet<Long> allMasterKeyIds = new LinkedHashSet<>();
+        for (LinkedHashSet<Long> masterKeyIds : candidates.values()) {
+            allMasterKeyIds.addAll(masterKeyIds);
+        }
+        long[] masterKeyIdArray = new long[allMasterKeyIds.size()];
+        int pos = 0;
+        for (long masterKeyId : allMasterKeyIds) {
+            masterKeyIdArray[pos++] = masterKeyId;
+        }
+        LongSparseArray<Snapshot> snapshots =
+                new ProviderHelper(mContext).getCachedKeyRingSnapshots(masterKeyIdArray);
+        if (masterKeyIdArray.length > 0) {
+            countQuery();
+        }
+
+        HashMap<String, EmailStatus> result = new HashMap<>(emails.size());
+        for (String email : emails) {
+            ArrayList<Long> usable = new ArrayList<>();
+            boolean hasRevoked = false, hasExpired = false;
+            long expiry = 0;
+            for (long masterKeyId : candidates.get(email)) {
+                Snapshot snapshot = snapshots.get(masterKeyId);
+                if (snapshot == null) {
+                    // deleted in the meantime
+                    continue;
+                }
+                if (snapshot.isRevoked()) {
+                    hasRevoked = true;
+                } else if (snapshot.isExpired()) {
+                    hasExpired = true;
+                } else {
+                    usable.add(masterKeyId);
+                    if (snapshot.getExpiry() != 0 && (expiry == 0 || snapshot.getExpiry() < expiry)) {
+                        expiry = snapshot.getExpiry();
+                    }
+                }
+            }
+            long[] usableArray = new long[usable.size()];
+            for (int i = 0; i < usableArray.length; i++) {
+                usableArray[i] = usable.get(i);
+            }
+            result.put(email, new EmailStatus(email, usableArray, hasRevoked, hasExpired, expiry));
+        }
+        return result;
+    }
+
+    /** Finds the keyrings with a user id of each email, using the email column. */
+    private void findCandidates(List<String> emails, HashMap<String, LinkedHashSet<Long>> candidates) {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        for (int start = 0; start < emails.size(); start += QUERY_CHUNK_SIZE) {
+            List<String> chunk = emails.subList(start, Math.min(start + QUERY_CHUNK_SIZE, emails.size()));
+
+            StringBuilder selection = new StringBuilder(
+                    Tables.USER_PACKETS + "." + UserPackets.EMAIL + " IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i > 0 ? ",?" : "?");
+            }
+            selection.append(')');
+
+            Cursor cursor = contentResolver.query(UserPackets.buildUserIdsUri(),
+                    new String[] { UserPackets.MASTER_KEY_ID, UserPackets.EMAIL },
+                    selection.toString(), chunk.toArray(new String[chunk.size()]), null);
+            countQuery();
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    candidates.get(cursor.getString(1)).add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    /** Finds the keyrings with a user id of each email, matching the user ids themselves.
+     * This works before the email column is backfilled. */
+    private void findCandidatesByUserId(List<String> emails,
+                                        HashMap<String, LinkedHashSet<Long>> candidates) {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        String userIdColumn = Tables.USER_PACKETS + "." + UserPackets.USER_ID;
+        // two arguments per email
+        int chunkSize = QUERY_CHUNK_SIZE / 2;
+        for (int start = 0; start < emails.size(); start += chunkSize) {
+            List<String> chunk = emails.subList(start, Math.min(start + chunkSize, emails.size()));
+
+            // LIKE is case insensitive, which is what we want for ascii emails. anything
+            // it matches beyond that is ruled out by extractEmail below
+            StringBuilder selection = new StringBuilder();
+            String[] selectionArgs = new String[2 * chunk.size()];
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i > 0 ? " OR " : "")
+                        .append(userIdColumn).append(" LIKE ? ESCAPE '\\' OR ")
+                        .append(userIdColumn).append(" LIKE ? ESCAPE '\\'");
+                String escaped = escapeLike(chunk.get(i));
+                selectionArgs[2 * i] = "%<" + escaped + ">";
+                selectionArgs[2 * i + 1] = escaped;
+            }
+
+            Cursor cursor = contentResolver.query(UserPackets.buildUserIdsUri(),
+                    new String[] { UserPackets.MASTER_KEY_ID, UserPackets.USER_ID },
+                    selection.toString(), selectionArgs, null);
+            countQuery();
+            if (cursor == null) {
+                continue;
+            }
+            try {
+                while (cursor.moveToNext()) {
+                    LinkedHashSet<Long> masterKeyIds =
+                            candidates.get(extractEmail(cursor.getString(1)));
+                    if (masterKeyIds != null) {
+                        masterKeyIds.add(cursor.getLong(0));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    private static String escapeLike(String value) {
+        return value.replace("\\", "\\\\").replace("%", "\\%").replace("_", "\\_");
+    }
+
+    private synchronized void countQuery() {
+        mQueryCount += 1;
+    }
+
+}
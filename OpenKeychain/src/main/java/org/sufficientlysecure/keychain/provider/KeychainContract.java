@@ -28,6 +28,8 @@ public class KeychainContract {
     interface KeyRingsColumns {
         String MASTER_KEY_ID = "master_key_id"; // not a database id
         String KEY_RING_DATA = "key_ring_data"; // PGPPublicKeyRing / PGPSecretKeyRing blob
+        String EXPORT_CHECKSUM = "export_checksum"; // only if key_ring_data is exportable as is
+        String DIGEST = "digest"; // sha-256 of key_ring_data
     }
 
     interface KeysColumns {
@@ -59,6 +61,7 @@ public class KeychainContract {
         String RANK = "rank"; // ONLY used for sorting! no key, no nothing!
         String IS_PRIMARY = "is_primary";
         String IS_REVOKED = "is_revoked";
+        String EMAIL = "email"; // normalized email of the user id, for lookups
     }
 
     interface CertsColumns {
@@ -71,6 +74,16 @@ public class KeychainContract {
         String DATA = "data";
     }
 
+    interface UpdatedKeysColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a database id
+        String LAST_UPDATED = "last_updated"; // time since epoch in seconds
+    }
+
+    interface VerifiedSignaturesColumns {
+        String MASTER_KEY_ID = "master_key_id"; // not a database id
+        String DIGEST = "digest"; // see SignatureVerificationCache
+    }
+
     interface ApiAppsColumns {
         String PACKAGE_NAME = "package_name";
         String PACKAGE_CERTIFICATE = "package_signature";
@@ -99,9 +112,17 @@ public class KeychainContract {
 
     public static final String PATH_UNIFIED = "unified";
 
+    /** Provider call method which checkpoints the write-ahead log, e.g. after large imports */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+    /** Provider call method which runs one step of pending backfills after an upgrade. The
+     * arg is the row id to continue after, the result contains EXTRA_BACKFILL_ROW_ID */
+    public static final String METHOD_BACKFILL = "backfill";
+    public static final String EXTRA_BACKFILL_ROW_ID = "backfill_row_id";
+
     public static final String PATH_FIND = "find";
     public static final String PATH_BY_EMAIL = "email";
     public static final String PATH_BY_SUBKEY = "subkey";
+    public static final String PATH_BY_USER_ID = "user_id";
 
     public static final String PATH_PUBLIC = "public";
     public static final String PATH_SECRET = "secret";
@@ -109,6 +130,10 @@ public class KeychainContract {
     public static final String PATH_KEYS = "keys";
     public static final String PATH_CERTS = "certs";
 
+    public static final String BASE_UPDATED_KEYS = "updated_keys";
+
+    public static final String BASE_VERIFIED_SIGNATURES = "verified_signatures";
+
     public static final String BASE_API_APPS = "api_apps";
     public static final String PATH_ACCOUNTS = "accounts";
     public static final String PATH_ALLOWED_KEYS = "allowed_keys";
@@ -126,6 +151,8 @@ public class KeychainContract {
         public static final String HAS_DUPLICATE_USER_ID = "has_duplicate_user_id";
         public static final String PUBKEY_DATA = "pubkey_data";
         public static final String PRIVKEY_DATA = "privkey_data";
+        public static final String PUBKEY_EXPORT_CHECKSUM = "pubkey_export_checksum";
+        public static final String PRIVKEY_EXPORT_CHECKSUM = "privkey_export_checksum";
 
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_KEY_RINGS).build();
@@ -171,6 +198,13 @@ public class KeychainContract {
                     .appendPath(PATH_BY_SUBKEY).appendPath(Long.toString(subkey)).build();
         }
 
+        /** Finds keyrings with a user id that contains all words of the query, each as
+         * prefix of a word in the name, email or comment. */
+        public static Uri buildUnifiedKeyRingsFindByUserIdUri(String query) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_FIND)
+                    .appendPath(PATH_BY_USER_ID).appendPath(query).build();
+        }
+
     }
 
     public static class KeyRingData implements KeyRingsColumns, BaseColumns {
@@ -264,6 +298,22 @@ public class KeychainContract {
         }
     }
 
+    public static class UpdatedKeys implements UpdatedKeysColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_UPDATED_KEYS).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.updated_keys";
+    }
+
+    public static class VerifiedSignatures implements VerifiedSignaturesColumns, BaseColumns {
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
+                .appendPath(BASE_VERIFIED_SIGNATURES).build();
+
+        public static final String CONTENT_TYPE
+                = "vnd.android.cursor.dir/vnd.org.sufficientlysecure.keychain.provider.verified_signatures";
+    }
+
     public static class ApiApps implements ApiAppsColumns, BaseColumns {
         public static final Uri CONTENT_URI = BASE_CONTENT_URI_INTERNAL.buildUpon()
                 .appendPath(BASE_API_APPS).build();
@@ -23,6 +23,7 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 import android.provider.BaseColumns;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -34,9 +35,13 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAppsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.CertsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeysColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeysColumns;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignaturesColumns;
+import org.sufficientlysecure.keychain.service.DatabaseBackfillService;
 import org.sufficientlysecure.keychain.ui.ConsolidateDialogActivity;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -53,7 +58,18 @@ import java.io.IOException;
  */
 public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String DATABASE_NAME = "openkeychain.db";
-    private static final int DATABASE_VERSION = 10;
+    static final int DATABASE_VERSION = 16;
+    // android defaults to 100 pages, which checkpoints very often during imports. the log
+    // may grow larger than that, it is checkpointed explicitly after imports instead
+    private static final int WAL_AUTOCHECKPOINT_PAGES = 1000;
+
+    /** Returned by migrations which need all keyrings to be consolidated */
+    static final int MIGRATION_CONSOLIDATE = 1;
+    /** Returned by migrations which need data to be backfilled in the background */
+    static final int MIGRATION_BACKFILL = 2;
+    /** Number of rows backfilled per transaction */
+    static final int BACKFILL_CHUNK_SIZE = 500;
+
     static Boolean apgHack = false;
     private Context mContext;
 
@@ -62,7 +78,10 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         String KEY_RINGS_SECRET = "keyrings_secret";
         String KEYS = "keys";
         String USER_PACKETS = "user_packets";
+        String USER_IDS_FTS = "user_ids_fts";
         String CERTS = "certs";
+        String UPDATED_KEYS = "updated_keys";
+        String VERIFIED_SIGNATURES = "verified_signatures";
         String API_APPS = "api_apps";
         String API_ACCOUNTS = "api_accounts";
         String API_ALLOWED_KEYS = "api_allowed_keys";
@@ -71,13 +90,17 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     private static final String CREATE_KEYRINGS_PUBLIC =
             "CREATE TABLE IF NOT EXISTS keyrings_public ("
                 + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
-                + KeyRingsColumns.KEY_RING_DATA + " BLOB"
+                + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                + KeyRingsColumns.EXPORT_CHECKSUM + " BLOB,"
+                + KeyRingsColumns.DIGEST + " BLOB"
             + ")";
 
     private static final String CREATE_KEYRINGS_SECRET =
             "CREATE TABLE IF NOT EXISTS keyrings_secret ("
                     + KeyRingsColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY,"
                     + KeyRingsColumns.KEY_RING_DATA + " BLOB,"
+                    + KeyRingsColumns.EXPORT_CHECKSUM + " BLOB,"
+                    + KeyRingsColumns.DIGEST + " BLOB,"
                     + "FOREIGN KEY(" + KeyRingsColumns.MASTER_KEY_ID + ") "
                         + "REFERENCES keyrings_public(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
             + ")";
@@ -118,6 +141,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 + UserPacketsColumns.IS_PRIMARY + " INTEGER, "
                 + UserPacketsColumns.IS_REVOKED + " INTEGER, "
                 + UserPacketsColumns.RANK+ " INTEGER, "
+                + UserPacketsColumns.EMAIL + " TEXT, "
 
                 + "PRIMARY KEY(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + "), "
                 + "FOREIGN KEY(" + UserPacketsColumns.MASTER_KEY_ID + ") REFERENCES "
@@ -144,6 +168,28 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                     + Tables.USER_PACKETS + "(" + UserPacketsColumns.MASTER_KEY_ID + ", " + UserPacketsColumns.RANK + ") ON DELETE CASCADE"
             + ")";
 
+    private static final String CREATE_UPDATE_KEYS =
+            "CREATE TABLE IF NOT EXISTS " + Tables.UPDATED_KEYS + " ("
+                + UpdatedKeysColumns.MASTER_KEY_ID + " INTEGER PRIMARY KEY, "
+                + UpdatedKeysColumns.LAST_UPDATED + " INTEGER, "
+                + "FOREIGN KEY(" + UpdatedKeysColumns.MASTER_KEY_ID + ") REFERENCES "
+                    + Tables.KEY_RINGS_PUBLIC + "(" + KeyRingsColumns.MASTER_KEY_ID + ") ON DELETE CASCADE"
+            + ")";
+
+    private static final String CREATE_USER_PACKETS_EMAIL_INDEX =
+            "CREATE INDEX IF NOT EXISTS user_packets_email ON " + Tables.USER_PACKETS + "("
+                + UserPacketsColumns.EMAIL
+            + ")";
+
+    // no foreign key here: saving a keyring deletes and re-inserts it, which would cascade
+    private static final String CREATE_VERIFIED_SIGNATURES =
+            "CREATE TABLE IF NOT EXISTS " + Tables.VERIFIED_SIGNATURES + " ("
+                + VerifiedSignaturesColumns.MASTER_KEY_ID + " INTEGER, "
+                + VerifiedSignaturesColumns.DIGEST + " BLOB, "
+                + "PRIMARY KEY(" + VerifiedSignaturesColumns.MASTER_KEY_ID + ", "
+                    + VerifiedSignaturesColumns.DIGEST + ")"
+            + ")";
+
     private static final String CREATE_API_APPS =
             "CREATE TABLE IF NOT EXISTS " + Tables.API_APPS + " ("
                 + BaseColumns._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
@@ -183,6 +229,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
         mContext = context;
 
+        // with write-ahead logging, readers don't wait for writers and vice versa
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+
         // make sure this is only done once, on the first instance!
         boolean iAmIt = false;
         synchronized (KeychainDatabase.class) {
@@ -205,7 +256,11 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         db.execSQL(CREATE_KEYRINGS_SECRET);
         db.execSQL(CREATE_KEYS);
         db.execSQL(CREATE_USER_PACKETS);
+        db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+        db.execSQL(UserIdSearchIndex.CREATE_USER_IDS_FTS);
         db.execSQL(CREATE_CERTS);
+        db.execSQL(CREATE_UPDATE_KEYS);
+        db.execSQL(CREATE_VERIFIED_SIGNATURES);
         db.execSQL(CREATE_API_APPS);
         db.execSQL(CREATE_API_APPS_ACCOUNTS);
         db.execSQL(CREATE_API_APPS_ALLOWED_KEYS);
@@ -217,6 +272,32 @@ public class KeychainDatabase extends SQLiteOpenHelper {
         if (!db.isReadOnly()) {
             // Enable foreign key constraints
             db.execSQL("PRAGMA foreign_keys=ON;");
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+                // no setWriteAheadLoggingEnabled before API 16, enable it on the open database
+                if (!db.enableWriteAheadLogging()) {
+                    Log.w(Constants.TAG, "Write-ahead logging not available, using rollback journal");
+                }
+            }
+            runPragma(db, "PRAGMA wal_autocheckpoint=" + WAL_AUTOCHECKPOINT_PAGES);
+        }
+    }
+
+    /** Checkpoints the write-ahead log into the database, without blocking readers or
+     * writers. This should be done after large writes, which leave a large log behind
+     * that all readers have to search through until the next checkpoint.
+     */
+    public void checkpoint() {
+        runPragma(getWritableDatabase(), "PRAGMA wal_checkpoint(PASSIVE)");
+    }
+
+    /** Runs a pragma statement which returns a result row. These can't be executed
+     * with execSQL. */
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery(pragma, null);
+        try {
+            cursor.moveToFirst();
+        } finally {
+            cursor.close();
         }
     }
 
@@ -224,7 +305,34 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
         Log.d(Constants.TAG, "Upgrading db from " + oldVersion + " to " + newVersion);
 
-        switch (oldVersion) {
+        int flags = 0;
+        for (int version = oldVersion; version < newVersion; version++) {
+            flags |= migrateFrom(db, version);
+        }
+
+        if ((flags & MIGRATION_BACKFILL) != 0) {
+            // the backfill service waits for the database, until this upgrade is done
+            Preferences.getPreferences(mContext).setDatabaseBackfillPending(true);
+            mContext.startService(new Intent(mContext, DatabaseBackfillService.class));
+        }
+
+        // only consolidate if a migration needs data which must be parsed from the keyrings
+        if ((flags & MIGRATION_CONSOLIDATE) != 0) {
+            Intent consolidateIntent = new Intent(mContext.getApplicationContext(), ConsolidateDialogActivity.class);
+            consolidateIntent.putExtra(ConsolidateDialogActivity.EXTRA_CONSOLIDATE_RECOVERY, false);
+            consolidateIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
+            mContext.getApplicationContext().startActivity(consolidateIntent);
+        }
+    }
+
+    /** Migrates the schema from the given version to the next one.
+     *
+     * @return MIGRATION_CONSOLIDATE if all keyrings must be consolidated, i.e. parsed and
+     *         saved again, to fill in data for the new version, and/or MIGRATION_BACKFILL
+     *         if data must be backfilled. Both are done once all migrations are applied.
+     */
+    static int migrateFrom(SQLiteDatabase db, int version) {
+        switch (version) {
             case 1:
                 // add has_secret for all who are upgrading from a beta version
                 try {
@@ -232,7 +340,7 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 } catch (Exception e) {
                     // never mind, the column probably already existed
                 }
-                // fall through
+                return MIGRATION_CONSOLIDATE;
             case 2:
                 // ECC support
                 try {
@@ -240,25 +348,28 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 } catch (Exception e) {
                     // never mind, the column probably already existed
                 }
-                // fall through
+                return MIGRATION_CONSOLIDATE;
             case 3:
                 // better s2k detection, we need consolidate
-                // fall through
+                return MIGRATION_CONSOLIDATE;
             case 4:
                 try {
                     db.execSQL("ALTER TABLE keys ADD COLUMN can_authenticate INTEGER");
                 } catch (Exception e) {
                     // never mind, the column probably already existed
                 }
-                // fall through
+                return MIGRATION_CONSOLIDATE;
             case 5:
                 // do consolidate for 3.0 beta3
-                // fall through
+                return MIGRATION_CONSOLIDATE;
             case 6:
+                // null is correct for all existing user ids, no need to consolidate
                 db.execSQL("ALTER TABLE user_ids ADD COLUMN type INTEGER");
                 db.execSQL("ALTER TABLE user_ids ADD COLUMN attribute_data BLOB");
+                return 0;
             case 7:
                 // consolidate
+                return MIGRATION_CONSOLIDATE;
             case 8:
                 // new table for allowed key ids in API
                 try {
@@ -266,22 +377,62 @@ public class KeychainDatabase extends SQLiteOpenHelper {
                 } catch (Exception e) {
                     // never mind, the column probably already existed
                 }
+                return 0;
             case 9:
-                // tbale name for user_ids changed to user_packets
+                // tbale name for user_ids changed to user_packets. the new tables are
+                // empty, and must be filled from the keyrings
                 db.execSQL("DROP TABLE IF EXISTS certs");
                 db.execSQL("DROP TABLE IF EXISTS user_ids");
                 db.execSQL(CREATE_USER_PACKETS);
                 db.execSQL(CREATE_CERTS);
+                return MIGRATION_CONSOLIDATE;
             case 10:
-                // do nothing here, just consolidate
-
+                // last refresh from keyserver, for background key updates
+                db.execSQL(CREATE_UPDATE_KEYS);
+                return 0;
+            case 11:
+                // checksums for export of stored keyrings without canonicalization. existing
+                // keyrings have none, and are canonicalized on export until saved again
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN export_checksum BLOB");
+                db.execSQL("ALTER TABLE keyrings_secret ADD COLUMN export_checksum BLOB");
+                return 0;
+            case 12:
+                // full text index for user id search, filled in the background
+                db.execSQL(UserIdSearchIndex.CREATE_USER_IDS_FTS);
+                return MIGRATION_BACKFILL;
+            case 13:
+                // cache of good signature verifications, starts out empty
+                db.execSQL(CREATE_VERIFIED_SIGNATURES);
+                return 0;
+            case 14:
+                // digests to detect unchanged keyrings on import. existing keyrings have none,
+                // and are merged as before until saved again
+                db.execSQL("ALTER TABLE keyrings_public ADD COLUMN digest BLOB");
+                db.execSQL("ALTER TABLE keyrings_secret ADD COLUMN digest BLOB");
+                return 0;
+            case 15:
+                // emails of user ids for batched lookups, filled in the background
+                try {
+                    db.execSQL("ALTER TABLE user_packets ADD COLUMN email TEXT");
+                } catch (Exception e) {
+                    // never mind, the column already exists if user_packets was created by case 9
+                }
+                db.execSQL(CREATE_USER_PACKETS_EMAIL_INDEX);
+                return MIGRATION_BACKFILL;
+            default:
+                throw new IllegalStateException("No migration from database version " + version);
         }
+    }
 
-        // always do consolidate after upgrade
-        Intent consolidateIntent = new Intent(mContext.getApplicationContext(), ConsolidateDialogActivity.class);
-        consolidateIntent.putExtra(ConsolidateDialogActivity.EXTRA_CONSOLIDATE_RECOVERY, false);
-        consolidateIntent.addFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-        mContext.getApplicationContext().startActivity(consolidateIntent);
+    /** Backfills data for migrations which requested MIGRATION_BACKFILL, one chunk of at
+     * most BACKFILL_CHUNK_SIZE rows at a time, each in its own transaction. Backfills are
+     * idempotent, rows which already have their data are skipped.
+     *
+     * @param afterRowId the row id returned by the previous step, 0 for the first one
+     * @return the row id to continue after, or -1 if the backfill is complete
+     */
+    public long backfillStep(long afterRowId) {
+        return UserIdSearchIndex.backfill(getWritableDatabase(), afterRowId, BACKFILL_CHUNK_SIZE);
     }
 
     /** This method tries to import data from a provided database.
@@ -425,6 +576,8 @@ public class KeychainDatabase extends SQLiteOpenHelper {
     // DANGEROUS, use in test code ONLY!
     public void clearDatabase() {
         getWritableDatabase().execSQL("delete from " + Tables.KEY_RINGS_PUBLIC);
+        getWritableDatabase().execSQL("delete from " + Tables.USER_IDS_FTS);
+        getWritableDatabase().execSQL("delete from " + Tables.VERIFIED_SIGNATURES);
     }
 
 }
@@ -20,7 +20,10 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
@@ -28,6 +31,7 @@ import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Bundle;
 import android.text.TextUtils;
 
 import org.sufficientlysecure.keychain.Constants;
@@ -38,14 +42,19 @@ import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignatures;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPacketsColumns;
 import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 
 public class KeychainProvider extends ContentProvider {
@@ -71,6 +80,10 @@ public class KeychainProvider extends ContentProvider {
 
     private static final int KEY_RINGS_FIND_BY_EMAIL = 400;
     private static final int KEY_RINGS_FIND_BY_SUBKEY = 401;
+    private static final int KEY_RINGS_FIND_BY_USER_ID = 402;
+
+    private static final int UPDATED_KEYS = 500;
+    private static final int VERIFIED_SIGNATURES = 501;
 
     protected UriMatcher mUriMatcher;
 
@@ -111,6 +124,7 @@ public class KeychainProvider extends ContentProvider {
          *
          * key_rings/find/email/_
          * key_rings/find/subkey/_
+         * key_rings/find/user_id/_
          *
          */
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
@@ -119,6 +133,9 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
                 + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_SUBKEY + "/*",
                 KEY_RINGS_FIND_BY_SUBKEY);
+        matcher.addURI(authority, KeychainContract.BASE_KEY_RINGS + "/"
+                + KeychainContract.PATH_FIND + "/" + KeychainContract.PATH_BY_USER_ID + "/*",
+                KEY_RINGS_FIND_BY_USER_ID);
 
         /**
          * list key_ring specifics
@@ -179,11 +196,32 @@ public class KeychainProvider extends ContentProvider {
         matcher.addURI(authority, KeychainContract.BASE_API_APPS + "/*/"
                 + KeychainContract.PATH_ALLOWED_KEYS, API_ALLOWED_KEYS);
 
+        /**
+         * time of last refresh from keyserver, by master key id
+         *
+         * <pre>
+         * updated_keys
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_UPDATED_KEYS, UPDATED_KEYS);
+
+        /**
+         * digests of good signature verifications, by master key id
+         *
+         * <pre>
+         * verified_signatures
+         * </pre>
+         */
+        matcher.addURI(authority, KeychainContract.BASE_VERIFIED_SIGNATURES, VERIFIED_SIGNATURES);
+
         return matcher;
     }
 
     private KeychainDatabase mKeychainDatabase;
 
+    /** Uris to notify once the batch applied by the current thread is committed. */
+    private final ThreadLocal<HashSet<Uri>> mBatchNotifications = new ThreadLocal<>();
+
     /**
      * {@inheritDoc}
      */
@@ -199,6 +237,66 @@ public class KeychainProvider extends ContentProvider {
         return mKeychainDatabase;
     }
 
+    /**
+     * Applies all operations in a single transaction. With write-ahead logging, readers
+     * keep seeing the previous state until the whole batch is committed, and are never
+     * blocked by it. Change notifications are sent only after the commit, so observers
+     * don't reload while the batch is still invisible to them.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = getDb().getWritableDatabase();
+
+        HashSet<Uri> notifications = new HashSet<>();
+        mBatchNotifications.set(notifications);
+        boolean success = false;
+        db.beginTransactionNonExclusive();
+        try {
+            ContentProviderResult[] results = super.applyBatch(operations);
+            db.setTransactionSuccessful();
+            success = true;
+            return results;
+        } finally {
+            db.endTransaction();
+            mBatchNotifications.remove();
+            if (success) {
+                for (Uri uri : notifications) {
+                    notifyChange(uri);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles calls which don't fit the query, insert, update and delete scheme:
+     * {@link KeychainContract#METHOD_CHECKPOINT} checkpoints the write-ahead log,
+     * {@link KeychainContract#METHOD_BACKFILL} runs one step of pending backfills.
+     */
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (KeychainContract.METHOD_CHECKPOINT.equals(method)) {
+            getDb().checkpoint();
+            return null;
+        }
+        if (KeychainContract.METHOD_BACKFILL.equals(method)) {
+            Bundle result = new Bundle();
+            result.putLong(KeychainContract.EXTRA_BACKFILL_ROW_ID,
+                    getDb().backfillStep(Long.parseLong(arg)));
+            return result;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    private void notifyChange(Uri uri) {
+        HashSet<Uri> notifications = mBatchNotifications.get();
+        if (notifications != null) {
+            notifications.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -233,6 +331,12 @@ public class KeychainProvider extends ContentProvider {
             case API_ALLOWED_KEYS:
                 return ApiAllowedKeys.CONTENT_TYPE;
 
+            case UPDATED_KEYS:
+                return UpdatedKeys.CONTENT_TYPE;
+
+            case VERIFIED_SIGNATURES:
+                return VerifiedSignatures.CONTENT_TYPE;
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -257,7 +361,8 @@ public class KeychainProvider extends ContentProvider {
             case KEY_RING_UNIFIED:
             case KEY_RINGS_UNIFIED:
             case KEY_RINGS_FIND_BY_EMAIL:
-            case KEY_RINGS_FIND_BY_SUBKEY: {
+            case KEY_RINGS_FIND_BY_SUBKEY:
+            case KEY_RINGS_FIND_BY_USER_ID: {
                 HashMap<String, String> projectionMap = new HashMap<>();
                 projectionMap.put(KeyRings._ID, Tables.KEYS + ".oid AS _id");
                 projectionMap.put(KeyRings.MASTER_KEY_ID, Tables.KEYS + "." + Keys.MASTER_KEY_ID);
@@ -289,6 +394,12 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRings.PRIVKEY_DATA,
                         Tables.KEY_RINGS_SECRET + "." + KeyRingData.KEY_RING_DATA
                                 + " AS " + KeyRings.PRIVKEY_DATA);
+                projectionMap.put(KeyRings.PUBKEY_EXPORT_CHECKSUM,
+                        Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.EXPORT_CHECKSUM
+                                + " AS " + KeyRings.PUBKEY_EXPORT_CHECKSUM);
+                projectionMap.put(KeyRings.PRIVKEY_EXPORT_CHECKSUM,
+                        Tables.KEY_RINGS_SECRET + "." + KeyRingData.EXPORT_CHECKSUM
+                                + " AS " + KeyRings.PRIVKEY_EXPORT_CHECKSUM);
                 projectionMap.put(KeyRings.HAS_SECRET, Tables.KEYS + "." + KeyRings.HAS_SECRET);
                 projectionMap.put(KeyRings.HAS_ANY_SECRET,
                     "(EXISTS (SELECT * FROM " + Tables.KEY_RINGS_SECRET
@@ -329,13 +440,15 @@ public class KeychainProvider extends ContentProvider {
                                 + " = " + Certs.VERIFIED_SECRET
                         + ")"
                         // fairly expensive joins following, only do when requested
-                        + (plist.contains(KeyRings.PUBKEY_DATA) ?
+                        + (plist.contains(KeyRings.PUBKEY_DATA)
+                                || plist.contains(KeyRings.PUBKEY_EXPORT_CHECKSUM) ?
                             " INNER JOIN " + Tables.KEY_RINGS_PUBLIC + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
                                     + Tables.KEY_RINGS_PUBLIC + "." + KeyRingData.MASTER_KEY_ID
                                 + ")" : "")
-                        + (plist.contains(KeyRings.PRIVKEY_DATA) ?
+                        + (plist.contains(KeyRings.PRIVKEY_DATA)
+                                || plist.contains(KeyRings.PRIVKEY_EXPORT_CHECKSUM) ?
                             " LEFT JOIN " + Tables.KEY_RINGS_SECRET + " ON ("
                                     + Tables.KEYS + "." + Keys.MASTER_KEY_ID
                                 + " = "
@@ -407,6 +520,7 @@ public class KeychainProvider extends ContentProvider {
                         break;
                     }
                     case KEY_RINGS_FIND_BY_EMAIL: {
+                        boolean indexPending = isSearchIndexPending();
                         String chunks[] = uri.getLastPathSegment().split(" *, *");
                         boolean gotCondition = false;
                         String emailWhere = "";
@@ -415,21 +529,25 @@ public class KeychainProvider extends ContentProvider {
                             if (chunks[i].length() == 0) {
                                 continue;
                             }
-                            if (i != 0) {
+                            if (gotCondition) {
                                 emailWhere += " OR ";
                             }
-                            emailWhere += "tmp." + UserPackets.USER_ID + " LIKE ";
                             // match '*<email>', so it has to be at the *end* of the user id
-                            emailWhere += DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+                            String exactWhere = "up." + UserPackets.USER_ID + " LIKE "
+                                    + DatabaseUtils.sqlEscapeString("%<" + chunks[i] + ">");
+                            // the full text index narrows this down to a few candidates. user ids
+                            // like "<a@b>" have no email column, so match all columns
+                            String match = UserIdSearchIndex.buildEmailMatch(chunks[i]);
+                            if (match != null && !indexPending) {
+                                emailWhere += UserIdSearchIndex.buildMasterKeyIdCondition(
+                                        null, match, exactWhere);
+                            } else {
+                                emailWhere += buildUserIdExistsCondition(exactWhere);
+                            }
                             gotCondition = true;
                         }
                         if(gotCondition) {
-                            qb.appendWhere(" AND EXISTS ("
-                                + " SELECT 1 FROM " + Tables.USER_PACKETS + " AS tmp"
-                                    + " WHERE tmp." + UserPackets.MASTER_KEY_ID
-                                            + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
-                                        + " AND (" + emailWhere + ")"
-                                + ")");
+                            qb.appendWhere(" AND (" + emailWhere + ")");
                         } else {
                             // TODO better way to do this?
                             Log.e(Constants.TAG, "Malformed find by email query!");
@@ -437,6 +555,21 @@ public class KeychainProvider extends ContentProvider {
                         }
                         break;
                     }
+                    case KEY_RINGS_FIND_BY_USER_ID: {
+                        String match = UserIdSearchIndex.buildPrefixMatch(uri.getLastPathSegment());
+                        if (match != null && isSearchIndexPending()) {
+                            // the index is still being filled after an upgrade, fall back to LIKE
+                            qb.appendWhere(" AND " + buildUserIdExistsCondition(
+                                    UserIdSearchIndex.buildLikeCondition(uri.getLastPathSegment())));
+                        } else if (match != null) {
+                            qb.appendWhere(" AND "
+                                    + UserIdSearchIndex.buildMasterKeyIdCondition(null, match, null));
+                        } else {
+                            // nothing to search for, so everything matches
+                            Log.d(Constants.TAG, "Empty find by user id query, matching all");
+                        }
+                        break;
+                    }
                 }
 
                 if (TextUtils.isEmpty(sortOrder)) {
@@ -487,6 +620,7 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(UserPackets.RANK, Tables.USER_PACKETS + "." + UserPackets.RANK);
                 projectionMap.put(UserPackets.IS_PRIMARY, Tables.USER_PACKETS + "." + UserPackets.IS_PRIMARY);
                 projectionMap.put(UserPackets.IS_REVOKED, Tables.USER_PACKETS + "." + UserPackets.IS_REVOKED);
+                projectionMap.put(UserPackets.EMAIL, Tables.USER_PACKETS + "." + UserPackets.EMAIL);
                 // we take the minimum (>0) here, where "1" is "verified by known secret key"
                 projectionMap.put(UserPackets.VERIFIED, "MIN(" + Certs.VERIFIED + ") AS " + UserPackets.VERIFIED);
                 qb.setProjectionMap(projectionMap);
@@ -529,6 +663,8 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_PUBLIC + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.EXPORT_CHECKSUM, KeyRingData.EXPORT_CHECKSUM);
+                projectionMap.put(KeyRingData.DIGEST, KeyRingData.DIGEST);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_PUBLIC);
@@ -547,6 +683,8 @@ public class KeychainProvider extends ContentProvider {
                 projectionMap.put(KeyRingData._ID, Tables.KEY_RINGS_SECRET + ".oid AS _id");
                 projectionMap.put(KeyRingData.MASTER_KEY_ID, KeyRingData.MASTER_KEY_ID);
                 projectionMap.put(KeyRingData.KEY_RING_DATA, KeyRingData.KEY_RING_DATA);
+                projectionMap.put(KeyRingData.EXPORT_CHECKSUM, KeyRingData.EXPORT_CHECKSUM);
+                projectionMap.put(KeyRingData.DIGEST, KeyRingData.DIGEST);
                 qb.setProjectionMap(projectionMap);
 
                 qb.setTables(Tables.KEY_RINGS_SECRET);
@@ -637,6 +775,14 @@ public class KeychainProvider extends ContentProvider {
                 qb.appendWhere(Tables.API_ALLOWED_KEYS + "." + ApiAccounts.PACKAGE_NAME + " = ");
                 qb.appendWhereEscapeString(uri.getPathSegments().get(1));
 
+                break;
+            case UPDATED_KEYS:
+                qb.setTables(Tables.UPDATED_KEYS);
+
+                break;
+            case VERIFIED_SIGNATURES:
+                qb.setTables(Tables.VERIFIED_SIGNATURES);
+
                 break;
             default:
                 throw new IllegalArgumentException("Unknown URI " + uri + " (" + match + ")");
@@ -710,7 +856,15 @@ public class KeychainProvider extends ContentProvider {
                     if (((Number)values.get(UserPacketsColumns.RANK)).intValue() == 0 && values.get(UserPacketsColumns.USER_ID) == null) {
                         throw new AssertionError("Rank 0 user packet must be a user id!");
                     }
-                    db.insertOrThrow(Tables.USER_PACKETS, null, values);
+                    if (values.get(UserPacketsColumns.USER_ID) != null) {
+                        values.put(UserPacketsColumns.EMAIL, EmailKeyResolver.extractEmail(
+                                values.getAsString(UserPacketsColumns.USER_ID)));
+                    }
+                    long rowId = db.insertOrThrow(Tables.USER_PACKETS, null, values);
+                    if (values.get(UserPacketsColumns.USER_ID) != null) {
+                        UserIdSearchIndex.insert(db, rowId,
+                                values.getAsString(UserPacketsColumns.USER_ID));
+                    }
                     keyId = values.getAsLong(UserPackets.MASTER_KEY_ID);
                     break;
 
@@ -743,6 +897,18 @@ public class KeychainProvider extends ContentProvider {
                     db.insertOrThrow(Tables.API_ALLOWED_KEYS, null, values);
                     break;
                 }
+                case UPDATED_KEYS:
+                    // only the latest update time is of interest
+                    db.replaceOrThrow(Tables.UPDATED_KEYS, null, values);
+                    // this is bookkeeping only, don't make key lists reload
+                    uri = UpdatedKeys.CONTENT_URI;
+                    break;
+                case VERIFIED_SIGNATURES:
+                    // a digest may already be known from a previous save
+                    db.replaceOrThrow(Tables.VERIFIED_SIGNATURES, null, values);
+                    // this is bookkeeping only, don't make key lists reload
+                    uri = VerifiedSignatures.CONTENT_URI;
+                    break;
                 default:
                     throw new UnsupportedOperationException("Unknown uri: " + uri);
             }
@@ -753,7 +919,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on insert! Entry already existing?", e);
@@ -777,7 +943,38 @@ public class KeychainProvider extends ContentProvider {
         switch (match) {
             // dangerous
             case KEY_RINGS_UNIFIED: {
-                count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                db.beginTransaction();
+                try {
+                    UserIdSearchIndex.clear(db);
+                    db.delete(Tables.VERIFIED_SIGNATURES, null, null);
+                    count = db.delete(Tables.KEY_RINGS_PUBLIC, null, null);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                break;
+            }
+            case KEY_RINGS_PUBLIC: {
+                // bulk delete, a selection is required so this doesn't wipe the database by accident
+                if (TextUtils.isEmpty(additionalSelection)) {
+                    throw new UnsupportedOperationException("Bulk delete requires a selection!");
+                }
+                db.beginTransaction();
+                try {
+                    // certificates made by deleted secret keys can't be verified anymore
+                    db.delete(Tables.CERTS, Certs.KEY_ID_CERTIFIER + " IN ("
+                            + "SELECT " + KeyRingData.MASTER_KEY_ID + " FROM " + Tables.KEY_RINGS_SECRET
+                            + " WHERE " + additionalSelection + ")", selectionArgs);
+                    // the user id index and verification cache aren't covered by ON DELETE CASCADE
+                    UserIdSearchIndex.deleteForKeyRings(db, additionalSelection, selectionArgs);
+                    deleteVerifiedSignatures(db, additionalSelection, selectionArgs);
+                    // corresponding keys and userIds are deleted by ON DELETE CASCADE
+                    count = db.delete(Tables.KEY_RINGS_PUBLIC, additionalSelection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                uri = KeyRings.CONTENT_URI;
                 break;
             }
             case KEY_RING_PUBLIC: {
@@ -786,8 +983,17 @@ public class KeychainProvider extends ContentProvider {
                 if (!TextUtils.isEmpty(additionalSelection)) {
                     selection += " AND (" + additionalSelection + ")";
                 }
-                // corresponding keys and userIds are deleted by ON DELETE CASCADE
-                count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                db.beginTransaction();
+                try {
+                    // the user id index and verification cache aren't covered by ON DELETE CASCADE
+                    UserIdSearchIndex.deleteForKeyRings(db, selection, selectionArgs);
+                    deleteVerifiedSignatures(db, selection, selectionArgs);
+                    // corresponding keys and userIds are deleted by ON DELETE CASCADE
+                    count = db.delete(Tables.KEY_RINGS_PUBLIC, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
                 uri = KeyRings.buildGenericKeyRingUri(uri.getPathSegments().get(1));
                 break;
             }
@@ -819,7 +1025,7 @@ public class KeychainProvider extends ContentProvider {
         }
 
         // notify of changes in db
-        getContext().getContentResolver().notifyChange(uri, null);
+        notifyChange(uri);
 
         return count;
     }
@@ -864,7 +1070,7 @@ public class KeychainProvider extends ContentProvider {
             }
 
             // notify of changes in db
-            getContext().getContentResolver().notifyChange(uri, null);
+            notifyChange(uri);
 
         } catch (SQLiteConstraintException e) {
             Log.d(Constants.TAG, "Constraint exception on update! Entry already existing?", e);
@@ -917,4 +1123,30 @@ public class KeychainProvider extends ContentProvider {
         return ApiAllowedKeys.PACKAGE_NAME + "=" + packageName + andSelection;
     }
 
+    /** Removes the cached signature verifications of all keyrings in keyrings_public
+     * matching the selection. */
+    private static void deleteVerifiedSignatures(SQLiteDatabase db, String selection,
+                                                 String[] selectionArgs) {
+        db.delete(Tables.VERIFIED_SIGNATURES, VerifiedSignatures.MASTER_KEY_ID + " IN ("
+                + "SELECT " + KeyRingData.MASTER_KEY_ID + " FROM " + Tables.KEY_RINGS_PUBLIC
+                + " WHERE " + selection + ")", selectionArgs);
+    }
+
+    /** Returns true while the full text index is still being filled after an upgrade.
+     * Searches must not rely on it until then.
+     */
+    private boolean isSearchIndexPending() {
+        return Preferences.getPreferences(getContext()).isDatabaseBackfillPending();
+    }
+
+    /** Returns an SQL condition on keys.master_key_id, which holds for all keyrings with a
+     * user id satisfying userIdCondition, where the user_packets table is aliased as "up".
+     */
+    private static String buildUserIdExistsCondition(String userIdCondition) {
+        return "EXISTS (SELECT 1 FROM " + Tables.USER_PACKETS + " AS up"
+                + " WHERE up." + UserPackets.MASTER_KEY_ID
+                        + " = " + Tables.KEYS + "." + Keys.MASTER_KEY_ID
+                    + " AND (" + userIdCondition + "))";
+    }
+
 }
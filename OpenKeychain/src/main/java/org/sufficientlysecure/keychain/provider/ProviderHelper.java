@@ -19,12 +19,14 @@
 package org.sufficientlysecure.keychain.provider;
 
 import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.RemoteException;
 import android.support.v4.util.LongSparseArray;
 
@@ -38,6 +40,7 @@ import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.CanonicalizedKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
@@ -46,18 +49,23 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.PgpConstants;
 import org.sufficientlysecure.keychain.pgp.Progressable;
+import org.sufficientlysecure.keychain.pgp.SignatureVerificationCache;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedPublicKey;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
 import org.sufficientlysecure.keychain.pgp.WrappedUserAttribute;
 import org.sufficientlysecure.keychain.pgp.exception.PgpGeneralException;
+import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing.Snapshot;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAllowedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiApps;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Certs;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.KeychainContract.Keys;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UpdatedKeys;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignatures;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.remote.AccountSettings;
 import org.sufficientlysecure.keychain.remote.AppSettings;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -259,6 +267,43 @@ public class ProviderHelper {
         return new CachedPublicKeyRing(this, KeyRings.buildUnifiedKeyRingUri(id));
     }
 
+    /**
+     * Loads snapshots of the keyrings with the given master key ids, all in a single query.
+     *
+     * @return the snapshots by master key id. Keyrings which aren't in the database are missing.
+     */
+    public LongSparseArray<Snapshot> getCachedKeyRingSnapshots(long[] masterKeyIds) {
+        LongSparseArray<Snapshot> result = new LongSparseArray<>(masterKeyIds.length);
+        if (masterKeyIds.length == 0) {
+            return result;
+        }
+
+        StringBuilder selection = new StringBuilder(
+                Tables.KEYS + "." + KeyRings.MASTER_KEY_ID + " IN (");
+        for (int i = 0; i < masterKeyIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(masterKeyIds[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = mContentResolver.query(KeyRings.buildUnifiedKeyRingsUri(),
+                Snapshot.PROJECTION, selection.toString(), null, null);
+        if (cursor == null) {
+            return result;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                Snapshot snapshot = new Snapshot(cursor);
+                result.put(snapshot.getMasterKeyId(), snapshot);
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
     public CanonicalizedPublicKeyRing getCanonicalizedPublicKeyRing(long id) throws NotFoundException {
         return (CanonicalizedPublicKeyRing) getCanonicalizedKeyRing(KeyRings.buildUnifiedKeyRingUri(id), false);
     }
@@ -336,10 +381,14 @@ public class ProviderHelper {
      * This method will not delete all previous data for this masterKeyId from the database prior
      * to inserting. All public data is effectively re-inserted, secret keyrings are left deleted
      * and need to be saved externally to be preserved past the operation.
+     *
+     * Verifications of certificates by trusted keys are looked up in and added to the given
+     * cache, which is saved along with the keyring.
      */
     @SuppressWarnings("unchecked")
     private int saveCanonicalizedPublicKeyRing(CanonicalizedPublicKeyRing keyRing,
-                                               Progressable progress, boolean selfCertsAreTrusted) {
+                                               Progressable progress, boolean selfCertsAreTrusted,
+                                               SignatureVerificationCache verificationCache) {
 
         // start with ok result
         int result = SaveKeyringResult.SAVED_PUBLIC;
@@ -361,7 +410,11 @@ public class ProviderHelper {
                 ContentValues values = new ContentValues();
                 values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
                 try {
-                    values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                    byte[] encoded = keyRing.getEncoded();
+                    byte[] digest = CanonicalizedKeyRing.getDigest(encoded);
+                    values.put(KeyRingData.KEY_RING_DATA, encoded);
+                    values.put(KeyRingData.DIGEST, digest);
+                    values.put(KeyRingData.EXPORT_CHECKSUM, keyRing.isExportable() ? digest : null);
                 } catch (IOException e) {
                     log(LogType.MSG_IP_ENCODE_FAIL);
                     return SaveKeyringResult.RESULT_ERROR;
@@ -493,7 +546,7 @@ public class ProviderHelper {
                     CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
-                        cert.init(trustedKey);
+                        cert.init(trustedKey, verificationCache);
                         // if it doesn't certify, leave a note and skip
                         if (!cert.verifySignature(masterKey, rawUserId)) {
                             log(LogType.MSG_IP_UID_CERT_BAD);
@@ -593,7 +646,7 @@ public class ProviderHelper {
                     CanonicalizedPublicKey trustedKey = trustedKeys.get(certId);
 
                     try {
-                        cert.init(trustedKey);
+                        cert.init(trustedKey, verificationCache);
                         // if it doesn't certify, leave a note and skip
                         if (!cert.verifySignature(masterKey, userAttribute)) {
                             log(LogType.MSG_IP_UAT_CERT_BAD);
@@ -685,20 +738,26 @@ public class ProviderHelper {
         }
 
         try {
-            // delete old version of this keyRing, which also deletes all keys and userIds on cascade
-            int deleted = mContentResolver.delete(
-                    KeyRingData.buildPublicKeyRingUri(masterKeyId), null, null);
-            if (deleted > 0) {
+            // delete old version of this keyRing, which also deletes all keys and userIds on
+            // cascade. this is part of the batch, so readers never see the keyring missing
+            operations.add(0, ContentProviderOperation.newDelete(
+                    KeyRingData.buildPublicKeyRingUri(masterKeyId)).build());
+            // the delete drops cached verifications as well, keep those still in use
+            operations.addAll(buildVerificationCacheOperations(masterKeyId,
+                    verificationCache.getUsed()));
+
+            log(LogType.MSG_IP_APPLY_BATCH);
+            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
+            ContentProviderResult[] results =
+                    mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+
+            if (results[0].count != null && results[0].count > 0) {
                 log(LogType.MSG_IP_DELETE_OLD_OK);
                 result |= SaveKeyringResult.UPDATED;
             } else {
                 log(LogType.MSG_IP_DELETE_OLD_FAIL);
             }
 
-            log(LogType.MSG_IP_APPLY_BATCH);
-            progress.setProgress(LogType.MSG_IP_APPLY_BATCH.getMsgId(), 75, 100);
-            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
-
             log(LogType.MSG_IP_SUCCESS);
             progress.setProgress(LogType.MSG_IP_SUCCESS.getMsgId(), 90, 100);
             return result;
@@ -764,7 +823,11 @@ public class ProviderHelper {
             try {
                 ContentValues values = new ContentValues();
                 values.put(KeyRingData.MASTER_KEY_ID, masterKeyId);
-                values.put(KeyRingData.KEY_RING_DATA, keyRing.getEncoded());
+                byte[] encoded = keyRing.getEncoded();
+                byte[] digest = CanonicalizedKeyRing.getDigest(encoded);
+                values.put(KeyRingData.KEY_RING_DATA, encoded);
+                values.put(KeyRingData.DIGEST, digest);
+                values.put(KeyRingData.EXPORT_CHECKSUM, keyRing.isExportable() ? digest : null);
                 // insert new version of this keyRing
                 Uri uri = KeyRingData.buildSecretKeyRingUri(masterKeyId);
                 if (mContentResolver.insert(uri, values) == null) {
@@ -843,6 +906,66 @@ public class ProviderHelper {
 
     }
 
+    /** Returns true if the stored keyring at the given uri has exactly the given encoding,
+     * going by its digest. This doesn't need to load or parse the stored keyring.
+     */
+    private boolean isStoredKeyRing(Uri keyRingUri, UncachedKeyRing keyRing) throws IOException {
+        try {
+            byte[] storedDigest = (byte[]) getGenericData(keyRingUri, KeyRingData.DIGEST,
+                    FIELD_TYPE_BLOB);
+            return Arrays.equals(storedDigest, CanonicalizedKeyRing.getDigest(keyRing.getEncoded()));
+        } catch (NotFoundException e) {
+            // no such keyring, or stored before digests were
+            return false;
+        }
+    }
+
+    /** Loads the verifications of signatures known to be good for a keyring. */
+    private SignatureVerificationCache loadVerificationCache(long masterKeyId) {
+        ArrayList<byte[]> digests = new ArrayList<>();
+        Cursor cursor = mContentResolver.query(VerifiedSignatures.CONTENT_URI,
+                new String[] { VerifiedSignatures.DIGEST },
+                VerifiedSignatures.MASTER_KEY_ID + " = ?",
+                new String[] { Long.toString(masterKeyId) }, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    digests.add(cursor.getBlob(0));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+        return new SignatureVerificationCache(digests);
+    }
+
+    private ArrayList<ContentProviderOperation> buildVerificationCacheOperations(
+            long masterKeyId, List<byte[]> digests) {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        for (byte[] digest : digests) {
+            operations.add(ContentProviderOperation.newInsert(VerifiedSignatures.CONTENT_URI)
+                    .withValue(VerifiedSignatures.MASTER_KEY_ID, masterKeyId)
+                    .withValue(VerifiedSignatures.DIGEST, digest)
+                    .build());
+        }
+        return operations;
+    }
+
+    /** Saves new verifications from the cache, if the keyring itself isn't saved. */
+    private void saveVerificationCache(long masterKeyId, SignatureVerificationCache verificationCache) {
+        ArrayList<ContentProviderOperation> operations =
+                buildVerificationCacheOperations(masterKeyId, verificationCache.getAdded());
+        if (operations.isEmpty()) {
+            return;
+        }
+        try {
+            mContentResolver.applyBatch(KeychainContract.CONTENT_AUTHORITY, operations);
+        } catch (RemoteException | OperationApplicationException e) {
+            // not a problem, these are just verified again next time
+            Log.e(Constants.TAG, "Error saving signature verifications", e);
+        }
+    }
+
     public SaveKeyringResult savePublicKeyRing(UncachedKeyRing keyRing) {
         return savePublicKeyRing(keyRing, new ProgressScaler());
     }
@@ -865,7 +988,14 @@ public class ProviderHelper {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
+            // Early breakout if this is exactly the keyring we have, as on most refreshes
+            if (isStoredKeyRing(KeyRingData.buildPublicKeyRingUri(masterKeyId), publicRing)) {
+                log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+            }
+
             CanonicalizedPublicKeyRing canPublicRing;
+            SignatureVerificationCache verificationCache = loadVerificationCache(masterKeyId);
 
             // If there is an old keyring, merge it
             try {
@@ -881,22 +1011,24 @@ public class ProviderHelper {
                 }
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false, verificationCache);
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
-                // Early breakout if nothing changed
-                if (Arrays.hashCode(publicRing.getEncoded())
-                        == Arrays.hashCode(oldPublicRing.getEncoded())) {
+                // Early breakout if nothing changed. merge returns the old keyring itself if it
+                // added nothing, which saves encoding both
+                if (publicRing == oldPublicRing
+                        || Arrays.equals(publicRing.getEncoded(), oldPublicRing.getEncoded())) {
                     log(LogType.MSG_IP_SUCCESS_IDENTICAL);
+                    saveVerificationCache(masterKeyId, verificationCache);
                     return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
                 }
             } catch (NotFoundException e) {
                 // Not an issue, just means we are dealing with a new keyring.
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
-                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+                canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false, verificationCache);
                 if (canPublicRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -915,7 +1047,7 @@ public class ProviderHelper {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
                 // This has always been a secret key ring, this is a safe cast
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, verificationCache);
                 if (canSecretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
@@ -925,7 +1057,8 @@ public class ProviderHelper {
                 canSecretRing = null;
             }
 
-            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, canSecretRing != null);
+            int result = saveCanonicalizedPublicKeyRing(canPublicRing, progress,
+                    canSecretRing != null, verificationCache);
 
             // Save the saved keyring (if any)
             if (canSecretRing != null) {
@@ -959,7 +1092,15 @@ public class ProviderHelper {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
+            // Early breakout if this is exactly the keyring we have
+            if (isStoredKeyRing(KeyRingData.buildSecretKeyRingUri(masterKeyId), secretRing)) {
+                log(LogType.MSG_IS_SUCCESS_IDENTICAL,
+                        KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
+            }
+
             CanonicalizedSecretKeyRing canSecretRing;
+            SignatureVerificationCache verificationCache = loadVerificationCache(masterKeyId);
 
             // If there is an old secret key, merge it.
             try {
@@ -976,16 +1117,16 @@ public class ProviderHelper {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, verificationCache);
                 if (canSecretRing == null) {
                     return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
                 }
 
                 // Early breakout if nothing changed
-                if (Arrays.hashCode(secretRing.getEncoded())
-                        == Arrays.hashCode(oldSecretRing.getEncoded())) {
+                if (Arrays.equals(secretRing.getEncoded(), oldSecretRing.getEncoded())) {
                     log(LogType.MSG_IS_SUCCESS_IDENTICAL,
                             KeyFormattingUtils.convertKeyIdToHex(masterKeyId));
+                    saveVerificationCache(masterKeyId, verificationCache);
                     return new SaveKeyringResult(SaveKeyringResult.UPDATED, mLog, null);
                 }
             } catch (NotFoundException e) {
@@ -993,7 +1134,7 @@ public class ProviderHelper {
 
                 // Canonicalize this keyring, to assert a number of assumptions made about it.
                 // This is a safe cast, because we made sure this is a secret ring above
-                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, verificationCache);
                 if (canSecretRing == null) {
 
                     // Special case: If keyring canonicalization failed, try again after adding
@@ -1002,7 +1143,7 @@ public class ProviderHelper {
                         log(LogType.MSG_IS_MERGE_SPECIAL);
                         UncachedKeyRing oldPublicRing = getCanonicalizedPublicKeyRing(masterKeyId).getUncachedKeyRing();
                         secretRing = secretRing.merge(oldPublicRing, mLog, mIndent);
-                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent);
+                        canSecretRing = (CanonicalizedSecretKeyRing) secretRing.canonicalize(mLog, mIndent, false, verificationCache);
                     } catch (NotFoundException e2) {
                         // nothing, this is handled right in the next line
                     }
@@ -1031,14 +1172,14 @@ public class ProviderHelper {
                 publicRing = secretRing.extractPublicKeyRing();
             }
 
-            CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent);
+            CanonicalizedPublicKeyRing canPublicRing = (CanonicalizedPublicKeyRing) publicRing.canonicalize(mLog, mIndent, false, verificationCache);
             if (canPublicRing == null) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
 
             int result;
 
-            result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true);
+            result = saveCanonicalizedPublicKeyRing(canPublicRing, progress, true, verificationCache);
             if ((result & SaveKeyringResult.RESULT_ERROR) == SaveKeyringResult.RESULT_ERROR) {
                 return new SaveKeyringResult(SaveKeyringResult.RESULT_ERROR, mLog, null);
             }
@@ -1057,6 +1198,51 @@ public class ProviderHelper {
 
     }
 
+    /**
+     * Deletes the keyrings with the given master key ids, with all their keys, user ids and
+     * certificates, in a single transaction.
+     *
+     * Cached signature verifications of the deleted keyrings are dropped as well.
+     * Certificates made by deleted secret keys on the remaining keyrings are deleted as
+     * well. They are no longer verified, and would not have been stored in the first place
+     * without the secret key, so there is no need to consolidate the database.
+     *
+     * @return the master key ids of the keyrings which were found and deleted
+     */
+    public HashSet<Long> deleteKeyRings(long[] masterKeyIds) {
+        HashSet<Long> deleted = new HashSet<>();
+        if (masterKeyIds.length == 0) {
+            return deleted;
+        }
+
+        StringBuilder selection = new StringBuilder(KeyRingData.MASTER_KEY_ID + " IN (");
+        for (int i = 0; i < masterKeyIds.length; i++) {
+            if (i > 0) {
+                selection.append(',');
+            }
+            selection.append(masterKeyIds[i]);
+        }
+        selection.append(')');
+
+        Cursor cursor = mContentResolver.query(KeyRingData.buildPublicKeyRingUri(),
+                new String[]{ KeyRingData.MASTER_KEY_ID }, selection.toString(), null, null);
+        if (cursor == null) {
+            return deleted;
+        }
+        try {
+            while (cursor.moveToNext()) {
+                deleted.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (!deleted.isEmpty()) {
+            mContentResolver.delete(KeyRingData.buildPublicKeyRingUri(), selection.toString(), null);
+        }
+        return deleted;
+    }
+
     public ConsolidateResult consolidateDatabaseStep1(Progressable progress) {
 
         OperationLog log = new OperationLog();
@@ -1389,6 +1575,20 @@ public class ProviderHelper {
         return getKeyRingAsArmoredString(data);
     }
 
+    /**
+     * Records that a key was just refreshed from a keyserver, so the background
+     * key refresh doesn't pick it up again before the next refresh period.
+     *
+     * @param time time of refresh in seconds since epoch
+     */
+    public void renewKeyLastUpdatedTime(long masterKeyId, long time) {
+        ContentValues values = new ContentValues();
+        values.put(UpdatedKeys.MASTER_KEY_ID, masterKeyId);
+        values.put(UpdatedKeys.LAST_UPDATED, time);
+
+        mContentResolver.insert(UpdatedKeys.CONTENT_URI, values);
+    }
+
     public ArrayList<String> getRegisteredApiApps() {
         Cursor cursor = mContentResolver.query(ApiApps.CONTENT_URI, null, null, null, null);
 
@@ -1574,6 +1774,21 @@ public class ProviderHelper {
         }
     }
 
+    /** Checkpoints the write-ahead log of the database, see KeychainDatabase#checkpoint. */
+    public void checkpoint() {
+        mContentResolver.call(KeyRings.CONTENT_URI, KeychainContract.METHOD_CHECKPOINT, null, null);
+    }
+
+    /** Runs one step of pending database backfills, see KeychainDatabase#backfillStep.
+     *
+     * @return the row id to pass to the next step, or -1 if the backfill is complete
+     */
+    public long backfillStep(long afterRowId) {
+        Bundle result = mContentResolver.call(KeyRings.CONTENT_URI,
+                KeychainContract.METHOD_BACKFILL, Long.toString(afterRowId), null);
+        return result.getLong(KeychainContract.EXTRA_BACKFILL_ROW_ID);
+    }
+
     public ContentResolver getContentResolver() {
         return mContentResolver;
     }
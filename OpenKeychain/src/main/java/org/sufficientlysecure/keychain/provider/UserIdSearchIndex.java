@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+
+import java.util.ArrayList;
+
+/** Full text index of user ids, for token and prefix search.
+ *
+ * The index is an FTS4 table with one row per user id, split into name, email and comment.
+ * Its docid is the rowid of the user id in the user_packets table, so results can be
+ * joined back from there. FTS tables don't take part in foreign key cascades, so
+ * KeychainProvider removes index rows explicitly before keyrings are deleted.
+ *
+ * Search queries are split into tokens the same way as by the "simple" tokenizer, i.e.
+ * at all ASCII characters which are not letters or digits. Each token is quoted, so
+ * user input can never be interpreted as FTS query syntax.
+ */
+class UserIdSearchIndex {
+
+    static final String NAME = "name";
+    static final String EMAIL = "email";
+    static final String COMMENT = "comment";
+
+    static final String CREATE_USER_IDS_FTS =
+            "CREATE VIRTUAL TABLE IF NOT EXISTS " + Tables.USER_IDS_FTS + " USING fts4("
+                + NAME + ", " + EMAIL + ", " + COMMENT
+            + ")";
+
+    private UserIdSearchIndex() {
+    }
+
+    /** Adds a user id to the index, under the rowid of its user packet. */
+    static void insert(SQLiteDatabase db, long userPacketRowId, String userId) {
+        KeyRing.UserId split = KeyRing.splitUserId(userId);
+        ContentValues values = new ContentValues();
+        values.put("docid", userPacketRowId);
+        values.put(NAME, split.name);
+        values.put(EMAIL, split.email);
+        values.put(COMMENT, split.comment);
+        db.insertOrThrow(Tables.USER_IDS_FTS, null, values);
+    }
+
+    /** Removes the user ids of all keyrings in keyrings_public matching the selection. */
+    static void deleteForKeyRings(SQLiteDatabase db, String selection, String[] selectionArgs) {
+        db.delete(Tables.USER_IDS_FTS, "docid IN ("
+                + "SELECT oid FROM " + Tables.USER_PACKETS
+                + " WHERE " + UserPackets.MASTER_KEY_ID + " IN ("
+                    + "SELECT " + UserPackets.MASTER_KEY_ID + " FROM " + Tables.KEY_RINGS_PUBLIC
+                    + " WHERE " + selection
+                + "))", selectionArgs);
+    }
+
+    static void clear(SQLiteDatabase db) {
+        db.delete(Tables.USER_IDS_FTS, null, null);
+    }
+
+    /** Indexes user ids which are not in the index yet, e.g. after the index was created
+     * for an existing database, and fills in the email column of user packets which were
+     * stored before it existed. At most chunkSize user packets are checked, in order of
+     * their rowid, in one transaction.
+     *
+     * @return the last rowid that was checked, or -1 if there are no more user packets
+     */
+    static long backfill(SQLiteDatabase db, long afterRowId, int chunkSize) {
+        long lastRowId = -1;
+        db.beginTransactionNonExclusive();
+        try {
+            Cursor cursor = db.rawQuery("SELECT up.oid, up." + UserPackets.USER_ID
+                    + ", up." + UserPackets.EMAIL + " IS NULL"
+                    + " FROM " + Tables.USER_PACKETS + " AS up"
+                    + " WHERE up.oid > ? ORDER BY up.oid LIMIT " + chunkSize,
+                    new String[] { Long.toString(afterRowId) });
+            try {
+                while (cursor.moveToNext()) {
+                    lastRowId = cursor.getLong(0);
+                    if (cursor.isNull(1)) {
+                        continue;
+                    }
+                    String userId = cursor.getString(1);
+                    if (!isIndexed(db, lastRowId)) {
+                        insert(db, lastRowId, userId);
+                    }
+                    if (cursor.getInt(2) != 0) {
+                        updateEmail(db, lastRowId, userId);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return lastRowId;
+    }
+
+    private static void updateEmail(SQLiteDatabase db, long userPacketRowId, String userId) {
+        String email = EmailKeyResolver.extractEmail(userId);
+        if (email == null) {
+            return;
+        }
+        ContentValues values = new ContentValues();
+        values.put(UserPackets.EMAIL, email);
+        db.update(Tables.USER_PACKETS, values, "oid = ?",
+                new String[] { Long.toString(userPacketRowId) });
+    }
+
+    private static boolean isIndexed(SQLiteDatabase db, long userPacketRowId) {
+        return DatabaseUtils.longForQuery(db, "SELECT COUNT(*) FROM " + Tables.USER_IDS_FTS
+                + " WHERE docid = ?", new String[] { Long.toString(userPacketRowId) }) > 0;
+    }
+
+    /** Splits a string into tokens, at the same boundaries as the simple tokenizer. */
+    static ArrayList<String> tokenize(String text) {
+        ArrayList<String> tokens = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean tokenChar = i < text.length() && isTokenChar(text.charAt(i));
+            if (tokenChar && start < 0) {
+                start = i;
+            } else if (!tokenChar && start >= 0) {
+                tokens.add(text.substring(start, i));
+                start = -1;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isTokenChar(char c) {
+        // the simple tokenizer treats all non-ascii characters as part of tokens
+        return c >= 0x80 || (c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    /** Builds a MATCH expression which finds user ids containing all tokens of the query,
+     * each as a prefix of some token in the user id.
+     *
+     * @return the expression, or null if the query contains no tokens
+     */
+    static String buildPrefixMatch(String query) {
+        ArrayList<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String token : tokens) {
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(token).append("*\"");
+        }
+        return match.toString();
+    }
+
+    /** Builds a LIKE condition on up.user_id, which holds for user ids containing all tokens
+     * of the query. This doesn't need the index, and is used until it has been backfilled.
+     *
+     * @return the condition, or null if the query contains no tokens
+     */
+    static String buildLikeCondition(String query) {
+        ArrayList<String> tokens = tokenize(query);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder condition = new StringBuilder();
+        for (String token : tokens) {
+            if (condition.length() > 0) {
+                condition.append(" AND ");
+            }
+            // tokens consist of letters and digits only, which are never LIKE wildcards
+            condition.append("up.").append(UserPackets.USER_ID).append(" LIKE ")
+                    .append(DatabaseUtils.sqlEscapeString("%" + token + "%"));
+        }
+        return condition.toString();
+    }
+
+    /** Builds a MATCH expression which finds user ids containing the tokens of the given
+     * email address as a phrase. This is a superset of exact matches, which must be checked
+     * separately.
+     *
+     * @return the expression, or null if the email contains no tokens
+     */
+    static String buildEmailMatch(String email) {
+        ArrayList<String> tokens = tokenize(email);
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder("\"");
+        for (int i = 0; i < tokens.size(); i++) {
+            if (i > 0) {
+                match.append(' ');
+            }
+            match.append(tokens.get(i));
+        }
+        return match.append('"').toString();
+    }
+
+    /** Returns an SQL condition on keys.master_key_id, which holds for all keyrings with a
+     * user id matching the expression. If userIdCondition is given, the user id must also
+     * satisfy it, where the user_packets table is aliased as "up".
+     *
+     * @param matchColumn the column to match, or null to match all columns
+     */
+    static String buildMasterKeyIdCondition(String matchColumn, String matchExpression,
+                                            String userIdCondition) {
+        if (matchColumn == null) {
+            // matching on the table name matches all columns
+            matchColumn = Tables.USER_IDS_FTS;
+        }
+        return Tables.KEYS + "." + UserPackets.MASTER_KEY_ID + " IN ("
+                + "SELECT up." + UserPackets.MASTER_KEY_ID + " FROM " + Tables.USER_PACKETS + " AS up"
+                + " WHERE up.oid IN ("
+                    + "SELECT docid FROM " + Tables.USER_IDS_FTS
+                    + " WHERE " + matchColumn + " MATCH "
+                        + DatabaseUtils.sqlEscapeString(matchExpression)
+                + ")"
+                + (userIdCondition != null ? " AND (" + userIdCondition + ")" : "")
+            + ")";
+    }
+
+}
@@ -20,8 +20,6 @@ package org.sufficientlysecure.keychain.remote;
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
 import android.os.IBinder;
 import android.os.ParcelFileDescriptor;
 import android.text.TextUtils;
@@ -42,10 +40,11 @@ import org.sufficientlysecure.keychain.pgp.PgpDecryptVerifyInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptInputParcel;
 import org.sufficientlysecure.keychain.pgp.PgpSignEncryptOperation;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
+import org.sufficientlysecure.keychain.provider.EmailKeyResolver;
+import org.sufficientlysecure.keychain.provider.EmailKeyResolver.EmailStatus;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.ApiAccounts;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
-import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.remote.ui.RemoteServiceActivity;
 import org.sufficientlysecure.keychain.remote.ui.SelectAllowedKeysActivity;
@@ -65,19 +64,20 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 
 public class OpenPgpService extends RemoteService {
 
-    static final String[] EMAIL_SEARCH_PROJECTION = new String[]{
-            KeyRings._ID,
-            KeyRings.MASTER_KEY_ID,
-            KeyRings.IS_EXPIRED,
-            KeyRings.IS_REVOKED,
-    };
+    /**
+     * ACTION_DECRYPT_METADATA: set to false to only list the recipients, without unlocking
+     * any secret key. No user interaction is required then, but no metadata is returned.
+     */
+    public static final String EXTRA_DECRYPT_SESSION_KEY = "decrypt_session_key";
 
-    // do not pre-select revoked or expired keys
-    static final String EMAIL_SEARCH_WHERE = Tables.KEYS + "." + KeychainContract.KeyRings.IS_REVOKED
-            + " = 0 AND " + KeychainContract.KeyRings.IS_EXPIRED + " = 0";
+    // results of ACTION_DECRYPT_METADATA, in addition to RESULT_METADATA
+    public static final String RESULT_RECIPIENT_KEY_IDS = "recipient_key_ids";
+    public static final String RESULT_DECRYPTABLE = "decryptable";
+    public static final String RESULT_SIGNATURE_KEY_ID = "signature_key_id";
 
     /**
      * Search database for key ids based on emails.
@@ -91,35 +91,36 @@ public class OpenPgpService extends RemoteService {
         ArrayList<String> missingUserIds = new ArrayList<>();
         ArrayList<String> duplicateUserIds = new ArrayList<>();
         if (!noUserIdsCheck) {
-            for (String email : encryptionUserIds) {
-                // try to find the key for this specific email
-                Uri uri = KeyRings.buildUnifiedKeyRingsFindByEmailUri(email);
-                Cursor cursor = getContentResolver().query(uri, EMAIL_SEARCH_PROJECTION, EMAIL_SEARCH_WHERE, null, null);
-                try {
-                    // result should be one entry containing the key id
-                    if (cursor != null && cursor.moveToFirst()) {
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
-                        keyIds.add(id);
-                    } else {
-                        missingUserIdsCheck = true;
-                        missingUserIds.add(email);
-                        Log.d(Constants.TAG, "user id missing");
-                    }
-                    // another entry for this email -> too keys with the same email inside user id
-                    if (cursor != null && cursor.moveToNext()) {
-                        duplicateUserIdsCheck = true;
-                        duplicateUserIds.add(email);
+            // resolve all emails at once, results are cached per account
+            String accName = data.getStringExtra(OpenPgpApi.EXTRA_ACCOUNT_NAME);
+            if (TextUtils.isEmpty(accName)) {
+                accName = "default";
+            }
+            List<EmailStatus> statuses = EmailKeyResolver.getInstance(this)
+                    .resolve(getCurrentCallingPackage() + ":" + accName, encryptionUserIds);
 
-                        // also pre-select
-                        long id = cursor.getLong(cursor.getColumnIndex(KeyRings.MASTER_KEY_ID));
+            for (int i = 0; i < encryptionUserIds.length; i++) {
+                String email = encryptionUserIds[i];
+                EmailStatus status = statuses.get(i);
+                // revoked or expired keys are not pre-selected
+                for (long id : status.getMasterKeyIds()) {
+                    if (!keyIds.contains(id)) {
                         keyIds.add(id);
-                        Log.d(Constants.TAG, "more than one user id with the same email");
-                    }
-                } finally {
-                    if (cursor != null) {
-                        cursor.close();
                     }
                 }
+                if (status.isMissing()) {
+                    missingUserIdsCheck = true;
+                    missingUserIds.add(email);
+                    Log.d(Constants.TAG, "user id missing"
+                            + (status.hasRevoked() ? ", found a revoked key" : "")
+                            + (status.hasExpired() ? ", found an expired key" : ""));
+                }
+                // more than one key with the same email inside user id
+                if (status.isDuplicate()) {
+                    duplicateUserIdsCheck = true;
+                    duplicateUserIds.add(email);
+                    Log.d(Constants.TAG, "more than one user id with the same email");
+                }
             }
         }
 
@@ -536,6 +537,8 @@ public class OpenPgpService extends RemoteService {
                 .setAllowSymmetricDecryption(false)
                 .setAllowedKeyIds(allowedKeyIds)
                 .setDecryptMetadataOnly(decryptMetadataOnly)
+                .setSkipSessionKeyDecryption(decryptMetadataOnly
+                        && !data.getBooleanExtra(EXTRA_DECRYPT_SESSION_KEY, true))
                 .setDetachedSignature(detachedSignature);
 
             DecryptVerifyResult pgpResult = op.execute(input, cryptoInput, inputData, outputStream);
@@ -598,6 +601,14 @@ public class OpenPgpService extends RemoteService {
                     result.putExtra(OpenPgpApi.RESULT_CHARSET, charset);
                 }
 
+                if (decryptMetadataOnly) {
+                    result.putExtra(RESULT_RECIPIENT_KEY_IDS, pgpResult.getRecipientKeyIds());
+                    result.putExtra(RESULT_DECRYPTABLE, pgpResult.isDecryptable());
+                    if (pgpResult.getSignatureKeyId() != 0) {
+                        result.putExtra(RESULT_SIGNATURE_KEY_ID, pgpResult.getSignatureKeyId());
+                    }
+                }
+
                 result.putExtra(OpenPgpApi.RESULT_CODE, OpenPgpApi.RESULT_CODE_SUCCESS);
                 return result;
             } else {
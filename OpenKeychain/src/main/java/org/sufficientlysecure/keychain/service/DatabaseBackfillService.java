@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.IntentService;
+import android.content.Intent;
+import android.os.Process;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/**
+ * Backfills data after a database upgrade, for migrations which don't need a full
+ * consolidate. This runs at low priority in small chunks, so the app stays usable
+ * in the meantime. Started by the upgrade, and on app start if it was interrupted.
+ */
+public class DatabaseBackfillService extends IntentService {
+
+    public DatabaseBackfillService() {
+        super("DatabaseBackfillService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Preferences preferences = Preferences.getPreferences(this);
+        if (!preferences.isDatabaseBackfillPending()) {
+            return;
+        }
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+
+        ProviderHelper providerHelper = new ProviderHelper(this);
+        long rowId = 0;
+        int steps = 0;
+        while ((rowId = providerHelper.backfillStep(rowId)) >= 0) {
+            steps += 1;
+        }
+
+        Log.d(Constants.TAG, "database backfill complete after " + steps + " steps");
+        preferences.setDatabaseBackfillPending(false);
+    }
+
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.IntentService;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import android.os.Process;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.pgp.KeyPairPool;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Fills the KeyPairPool with pre-generated key pairs, at low priority and only while
+ * the device is charging. Started on app start and whenever power is connected. The
+ * pool only lives in memory, so it has to be filled again in every new process.
+ */
+public class KeyPoolService extends IntentService {
+
+    public KeyPoolService() {
+        super("KeyPoolService");
+    }
+
+    public static class PowerConnectedReceiver extends BroadcastReceiver {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (Preferences.getPreferences(context).isKeyPoolEnabled()) {
+                context.startService(new Intent(context, KeyPoolService.class));
+            }
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        KeyPairPool pool = KeyPairPool.getInstance();
+        if (!Preferences.getPreferences(this).isKeyPoolEnabled()) {
+            pool.clear();
+            return;
+        }
+
+        Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
+        try {
+            // check before every key pair, the device may be unplugged any time
+            while (isCharging() && pool.fillOne()) {
+                Log.d(Constants.TAG, "key pool: " + pool.getDepth(KeyPairPool.DEFAULT_SPEC)
+                        + " default key pairs available, average generation time "
+                        + pool.getAverageGenerationMillis(KeyPairPool.DEFAULT_SPEC) + "ms");
+            }
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(Constants.TAG, "could not generate key pair for pool", e);
+        }
+    }
+
+    private boolean isCharging() {
+        // ACTION_BATTERY_CHANGED is sticky, no receiver needed to get the current state
+        Intent battery = registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        return battery != null && battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+    }
+
+}
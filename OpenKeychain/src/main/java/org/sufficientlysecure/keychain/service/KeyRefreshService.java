@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.service;
+
+import android.app.IntentService;
+import android.content.Context;
+import android.content.Intent;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.operations.KeyRefreshOperation;
+import org.sufficientlysecure.keychain.operations.results.ImportKeyResult;
+import org.sufficientlysecure.keychain.provider.ProviderHelper;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+/**
+ * Started periodically by the alarm set up in KeyUpdateHelper, refreshes one slice
+ * of keys from the preferred keyserver.
+ */
+public class KeyRefreshService extends IntentService {
+
+    public KeyRefreshService() {
+        super("KeyRefreshService");
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        Preferences prefs = Preferences.getPreferences(this);
+        if (!prefs.isKeyRefreshEnabled()) {
+            KeyUpdateHelper.scheduleKeyRefresh(this);
+            return;
+        }
+
+        ConnectivityManager connectivityManager =
+                (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+        if (networkInfo == null || !networkInfo.isConnected()) {
+            Log.d(Constants.TAG, "No network connection, skipping key refresh");
+            return;
+        }
+
+        long periodMillis = prefs.getKeyRefreshPeriodDays() * 24 * 60 * 60 * 1000L;
+        KeyRefreshOperation op = new KeyRefreshOperation(this, new ProviderHelper(this), null, null);
+        ImportKeyResult result = op.refresh(prefs.getPreferredKeyserver(), periodMillis,
+                KeyUpdateHelper.RUN_INTERVAL_MILLIS);
+
+        Log.d(Constants.TAG, "Key refresh finished, updated keys: " + result.mUpdatedKeys);
+        if (result.mUpdatedKeys > 0) {
+            ContactSyncAdapterService.requestSync();
+        }
+    }
+
+}
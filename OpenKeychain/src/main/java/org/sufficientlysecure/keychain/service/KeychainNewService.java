@@ -42,15 +42,22 @@ import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.SignEncryptParcel;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.CertifyActionsParcel.CertifyAction;
+import org.sufficientlysecure.keychain.service.OperationScheduler.ScheduledOperation;
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler.MessageStatus;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.ProgressCoalescer;
 
 /**
  * This Service contains all important long lasting operations for OpenKeychain. It receives Intents with
- * data from the activities or other apps, executes them, and stops itself after doing them.
+ * data from the activities or other apps, and executes them using the shared OperationScheduler.
+ *
+ * Each operation is identified by the messenger it reports to. An Intent with ACTION_CANCEL and
+ * the same messenger cancels it.
  */
-public class KeychainNewService extends Service implements Progressable {
+public class KeychainNewService extends Service {
+
+    public static final String ACTION_CANCEL = Constants.INTENT_PREFIX + "CANCEL";
 
     // messenger for communication (hack)
     public static final String EXTRA_MESSENGER = "messenger";
@@ -59,36 +66,50 @@ public class KeychainNewService extends Service implements Progressable {
     public static final String EXTRA_OPERATION_INPUT = "op_input";
     public static final String EXTRA_CRYPTO_INPUT = "crypto_input";
 
-    // this attribute can possibly merged with the one above? not sure...
-    private AtomicBoolean mActionCanceled = new AtomicBoolean(false);
-
-    ThreadLocal<Messenger> mMessenger = new ThreadLocal<>();
-
     @Override
     public IBinder onBind(Intent intent) {
         return null;
     }
 
     /**
-     * This is run on the main thread, we need to spawn a runnable which runs on another thread for the actual operation
+     * This is run on the main thread, the actual operation is scheduled to run on another thread
      */
     @Override
-    public int onStartCommand(final Intent intent, int flags, int startId) {
+    public int onStartCommand(Intent intent, int flags, int startId) {
 
-        Runnable actionRunnable = new Runnable() {
-            @Override
-            public void run() {
-                // We have not been cancelled! (yet)
-                mActionCanceled.set(false);
+        Bundle extras = intent.getExtras();
+        if (extras == null) {
+            Log.e(Constants.TAG, "Extras bundle is null!");
+            return START_NOT_STICKY;
+        }
 
-                Bundle extras = intent.getExtras();
+        final Messenger messenger = extras.getParcelable(EXTRA_MESSENGER);
+        // without a messenger, the operation can't be cancelled
+        Object tag = messenger != null ? messenger : new Object();
 
-                // Set messenger for communication (for this particular thread)
-                mMessenger.set(extras.<Messenger>getParcelable(EXTRA_MESSENGER));
+        if (ACTION_CANCEL.equals(intent.getAction())) {
+            if (!OperationScheduler.getInstance().cancel(tag)) {
+                Log.d(Constants.TAG, "No operation to cancel, it may have finished already");
+            }
+            return START_NOT_STICKY;
+        }
 
-                // Input
-                Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
-                CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
+        // Input
+        final Parcelable inputParcel = extras.getParcelable(EXTRA_OPERATION_INPUT);
+        final CryptoInputParcel cryptoInput = extras.getParcelable(EXTRA_CRYPTO_INPUT);
+
+        // the user is waiting for messages to be processed, key management can take a back seat
+        int priority = inputParcel instanceof SignEncryptParcel
+                || inputParcel instanceof PgpDecryptVerifyInputParcel
+                ? OperationScheduler.PRIORITY_INTERACTIVE : OperationScheduler.PRIORITY_BACKGROUND;
+
+        OperationScheduler.getInstance().submit(tag, priority, new ScheduledOperation() {
+            @Override
+            public void run(AtomicBoolean cancelled) {
+
+                OperationProgress operationProgress = new OperationProgress(messenger);
+                // don't flood the handler with messages, it only needs to keep the dialog current
+                Progressable progressable = new ProgressCoalescer(operationProgress);
 
                 // Operation
                 BaseOperation op;
@@ -96,13 +117,13 @@ public class KeychainNewService extends Service implements Progressable {
                 // just for brevity
                 KeychainNewService outerThis = KeychainNewService.this;
                 if (inputParcel instanceof SignEncryptParcel) {
-                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new SignEncryptOperation(outerThis, new ProviderHelper(outerThis), progressable, cancelled);
                 } else if (inputParcel instanceof PgpDecryptVerifyInputParcel) {
-                    op = new PgpDecryptVerify(outerThis, new ProviderHelper(outerThis), outerThis);
+                    op = new PgpDecryptVerify(outerThis, new ProviderHelper(outerThis), progressable);
                 } else if (inputParcel instanceof SaveKeyringParcel) {
-                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new EditKeyOperation(outerThis, new ProviderHelper(outerThis), progressable, cancelled);
                 } else if (inputParcel instanceof CertifyAction) {
-                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), outerThis, mActionCanceled);
+                    op = new CertifyOperation(outerThis, new ProviderHelper(outerThis), progressable, cancelled);
                 } else {
                     return;
                 }
@@ -110,79 +131,87 @@ public class KeychainNewService extends Service implements Progressable {
                 @SuppressWarnings("unchecked") // this is unchecked, we make sure it's the correct op above!
                 OperationResult result = op.execute(inputParcel, cryptoInput);
 
-                sendMessageToHandler(MessageStatus.OKAY, result);
+                operationProgress.sendMessageToHandler(MessageStatus.OKAY, result);
 
             }
-        };
-
-        Thread actionThread = new Thread(actionRunnable);
-        actionThread.start();
+        });
 
         return START_NOT_STICKY;
     }
 
-    private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
+    /** Reports the progress and result of a single operation to its messenger. */
+    private class OperationProgress implements Progressable {
 
-        Message msg = Message.obtain();
-        assert msg != null;
-        msg.arg1 = status.ordinal();
-        if (arg2 != null) {
-            msg.arg2 = arg2;
-        }
-        if (data != null) {
-            msg.setData(data);
+        final Messenger mMessenger;
+
+        OperationProgress(Messenger messenger) {
+            mMessenger = messenger;
         }
 
-        try {
-            mMessenger.get().send(msg);
-        } catch (RemoteException e) {
-            Log.w(Constants.TAG, "Exception sending message, Is handler present?", e);
-        } catch (NullPointerException e) {
-            Log.w(Constants.TAG, "Messenger is null!", e);
+        private void sendMessageToHandler(MessageStatus status, Integer arg2, Bundle data) {
+
+            Message msg = Message.obtain();
+            assert msg != null;
+            msg.arg1 = status.ordinal();
+            if (arg2 != null) {
+                msg.arg2 = arg2;
+            }
+            if (data != null) {
+                msg.setData(data);
+            }
+
+            try {
+                mMessenger.send(msg);
+            } catch (RemoteException e) {
+                Log.w(Constants.TAG, "Exception sending message, Is handler present?", e);
+            } catch (NullPointerException e) {
+                Log.w(Constants.TAG, "Messenger is null!", e);
+            }
         }
-    }
 
-    private void sendMessageToHandler(MessageStatus status, OperationResult data) {
-        Bundle bundle = new Bundle();
-        bundle.putParcelable(OperationResult.EXTRA_RESULT, data);
-        sendMessageToHandler(status, null, bundle);
-    }
+        void sendMessageToHandler(MessageStatus status, OperationResult data) {
+            Bundle bundle = new Bundle();
+            bundle.putParcelable(OperationResult.EXTRA_RESULT, data);
+            sendMessageToHandler(status, null, bundle);
+        }
 
-    private void sendMessageToHandler(MessageStatus status) {
-        sendMessageToHandler(status, null, null);
-    }
+        private void sendMessageToHandler(MessageStatus status) {
+            sendMessageToHandler(status, null, null);
+        }
 
-    /**
-     * Set progress of ProgressDialog by sending message to handler on UI thread
-     */
-    @Override
-    public void setProgress(String message, int progress, int max) {
-        Log.d(Constants.TAG, "Send message by setProgress with progress=" + progress + ", max="
-                + max);
+        /**
+         * Set progress of ProgressDialog by sending message to handler on UI thread
+         */
+        @Override
+        public void setProgress(String message, int progress, int max) {
+            Log.d(Constants.TAG, "Send message by setProgress with progress=" + progress + ", max="
+                    + max);
+
+            Bundle data = new Bundle();
+            if (message != null) {
+                data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+            }
+            data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
+            data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
 
-        Bundle data = new Bundle();
-        if (message != null) {
-            data.putString(ServiceProgressHandler.DATA_MESSAGE, message);
+            sendMessageToHandler(MessageStatus.UPDATE_PROGRESS, null, data);
         }
-        data.putInt(ServiceProgressHandler.DATA_PROGRESS, progress);
-        data.putInt(ServiceProgressHandler.DATA_PROGRESS_MAX, max);
 
-        sendMessageToHandler(MessageStatus.UPDATE_PROGRESS, null, data);
-    }
+        @Override
+        public void setProgress(int resourceId, int progress, int max) {
+            setProgress(getString(resourceId), progress, max);
+        }
 
-    @Override
-    public void setProgress(int resourceId, int progress, int max) {
-        setProgress(getString(resourceId), progress, max);
-    }
+        @Override
+        public void setProgress(int progress, int max) {
+            setProgress(null, progress, max);
+        }
 
-    @Override
-    public void setProgress(int progress, int max) {
-        setProgress(null, progress, max);
-    }
+        @Override
+        public void setPreventCancel() {
+            sendMessageToHandler(MessageStatus.PREVENT_CANCEL);
+        }
 
-    @Override
-    public void setPreventCancel() {
-        sendMessageToHandler(MessageStatus.PREVENT_CANCEL);
     }
 
 }
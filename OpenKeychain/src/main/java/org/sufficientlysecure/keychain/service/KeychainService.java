@@ -644,7 +644,7 @@ public class KeychainService extends Service implements Progressable {
      * Used to accumulate the results of individual key imports
      */
     private class KeyImportAccumulator {
-        private OperationResult.OperationLog mImportLog = new OperationResult.OperationLog();
+        private OperationResult.OperationLog mImportLog;
         private int mTotalKeys;
         private int mImportedKeys = 0;
         private Progressable mInternalProgressable;
@@ -664,6 +664,10 @@ public class KeychainService extends Service implements Progressable {
          */
         public KeyImportAccumulator(int totalKeys, Progressable externalProgressable) {
             mTotalKeys = totalKeys;
+            mImportLog = totalKeys > ImportExportOperation.LOG_LIMIT_THRESHOLD
+                    ? new OperationResult.OperationLog(ImportExportOperation.LOG_LIMIT,
+                            ImportExportOperation.LOG_LIMIT)
+                    : new OperationResult.OperationLog();
             // ignore updates from ImportExportOperation for now
             mInternalProgressable = new Progressable() {
                 @Override
@@ -718,7 +722,7 @@ public class KeychainService extends Service implements Progressable {
 
         public synchronized void accumulateKeyImport(ImportKeyResult result) {
             mImportedKeys++;
-            mImportLog.addAll(result.getLog().toList());//accumulates log
+            mImportLog.addAll(result.getLog());//accumulates log
             mBadKeys += result.mBadKeys;
             mNewKeys += result.mNewKeys;
             mUpdatedKeys += result.mUpdatedKeys;
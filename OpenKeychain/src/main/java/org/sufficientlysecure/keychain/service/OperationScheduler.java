@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.service;
+
+import java.util.ArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+/**
+ * Runs operations on a bounded number of threads, shared by all of them.
+ *
+ * Operations wait in a queue until a thread is available. Operations of the interactive
+ * priority class, which the user is waiting for, are run before those of the background
+ * class, operations of the same class run in order of submission.
+ *
+ * Each operation is submitted with a tag, and gets its own cancellation token, which is
+ * set by cancel(tag). An operation which is cancelled while it waits still runs, with the
+ * token already set, so it can report its cancellation as usual.
+ */
+public class OperationScheduler {
+
+    public static final int PRIORITY_INTERACTIVE = 0;
+    public static final int PRIORITY_BACKGROUND = 1;
+
+    private static final long KEEP_ALIVE_SECONDS = 30L;
+
+    /** An operation which can be scheduled. */
+    public interface ScheduledOperation {
+        /** Runs the operation, which should stop as soon as possible once cancelled is set. */
+        void run(AtomicBoolean cancelled);
+    }
+
+    private static OperationScheduler sInstance;
+
+    /** Returns the scheduler shared by all services, which uses a thread per processor. */
+    public static synchronized OperationScheduler getInstance() {
+        if (sInstance == null) {
+            sInstance = new OperationScheduler(
+                    Math.max(2, Runtime.getRuntime().availableProcessors()));
+        }
+        return sInstance;
+    }
+
+    private final ThreadPoolExecutor mExecutor;
+    private final ArrayList<Task> mTasks = new ArrayList<>();
+    private long mSequence;
+
+    /** @param maxThreads maximum number of operations which run at the same time */
+    public OperationScheduler(int maxThreads) {
+        // all threads are core threads, so tasks are queued as soon as all of them are busy
+        mExecutor = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "OperationScheduler");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Schedules an operation.
+     *
+     * @param tag identifies the operation for cancellation, may be shared by several operations
+     * @param priority one of PRIORITY_INTERACTIVE or PRIORITY_BACKGROUND
+     * @return the cancellation token of this operation
+     */
+    public AtomicBoolean submit(Object tag, int priority, ScheduledOperation operation) {
+        Task task;
+        synchronized (mTasks) {
+            task = new Task(tag, priority, mSequence++, operation);
+            mTasks.add(task);
+        }
+        mExecutor.execute(task);
+        return task.mCancelled;
+    }
+
+    /**
+     * Cancels all waiting and running operations with the given tag.
+     *
+     * @return true if an operation with this tag was found
+     */
+    public boolean cancel(Object tag) {
+        boolean found = false;
+        synchronized (mTasks) {
+            for (Task task : mTasks) {
+                if (task.mTag.equals(tag)) {
+                    task.mCancelled.set(true);
+                    found = true;
+                }
+            }
+        }
+        return found;
+    }
+
+    /** Number of operations which are waiting or running. */
+    public int getPendingCount() {
+        synchronized (mTasks) {
+            return mTasks.size();
+        }
+    }
+
+    private class Task implements Runnable, Comparable<Task> {
+        final Object mTag;
+        final int mPriority;
+        final long mSequence;
+        final ScheduledOperation mOperation;
+        final AtomicBoolean mCancelled = new AtomicBoolean(false);
+
+        Task(Object tag, int priority, long sequence, ScheduledOperation operation) {
+            mTag = tag;
+            mPriority = priority;
+            mSequence = sequence;
+            mOperation = operation;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (mCancelled.get()) {
+                    Log.d(Constants.TAG, "OperationScheduler: running operation cancelled while waiting");
+                }
+                mOperation.run(mCancelled);
+            } finally {
+                synchronized (mTasks) {
+                    mTasks.remove(this);
+                }
+            }
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mPriority != other.mPriority) {
+                return mPriority < other.mPriority ? -1 : 1;
+            }
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+}
@@ -21,6 +21,7 @@ import android.app.ProgressDialog;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Messenger;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.app.FragmentManager;
 
@@ -75,11 +76,20 @@ public class ServiceProgressHandler extends Handler {
 
     public void showProgressDialog(
             String progressDialogMessage, int progressDialogStyle, boolean cancelable) {
+        showProgressDialog(progressDialogMessage, progressDialogStyle, cancelable, null);
+    }
+
+    /** Shows a progress dialog for an operation of KeychainNewService, which is cancelled
+     * by the messenger it reports to.
+     */
+    public void showProgressDialog(String progressDialogMessage, int progressDialogStyle,
+                                   boolean cancelable, Messenger messenger) {
 
         final ProgressDialogFragment frag = ProgressDialogFragment.newInstance(
                 progressDialogMessage,
                 progressDialogStyle,
-                cancelable);
+                cancelable,
+                messenger);
 
         // TODO: This is a hack!, see
         // http://stackoverflow.com/questions/10114324/show-dialogfragment-from-onactivityresult
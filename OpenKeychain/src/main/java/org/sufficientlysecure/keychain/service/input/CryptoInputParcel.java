@@ -97,6 +97,16 @@ public class CryptoInputParcel implements Parcelable {
         mCryptoData.put(ByteBuffer.wrap(hash), signedHash);
     }
 
+    /** Adds the results of a batch of operations, hashes[i] maps to results[i]. */
+    public void addCryptoData(byte[][] hashes, byte[][] results) {
+        if (hashes.length != results.length) {
+            throw new AssertionError("number of hashes and results must match, this is a programming error!");
+        }
+        for (int i = 0; i < hashes.length; i++) {
+            mCryptoData.put(ByteBuffer.wrap(hashes[i]), results[i]);
+        }
+    }
+
     public Map<ByteBuffer, byte[]> getCryptoData() {
         return Collections.unmodifiableMap(mCryptoData);
     }
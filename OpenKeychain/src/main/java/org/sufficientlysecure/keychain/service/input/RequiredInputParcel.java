@@ -4,6 +4,7 @@ import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -166,6 +167,8 @@ public class RequiredInputParcel implements Parcelable {
         Date mSignatureTime;
         ArrayList<Integer> mSignAlgos = new ArrayList<>();
         ArrayList<byte[]> mInputHashes = new ArrayList<>();
+        // identical hashes only need to be signed once, the signature is looked up by hash
+        HashSet<ByteBuffer> mSeenHashes = new HashSet<>();
         long mMasterKeyId;
         long mSubKeyId;
 
@@ -188,6 +191,9 @@ public class RequiredInputParcel implements Parcelable {
         }
 
         public void addHash(byte[] hash, int algo) {
+            if (!mSeenHashes.add(ByteBuffer.wrap(hash))) {
+                return;
+            }
             mInputHashes.add(hash);
             mSignAlgos.add(algo);
         }
@@ -200,9 +206,8 @@ public class RequiredInputParcel implements Parcelable {
                 throw new AssertionError("operation types must match, this is a progrmming error!");
             }
 
-            Collections.addAll(mInputHashes, input.mInputHashes);
-            for (int signAlgo : input.mSignAlgos) {
-                mSignAlgos.add(signAlgo);
+            for (int i = 0; i < input.mInputHashes.length; i++) {
+                addHash(input.mInputHashes[i], input.mSignAlgos[i]);
             }
         }
 
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import org.sufficientlysecure.keychain.util.Iso7816TLV;
+
+import java.io.IOException;
+
+/** Transmission capabilities of a card, as announced in its Application Related Data.
+ *
+ * The relevant information is found in the card capabilities of the historical
+ * bytes (DO 5F52, ISO 7816-4 compact-TLV tag 7), the Extended Capabilities
+ * (DO C0, OpenPGP card 2.x), and the Extended length information (DO 7F66,
+ * OpenPGP card 3.x).
+ *
+ * References to pages are related to the OpenPGP Application on ISO
+ * SmartCard Systems specification, version 2.0.1.
+ */
+public class CardCapabilities {
+
+    /** Assumed for cards which don't announce their capabilities: short length
+     * fields only, but command chaining, which all OpenPGP cards support. */
+    public static final CardCapabilities DEFAULT = new CardCapabilities(false, true,
+            CommandApdu.MAX_SHORT_NC, CommandApdu.MAX_SHORT_NE);
+
+    private static final int TAG_APPLICATION_RELATED_DATA = 0x6e;
+    private static final int TAG_HISTORICAL_BYTES = 0x5f52;
+    private static final int TAG_EXTENDED_CAPABILITIES = 0xc0;
+    private static final int TAG_EXTENDED_LENGTH_INFO = 0x7f66;
+
+    public final boolean mExtendedLength;
+    public final boolean mCommandChaining;
+    /** maximum number of data bytes in a single command */
+    public final int mMaxCommandData;
+    /** maximum number of data bytes in a single response */
+    public final int mMaxResponseData;
+
+    public CardCapabilities(boolean extendedLength, boolean commandChaining,
+                            int maxCommandData, int maxResponseData) {
+        mExtendedLength = extendedLength;
+        mCommandChaining = commandChaining;
+        mMaxCommandData = maxCommandData;
+        mMaxResponseData = maxResponseData;
+    }
+
+    /** Parses capabilities from the Application Related Data (DO 6E) of an OpenPGP card.
+     * Missing information is filled in from DEFAULT.
+     */
+    public static CardCapabilities fromApplicationRelatedData(byte[] data) throws IOException {
+        Iso7816TLV tlv = Iso7816TLV.readSingle(data, true);
+        if (tlv.mT != TAG_APPLICATION_RELATED_DATA) {
+            throw new IOException("Not an Application Related Data object!");
+        }
+
+        boolean extendedLength = DEFAULT.mExtendedLength;
+        boolean commandChaining = DEFAULT.mCommandChaining;
+
+        Iso7816TLV historical = Iso7816TLV.findRecursive(tlv, TAG_HISTORICAL_BYTES);
+        if (historical != null) {
+            byte[] cardCapabilities = findCardCapabilities(historical.mV);
+            if (cardCapabilities != null) {
+                // third software function table, ISO 7816-4 table 87
+                commandChaining = (cardCapabilities[2] & 0x80) != 0;
+                extendedLength = (cardCapabilities[2] & 0x40) != 0;
+            }
+        }
+
+        if (!extendedLength) {
+            return new CardCapabilities(false, commandChaining,
+                    CommandApdu.MAX_SHORT_NC, CommandApdu.MAX_SHORT_NE);
+        }
+
+        // without any further information, the card should be able to handle a 2048 bit
+        // RSA ciphertext in a single command
+        int maxCommandData = 512, maxResponseData = 512;
+
+        Iso7816TLV lengthInfo = Iso7816TLV.findRecursive(tlv, TAG_EXTENDED_LENGTH_INFO);
+        Iso7816TLV extCapabilities = Iso7816TLV.findRecursive(tlv, TAG_EXTENDED_CAPABILITIES);
+        if (lengthInfo != null && lengthInfo.mV.length >= 8) {
+            // two integer objects, 02 02 xx xx 02 02 yy yy
+            maxCommandData = readShort(lengthInfo.mV, 2);
+            maxResponseData = readShort(lengthInfo.mV, 6);
+        } else if (extCapabilities != null && extCapabilities.mV.length >= 10) {
+            // page 23: bytes 7-8 max length of command data, bytes 9-10 of response data
+            maxCommandData = readShort(extCapabilities.mV, 6);
+            maxResponseData = readShort(extCapabilities.mV, 8);
+        }
+
+        return new CardCapabilities(true, commandChaining,
+                Math.max(maxCommandData, CommandApdu.MAX_SHORT_NC),
+                Math.max(maxResponseData, CommandApdu.MAX_SHORT_NE));
+    }
+
+    /** Finds the card capabilities (tag 7, length 3) in the compact-TLV encoded historical
+     * bytes, or returns null if there are none. */
+    static byte[] findCardCapabilities(byte[] historicalBytes) {
+        // category indicator 0x00: compact-TLV objects, followed by three status bytes
+        if (historicalBytes.length < 1 || historicalBytes[0] != 0x00) {
+            return null;
+        }
+        int end = historicalBytes.length - 3;
+        int pos = 1;
+        while (pos < end) {
+            int tag = (historicalBytes[pos] & 0xf0) >> 4;
+            int length = historicalBytes[pos] & 0x0f;
+            pos += 1;
+            if (pos + length > end) {
+                return null;
+            }
+            if (tag == 0x7 && length == 3) {
+                byte[] result = new byte[3];
+                System.arraycopy(historicalBytes, pos, result, 0, 3);
+                return result;
+            }
+            pos += length;
+        }
+        return null;
+    }
+
+    private static int readShort(byte[] data, int offset) {
+        return ((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff);
+    }
+
+}
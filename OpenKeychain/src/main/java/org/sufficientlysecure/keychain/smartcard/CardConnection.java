@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/** Exchanges APDUs with a card over a CardTransport.
+ *
+ * This class takes care of the transmission details which are the same for
+ * all commands: the choice between short and extended length fields, command
+ * chaining for data which doesn't fit into a single command, and retrieval
+ * of remaining response data with GET RESPONSE (SW1 0x61) or a corrected Le
+ * (SW1 0x6C).
+ *
+ * Until capabilities are set, the conservative CardCapabilities.DEFAULT are
+ * assumed. Instances of this class are not thread safe.
+ */
+public class CardConnection {
+
+    private static final int INS_GET_RESPONSE = 0xc0;
+
+    /** Encoding overhead of a command: header plus Lc and Le fields. */
+    private static final int OVERHEAD_SHORT = 4 + 1 + 1;
+    private static final int OVERHEAD_EXTENDED = 4 + 3 + 2;
+
+    private final CardTransport mTransport;
+
+    private CardCapabilities mCapabilities;
+    private boolean mUseExtended;
+    private int mMaxCommandData;
+    private int mMaxNe;
+
+    // reused for assembling responses which are split over several APDUs
+    private final ByteArrayOutputStream mResponseBuffer = new ByteArrayOutputStream(512);
+
+    public CardConnection(CardTransport transport) {
+        mTransport = transport;
+        setCapabilities(CardCapabilities.DEFAULT);
+    }
+
+    public CardTransport getTransport() {
+        return mTransport;
+    }
+
+    public CardCapabilities getCapabilities() {
+        return mCapabilities;
+    }
+
+    /** Sets the capabilities of the card, limited to what the transport can carry. */
+    public void setCapabilities(CardCapabilities capabilities) {
+        mCapabilities = capabilities;
+
+        int transportMax = mTransport.getMaxTransceiveLength();
+        mUseExtended = capabilities.mExtendedLength
+                && transportMax > OVERHEAD_SHORT + CommandApdu.MAX_SHORT_NC;
+
+        if (mUseExtended) {
+            mMaxCommandData = Math.min(Math.min(capabilities.mMaxCommandData,
+                    CommandApdu.MAX_EXTENDED_NC), transportMax - OVERHEAD_EXTENDED);
+            mMaxNe = Math.min(capabilities.mMaxResponseData, CommandApdu.MAX_EXTENDED_NE);
+        } else {
+            mMaxCommandData = Math.min(CommandApdu.MAX_SHORT_NC, transportMax - OVERHEAD_SHORT);
+            mMaxNe = CommandApdu.MAX_SHORT_NE;
+        }
+        Log.d(Constants.TAG, "card connection: extended " + mUseExtended + ", max command data "
+                + mMaxCommandData + ", max response data " + mMaxNe);
+    }
+
+    public boolean isExtendedLength() {
+        return mUseExtended;
+    }
+
+    public int getMaxCommandData() {
+        return mMaxCommandData;
+    }
+
+    /** Sends a command and returns the complete response.
+     *
+     * If the data field is too long for a single command, it is sent as a command
+     * chain. If any part of the chain is not accepted, the response to that part is
+     * returned.
+     */
+    public ResponseApdu transceive(CommandApdu command) throws IOException {
+        int nc = command.getNc();
+        if (nc <= mMaxCommandData) {
+            return transceiveSingle(command);
+        }
+
+        if (!mCapabilities.mCommandChaining) {
+            throw new IOException("Command data too long (" + nc + " bytes) for card without chaining!");
+        }
+
+        int offset = 0;
+        while (nc - offset > mMaxCommandData) {
+            ResponseApdu response = transceiveSingle(
+                    command.chainPart(offset, mMaxCommandData, false));
+            if (!response.isSuccess()) {
+                return response;
+            }
+            offset += mMaxCommandData;
+        }
+        return transceiveSingle(command.chainPart(offset, nc - offset, true));
+    }
+
+    private ResponseApdu transceiveSingle(CommandApdu command) throws IOException {
+        if (command.mNe > mMaxNe) {
+            command = command.withNe(mMaxNe);
+        }
+
+        ResponseApdu response = ResponseApdu.fromBytes(
+                mTransport.transceive(command.encode(mUseExtended)));
+
+        // wrong Le, the card tells us the right one (ISO 7816-3, 12.2.3)
+        if (response.getSw1() == 0x6c) {
+            int ne = response.getSw2() == 0 ? CommandApdu.MAX_SHORT_NE : response.getSw2();
+            response = ResponseApdu.fromBytes(
+                    mTransport.transceive(command.withNe(ne).encode(mUseExtended)));
+        }
+
+        if (response.getSw1() != 0x61) {
+            return response;
+        }
+
+        // more data available, retrieve it with GET RESPONSE until the card is done
+        mResponseBuffer.reset();
+        mResponseBuffer.write(response.getData(), 0, response.getData().length);
+        while (response.getSw1() == 0x61) {
+            int ne = response.getSw2() == 0 ? CommandApdu.MAX_SHORT_NE : response.getSw2();
+            CommandApdu getResponse = new CommandApdu(0x00, INS_GET_RESPONSE, 0x00, 0x00, ne);
+            response = ResponseApdu.fromBytes(
+                    mTransport.transceive(getResponse.encode(mUseExtended)));
+            mResponseBuffer.write(response.getData(), 0, response.getData().length);
+        }
+
+        return new ResponseApdu(mResponseBuffer.toByteArray(), response.getSw());
+    }
+
+    public void close() throws IOException {
+        mTransport.close();
+    }
+
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import java.io.IOException;
+
+/** Thrown when the card answers a command with an error status word. */
+public class CardException extends IOException {
+    private short mResponseCode;
+
+    public CardException(String detailMessage, int responseCode) {
+        super(detailMessage);
+        mResponseCode = (short) responseCode;
+    }
+
+    public short getResponseCode() {
+        return mResponseCode;
+    }
+
+}
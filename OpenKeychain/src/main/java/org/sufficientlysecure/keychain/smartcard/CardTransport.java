@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import java.io.IOException;
+
+/** A raw channel to a smart card, which exchanges encoded APDUs.
+ *
+ * This abstracts from the Android NFC classes, so the APDU handling in
+ * CardConnection can be used with any kind of card, including a simulated
+ * one in tests.
+ */
+public interface CardTransport {
+
+    /** Sends an encoded command APDU and returns the raw response, including SW1/SW2. */
+    byte[] transceive(byte[] command) throws IOException;
+
+    /** Maximum length of an encoded APDU supported by the transport itself. */
+    int getMaxTransceiveLength();
+
+    void close() throws IOException;
+
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import java.io.IOException;
+
+/** An ISO 7816-4 command APDU.
+ *
+ * Objects of this class are immutable. The data field and the expected
+ * response length Ne are kept separately from their encoding, which is
+ * only decided in encode(), depending on whether the card supports
+ * extended length fields.
+ *
+ * @see { @linktourl http://www.cardwerk.com/smartcards/smartcard_standard_ISO7816-4_5_basic_organizations.aspx}
+ *
+ */
+public class CommandApdu {
+
+    /** Maximum Nc and Ne with short length fields. */
+    public static final int MAX_SHORT_NC = 255;
+    public static final int MAX_SHORT_NE = 256;
+
+    /** Maximum Nc and Ne with extended length fields. */
+    public static final int MAX_EXTENDED_NC = 65535;
+    public static final int MAX_EXTENDED_NE = 65536;
+
+    /** CLA bit indicating that more commands of a chain follow. */
+    public static final int CLA_CHAINING = 0x10;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    public final int mCla, mIns, mP1, mP2;
+    private final byte[] mData;
+    public final int mNe;
+
+    public CommandApdu(int cla, int ins, int p1, int p2) {
+        this(cla, ins, p1, p2, EMPTY, 0);
+    }
+
+    public CommandApdu(int cla, int ins, int p1, int p2, int ne) {
+        this(cla, ins, p1, p2, EMPTY, ne);
+    }
+
+    public CommandApdu(int cla, int ins, int p1, int p2, byte[] data) {
+        this(cla, ins, p1, p2, data, 0);
+    }
+
+    public CommandApdu(int cla, int ins, int p1, int p2, byte[] data, int ne) {
+        if (data == null) {
+            data = EMPTY;
+        }
+        if (data.length > MAX_EXTENDED_NC) {
+            throw new IllegalArgumentException("data too long: " + data.length);
+        }
+        if (ne < 0 || ne > MAX_EXTENDED_NE) {
+            throw new IllegalArgumentException("invalid ne: " + ne);
+        }
+        mCla = cla & 0xff;
+        mIns = ins & 0xff;
+        mP1 = p1 & 0xff;
+        mP2 = p2 & 0xff;
+        mData = data;
+        mNe = ne;
+    }
+
+    /** Parses an encoded command, as sent to the card. This is the inverse of encode(),
+     * covering all cases of ISO 7816-3, 12.1.3 with short and extended length fields.
+     */
+    public static CommandApdu fromBytes(byte[] raw) throws IOException {
+        if (raw == null || raw.length < 4) {
+            throw new IOException("Command too short!");
+        }
+        int cla = raw[0], ins = raw[1], p1 = raw[2], p2 = raw[3];
+        int body = raw.length - 4;
+
+        // case 1: header only
+        if (body == 0) {
+            return new CommandApdu(cla, ins, p1, p2);
+        }
+
+        int b1 = raw[4] & 0xff;
+        // case 2S: Le only
+        if (body == 1) {
+            return new CommandApdu(cla, ins, p1, p2, b1 == 0 ? MAX_SHORT_NE : b1);
+        }
+
+        // short length fields: Lc is a single non-zero byte
+        if (b1 != 0) {
+            if (body == 1 + b1) {
+                return new CommandApdu(cla, ins, p1, p2, copy(raw, 5, b1));
+            }
+            if (body == 2 + b1) {
+                int le = raw[raw.length - 1] & 0xff;
+                return new CommandApdu(cla, ins, p1, p2, copy(raw, 5, b1), le == 0 ? MAX_SHORT_NE : le);
+            }
+            throw new IOException("Bad command length!");
+        }
+
+        // extended length fields, starting with a zero byte
+        if (body == 3) {
+            int le = ((raw[5] & 0xff) << 8) | (raw[6] & 0xff);
+            return new CommandApdu(cla, ins, p1, p2, le == 0 ? MAX_EXTENDED_NE : le);
+        }
+        if (body < 3) {
+            throw new IOException("Bad command length!");
+        }
+        int nc = ((raw[5] & 0xff) << 8) | (raw[6] & 0xff);
+        if (nc == 0) {
+            throw new IOException("Bad command length!");
+        }
+        if (body == 3 + nc) {
+            return new CommandApdu(cla, ins, p1, p2, copy(raw, 7, nc));
+        }
+        if (body == 5 + nc) {
+            int le = ((raw[raw.length - 2] & 0xff) << 8) | (raw[raw.length - 1] & 0xff);
+            return new CommandApdu(cla, ins, p1, p2, copy(raw, 7, nc), le == 0 ? MAX_EXTENDED_NE : le);
+        }
+        throw new IOException("Bad command length!");
+    }
+
+    private static byte[] copy(byte[] data, int offset, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(data, offset, result, 0, length);
+        return result;
+    }
+
+    public int getNc() {
+        return mData.length;
+    }
+
+    /** Returns the data field. The returned array must not be modified. */
+    public byte[] getData() {
+        return mData;
+    }
+
+    /** Returns true if this command can only be encoded with extended length fields. */
+    public boolean requiresExtendedLength() {
+        return mData.length > MAX_SHORT_NC || mNe > MAX_SHORT_NE;
+    }
+
+    public CommandApdu withNe(int ne) {
+        return new CommandApdu(mCla, mIns, mP1, mP2, mData, ne);
+    }
+
+    /** Returns a copy of this command carrying only part of the data field, for command
+     * chaining. All but the last part of a chain are sent with the chaining bit set in CLA,
+     * and don't expect any response data.
+     */
+    public CommandApdu chainPart(int offset, int length, boolean last) {
+        byte[] part = new byte[length];
+        System.arraycopy(mData, offset, part, 0, length);
+        if (last) {
+            return new CommandApdu(mCla & ~CLA_CHAINING, mIns, mP1, mP2, part, mNe);
+        }
+        return new CommandApdu(mCla | CLA_CHAINING, mIns, mP1, mP2, part, 0);
+    }
+
+    /** Encodes this command, with either short or extended length fields.
+     *
+     * Short length fields are always used if the command fits in them,
+     * regardless of the extended flag.
+     */
+    public byte[] encode(boolean extended) {
+        int nc = mData.length;
+        boolean useExtended = requiresExtendedLength();
+        if (useExtended && !extended) {
+            throw new IllegalStateException("command requires extended length fields");
+        }
+
+        int length = 4 + nc;
+        if (nc > 0) {
+            length += useExtended ? 3 : 1;
+        }
+        if (mNe > 0) {
+            // with extended length, Le is two bytes if Lc is present, three otherwise
+            length += useExtended ? (nc > 0 ? 2 : 3) : 1;
+        }
+
+        byte[] result = new byte[length];
+        int pos = 0;
+        result[pos++] = (byte) mCla;
+        result[pos++] = (byte) mIns;
+        result[pos++] = (byte) mP1;
+        result[pos++] = (byte) mP2;
+
+        if (nc > 0) {
+            if (useExtended) {
+                result[pos++] = 0;
+                result[pos++] = (byte) (nc >> 8);
+                result[pos++] = (byte) nc;
+            } else {
+                result[pos++] = (byte) nc;
+            }
+            System.arraycopy(mData, 0, result, pos, nc);
+            pos += nc;
+        }
+
+        if (mNe > 0) {
+            // the maximum Ne is encoded as zero
+            if (useExtended) {
+                if (nc == 0) {
+                    result[pos++] = 0;
+                }
+                int le = mNe == MAX_EXTENDED_NE ? 0 : mNe;
+                result[pos++] = (byte) (le >> 8);
+                result[pos++] = (byte) le;
+            } else {
+                result[pos++] = (byte) (mNe == MAX_SHORT_NE ? 0 : mNe);
+            }
+        }
+
+        return result;
+    }
+
+}
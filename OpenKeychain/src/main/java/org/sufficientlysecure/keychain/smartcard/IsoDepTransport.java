@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import android.nfc.tech.IsoDep;
+
+import java.io.IOException;
+
+/** CardTransport over an NFC IsoDep tag. */
+public class IsoDepTransport implements CardTransport {
+
+    private final IsoDep mIsoDep;
+
+    public IsoDepTransport(IsoDep isoDep) {
+        mIsoDep = isoDep;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        return mIsoDep.transceive(command);
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return mIsoDep.getMaxTransceiveLength();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIsoDep.close();
+    }
+
+}
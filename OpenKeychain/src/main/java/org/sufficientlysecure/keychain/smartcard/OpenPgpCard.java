@@ -0,0 +1,538 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.interfaces.RSAPrivateCrtKey;
+
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.util.Arrays;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.util.Iso7816TLV;
+import org.sufficientlysecure.keychain.util.Log;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+/** The OpenPGP application on a smart card.
+ *
+ * This class implements the commands of the OpenPGP card which are used by
+ * OpenKeychain, independently of how the card is connected. It keeps track of
+ * which PINs have been verified in the current session, and verifies them
+ * before an operation where necessary.
+ *
+ * On general communication, see also
+ * http://www.cardwerk.com/smartcards/smartcard_standard_ISO7816-4_annex-a.aspx
+ *
+ * References to pages are generally related to the OpenPGP Application
+ * on ISO SmartCard Systems specification, version 2.0.1.
+ */
+public class OpenPgpCard {
+
+    public static final byte[] AID_OPENPGP = Hex.decode("D27600012401");
+
+    public static final int DO_AID = 0x004F;
+    public static final int DO_CARDHOLDER_RELATED_DATA = 0x0065;
+    public static final int DO_APPLICATION_RELATED_DATA = 0x006E;
+    public static final int DO_PW_STATUS_BYTES = 0x00C4;
+
+    /** Key slots, as used in the Control Reference Template of PUT KEY */
+    public static final int SLOT_SIGNATURE = 0xB6;
+    public static final int SLOT_DECIPHERMENT = 0xB8;
+    public static final int SLOT_AUTHENTICATION = 0xA4;
+
+    private final CardConnection mConnection;
+
+    private Passphrase mPin;
+    private Passphrase mAdminPin;
+    private boolean mPw1ValidForMultipleSignatures;
+    private boolean mPw1ValidatedForSignature;
+    private boolean mPw1ValidatedForDecrypt; // Mode 82 does other things; consider renaming?
+    private boolean mPw3Validated;
+
+    public OpenPgpCard(CardConnection connection) {
+        mConnection = connection;
+    }
+
+    public CardConnection getConnection() {
+        return mConnection;
+    }
+
+    public void setPin(Passphrase pin) {
+        mPin = pin;
+    }
+
+    public void setAdminPin(Passphrase adminPin) {
+        mAdminPin = adminPin;
+    }
+
+    /** Selects the OpenPGP application and starts a new session.
+     *
+     * This negotiates extended length and chaining from the Application Related
+     * Data, so later commands can be sent in one piece, and resets the state of
+     * verified PINs.
+     */
+    public void select() throws IOException {
+        // Command APDU for SELECT FILE command (page 29), by AID of the OpenPGP application
+        ResponseApdu response = mConnection.transceive(new CommandApdu(
+                0x00, 0xA4, 0x04, 0x00, AID_OPENPGP, CommandApdu.MAX_SHORT_NE));
+        if (!response.isSuccess()) {
+            throw new CardException("Initialization failed!", response.getSw());
+        }
+
+        try {
+            mConnection.setCapabilities(
+                    CardCapabilities.fromApplicationRelatedData(getData(DO_APPLICATION_RELATED_DATA)));
+        } catch (IOException e) {
+            Log.e(Constants.TAG, "could not read card capabilities, using defaults", e);
+        }
+
+        byte[] pwStatusBytes = getPwStatusBytes();
+        mPw1ValidForMultipleSignatures = (pwStatusBytes[0] == 1);
+        mPw1ValidatedForSignature = false;
+        mPw1ValidatedForDecrypt = false;
+        mPw3Validated = false;
+    }
+
+    /** Reads a data object from the card with the GET DATA command (page 31).
+     *
+     * @param dataObject The tag of the data object, as P1/P2.
+     * @return The data field of the response.
+     */
+    public byte[] getData(int dataObject) throws IOException {
+        ResponseApdu response = mConnection.transceive(new CommandApdu(0x00, 0xCA,
+                (dataObject & 0xFF00) >> 8, dataObject & 0xFF, CommandApdu.MAX_EXTENDED_NE));
+        if (!response.isSuccess()) {
+            throw new CardException("Failed to get data.", response.getSw());
+        }
+        return response.getData();
+    }
+
+    /** Return fingerprints of all keys from application specific data stored
+     * on tag, or null if data not available.
+     *
+     * @return The fingerprints of all subkeys in a contiguous byte array.
+     */
+    public byte[] getFingerprints() throws IOException {
+        byte[] buf = getData(DO_APPLICATION_RELATED_DATA);
+
+        Iso7816TLV tlv = Iso7816TLV.readSingle(buf, true);
+        Log.d(Constants.TAG, "nfc tlv data:\n" + tlv.prettyPrint());
+
+        Iso7816TLV fptlv = Iso7816TLV.findRecursive(tlv, 0xc5);
+        if (fptlv == null) {
+            return null;
+        }
+
+        return fptlv.mV;
+    }
+
+    /** Return the fingerprint from application specific data stored on tag, or
+     * null if it doesn't exist.
+     *
+     * @param idx Index of the key to return the fingerprint from.
+     * @return The fingerprint of the requested key, or null if not found.
+     */
+    public byte[] getFingerprint(int idx) throws IOException {
+        byte[] data = getFingerprints();
+        if (data == null) {
+            return null;
+        }
+
+        ByteBuffer fpbuf = ByteBuffer.wrap(data);
+        byte[] fp = new byte[20];
+        fpbuf.position(idx * 20);
+        fpbuf.get(fp, 0, 20);
+
+        return fp;
+    }
+
+    /** Return the key id from application specific data stored on tag, or null
+     * if it doesn't exist.
+     *
+     * @param idx Index of the key to return the fingerprint from.
+     * @return The long key id of the requested key, or null if not found.
+     */
+    public Long getKeyId(int idx) throws IOException {
+        byte[] fp = getFingerprint(idx);
+        if (fp == null) {
+            return null;
+        }
+        ByteBuffer buf = ByteBuffer.wrap(fp);
+        // skip first 12 bytes of the fingerprint
+        buf.position(12);
+        // the last eight bytes are the key id (big endian, which is default order in ByteBuffer)
+        return buf.getLong();
+    }
+
+    /** Return the PW Status Bytes from the card. This is a simple DO; no TLV decoding needed.
+     *
+     * @return Seven bytes in fixed format.
+     */
+    public byte[] getPwStatusBytes() throws IOException {
+        return getData(DO_PW_STATUS_BYTES);
+    }
+
+    public byte[] getAid() throws IOException {
+        return getData(DO_AID);
+    }
+
+    public String getUserId() throws IOException {
+        return getHolderName(getData(DO_CARDHOLDER_RELATED_DATA));
+    }
+
+    /** Returns the name from Cardholder Related Data (DO 65), with '<' separators
+     * replaced by spaces.
+     */
+    public static String getHolderName(byte[] cardholderData) throws IOException {
+        Iso7816TLV tlv = Iso7816TLV.readSingle(cardholderData, true);
+        Iso7816TLV nameTlv = Iso7816TLV.findRecursive(tlv, 0x5B);
+        if (nameTlv == null) {
+            return "";
+        }
+        return new String(nameTlv.mV).replace('<', ' ');
+    }
+
+    /**
+     * Calls to calculate the signature and returns the MPI value
+     *
+     * @param hash the hash for signing
+     * @return a big integer representing the MPI for the given hash
+     */
+    public byte[] calculateSignature(byte[] hash, int hashAlgo) throws IOException {
+        return computeDigitalSignature(buildDigitalSignatureInput(hash, hashAlgo));
+    }
+
+    /**
+     * Calculates signatures for several hashes in the same session. PW1 is verified
+     * only once if the card allows more than one signature per verification (PW1
+     * status byte), otherwise it is verified again before each signature.
+     *
+     * All hashes are checked before the first one is sent to the card, so a bad
+     * input doesn't leave the operation half done.
+     *
+     * @return the signatures, in the same order as the hashes
+     */
+    public byte[][] calculateSignatures(byte[][] hashes, int[] hashAlgos) throws IOException {
+        if (hashes.length != hashAlgos.length) {
+            throw new IOException("Number of hashes and hash algorithms don't match!");
+        }
+
+        byte[][] dsis = new byte[hashes.length][];
+        for (int i = 0; i < hashes.length; i++) {
+            dsis[i] = buildDigitalSignatureInput(hashes[i], hashAlgos[i]);
+        }
+
+        byte[][] signatures = new byte[hashes.length][];
+        for (int i = 0; i < dsis.length; i++) {
+            signatures[i] = computeDigitalSignature(dsis[i]);
+        }
+        return signatures;
+    }
+
+    /** Builds the DigestInfo structure (PKCS#1) which is signed by the card. */
+    static byte[] buildDigitalSignatureInput(byte[] hash, int hashAlgo) throws IOException {
+        // DigestInfo prefix of the hash algorithm (PKCS#1), the hash itself follows
+        String digestInfo;
+        int hashLength;
+
+        Log.i(Constants.TAG, "Hash: " + hashAlgo);
+        switch (hashAlgo) {
+            case HashAlgorithmTags.SHA1:
+                digestInfo = "3021" // Tag/Length of Sequence, the 0x21 includes all following 33 bytes
+                        + "3009" // Tag/Length of Sequence, the 0x09 are the following header bytes
+                        + "0605" + "2B0E03021A" // OID of SHA1
+                        + "0500" // TLV coding of ZERO
+                        + "0414"; // 0x14 are 20 hash bytes
+                hashLength = 20;
+                break;
+            case HashAlgorithmTags.RIPEMD160:
+                digestInfo = "3021300906052B2403020105000414";
+                hashLength = 20;
+                break;
+            case HashAlgorithmTags.SHA224:
+                digestInfo = "302D300D06096086480165030402040500041C";
+                hashLength = 28;
+                break;
+            case HashAlgorithmTags.SHA256:
+                digestInfo = "3031300D060960864801650304020105000420";
+                hashLength = 32;
+                break;
+            case HashAlgorithmTags.SHA384:
+                digestInfo = "3041300D060960864801650304020205000430";
+                hashLength = 48;
+                break;
+            case HashAlgorithmTags.SHA512:
+                digestInfo = "3051300D060960864801650304020305000440";
+                hashLength = 64;
+                break;
+            default:
+                throw new IOException("Not supported hash algo!");
+        }
+        if (hash.length != hashLength) {
+            throw new IOException("Bad hash length (" + hash.length + ", expected " + hashLength + "!");
+        }
+
+        return Arrays.concatenate(Hex.decode(digestInfo), hash);
+    }
+
+    private byte[] computeDigitalSignature(byte[] dsi) throws IOException {
+        if (!mPw1ValidatedForSignature) {
+            verifyPin(0x81); // (Verify PW1 with mode 81 for signing)
+        }
+
+        // Command APDU for PERFORM SECURITY OPERATION: COMPUTE DIGITAL SIGNATURE (page 37)
+        ResponseApdu response = mConnection.transceive(new CommandApdu(
+                0x00, 0x2A, 0x9E, 0x9A, dsi, CommandApdu.MAX_EXTENDED_NE));
+
+        Log.d(Constants.TAG, "final response:" + Integer.toHexString(response.getSw()));
+
+        if (!mPw1ValidForMultipleSignatures) {
+            mPw1ValidatedForSignature = false;
+        }
+
+        if (!response.isSuccess()) {
+            throw new CardException("Bad NFC response code: " + Integer.toHexString(response.getSw()),
+                    response.getSw());
+        }
+
+        byte[] signature = response.getData();
+
+        // Make sure the signature we received is actually the expected number of bytes long!
+        if (signature.length != 128 && signature.length != 256) {
+            throw new IOException("Bad signature length! Expected 128 or 256 bytes, got " + signature.length);
+        }
+
+        return signature;
+    }
+
+    /**
+     * Calls to calculate the signature and returns the MPI value
+     *
+     * @param encryptedSessionKey the encoded session key
+     * @return the decoded session key
+     */
+    public byte[] decryptSessionKey(byte[] encryptedSessionKey) throws IOException {
+        if (!mPw1ValidatedForDecrypt) {
+            verifyPin(0x82); // (Verify PW1 with mode 82 for decryption)
+        }
+
+        // leave out first byte:
+        byte[] data = Arrays.copyOfRange(encryptedSessionKey, 1, encryptedSessionKey.length);
+
+        // Command APDU for PERFORM SECURITY OPERATION: DECIPHER (page 38), the ciphertext
+        // is sent in a command chain if the card doesn't support extended length
+        ResponseApdu response = mConnection.transceive(new CommandApdu(
+                0x00, 0x2A, 0x80, 0x86, data, CommandApdu.MAX_EXTENDED_NE));
+        if (!response.isSuccess()) {
+            throw new CardException("Deciphering with card failed", response.getSw());
+        }
+
+        return response.getData();
+    }
+
+    /** Verifies the user's PW1 or PW3 with the appropriate mode.
+     *
+     * @param mode For PW1, this is 0x81 for signing, 0x82 for everything else.
+     *             For PW3 (Admin PIN), mode is 0x83.
+     */
+    public void verifyPin(int mode) throws IOException {
+        Passphrase passphrase = mode == 0x83 ? mAdminPin : mPin;
+        if (passphrase == null) {
+            return;
+        }
+
+        byte[] pin = new String(passphrase.getCharArray()).getBytes();
+
+        // Command APDU for VERIFY command (page 32)
+        ResponseApdu response = mConnection.transceive(
+                new CommandApdu(0x00, 0x20, 0x00, mode, pin)); // login
+        if (!response.isSuccess()) {
+            throw new PinException("Bad PIN!", response.getSw());
+        }
+
+        if (mode == 0x81) {
+            mPw1ValidatedForSignature = true;
+        } else if (mode == 0x82) {
+            mPw1ValidatedForDecrypt = true;
+        } else if (mode == 0x83) {
+            mPw3Validated = true;
+        }
+    }
+
+    /** Modifies the user's PW1 or PW3. Before sending, the new PIN will be validated for
+     *  conformance to the card's requirements for key length.
+     *
+     * @param pw For PW1, this is 0x81. For PW3 (Admin PIN), mode is 0x83.
+     * @param newPinString The new PW1 or PW3.
+     */
+    public void modifyPin(int pw, String newPinString) throws IOException {
+        final int MAX_PW1_LENGTH_INDEX = 1;
+        final int MAX_PW3_LENGTH_INDEX = 3;
+
+        byte[] pwStatusBytes = getPwStatusBytes();
+        byte[] newPin = newPinString.getBytes();
+
+        if (pw == 0x81) {
+            if (newPin.length < 6 || newPin.length > pwStatusBytes[MAX_PW1_LENGTH_INDEX]) {
+                throw new IOException("Invalid PIN length");
+            }
+        } else if (pw == 0x83) {
+            if (newPin.length < 8 || newPin.length > pwStatusBytes[MAX_PW3_LENGTH_INDEX]) {
+                throw new IOException("Invalid PIN length");
+            }
+        } else {
+            throw new IOException("Invalid PW index for modify PIN operation");
+        }
+
+        byte[] pin;
+
+        if (pw == 0x83) {
+            pin = new String(mAdminPin.getCharArray()).getBytes();
+        } else {
+            pin = new String(mPin.getCharArray()).getBytes();
+        }
+
+        // Command APDU for CHANGE REFERENCE DATA command (page 32)
+        ResponseApdu response = mConnection.transceive(new CommandApdu(
+                0x00, 0x24, 0x00, pw, Arrays.concatenate(pin, newPin))); // change PIN
+        if (!response.isSuccess()) {
+            throw new PinException("Failed to change PIN", response.getSw());
+        }
+    }
+
+    /**
+     * Stores a data object on the card. Automatically validates the proper PIN for the operation.
+     * Supported for all data objects < 255 bytes in length. Only the cardholder certificate
+     * (0x7F21) can exceed this length.
+     *
+     * @param dataObject The data object to be stored.
+     * @param data The data to store in the object
+     */
+    public void putData(int dataObject, byte[] data) throws IOException {
+        if (data.length > 254) {
+            throw new IOException("Cannot PUT DATA with length > 254");
+        }
+        if (dataObject == 0x0101 || dataObject == 0x0103) {
+            if (!mPw1ValidatedForDecrypt) {
+                verifyPin(0x82); // (Verify PW1 for non-signing operations)
+            }
+        } else if (!mPw3Validated) {
+            verifyPin(0x83); // (Verify PW3)
+        }
+
+        // Command APDU for PUT DATA command (page 33)
+        ResponseApdu response = mConnection.transceive(new CommandApdu(0x00, 0xDA,
+                (dataObject & 0xFF00) >> 8, dataObject & 0xFF, data)); // put data
+        if (!response.isSuccess()) {
+            throw new CardException("Failed to put data.", response.getSw());
+        }
+    }
+
+    /**
+     * Puts a key on the card in the given slot.
+     *
+     * @param slot The slot on the card where the key should be stored:
+     *             0xB6: Signature Key
+     *             0xB8: Decipherment Key
+     *             0xA4: Authentication Key
+     */
+    public void putKey(int slot, RSAPrivateCrtKey crtSecretKey) throws IOException {
+        if (slot != SLOT_SIGNATURE && slot != SLOT_DECIPHERMENT && slot != SLOT_AUTHENTICATION) {
+            throw new IOException("Invalid key slot");
+        }
+
+        // Shouldn't happen; the UI should block the user from getting an incompatible key this far.
+        if (crtSecretKey.getModulus().bitLength() > 2048) {
+            throw new IOException("Key too large to export to smart card.");
+        }
+
+        // Should happen only rarely; all GnuPG keys since 2006 use public exponent 65537.
+        if (!crtSecretKey.getPublicExponent().equals(new BigInteger("65537"))) {
+            throw new IOException("Invalid public exponent for smart card key.");
+        }
+
+        if (!mPw3Validated) {
+            verifyPin(0x83); // (Verify PW1 with mode 83)
+        }
+
+        byte[] header= Hex.decode(
+                "4D82" + "03A2"      // Extended header list 4D82, length of 930 bytes. (page 23)
+                + String.format("%02x", slot) + "00" // CRT to indicate targeted key, no length
+                + "7F48" + "15"      // Private key template 0x7F48, length 21 (decimal, 0x15 hex)
+                + "9103"             // Public modulus, length 3
+                + "928180"           // Prime P, length 128
+                + "938180"           // Prime Q, length 128
+                + "948180"           // Coefficient (1/q mod p), length 128
+                + "958180"           // Prime exponent P (d mod (p - 1)), length 128
+                + "968180"           // Prime exponent Q (d mod (1 - 1)), length 128
+                + "97820100"         // Modulus, length 256, last item in private key template
+                + "5F48" + "820383");// DO 5F48; 899 bytes of concatenated key data will follow
+        byte[] dataToSend = new byte[934];
+        byte[] currentKeyObject;
+        int offset = 0;
+
+        System.arraycopy(header, 0, dataToSend, offset, header.length);
+        offset += header.length;
+        currentKeyObject = crtSecretKey.getPublicExponent().toByteArray();
+        System.arraycopy(currentKeyObject, 0, dataToSend, offset, 3);
+        offset += 3;
+        // NOTE: For a 2048-bit key, these lengths are fixed. However, bigint includes a leading 0
+        // in the array to represent sign, so we take care to set the offset to 1 if necessary.
+        currentKeyObject = crtSecretKey.getPrimeP().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getPrimeQ().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getCrtCoefficient().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getPrimeExponentP().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getPrimeExponentQ().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 128, dataToSend, offset, 128);
+        Arrays.fill(currentKeyObject, (byte)0);
+        offset += 128;
+        currentKeyObject = crtSecretKey.getModulus().toByteArray();
+        System.arraycopy(currentKeyObject, currentKeyObject.length - 256, dataToSend, offset, 256);
+
+        // Now we're ready to communicate with the card. PUT DATA with odd INS for the
+        // extended header list (page 33), chained if the card doesn't take it in one piece
+        ResponseApdu response = mConnection.transceive(
+                new CommandApdu(0x00, 0xDB, 0x3F, 0xFF, dataToSend));
+
+        // Clear array with secret data before we return.
+        Arrays.fill(dataToSend, (byte) 0);
+
+        if (!response.isSuccess()) {
+            throw new CardException("Key export to card failed", response.getSw());
+        }
+    }
+
+    public void close() throws IOException {
+        mConnection.close();
+    }
+
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import java.io.IOException;
+
+/** An ISO 7816-4 response APDU, consisting of a data field and the status word SW1/SW2. */
+public class ResponseApdu {
+
+    /** SW1/SW2 0x9000 is the generic "ok" response. */
+    public static final int SW_OK = 0x9000;
+
+    private final byte[] mData;
+    private final int mSw;
+
+    public ResponseApdu(byte[] data, int sw) {
+        mData = data;
+        mSw = sw & 0xffff;
+    }
+
+    /** Parses a raw response as received from the card, the last two bytes are SW1/SW2. */
+    public static ResponseApdu fromBytes(byte[] raw) throws IOException {
+        if (raw == null || raw.length < 2) {
+            throw new IOException("Response too short!");
+        }
+        byte[] data = new byte[raw.length - 2];
+        System.arraycopy(raw, 0, data, 0, data.length);
+        int sw = ((raw[raw.length - 2] & 0xff) << 8) | (raw[raw.length - 1] & 0xff);
+        return new ResponseApdu(data, sw);
+    }
+
+    /** Returns the data field. The returned array must not be modified. */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getSw() {
+        return mSw;
+    }
+
+    public int getSw1() {
+        return (mSw >> 8) & 0xff;
+    }
+
+    public int getSw2() {
+        return mSw & 0xff;
+    }
+
+    public boolean isSuccess() {
+        return mSw == SW_OK;
+    }
+
+    /** Returns data field and status word, as they were received. */
+    public byte[] toBytes() {
+        byte[] result = new byte[mData.length + 2];
+        System.arraycopy(mData, 0, result, 0, mData.length);
+        result[mData.length] = (byte) (mSw >> 8);
+        result[mData.length + 1] = (byte) mSw;
+        return result;
+    }
+
+}
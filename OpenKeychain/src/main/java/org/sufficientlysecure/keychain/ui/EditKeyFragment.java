@@ -50,6 +50,7 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing.Snapshot;
 import org.sufficientlysecure.keychain.provider.KeychainContract;
 import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
@@ -201,7 +202,8 @@ public class EditKeyFragment extends CryptoOperationFragment<SaveKeyringParcel,
             Uri secretUri = KeychainContract.KeyRings.buildUnifiedKeyRingUri(mDataUri);
             CachedPublicKeyRing keyRing =
                     new ProviderHelper(getActivity()).getCachedPublicKeyRing(secretUri);
-            long masterKeyId = keyRing.getMasterKeyId();
+            Snapshot snapshot = keyRing.getSnapshot();
+            long masterKeyId = snapshot.getMasterKeyId();
 
             // check if this is a master secret key we can work with
             switch (keyRing.getSecretKeyType(masterKeyId)) {
@@ -210,8 +212,8 @@ public class EditKeyFragment extends CryptoOperationFragment<SaveKeyringParcel,
                     return;
             }
 
-            mSaveKeyringParcel = new SaveKeyringParcel(masterKeyId, keyRing.getFingerprint());
-            mPrimaryUserId = keyRing.getPrimaryUserIdWithFallback();
+            mSaveKeyringParcel = new SaveKeyringParcel(masterKeyId, snapshot.getFingerprint());
+            mPrimaryUserId = snapshot.getPrimaryUserIdWithFallback();
 
         } catch (PgpKeyNotFoundException | NotFoundException e) {
             finishWithError(LogType.MSG_EK_ERROR_NOT_FOUND);
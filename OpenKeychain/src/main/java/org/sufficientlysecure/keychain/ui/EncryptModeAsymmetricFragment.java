@@ -18,6 +18,7 @@
 package org.sufficientlysecure.keychain.ui;
 
 import android.os.Bundle;
+import android.support.v4.util.LongSparseArray;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -26,12 +27,11 @@ import android.widget.ViewAnimator;
 import com.tokenautocomplete.TokenCompleteTextView.TokenListener;
 import org.sufficientlysecure.keychain.Constants;
 import org.sufficientlysecure.keychain.R;
-import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.exception.PgpKeyNotFoundException;
 import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing;
+import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing.Snapshot;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
-import org.sufficientlysecure.keychain.provider.ProviderHelper.NotFoundException;
 import org.sufficientlysecure.keychain.ui.adapter.KeyAdapter.KeyItem;
 import org.sufficientlysecure.keychain.ui.widget.EncryptKeyCompletionView;
 import org.sufficientlysecure.keychain.ui.widget.KeySpinner;
@@ -146,14 +146,16 @@ public class EncryptModeAsymmetricFragment extends EncryptModeFragment {
         }
 
         if (encryptionKeyIds != null) {
+            // load all preselected keys at once, none of them needs to be parsed for this
+            LongSparseArray<Snapshot> rings =
+                    mProviderHelper.getCachedKeyRingSnapshots(encryptionKeyIds);
             for (long preselectedId : encryptionKeyIds) {
-                try {
-                    CanonicalizedPublicKeyRing ring =
-                            mProviderHelper.getCanonicalizedPublicKeyRing(preselectedId);
-                    mEncryptKeyView.addObject(new KeyItem(ring));
-                } catch (NotFoundException e) {
-                    Log.e(Constants.TAG, "key not found!", e);
+                Snapshot ring = rings.get(preselectedId);
+                if (ring == null) {
+                    Log.e(Constants.TAG, "key not found: " + preselectedId);
+                    continue;
                 }
+                mEncryptKeyView.addObject(new KeyItem(ring));
             }
             // This is to work-around a rendering bug in TokenCompleteTextView
             mEncryptKeyView.requestFocus();
@@ -293,26 +293,15 @@ public class KeyListFragment extends LoaderFragment
         // This is called when a new Loader needs to be created. This
         // sample only has one Loader, so we don't care about the ID.
         Uri baseUri = KeyRings.buildUnifiedKeyRingsUri();
-        String where = null;
-        String whereArgs[] = null;
-        if (mQuery != null) {
-            String[] words = mQuery.trim().split("\\s+");
-            whereArgs = new String[words.length];
-            for (int i = 0; i < words.length; ++i) {
-                if (where == null) {
-                    where = "";
-                } else {
-                    where += " AND ";
-                }
-                where += KeyRings.USER_ID + " LIKE ?";
-                whereArgs[i] = "%" + words[i] + "%";
-            }
+        if (mQuery != null && !mQuery.trim().isEmpty()) {
+            // search the full text index of user ids, by prefix of each word
+            baseUri = KeyRings.buildUnifiedKeyRingsFindByUserIdUri(mQuery.trim());
         }
 
         // Now create and return a CursorLoader that will take care of
         // creating a Cursor for the data being displayed.
         return new CursorLoader(getActivity(), baseUri,
-                KeyListAdapter.PROJECTION, where, whereArgs, ORDER);
+                KeyListAdapter.PROJECTION, null, null, ORDER);
     }
 
     @Override
@@ -88,12 +88,10 @@ public class NfcOperationActivity extends BaseNfcActivity {
                 break;
             }
             case NFC_SIGN: {
-                for (int i = 0; i < mRequiredInput.mInputHashes.length; i++) {
-                    byte[] hash = mRequiredInput.mInputHashes[i];
-                    int algo = mRequiredInput.mSignAlgos[i];
-                    byte[] signedHash = nfcCalculateSignature(hash, algo);
-                    inputParcel.addCryptoData(hash, signedHash);
-                }
+                // all hashes are signed in this session, so the user taps only once
+                byte[][] signedHashes = nfcCalculateSignatures(
+                        mRequiredInput.mInputHashes, mRequiredInput.mSignAlgos);
+                inputParcel.addCryptoData(mRequiredInput.mInputHashes, signedHashes);
                 break;
             }
             case NFC_KEYTOCARD: {
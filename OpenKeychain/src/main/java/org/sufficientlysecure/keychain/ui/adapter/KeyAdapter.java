@@ -40,6 +40,7 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
 import org.sufficientlysecure.keychain.pgp.KeyRing;
+import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing.Snapshot;
 import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
 import org.sufficientlysecure.keychain.ui.util.Highlighter;
 import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
@@ -274,6 +275,17 @@ public class KeyAdapter extends CursorAdapter {
                     ring.getFingerprint());
         }
 
+        public KeyItem(Snapshot ring) {
+            String userId = ring.getPrimaryUserIdWithFallback();
+            mUserId = KeyRing.splitUserId(userId);
+            mUserIdFull = userId;
+            mKeyId = ring.getMasterKeyId();
+            mHasDuplicate = ring.hasDuplicateUserId();
+            mCreation = new Date(ring.getCreation() * 1000);
+            mFingerprint = KeyFormattingUtils.convertFingerprintToHex(
+                    ring.getFingerprint());
+        }
+
         public String getReadableName() {
             if (mUserId.name != null) {
                 return mUserId.name;
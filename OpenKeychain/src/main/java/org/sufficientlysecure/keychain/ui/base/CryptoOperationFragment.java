@@ -31,7 +31,6 @@ import org.sufficientlysecure.keychain.R;
 import org.sufficientlysecure.keychain.operations.results.InputPendingResult;
 import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.service.KeychainNewService;
-import org.sufficientlysecure.keychain.service.KeychainService;
 import org.sufficientlysecure.keychain.service.ServiceProgressHandler;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
 import org.sufficientlysecure.keychain.service.input.RequiredInputParcel;
@@ -159,11 +158,11 @@ public abstract class CryptoOperationFragment <T extends Parcelable, S extends O
 
         // Create a new Messenger for the communication back
         Messenger messenger = new Messenger(saveHandler);
-        intent.putExtra(KeychainService.EXTRA_MESSENGER, messenger);
+        intent.putExtra(KeychainNewService.EXTRA_MESSENGER, messenger);
 
         saveHandler.showProgressDialog(
                 getString(R.string.progress_building_key),
-                ProgressDialog.STYLE_HORIZONTAL, false);
+                ProgressDialog.STYLE_HORIZONTAL, true, messenger);
 
         getActivity().startService(intent);
 
@@ -25,6 +25,7 @@ import android.content.DialogInterface.OnKeyListener;
 import android.content.Intent;
 import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Messenger;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.view.ContextThemeWrapper;
@@ -34,6 +35,7 @@ import android.view.View.OnClickListener;
 import android.widget.Button;
 
 import org.sufficientlysecure.keychain.R;
+import org.sufficientlysecure.keychain.service.KeychainNewService;
 import org.sufficientlysecure.keychain.service.KeychainService;
 
 /**
@@ -44,6 +46,7 @@ public class ProgressDialogFragment extends DialogFragment {
     private static final String ARG_STYLE = "style";
     private static final String ARG_CANCELABLE = "cancelable";
     private static final String ARG_SERVICE_TYPE = "service_class";
+    private static final String ARG_MESSENGER = "messenger";
 
     boolean mCanCancel = false, mPreventCancel = false, mIsCancelled = false;
 
@@ -55,11 +58,22 @@ public class ProgressDialogFragment extends DialogFragment {
      * @return
      */
     public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable) {
+        return newInstance(message, style, cancelable, null);
+    }
+
+    /**
+     * creates a new instance of this fragment for an operation of KeychainNewService
+     * @param messenger the messenger the operation reports to, which identifies it on cancel.
+     *                  if null, cancel is sent to KeychainService instead
+     */
+    public static ProgressDialogFragment newInstance(String message, int style, boolean cancelable,
+                                                     Messenger messenger) {
         ProgressDialogFragment frag = new ProgressDialogFragment();
         Bundle args = new Bundle();
         args.putString(ARG_MESSAGE, message);
         args.putInt(ARG_STYLE, style);
         args.putBoolean(ARG_CANCELABLE, cancelable);
+        args.putParcelable(ARG_MESSENGER, messenger);
 
         frag.setArguments(args);
 
@@ -179,11 +193,19 @@ public class ProgressDialogFragment extends DialogFragment {
                 negative.setTextColor(Color.GRAY);
 
                 // send a cancel message. note that this message will be handled by
-                // KeychainService.onStartCommand, which runs in this thread,
+                // onStartCommand of the service, which runs in this thread,
                 // not the service one, and will not queue up a command.
-                Intent serviceIntent = new Intent(getActivity(), KeychainService.class);
-
-                serviceIntent.setAction(KeychainService.ACTION_CANCEL);
+                Messenger messenger = getArguments().getParcelable(ARG_MESSENGER);
+                Intent serviceIntent;
+                if (messenger != null) {
+                    // KeychainNewService runs several operations, the messenger picks ours
+                    serviceIntent = new Intent(getActivity(), KeychainNewService.class);
+                    serviceIntent.setAction(KeychainNewService.ACTION_CANCEL);
+                    serviceIntent.putExtra(KeychainNewService.EXTRA_MESSENGER, messenger);
+                } else {
+                    serviceIntent = new Intent(getActivity(), KeychainService.class);
+                    serviceIntent.setAction(KeychainService.ACTION_CANCEL);
+                }
                 getActivity().startService(serviceIntent);
 
                 // Set the progress bar accordingly
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.Keyserver;
+import org.sufficientlysecure.keychain.keyimport.KeyserverResolver;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Discovers keys for a batch of email addresses.
+ *
+ * Addresses are grouped by domain, so the keyserver of each domain is resolved only once.
+ * Resolved keyservers are kept in a cache for as long as their record's ttl allows. The
+ * keyserver searches themselves run concurrently on a bounded pool, and everything that
+ * did not finish before the overall deadline is cancelled.
+ */
+public class EmailKeyDiscovery {
+
+    public static final int DEFAULT_MAX_THREADS = 4;
+    public static final long DEFAULT_DEADLINE_MILLIS = 60 * 1000;
+
+    private final KeyserverResolver mResolver;
+    private final int mMaxThreads;
+    private final long mDeadlineMillis;
+
+    private final HashMap<String, CacheEntry> mResolverCache = new HashMap<>();
+
+    private static class CacheEntry {
+        final Keyserver mKeyserver;
+        final long mExpiry;
+
+        CacheEntry(Keyserver keyserver, long expiry) {
+            mKeyserver = keyserver;
+            mExpiry = expiry;
+        }
+    }
+
+    public EmailKeyDiscovery(KeyserverResolver resolver, int maxThreads, long deadlineMillis) {
+        mResolver = resolver;
+        mMaxThreads = maxThreads;
+        mDeadlineMillis = deadlineMillis;
+    }
+
+    /**
+     * @param mails the addresses to look up
+     * @param fallback keyserver to search for addresses whose domain has no keyserver, or
+     *                 whose keyserver returned no usable keys. May be null.
+     * @return all non-revoked, non-expired keys with a user id matching one of the addresses
+     */
+    public Set<ImportKeysListEntry> discover(List<String> mails, final Keyserver fallback) {
+        long deadline = currentTimeMillis() + mDeadlineMillis;
+
+        // group by domain, addresses without domain only go to the fallback keyserver
+        LinkedHashMap<String, List<String>> mailsByDomain = new LinkedHashMap<>();
+        for (String mail : mails) {
+            String[] mailparts = mail.split("@");
+            String domain = mailparts.length == 2 ? mailparts[1].toLowerCase(Locale.ENGLISH) : null;
+            List<String> domainMails = mailsByDomain.get(domain);
+            if (domainMails == null) {
+                domainMails = new ArrayList<>();
+                mailsByDomain.put(domain, domainMails);
+            }
+            domainMails.add(mail);
+        }
+
+        Set<ImportKeysListEntry> keys = new HashSet<>();
+
+        ExecutorService executor = new ThreadPoolExecutor(mMaxThreads, mMaxThreads,
+                0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+        try {
+            // one resolution per domain
+            HashMap<String, Future<Keyserver>> resolved = new HashMap<>();
+            for (final String domain : mailsByDomain.keySet()) {
+                if (domain == null) {
+                    continue;
+                }
+                resolved.put(domain, executor.submit(new Callable<Keyserver>() {
+                    @Override
+                    public Keyserver call() throws Exception {
+                        return resolveCached(domain);
+                    }
+                }));
+            }
+
+            // searches can start as soon as their domain is resolved
+            ArrayList<Future<List<ImportKeysListEntry>>> searches = new ArrayList<>();
+            for (Map.Entry<String, List<String>> entry : mailsByDomain.entrySet()) {
+                final Future<Keyserver> keyserver = resolved.get(entry.getKey());
+                for (final String mail : entry.getValue()) {
+                    searches.add(executor.submit(new Callable<List<ImportKeysListEntry>>() {
+                        @Override
+                        public List<ImportKeysListEntry> call() throws Exception {
+                            List<ImportKeysListEntry> result = new ArrayList<>();
+                            if (keyserver != null) {
+                                Keyserver domainKeyserver = getOrNull(keyserver);
+                                if (domainKeyserver != null) {
+                                    result.addAll(EmailKeyHelper.getEmailKeys(mail, domainKeyserver));
+                                }
+                            }
+                            // Most users don't have the SRV record, so ask a default server as well
+                            if (result.isEmpty() && fallback != null) {
+                                result.addAll(EmailKeyHelper.getEmailKeys(mail, fallback));
+                            }
+                            return result;
+                        }
+                    }));
+                }
+            }
+
+            for (Future<List<ImportKeysListEntry>> search : searches) {
+                long remaining = deadline - currentTimeMillis();
+                try {
+                    keys.addAll(search.get(Math.max(remaining, 0), TimeUnit.MILLISECONDS));
+                } catch (TimeoutException e) {
+                    Log.w(Constants.TAG, "Email key discovery exceeded deadline, cancelling");
+                    search.cancel(true);
+                } catch (ExecutionException e) {
+                    Log.w(Constants.TAG, "Email key search failed", e.getCause());
+                } catch (CancellationException e) {
+                    // ignore
+                } catch (InterruptedException e) {
+                    Log.w(Constants.TAG, "Email key discovery interrupted");
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return keys;
+    }
+
+    /**
+     * Returns the keyserver responsible for a domain, from the cache if it is still valid.
+     * Failed lookups are not cached.
+     */
+    Keyserver resolveCached(String domain) {
+        synchronized (mResolverCache) {
+            CacheEntry cached = mResolverCache.get(domain);
+            if (cached != null) {
+                if (cached.mExpiry > currentTimeMillis()) {
+                    return cached.mKeyserver;
+                }
+                mResolverCache.remove(domain);
+            }
+        }
+
+        KeyserverResolver.Result result;
+        try {
+            result = mResolver.resolve(domain);
+        } catch (Exception e) {
+            Log.d(Constants.TAG, "Keyserver lookup for " + domain + " failed", e);
+            return null;
+        }
+        if (result == null) {
+            return null;
+        }
+
+        synchronized (mResolverCache) {
+            mResolverCache.put(domain, new CacheEntry(result.mKeyserver,
+                    currentTimeMillis() + result.mTtlSeconds * 1000));
+        }
+        return result.mKeyserver;
+    }
+
+    private static Keyserver getOrNull(Future<Keyserver> future) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    /** Overridden in tests to control cache expiry. */
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+}
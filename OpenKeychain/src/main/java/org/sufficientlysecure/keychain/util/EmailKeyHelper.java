@@ -22,6 +22,7 @@ import android.content.Intent;
 import android.os.Bundle;
 import android.os.Messenger;
 
+import org.sufficientlysecure.keychain.keyimport.DnsKeyserverResolver;
 import org.sufficientlysecure.keychain.keyimport.HkpKeyserver;
 import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
 import org.sufficientlysecure.keychain.keyimport.Keyserver;
@@ -29,6 +30,7 @@ import org.sufficientlysecure.keychain.keyimport.ParcelableKeyRing;
 import org.sufficientlysecure.keychain.service.KeychainService;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -36,16 +38,16 @@ import java.util.Set;
 
 public class EmailKeyHelper {
 
+    // shared, so resolved keyservers are cached across calls
+    private static EmailKeyDiscovery sDiscovery;
+
     public static void importContacts(Context context, Messenger messenger) {
         importAll(context, messenger, ContactHelper.getContactMails(context));
     }
 
     public static void importAll(Context context, Messenger messenger, List<String> mails) {
         // Collect all candidates as ImportKeysListEntry (set for deduplication)
-        Set<ImportKeysListEntry> entries = new HashSet<>();
-        for (String mail : mails) {
-            entries.addAll(getEmailKeys(context, mail));
-        }
+        Set<ImportKeysListEntry> entries = getEmailKeys(context, mails);
 
         // Put them in a list and import
         ArrayList<ParcelableKeyRing> keys = new ArrayList<>(entries.size());
@@ -56,26 +58,28 @@ public class EmailKeyHelper {
     }
 
     public static Set<ImportKeysListEntry> getEmailKeys(Context context, String mail) {
-        Set<ImportKeysListEntry> keys = new HashSet<>();
+        return getEmailKeys(context, Collections.singletonList(mail));
+    }
 
-        // Try _hkp._tcp SRV record first
-        String[] mailparts = mail.split("@");
-        if (mailparts.length == 2) {
-            HkpKeyserver hkp = HkpKeyserver.resolve(mailparts[1]);
-            if (hkp != null) {
-                keys.addAll(getEmailKeys(mail, hkp));
-            }
+    /**
+     * Looks up keys for all addresses at once. Each domain is resolved only once, and the
+     * searches run in parallel, see {@link EmailKeyDiscovery}.
+     */
+    public static Set<ImportKeysListEntry> getEmailKeys(Context context, List<String> mails) {
+        Keyserver fallback = null;
+        String server = Preferences.getPreferences(context).getPreferredKeyserver();
+        if (server != null) {
+            fallback = new HkpKeyserver(server);
         }
+        return getDiscovery().discover(mails, fallback);
+    }
 
-        if (keys.isEmpty()) {
-            // Most users don't have the SRV record, so ask a default server as well
-            String server = Preferences.getPreferences(context).getPreferredKeyserver();
-            if (server != null) {
-                HkpKeyserver hkp = new HkpKeyserver(server);
-                keys.addAll(getEmailKeys(mail, hkp));
-            }
+    private static synchronized EmailKeyDiscovery getDiscovery() {
+        if (sDiscovery == null) {
+            sDiscovery = new EmailKeyDiscovery(new DnsKeyserverResolver(),
+                    EmailKeyDiscovery.DEFAULT_MAX_THREADS, EmailKeyDiscovery.DEFAULT_DEADLINE_MILLIS);
         }
-        return keys;
+        return sDiscovery;
     }
 
     private static void importKeys(Context context, Messenger messenger, ArrayList<ParcelableKeyRing> keys) {
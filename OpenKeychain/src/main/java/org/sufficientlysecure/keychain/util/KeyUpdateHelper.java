@@ -17,55 +17,113 @@
 
 package org.sufficientlysecure.keychain.util;
 
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.service.KeyRefreshService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Schedules the incremental background refresh of public keys from the keyserver.
+ *
+ * Instead of refreshing all keys at once, every run refreshes a small randomized slice of
+ * the keys which are due, sized so that all keys are refreshed once per refresh period.
+ * The actual work is done by {@link org.sufficientlysecure.keychain.operations.KeyRefreshOperation}.
+ */
 public class KeyUpdateHelper {
 
-    /*
+    /** interval between two refresh runs */
+    public static final long RUN_INTERVAL_MILLIS = 6 * 60 * 60 * 1000L;
 
-    public void updateAllKeys(Context context, KeychainIntentServiceHandler finishedHandler) {
-        UpdateTask updateTask = new UpdateTask(context, finishedHandler);
-        updateTask.execute();
+    /** upper bound for keys refreshed in a single run */
+    public static final int MAX_SLICE_SIZE = 1000;
+
+    public static class RefreshCandidate {
+        public final long mMasterKeyId;
+        public final String mFingerprint;
+        /** time of last refresh in seconds since epoch, 0 if never refreshed */
+        public final long mLastUpdated;
+
+        public RefreshCandidate(long masterKeyId, String fingerprint, long lastUpdated) {
+            mMasterKeyId = masterKeyId;
+            mFingerprint = fingerprint;
+            mLastUpdated = lastUpdated;
+        }
     }
 
-    private class UpdateTask extends AsyncTask<Void, Void, Void> {
-        private Context mContext;
-        private KeychainIntentServiceHandler mHandler;
+    /**
+     * Sets up the repeating alarm for key refresh, or cancels it if refresh is disabled.
+     * An existing alarm is left alone, so calling this on every app start doesn't keep
+     * pushing the next run back.
+     */
+    public static void scheduleKeyRefresh(Context context) {
+        Intent intent = new Intent(context, KeyRefreshService.class);
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
 
-        public UpdateTask(Context context, KeychainIntentServiceHandler handler) {
-            this.mContext = context;
-            this.mHandler = handler;
+        if (!Preferences.getPreferences(context).isKeyRefreshEnabled()) {
+            PendingIntent existing = PendingIntent.getService(context, 0, intent,
+                    PendingIntent.FLAG_NO_CREATE);
+            if (existing != null) {
+                Log.d(Constants.TAG, "Key refresh disabled, cancelling alarm");
+                alarmManager.cancel(existing);
+                existing.cancel();
+            }
+            return;
         }
 
-        @Override
-        protected Void doInBackground(Void... voids) {
-            ProviderHelper providerHelper = new ProviderHelper(mContext);
-            List<ImportKeysListEntry> keys = new ArrayList<ImportKeysListEntry>();
-            String[] servers = Preferences.getPreferences(mContext).getKeyServers();
-
-            if (servers != null && servers.length > 0) {
-                // Load all the fingerprints in the database and prepare to import them
-                for (String fprint : providerHelper.getAllFingerprints(KeychainContract.KeyRings.buildUnifiedKeyRingsUri())) {
-                    ImportKeysListEntry key = new ImportKeysListEntry();
-                    key.setFingerprintHex(fprint);
-                    key.addOrigin(servers[0]);
-                    keys.add(key);
-                }
-
-                // Start the service and update the keys
-                Intent importIntent = new Intent(mContext, KeychainService.class);
-                importIntent.setAction(KeychainService.ACTION_DOWNLOAD_AND_IMPORT_KEYS);
-
-                Bundle importData = new Bundle();
-                importData.putParcelableArrayList(KeychainService.DOWNLOAD_KEY_LIST,
-                        new ArrayList<ImportKeysListEntry>(keys));
-                importIntent.putExtra(KeychainService.EXTRA_SERVICE_INTENT, importData);
-
-                importIntent.putExtra(KeychainService.EXTRA_MESSENGER, new Messenger(mHandler));
-
-                mContext.startService(importIntent);
+        if (PendingIntent.getService(context, 0, intent, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        Log.d(Constants.TAG, "Scheduling background key refresh");
+        PendingIntent pendingIntent = PendingIntent.getService(context, 0, intent, 0);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME,
+                SystemClock.elapsedRealtime() + RUN_INTERVAL_MILLIS, RUN_INTERVAL_MILLIS, pendingIntent);
+    }
+
+    /**
+     * Number of keys to refresh per run, so that all keys are refreshed once per period.
+     */
+    public static int getSliceSize(int numKeys, long runIntervalMillis, long periodMillis) {
+        if (numKeys == 0) {
+            return 0;
+        }
+        long runsPerPeriod = Math.max(1, periodMillis / runIntervalMillis);
+        long slice = (numKeys + runsPerPeriod - 1) / runsPerPeriod;
+        return (int) Math.max(1, Math.min(slice, MAX_SLICE_SIZE));
+    }
+
+    /**
+     * Selects a random slice of the keys which are due for refresh, i.e. which have not been
+     * refreshed within the last period.
+     *
+     * @param nowSeconds current time in seconds since epoch
+     */
+    public static List<RefreshCandidate> selectKeysToRefresh(List<RefreshCandidate> candidates,
+            long nowSeconds, long periodMillis, int sliceSize, Random random) {
+        long dueBefore = nowSeconds - periodMillis / 1000;
+
+        ArrayList<RefreshCandidate> due = new ArrayList<>();
+        for (RefreshCandidate candidate : candidates) {
+            if (candidate.mLastUpdated <= dueBefore) {
+                due.add(candidate);
             }
-            return null;
         }
+
+        // randomize, so keyservers can't tell from the order which keys belong together
+        Collections.shuffle(due, random);
+        if (due.size() > sliceSize) {
+            return new ArrayList<>(due.subList(0, sliceSize));
+        }
+        return due;
     }
-    */
 
 }
@@ -19,25 +19,89 @@ package org.sufficientlysecure.keychain.util;
 
 import android.os.Parcel;
 
+import org.sufficientlysecure.keychain.Constants;
+
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 import java.util.UUID;
-import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * If Parcelables are above 1 MB, Android OS fails to send them via the Binder IPC:
  * JavaBinder  E  !!! FAILED BINDER TRANSACTION !!!
  * To overcome this issue this class allows to cache Parcelables, mapped by unique UUIDs,
  * which are written to the parcel instead of the whole Parcelable.
+ *
+ * An object is normally taken out of the cache by the receiver of the parcel. If the
+ * receiver never reads it, e.g. because its activity was killed, the object must not
+ * stay in memory forever: each object is held strongly only for a limited time, and
+ * only as long as the estimated size of all held objects stays within a budget. The
+ * oldest objects are released first. A released object is still kept as a weak
+ * reference, so it can be handed over as long as it hasn't been garbage collected.
  */
 public class ParcelableCache<E> {
 
     private static final UUID NULL_UUID = new UUID(0, 0);
 
+    public static final long DEFAULT_TTL = 10 * 60 * 1000;
+    public static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+
+    /** Estimates the memory used by a cached object, in bytes. */
+    public interface SizeEstimator<E> {
+        long estimateSize(E object);
+    }
+
+    private static class CacheEntry<E> {
+        E mObject;
+        final WeakReference<E> mWeakObject;
+        final long mExpiry;
+        final long mSize;
+
+        CacheEntry(E object, long expiry, long size) {
+            mObject = object;
+            mWeakObject = new WeakReference<>(object);
+            mExpiry = expiry;
+            mSize = size;
+        }
+
+        E get() {
+            return mObject != null ? mObject : mWeakObject.get();
+        }
+    }
+
+    private final long mTtl;
+    private final long mMaxBytes;
+    private final SizeEstimator<E> mSizeEstimator;
+
     /**
-     * A HashMap of UUID:Object
+     * A map of UUID:Object, in order of insertion.
      * This is used such that when we become parceled, we are
      * well below the 1 MB boundary that is specified.
      */
-    private ConcurrentHashMap<UUID, E> objectCache = new ConcurrentHashMap<>();
+    private final LinkedHashMap<UUID, CacheEntry<E>> mObjectCache = new LinkedHashMap<>();
+    private long mStrongBytes;
+
+    private int mHits, mWeakHits, mMisses, mExpired, mEvicted;
+
+    public ParcelableCache(SizeEstimator<E> sizeEstimator) {
+        this(DEFAULT_TTL, DEFAULT_MAX_BYTES, sizeEstimator);
+    }
+
+    /**
+     * @param ttl time in ms after which an object is only held weakly
+     * @param maxBytes maximum estimated size of all strongly held objects
+     */
+    public ParcelableCache(long ttl, long maxBytes, SizeEstimator<E> sizeEstimator) {
+        mTtl = ttl;
+        mMaxBytes = maxBytes;
+        mSizeEstimator = sizeEstimator;
+    }
+
+    /** Returns the current time in ms, may be overridden for testing. */
+    protected long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
 
     /**
      * Dehydrate a Parcelable (such that it is available after deparcelization)
@@ -46,14 +110,21 @@ public class ParcelableCache<E> {
      * @param parcelable A Parcelable to dehydrate
      * @return a UUID, the ticket for your dehydrated Parcelable
      */
-    private UUID dehydrateParcelable(E parcelable) {
+    private synchronized UUID dehydrateParcelable(E parcelable) {
         if (parcelable == null) {
             return NULL_UUID;
-        } else {
-            UUID uuid = UUID.randomUUID();
-            objectCache.put(uuid, parcelable);
-            return uuid;
         }
+
+        long now = getCurrentTime();
+        releaseExpired(now);
+
+        UUID uuid = UUID.randomUUID();
+        long size = mSizeEstimator.estimateSize(parcelable);
+        mObjectCache.put(uuid, new CacheEntry<>(parcelable, now + mTtl, size));
+        mStrongBytes += size;
+
+        releaseOverBudget();
+        return uuid;
     }
 
     /**
@@ -64,15 +135,58 @@ public class ParcelableCache<E> {
      * @param uuid A UUID ticket that identifies the log in question.
      * @return An OperationLog.
      */
-    private E rehydrateParcelable(UUID uuid) {
+    private synchronized E rehydrateParcelable(UUID uuid) {
         // UUID.equals isn't well documented; we use compareTo instead.
         if (NULL_UUID.compareTo(uuid) == 0) {
             return null;
+        }
+
+        CacheEntry<E> entry = mObjectCache.remove(uuid);
+        E parcelable = entry != null ? entry.get() : null;
+        if (parcelable == null) {
+            mMisses += 1;
+            Log.e(Constants.TAG, "ParcelableCache: object was released before it was read!");
+        } else if (entry.mObject == null) {
+            mWeakHits += 1;
         } else {
-            E parcelable = objectCache.get(uuid);
-            objectCache.remove(uuid);
-            return parcelable;
+            mHits += 1;
+            mStrongBytes -= entry.mSize;
         }
+
+        releaseExpired(getCurrentTime());
+        return parcelable;
+    }
+
+    /** Releases strong references to expired objects, and drops collected ones. */
+    private void releaseExpired(long now) {
+        Iterator<CacheEntry<E>> it = mObjectCache.values().iterator();
+        while (it.hasNext()) {
+            CacheEntry<E> entry = it.next();
+            if (entry.mObject != null && entry.mExpiry <= now) {
+                release(entry);
+                mExpired += 1;
+            }
+            if (entry.mObject == null && entry.mWeakObject.get() == null) {
+                it.remove();
+            }
+        }
+    }
+
+    /** Releases strong references to the oldest objects, until the rest fit into the budget. */
+    private void releaseOverBudget() {
+        Iterator<Entry<UUID, CacheEntry<E>>> it = mObjectCache.entrySet().iterator();
+        while (mStrongBytes > mMaxBytes && it.hasNext()) {
+            CacheEntry<E> entry = it.next().getValue();
+            if (entry.mObject != null) {
+                release(entry);
+                mEvicted += 1;
+            }
+        }
+    }
+
+    private void release(CacheEntry<E> entry) {
+        entry.mObject = null;
+        mStrongBytes -= entry.mSize;
     }
 
     public E readFromParcelAndGetFromCache(Parcel source) {
@@ -91,4 +205,39 @@ public class ParcelableCache<E> {
         dest.writeLong(mTicket.getLeastSignificantBits());
     }
 
+    /** Number of objects in the cache, including weakly held ones. */
+    public synchronized int size() {
+        return mObjectCache.size();
+    }
+
+    /** Estimated size of all strongly held objects. */
+    public synchronized long getStrongBytes() {
+        return mStrongBytes;
+    }
+
+    /** Number of objects read while still strongly held. */
+    public synchronized int getHitCount() {
+        return mHits;
+    }
+
+    /** Number of objects read after they had been released, but not yet collected. */
+    public synchronized int getWeakHitCount() {
+        return mWeakHits;
+    }
+
+    /** Number of objects which were no longer available when they were read. */
+    public synchronized int getMissCount() {
+        return mMisses;
+    }
+
+    /** Number of objects released because their time to live was over. */
+    public synchronized int getExpiredCount() {
+        return mExpired;
+    }
+
+    /** Number of objects released to stay within the size budget. */
+    public synchronized int getEvictedCount() {
+        return mEvicted;
+    }
+
 }
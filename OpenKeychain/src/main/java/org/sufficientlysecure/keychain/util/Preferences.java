@@ -224,6 +224,60 @@ public class Preferences {
         return mSharedPreferences.getBoolean(Pref.ENCRYPT_FILENAMES, true);
     }
 
+    public void setKeyRefreshEnabled(boolean keyRefreshEnabled) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.KEY_REFRESH_ENABLED, keyRefreshEnabled);
+        editor.commit();
+    }
+
+    public boolean isKeyRefreshEnabled() {
+        return mSharedPreferences.getBoolean(Pref.KEY_REFRESH_ENABLED, true);
+    }
+
+    public void setKeyRefreshPeriodDays(int days) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.KEY_REFRESH_PERIOD_DAYS, days);
+        editor.commit();
+    }
+
+    public int getKeyRefreshPeriodDays() {
+        return mSharedPreferences.getInt(Pref.KEY_REFRESH_PERIOD_DAYS, 7);
+    }
+
+    /** Enables the in-memory pool of pre-generated key pairs, see KeyPairPool. */
+    public void setKeyPoolEnabled(boolean keyPoolEnabled) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.KEY_POOL_ENABLED, keyPoolEnabled);
+        editor.commit();
+    }
+
+    public boolean isKeyPoolEnabled() {
+        return mSharedPreferences.getBoolean(Pref.KEY_POOL_ENABLED, false);
+    }
+
+    /** Sets the calibrated s2k count for secret key encryption, 0 to recalibrate. */
+    public void setS2kCount(int s2kCount) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putInt(Pref.S2K_COUNT, s2kCount);
+        editor.commit();
+    }
+
+    /** Returns the calibrated s2k count for secret key encryption, or 0 if not calibrated yet. */
+    public int getS2kCount() {
+        return mSharedPreferences.getInt(Pref.S2K_COUNT, 0);
+    }
+
+    /** Set after a database upgrade, until data for the new schema has been backfilled. */
+    public void setDatabaseBackfillPending(boolean pending) {
+        SharedPreferences.Editor editor = mSharedPreferences.edit();
+        editor.putBoolean(Pref.DATABASE_BACKFILL_PENDING, pending);
+        editor.commit();
+    }
+
+    public boolean isDatabaseBackfillPending() {
+        return mSharedPreferences.getBoolean(Pref.DATABASE_BACKFILL_PENDING, false);
+    }
+
     public CloudSearchPrefs getCloudSearchPrefs() {
         return new CloudSearchPrefs(mSharedPreferences.getBoolean(Pref.SEARCH_KEYSERVER, true),
                 mSharedPreferences.getBoolean(Pref.SEARCH_KEYBASE, true),
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.sufficientlysecure.keychain.pgp.Progressable;
+
+/**
+ * This is a simple class that wraps a Progressable, passing on at most a fixed number of
+ * progress updates per second.
+ *
+ * Updates which come in faster are dropped, except for those which change the message,
+ * or finish the progress, so the wrapped Progressable always ends up with the final state.
+ */
+public class ProgressCoalescer implements Progressable {
+
+    public static final int DEFAULT_UPDATES_PER_SECOND = 10;
+
+    /** Stands in for the message of updates which don't change it. */
+    private static final Object SAME_MESSAGE = new Object();
+
+    final Progressable mWrapped;
+    final long mMinInterval;
+
+    private long mLastUpdate;
+    private boolean mHasUpdated;
+    private Object mLastMessage;
+
+    public ProgressCoalescer(Progressable wrapped) {
+        this(wrapped, DEFAULT_UPDATES_PER_SECOND);
+    }
+
+    public ProgressCoalescer(Progressable wrapped, int updatesPerSecond) {
+        mWrapped = wrapped;
+        mMinInterval = 1000 / updatesPerSecond;
+    }
+
+    /** Returns the current time in ms, may be overridden for testing. */
+    protected long getCurrentTime() {
+        return System.currentTimeMillis();
+    }
+
+    /** Returns true if an update should be passed on, and records it if so. */
+    private synchronized boolean shouldUpdate(Object message, int progress, int max) {
+        long now = getCurrentTime();
+        boolean messageChanged = message != SAME_MESSAGE && (message == null
+                ? mLastMessage != null : !message.equals(mLastMessage));
+        if (mHasUpdated && !messageChanged && progress < max && now - mLastUpdate < mMinInterval) {
+            return false;
+        }
+        mHasUpdated = true;
+        mLastUpdate = now;
+        if (message != SAME_MESSAGE) {
+            mLastMessage = message;
+        }
+        return true;
+    }
+
+    @Override
+    public void setProgress(String message, int progress, int max) {
+        if (shouldUpdate(message, progress, max)) {
+            mWrapped.setProgress(message, progress, max);
+        }
+    }
+
+    @Override
+    public void setProgress(int resourceId, int progress, int max) {
+        if (shouldUpdate(resourceId, progress, max)) {
+            mWrapped.setProgress(resourceId, progress, max);
+        }
+    }
+
+    @Override
+    public void setProgress(int progress, int max) {
+        if (shouldUpdate(SAME_MESSAGE, progress, max)) {
+            mWrapped.setProgress(progress, max);
+        }
+    }
+
+    @Override
+    public void setPreventCancel() {
+        mWrapped.setPreventCancel();
+    }
+}
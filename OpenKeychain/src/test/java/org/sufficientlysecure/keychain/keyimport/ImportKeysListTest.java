@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.keyimport;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.util.ArrayList;
+import java.util.Locale;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ImportKeysListTest {
+
+    static final String HKP_ORIGIN = "hkp://keys.example.com:11371";
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testMergeByFingerprint() throws Exception {
+        ImportKeysList list = new ImportKeysList(2);
+
+        list.add(makeEntry(1, true, HKP_ORIGIN, "alice <alice@example.com>"));
+        list.add(makeEntry(2, true, HKP_ORIGIN, "bob <bob@example.com>"));
+
+        ImportKeysListEntry dupe = makeEntry(1, true, KeybaseKeyserver.ORIGIN, "alice (keybase)");
+        dupe.setRevoked(true);
+        dupe.setExtraData("alice");
+        Assert.assertTrue("merging new information must modify the list", list.addAll(asList(dupe)));
+
+        Assert.assertEquals("duplicate must be merged", 2, list.size());
+        ImportKeysListEntry merged = list.get(0);
+        Assert.assertEquals("insertion order must be preserved",
+                fingerprint(1), merged.getFingerprintHex());
+        Assert.assertTrue("revocation must be merged", merged.isRevoked());
+        Assert.assertEquals("keybase extra data must be merged", "alice", merged.getExtraData());
+        Assert.assertEquals("origins must be merged", 2, merged.getOrigins().size());
+        Assert.assertEquals("keybase user ids must be appended",
+                "alice (keybase)", merged.getUserIds().get(1));
+
+        ImportKeysListEntry hkpDupe = makeEntry(1, true, HKP_ORIGIN, "alice <alice@example.org>");
+        list.add(hkpDupe);
+        Assert.assertEquals("hkp user ids must be prepended",
+                "alice <alice@example.org>", merged.getUserIds().get(0));
+    }
+
+    @Test
+    public void testMergeByKeyId() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+
+        // entry from a server that only returns the long key id
+        list.add(makeEntry(3, false, HKP_ORIGIN, "carol <carol@example.com>"));
+        list.add(makeEntry(3, true, KeybaseKeyserver.ORIGIN, "carol"));
+
+        Assert.assertEquals("entry without fingerprint must be merged by key id", 1, list.size());
+        Assert.assertEquals("merged entry must learn the fingerprint",
+                fingerprint(3), list.get(0).getFingerprintHex());
+
+        list.add(makeEntry(3, false, HKP_ORIGIN, "carol <carol@example.org>"));
+        Assert.assertEquals("entry must be merged by key id", 1, list.size());
+        Assert.assertEquals(3, list.get(0).getUserIds().size());
+    }
+
+    @Test
+    public void testNoMergeOfDifferentFingerprintsWithSameKeyId() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+
+        ImportKeysListEntry first = makeEntry(4, true, HKP_ORIGIN, "dave");
+        ImportKeysListEntry second = makeEntry(4, true, HKP_ORIGIN, "mallory");
+        second.setFingerprintHex("ff" + fingerprint(4).substring(2));
+        list.add(first);
+        list.add(second);
+
+        Assert.assertEquals("colliding key ids must not merge different keys", 2, list.size());
+    }
+
+    @Test
+    public void testMergeMany() throws Exception {
+        final int count = 5000;
+
+        ArrayList<ImportKeysListEntry> hkpResults = new ArrayList<>(count);
+        ArrayList<ImportKeysListEntry> keybaseResults = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hkpResults.add(makeEntry(i, true, HKP_ORIGIN, "user " + i + " <user" + i + "@example.com>"));
+            keybaseResults.add(makeEntry(i, true, KeybaseKeyserver.ORIGIN, "user" + i));
+        }
+
+        ImportKeysList list = new ImportKeysList(2);
+        list.addAll(hkpResults);
+        list.addAll(keybaseResults);
+
+        Assert.assertEquals("all duplicates must be merged", count, list.size());
+        for (int i = 0; i < count; i += 100) {
+            Assert.assertEquals("insertion order must be preserved",
+                    fingerprint(i), list.get(i).getFingerprintHex());
+            Assert.assertEquals(2, list.get(i).getUserIds().size());
+        }
+    }
+
+    @Test
+    public void testIndexesFollowRemovals() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+        ImportKeysListEntry alice = makeEntry(1, true, HKP_ORIGIN, "alice");
+        ImportKeysListEntry bob = makeEntry(2, false, HKP_ORIGIN, "bob");
+        list.add(alice);
+        list.add(bob);
+
+        list.remove(alice);
+        list.add(makeEntry(1, true, HKP_ORIGIN, "alice again"));
+        Assert.assertEquals("removed entry must not be merged into", 2, list.size());
+        Assert.assertEquals("removed entry must stay unchanged", 1, alice.getUserIds().size());
+
+        list.remove(0);
+        list.add(makeEntry(2, false, HKP_ORIGIN, "bob again"));
+        Assert.assertEquals("removed entry must not be merged into by key id", 2, list.size());
+        Assert.assertEquals("removed entry must stay unchanged", 1, bob.getUserIds().size());
+
+        ImportKeysListEntry carol = makeEntry(3, true, HKP_ORIGIN, "carol");
+        ImportKeysListEntry replaced = list.set(0, carol);
+        list.add(makeEntry(3, true, HKP_ORIGIN, "carol again"));
+        Assert.assertEquals("replacing entry must be merged into", 2, carol.getUserIds().size());
+        list.add(makeEntry(1, true, HKP_ORIGIN, "alice once more"));
+        Assert.assertEquals("replaced entry must not be merged into", 3, list.size());
+        Assert.assertEquals(1, replaced.getUserIds().size());
+
+        list.removeAll(asList(carol));
+        list.add(makeEntry(3, true, HKP_ORIGIN, "carol once more"));
+        Assert.assertEquals("entry removed with removeAll must not be merged into",
+                2, carol.getUserIds().size());
+
+        list.clear();
+        list.add(makeEntry(3, true, HKP_ORIGIN, "carol"));
+        Assert.assertEquals("cleared list must start over", 1, list.size());
+    }
+
+    @Test
+    public void testInsertAtIndexMerges() throws Exception {
+        ImportKeysList list = new ImportKeysList(1);
+        list.add(makeEntry(1, true, HKP_ORIGIN, "alice"));
+        list.add(0, makeEntry(2, true, HKP_ORIGIN, "bob"));
+        list.add(0, makeEntry(1, true, KeybaseKeyserver.ORIGIN, "alice (keybase)"));
+
+        Assert.assertEquals("inserted duplicate must be merged", 2, list.size());
+        Assert.assertEquals("new entry must be inserted at index", fingerprint(2), list.get(0).getFingerprintHex());
+        Assert.assertEquals(2, list.get(1).getUserIds().size());
+    }
+
+    static String fingerprint(long i) {
+        return String.format(Locale.ENGLISH, "%024x%016x", i * 31, i);
+    }
+
+    static ImportKeysListEntry makeEntry(long i, boolean withFingerprint, String origin, String userId) {
+        ImportKeysListEntry entry = new ImportKeysListEntry();
+        entry.addOrigin(origin);
+        if (withFingerprint) {
+            entry.setFingerprintHex(fingerprint(i));
+        }
+        entry.setKeyIdHex(String.format(Locale.ENGLISH, "0x%016x", i));
+        ArrayList<String> userIds = new ArrayList<>();
+        userIds.add(userId);
+        entry.setUserIds(userIds);
+        return entry;
+    }
+
+    static ArrayList<ImportKeysListEntry> asList(ImportKeysListEntry entry) {
+        ArrayList<ImportKeysListEntry> list = new ArrayList<>();
+        list.add(entry);
+        return list;
+    }
+
+}
@@ -30,7 +30,10 @@ import org.spongycastle.bcpg.sig.KeyFlags;
 import org.spongycastle.jce.provider.BouncyCastleProvider;
 import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.Keyserver;
 import org.sufficientlysecure.keychain.operations.results.CertifyResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedPublicKeyRing;
@@ -45,6 +48,7 @@ import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
 import org.sufficientlysecure.keychain.service.input.CryptoInputParcel;
+import org.sufficientlysecure.keychain.ui.util.KeyFormattingUtils;
 import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 import org.sufficientlysecure.keychain.util.TestingUtils;
@@ -52,13 +56,18 @@ import org.sufficientlysecure.keychain.util.TestingUtils;
 import java.io.PrintStream;
 import java.security.Security;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @RunWith(RobolectricGradleTestRunner.class)
 @Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
 public class CertifyOperationTest {
 
-    static UncachedKeyRing mStaticRing1, mStaticRing2;
+    static UncachedKeyRing mStaticRing1, mStaticRing2, mStaticRing3;
     static Passphrase mKeyPhrase1 = TestingUtils.genPassphrase(true);
     static Passphrase mKeyPhrase2 = TestingUtils.genPassphrase(true);
 
@@ -116,6 +125,20 @@ public class CertifyOperationTest {
             mStaticRing2 = result.getRing();
         }
 
+        {
+            SaveKeyringParcel parcel = new SaveKeyringParcel();
+            parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                    Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+            parcel.mAddUserIds.add("dorf");
+            parcel.mNewUnlock = new ChangeUnlockParcel(mKeyPhrase2);
+
+            PgpEditKeyResult result = op.createSecretKeyRing(parcel);
+            Assert.assertTrue("initial test key creation must succeed", result.success());
+            Assert.assertNotNull("initial test key creation must succeed", result.getRing());
+
+            mStaticRing3 = result.getRing();
+        }
+
     }
 
     @Before
@@ -127,6 +150,7 @@ public class CertifyOperationTest {
 
         providerHelper.saveSecretKeyRing(mStaticRing1, new ProgressScaler());
         providerHelper.savePublicKeyRing(mStaticRing2.extractPublicKeyRing(), new ProgressScaler());
+        providerHelper.savePublicKeyRing(mStaticRing3.extractPublicKeyRing(), new ProgressScaler());
 
         // ok NOW log verbosely!
         ShadowLog.stream = System.out;
@@ -200,6 +224,104 @@ public class CertifyOperationTest {
     }
 
 
+    @Test
+    public void testCertifyMultiple() throws Exception {
+        CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null);
+
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        actions.add(new CertifyAction(1234L, mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        actions.add(new CertifyAction(mStaticRing3.getMasterKeyId(),
+                mStaticRing3.getPublicKey().getUnorderedUserIds()));
+        CertifyResult result = op.execute(actions, new CryptoInputParcel(mKeyPhrase1));
+
+        Assert.assertTrue("certification must succeed", result.success());
+        Assert.assertTrue("must contain error msg about not found",
+                result.getLog().containsType(LogType.MSG_CRT_WARN_NOT_FOUND));
+
+        ArrayList<Object> certifiedKeyIds = new ArrayList<>();
+        for (LogEntryParcel entry : result.getLog()) {
+            if (entry.mType == LogType.MSG_CRT_CERTIFY_UIDS) {
+                certifiedKeyIds.add(entry.mParameters[1]);
+            }
+        }
+        Assert.assertEquals("certification logs must be in the order of the actions", Arrays.asList(
+                KeyFormattingUtils.convertKeyIdToHex(mStaticRing2.getMasterKeyId()),
+                KeyFormattingUtils.convertKeyIdToHex(mStaticRing3.getMasterKeyId())), certifiedKeyIds);
+
+        for (UncachedKeyRing certified : new UncachedKeyRing[] { mStaticRing2, mStaticRing3 }) {
+            CanonicalizedPublicKeyRing ring = new ProviderHelper(RuntimeEnvironment.application)
+                    .getCanonicalizedPublicKeyRing(certified.getMasterKeyId());
+            Assert.assertEquals("all certified keys must be verified now",
+                    Certs.VERIFIED_SECRET, ring.getVerified());
+        }
+        Assert.assertNull("nothing must be uploaded without a keyserver",
+                result.getUploadStatus(mStaticRing2.getMasterKeyId()));
+    }
+
+    @Test
+    public void testUploadRetry() throws Exception {
+        CertifyActionsParcel actions = new CertifyActionsParcel(mStaticRing1.getMasterKeyId());
+        actions.add(new CertifyAction(mStaticRing2.getMasterKeyId(),
+                mStaticRing2.getPublicKey().getUnorderedUserIds()));
+        actions.add(new CertifyAction(mStaticRing3.getMasterKeyId(),
+                mStaticRing3.getPublicKey().getUnorderedUserIds()));
+        actions.keyServerUri = "hkp://keyserver.example.com";
+
+        { // a keyserver which fails all but the last attempt
+            FailingKeyserver keyserver = new FailingKeyserver(CertifyOperation.UPLOAD_MAX_ATTEMPTS - 1);
+            ArrayList<Long> waits = new ArrayList<>();
+            CertifyResult result = operationWithKeyserver(keyserver, waits)
+                    .execute(actions, new CryptoInputParcel(mKeyPhrase1));
+
+            Assert.assertTrue("certification must succeed", result.success());
+            Assert.assertEquals("upload must succeed after retries", (Integer) CertifyResult.UPLOAD_OK,
+                    result.getUploadStatus(mStaticRing2.getMasterKeyId()));
+            Assert.assertEquals("upload must succeed after retries", (Integer) CertifyResult.UPLOAD_OK,
+                    result.getUploadStatus(mStaticRing3.getMasterKeyId()));
+            Assert.assertEquals("each key must be uploaded until it succeeds",
+                    2 * CertifyOperation.UPLOAD_MAX_ATTEMPTS, keyserver.mAttempts.get());
+            Assert.assertEquals("retries must be logged",
+                    2 * (CertifyOperation.UPLOAD_MAX_ATTEMPTS - 1),
+                    result.getLog().getCount(LogType.MSG_CRT_UPLOAD_RETRY));
+            ArrayList<Object> retryAttempts = new ArrayList<>();
+            for (LogEntryParcel entry : result.getLog()) {
+                if (entry.mType == LogType.MSG_CRT_UPLOAD_RETRY) {
+                    retryAttempts.add(entry.mParameters[0]);
+                }
+            }
+            Assert.assertEquals("retries must be logged with the number of the next attempt",
+                    2, retryAttempts.get(0));
+            Assert.assertEquals("last retry must be the last attempt",
+                    CertifyOperation.UPLOAD_MAX_ATTEMPTS, retryAttempts.get(retryAttempts.size() - 1));
+
+            Collections.sort(waits);
+            Assert.assertEquals("backoff must double with each retry", Arrays.asList(
+                    CertifyOperation.UPLOAD_INITIAL_BACKOFF_MILLIS,
+                    CertifyOperation.UPLOAD_INITIAL_BACKOFF_MILLIS,
+                    2 * CertifyOperation.UPLOAD_INITIAL_BACKOFF_MILLIS,
+                    2 * CertifyOperation.UPLOAD_INITIAL_BACKOFF_MILLIS), waits);
+        }
+
+        { // a keyserver which always fails
+            FailingKeyserver keyserver = new FailingKeyserver(Integer.MAX_VALUE);
+            CertifyResult result = operationWithKeyserver(keyserver, new ArrayList<Long>())
+                    .execute(actions, new CryptoInputParcel(mKeyPhrase1));
+
+            Assert.assertTrue("certification must succeed even if the upload fails", result.success());
+            Assert.assertEquals("upload must fail", (Integer) CertifyResult.UPLOAD_ERROR,
+                    result.getUploadStatus(mStaticRing2.getMasterKeyId()));
+            Assert.assertEquals("upload must fail", (Integer) CertifyResult.UPLOAD_ERROR,
+                    result.getUploadStatus(mStaticRing3.getMasterKeyId()));
+            Assert.assertEquals("upload must give up after the maximum number of attempts",
+                    2 * CertifyOperation.UPLOAD_MAX_ATTEMPTS, keyserver.mAttempts.get());
+            Assert.assertEquals("failed uploads must be logged",
+                    2, result.getLog().getCount(LogType.MSG_CRT_WARN_UPLOAD_FAILED));
+        }
+    }
+
     @Test
     public void testCertifySelf() throws Exception {
         CertifyOperation op = new CertifyOperation(RuntimeEnvironment.application,
@@ -216,6 +338,53 @@ public class CertifyOperationTest {
                 result.getLog().containsType(LogType.MSG_CRT_ERROR_SELF));
     }
 
+    private CertifyOperation operationWithKeyserver(final Keyserver keyserver, final List<Long> waits) {
+        return new CertifyOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), null, null) {
+            @Override
+            protected Keyserver createKeyserver(String keyServerUri) {
+                return keyserver;
+            }
+
+            @Override
+            protected void waitBeforeRetry(long millis) {
+                synchronized (waits) {
+                    waits.add(millis);
+                }
+            }
+        };
+    }
+
+    /** A keyserver which fails the first attempts to add each key. */
+    static class FailingKeyserver extends Keyserver {
+        final int mFailures;
+        final AtomicInteger mAttempts = new AtomicInteger();
+        final ConcurrentHashMap<String, AtomicInteger> mAttemptsPerKey = new ConcurrentHashMap<>();
+
+        FailingKeyserver(int failures) {
+            mFailures = failures;
+        }
+
+        @Override
+        public List<ImportKeysListEntry> search(String query) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String get(String keyIdHex) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void add(String armoredKey) throws AddKeyException {
+            mAttempts.incrementAndGet();
+            mAttemptsPerKey.putIfAbsent(armoredKey, new AtomicInteger());
+            if (mAttemptsPerKey.get(armoredKey).incrementAndGet() <= mFailures) {
+                throw new AddKeyException();
+            }
+        }
+    }
+
     @Test
     public void testCertifyNonexistent() throws Exception {
 
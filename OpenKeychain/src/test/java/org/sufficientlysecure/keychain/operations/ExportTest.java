@@ -17,6 +17,8 @@
 
 package org.sufficientlysecure.keychain.operations;
 
+import android.database.Cursor;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -34,11 +36,14 @@ import org.sufficientlysecure.keychain.BuildConfig;
 import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.operations.results.ExportResult;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.Progressable;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing.IteratorWithIOThrow;
 import org.sufficientlysecure.keychain.pgp.WrappedSignature;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
 import org.sufficientlysecure.keychain.provider.ProviderHelper;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
@@ -51,6 +56,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.PrintStream;
 import java.security.Security;
+import java.util.ArrayList;
 import java.util.Iterator;
 
 @RunWith(RobolectricGradleTestRunner.class)
@@ -215,6 +221,88 @@ public class ExportTest {
 
     }
 
+    @Test
+    public void testExportStored() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        ImportExportOperation op = new ImportExportOperation(RuntimeEnvironment.application,
+                providerHelper, null);
+
+        Assert.assertNotNull("keyring without local certification must have export checksum",
+                getExportChecksum(providerHelper, mStaticRing1.getMasterKeyId()));
+        Assert.assertNull("keyring with local certification must not have export checksum",
+                getExportChecksum(providerHelper, mStaticRing2.getMasterKeyId()));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OperationLog log = new OperationLog();
+        ExportResult result = op.exportKeyRings(log, null, true, out);
+
+        Assert.assertTrue("export must be a success", result.success());
+        Assert.assertTrue("stored keyring data must be exported as is",
+                log.containsType(LogType.MSG_EXPORT_STORED));
+        Assert.assertFalse("stored checksums must match",
+                log.containsType(LogType.MSG_EXPORT_WARN_CHECKSUM));
+
+        IteratorWithIOThrow<UncachedKeyRing> unc =
+                UncachedKeyRing.fromStream(new ByteArrayInputStream(out.toByteArray()));
+        int count = 0;
+        while (unc.hasNext()) {
+            UncachedKeyRing ring = unc.next();
+            Assert.assertFalse("there must be no local signatures in an exported keyring",
+                    checkForLocal(ring));
+            count += 1;
+        }
+        Assert.assertEquals("export must have four keys", 4, count);
+
+    }
+
+    private byte[] getExportChecksum(ProviderHelper providerHelper, long masterKeyId) {
+        Cursor cursor = providerHelper.getContentResolver().query(
+                KeyRingData.buildPublicKeyRingUri(masterKeyId),
+                new String[] { KeyRingData.EXPORT_CHECKSUM }, null, null, null);
+        try {
+            Assert.assertTrue("keyring must be in database", cursor.moveToFirst());
+            return cursor.getBlob(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test
+    public void testExportProgress() throws Exception {
+        final ArrayList<Integer> progress = new ArrayList<>();
+        ImportExportOperation op = new ImportExportOperation(RuntimeEnvironment.application,
+                new ProviderHelper(RuntimeEnvironment.application), new Progressable() {
+            @Override
+            public void setProgress(String message, int current, int total) {
+                if (total == 1000) {
+                    progress.add(current);
+                }
+            }
+
+            @Override
+            public void setProgress(int resourceId, int current, int total) {
+            }
+
+            @Override
+            public void setProgress(int current, int total) {
+            }
+
+            @Override
+            public void setPreventCancel() {
+            }
+        });
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ExportResult result = op.exportKeyRings(new OperationLog(), null, true, out);
+
+        Assert.assertTrue("export must be a success", result.success());
+        Assert.assertEquals("progress must be reported once per keyring", 2, progress.size());
+        Assert.assertTrue("progress must not decrease", progress.get(0) <= progress.get(1));
+        Assert.assertEquals("progress must be complete once all bytes are written",
+                1000, (int) progress.get(1));
+
+    }
+
     /** This function checks whether or not there are any local signatures in a keyring. */
     private boolean checkForLocal(UncachedKeyRing ring) {
         Iterator<WrappedSignature> sigs = ring.getPublicKey().getSignatures();
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.operations.results;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.SubLogEntryParcel;
+
+import java.util.List;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationLogTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testParametersKeepTheirTypes() throws Exception {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, 5);
+        log.add(LogType.MSG_IMPORT_KEYSERVER, 1, "hkp://example.com");
+        log.add(LogType.MSG_DC_ASYM, 2, 0x1234567890L, 'c');
+        log.add(LogType.MSG_IMPORT_SUCCESS, 1);
+
+        List<LogEntryParcel> entries = log.toList();
+        Assert.assertEquals(4, entries.size());
+
+        Assert.assertEquals(LogType.MSG_IMPORT, entries.get(0).mType);
+        Assert.assertEquals(0, entries.get(0).mIndent);
+        Assert.assertEquals("int parameters must stay Integer, they are used as quantity",
+                5, entries.get(0).mParameters[0]);
+
+        Assert.assertEquals("hkp://example.com", entries.get(1).mParameters[0]);
+        Assert.assertEquals(0x1234567890L, entries.get(2).mParameters[0]);
+        Assert.assertEquals('c', entries.get(2).mParameters[1]);
+        Assert.assertEquals(2, entries.get(2).mIndent);
+
+        Assert.assertNull("entries without parameters must have none", entries.get(3).mParameters);
+        Assert.assertEquals(LogType.MSG_IMPORT_SUCCESS, log.getLast().mType);
+    }
+
+    @Test
+    public void testSubResults() throws Exception {
+        OperationLog subLog = new OperationLog();
+        subLog.add(LogType.MSG_IP, 0, "sub");
+        subLog.add(LogType.MSG_IP_SUCCESS, 1);
+
+        OperationLog log = new OperationLog();
+        log.add(new SaveKeyringResult(SaveKeyringResult.SAVED_PUBLIC, subLog, null), 2);
+
+        Assert.assertTrue(log.isSingleCompound());
+        LogEntryParcel entry = log.getFirst();
+        Assert.assertTrue(entry instanceof SubLogEntryParcel);
+        Assert.assertEquals(LogType.MSG_IP, entry.mType);
+        Assert.assertEquals(2, entry.mIndent);
+        Assert.assertEquals("sub", entry.mParameters[0]);
+        Assert.assertSame(subLog, ((SubLogEntryParcel) entry).getSubResult().getLog());
+    }
+
+    @Test
+    public void testContainsWarnings() throws Exception {
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, 1);
+        Assert.assertFalse(log.containsWarnings());
+        log.add(LogType.MSG_IP_BAD_TYPE_SECRET, 1);
+        Assert.assertTrue(log.containsWarnings());
+        Assert.assertTrue(log.containsType(LogType.MSG_IP_BAD_TYPE_SECRET));
+
+        log.clear();
+        Assert.assertTrue(log.isEmpty());
+        Assert.assertFalse(log.containsWarnings());
+    }
+
+    @Test
+    public void testBoundedLog() throws Exception {
+        OperationLog log = new OperationLog(3, 2);
+        log.add(LogType.MSG_IMPORT, 0, 100);
+        for (int i = 0; i < 100; i++) {
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "key " + i);
+        }
+        log.add(LogType.MSG_IMPORT_SUCCESS, 1);
+
+        Assert.assertEquals("head, omitted entry and tail", 3 + 1 + 2, log.size());
+        Assert.assertEquals(101 - 3 - 1, log.getOmittedCount());
+        Assert.assertEquals("counts must include omitted entries",
+                100, log.getCount(LogType.MSG_IMPORT_FETCH_KEYSERVER));
+
+        List<LogEntryParcel> entries = log.toList();
+        Assert.assertEquals(6, entries.size());
+        Assert.assertEquals(LogType.MSG_IMPORT, entries.get(0).mType);
+        Assert.assertEquals("key 1", entries.get(2).mParameters[0]);
+        Assert.assertEquals(LogType.MSG_LOG_OMITTED, entries.get(3).mType);
+        Assert.assertEquals(97, entries.get(3).mParameters[0]);
+        Assert.assertEquals("key 99", entries.get(4).mParameters[0]);
+        Assert.assertEquals(LogType.MSG_IMPORT_SUCCESS, log.getLast().mType);
+    }
+
+    @Test
+    public void testBoundedLogKeepsWarnings() throws Exception {
+        OperationLog log = new OperationLog(2, 2);
+        log.add(LogType.MSG_IMPORT, 0, 10);
+        log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "first");
+        log.add(LogType.MSG_IP_BAD_TYPE_SECRET, 1);
+        for (int i = 0; i < 10; i++) {
+            log.add(LogType.MSG_IMPORT_FETCH_KEYSERVER, 1, "key " + i);
+        }
+
+        Assert.assertTrue("warning must be found even if its entry was omitted",
+                log.containsWarnings());
+        Assert.assertTrue(log.containsType(LogType.MSG_IP_BAD_TYPE_SECRET));
+    }
+
+    @Test
+    public void testAddAll() throws Exception {
+        OperationLog first = new OperationLog();
+        first.add(LogType.MSG_IMPORT, 0, 2);
+        first.add(LogType.MSG_IMPORT_KEYSERVER, 1, "hkp://example.com");
+
+        OperationLog log = new OperationLog();
+        log.add(LogType.MSG_IMPORT, 0, 4);
+        log.addAll(first);
+        log.addAll(first.toList());
+
+        Assert.assertEquals(5, log.size());
+        Assert.assertEquals(3, log.getCount(LogType.MSG_IMPORT));
+        Assert.assertEquals("hkp://example.com", log.getLast().mParameters[0]);
+    }
+
+    @Test
+    public void testParcelResultWithReleasedLog() throws Exception {
+        SingletonResult result = new SingletonResult(OperationResult.RESULT_OK, LogType.MSG_IMPORT);
+
+        Parcel parcel = Parcel.obtain();
+        result.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        SingletonResult read = SingletonResult.CREATOR.createFromParcel(parcel);
+        Assert.assertEquals("log must be handed over", LogType.MSG_IMPORT, read.getLog().getLast().mType);
+
+        // the log was taken out of the cache by the first read, just like a released one
+        parcel.setDataPosition(0);
+        SingletonResult late = SingletonResult.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        Assert.assertTrue("result must still be readable", late.success());
+        Assert.assertEquals("missing log must be replaced", LogType.MSG_LOG_EXPIRED,
+                late.getLog().getLast().mType);
+    }
+
+    @Test
+    public void testEntriesArePrintedOnce() throws Exception {
+        int printed = countPrintedEntries();
+
+        OperationLog log = new OperationLog(1, 1);
+        log.add(LogType.MSG_IMPORT, 0, 2);
+        log.add(LogType.MSG_IMPORT_KEYSERVER, 1, "hkp://example.com");
+        log.add(LogType.MSG_IMPORT_KEYSERVER, 1, "hkp://example.org");
+        int expected = printed + (Constants.DEBUG ? 3 : 0);
+        Assert.assertEquals("entries must be printed when added", expected, countPrintedEntries());
+
+        for (int i = 0; i < 3; i++) {
+            for (LogEntryParcel entry : log) {
+                Assert.assertNotNull(entry);
+            }
+            log.getFirst();
+            log.getLast();
+        }
+        Assert.assertEquals("entries must not be printed again when read", expected, countPrintedEntries());
+    }
+
+    private static int countPrintedEntries() {
+        int count = 0;
+        for (ShadowLog.LogItem item : ShadowLog.getLogs()) {
+            if (item.msg.startsWith("log: ")) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testParcelEntry() throws Exception {
+        LogEntryParcel entry = new LogEntryParcel(LogType.MSG_DC_ASYM, 3, 7, 42L, "text");
+
+        Parcel parcel = Parcel.obtain();
+        entry.writeToParcel(parcel, 0);
+        parcel.setDataPosition(0);
+        LogEntryParcel read = LogEntryParcel.CREATOR.createFromParcel(parcel);
+        parcel.recycle();
+
+        Assert.assertEquals(LogType.MSG_DC_ASYM, read.mType);
+        Assert.assertEquals(3, read.mIndent);
+        Assert.assertArrayEquals(new Object[] { 7, 42L, "text" }, read.mParameters);
+    }
+
+}
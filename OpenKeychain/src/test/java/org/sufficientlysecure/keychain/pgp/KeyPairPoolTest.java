@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.security.KeyPair;
+import java.security.Security;
+import java.util.Arrays;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyPairPoolTest {
+
+    static final KeyPairPool.Spec EC_SPEC = new KeyPairPool.Spec(Algorithm.ECDSA, null, Curve.NIST_P256);
+    static final KeyPairPool.Spec RSA_SPEC = new KeyPairPool.Spec(Algorithm.RSA, 1024, null);
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        KeyPairPool.getInstance().setTargetDepth(RSA_SPEC, 0);
+    }
+
+    @Test
+    public void testSpec() throws Exception {
+        Assert.assertEquals(RSA_SPEC, new KeyPairPool.Spec(Algorithm.RSA, 1024, Curve.NIST_P256));
+        Assert.assertEquals(RSA_SPEC.hashCode(),
+                new KeyPairPool.Spec(Algorithm.RSA, 1024, Curve.NIST_P256).hashCode());
+        Assert.assertEquals(EC_SPEC, new KeyPairPool.Spec(Algorithm.ECDSA, 4096, Curve.NIST_P256));
+        Assert.assertFalse(RSA_SPEC.equals(new KeyPairPool.Spec(Algorithm.RSA, 2048, null)));
+        Assert.assertFalse(EC_SPEC.equals(new KeyPairPool.Spec(Algorithm.ECDH, null, Curve.NIST_P256)));
+    }
+
+    @Test
+    public void testFillAndTake() throws Exception {
+        KeyPairPool pool = new KeyPairPool();
+        pool.setTargetDepth(KeyPairPool.DEFAULT_SPEC, 0);
+        pool.setTargetDepth(EC_SPEC, 2);
+
+        Assert.assertNull("empty pool must not return key pairs", pool.take(EC_SPEC));
+        Assert.assertEquals(1, pool.getMissCount());
+        Assert.assertEquals(-1, pool.getAverageGenerationMillis(EC_SPEC));
+
+        Assert.assertTrue(pool.fillOne());
+        Assert.assertTrue(pool.fillOne());
+        Assert.assertFalse("full pool must not be filled further", pool.fillOne());
+        Assert.assertNull(pool.getMissingSpec());
+        Assert.assertEquals(2, pool.getDepth(EC_SPEC));
+        Assert.assertTrue(pool.getAverageGenerationMillis(EC_SPEC) >= 0);
+
+        KeyPair first = pool.take(EC_SPEC);
+        KeyPair second = pool.take(EC_SPEC);
+        Assert.assertNotNull(first);
+        Assert.assertNotNull(second);
+        Assert.assertFalse("key pairs must only be handed out once", Arrays.equals(
+                first.getPublic().getEncoded(), second.getPublic().getEncoded()));
+        Assert.assertEquals(2, pool.getHitCount());
+        Assert.assertEquals(0, pool.getDepth(EC_SPEC));
+        Assert.assertEquals(EC_SPEC, pool.getMissingSpec());
+
+        Assert.assertNull(pool.take(RSA_SPEC));
+        Assert.assertFalse("specs without target depth must not be pooled",
+                pool.put(RSA_SPEC, first));
+    }
+
+    @Test
+    public void testTargetDepth() throws Exception {
+        KeyPairPool pool = new KeyPairPool();
+        Assert.assertEquals(KeyPairPool.DEFAULT_SPEC, pool.getMissingSpec());
+
+        pool.setTargetDepth(KeyPairPool.DEFAULT_SPEC, 0);
+        pool.setTargetDepth(EC_SPEC, 3);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(pool.put(EC_SPEC, pool.generate(EC_SPEC)));
+        }
+        Assert.assertFalse(pool.put(EC_SPEC, pool.generate(EC_SPEC)));
+
+        pool.setTargetDepth(EC_SPEC, 1);
+        Assert.assertEquals("lowering the target depth must drop key pairs", 1, pool.getDepth(EC_SPEC));
+
+        pool.clear();
+        Assert.assertEquals(0, pool.getDepth(EC_SPEC));
+    }
+
+    @Test
+    public void testCreateKeyUsesPool() throws Exception {
+        KeyPairPool pool = KeyPairPool.getInstance();
+        pool.setTargetDepth(RSA_SPEC, 1);
+        KeyPair pooled = pool.generate(RSA_SPEC);
+        Assert.assertTrue(pool.put(RSA_SPEC, pooled));
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("pool");
+        parcel.mNewUnlock = new ChangeUnlockParcel(new Passphrase());
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("key creation must succeed", result.success());
+        Assert.assertTrue(result.getLog().containsType(LogType.MSG_CR_KEY_FROM_POOL));
+        Assert.assertEquals("pooled key pair must be consumed", 0, pool.getDepth(RSA_SPEC));
+
+        UncachedKeyRing ring = result.getRing();
+        PGPPublicKey expected = new JcaPGPKeyPair(PGPPublicKey.RSA_GENERAL, pooled,
+                ring.getPublicKey().getCreationTime()).getPublicKey();
+        Assert.assertArrayEquals("master key must be made from pooled key pair",
+                expected.getFingerprint(), ring.getFingerprint());
+
+        // without pooled key pairs, the key is generated as before
+        result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("key creation must succeed", result.success());
+        Assert.assertFalse(result.getLog().containsType(LogType.MSG_CR_KEY_FROM_POOL));
+    }
+
+}
@@ -508,6 +508,128 @@ public class PgpEncryptDecryptTest {
 
     }
 
+    @Test
+    public void testDecryptMetadataOnly() {
+
+        String plaintext = "dies ist ein plaintext ☭" + TestingUtils.genPassphrase(true);
+        byte[] ciphertext;
+
+        { // sign and encrypt data for both keys
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(plaintext.getBytes());
+
+            PgpSignEncryptOperation op = new PgpSignEncryptOperation(RuntimeEnvironment.application,
+                    new ProviderHelper(RuntimeEnvironment.application), null);
+
+            InputData data = new InputData(in, in.available());
+            PgpSignEncryptInputParcel b = new PgpSignEncryptInputParcel();
+
+            b.setEncryptionMasterKeyIds(new long[] {
+                    mStaticRing1.getMasterKeyId(),
+                    mStaticRing2.getMasterKeyId()
+            });
+            b.setSignatureMasterKeyId(mStaticRing1.getMasterKeyId());
+            b.setSignatureSubKeyId(KeyringTestingHelper.getSubkeyId(mStaticRing1, 1));
+            b.setSymmetricEncryptionAlgorithm(PGPEncryptedData.AES_128);
+
+            PgpSignEncryptResult result = op.execute(b, new CryptoInputParcel(mKeyPhrase1), data, out);
+            Assert.assertTrue("encryption must succeed", result.success());
+
+            ciphertext = out.toByteArray();
+        }
+
+        long[] recipientKeyIds = {
+                KeyringTestingHelper.getSubkeyId(mStaticRing1, 2),
+                KeyringTestingHelper.getSubkeyId(mStaticRing2, 2)
+        };
+
+        { // metadata only should return metadata, without writing any data
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(
+                    mKeyPhrase1, mStaticRing1.getMasterKeyId(), null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setDecryptMetadataOnly(true);
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("metadata decryption must succeed", result.success());
+            Assert.assertTrue("metadata only must be logged", result.getLog().containsType(LogType.MSG_DC_OK_META_ONLY));
+            Assert.assertEquals("no data must be written", 0, out.size());
+            Assert.assertNotNull("metadata must be returned", result.getDecryptMetadata());
+            Assert.assertEquals("filesize must be correct",
+                    plaintext.getBytes().length, result.getDecryptMetadata().getOriginalSize());
+            Assert.assertTrue("data must be decryptable", result.isDecryptable());
+            Assert.assertArrayEquals("all recipients must be returned",
+                    recipientKeyIds, result.getRecipientKeyIds());
+            Assert.assertEquals("signing key must be returned",
+                    KeyringTestingHelper.getSubkeyId(mStaticRing1, 1), result.getSignatureKeyId());
+            Assert.assertNull("signature can't be verified without data", result.getSignatureResult());
+        }
+
+        { // without decrypting the session key, no passphrase should be required
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setSkipSessionKeyDecryption(true);
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("recipients must be returned without passphrase", result.success());
+            Assert.assertFalse("no user input must be required", result.isPending());
+            Assert.assertTrue("recipients only must be logged",
+                    result.getLog().containsType(LogType.MSG_DC_OK_META_RECIPIENTS));
+            Assert.assertNull("no metadata can be returned", result.getDecryptMetadata());
+            Assert.assertTrue("data must be decryptable", result.isDecryptable());
+            Assert.assertArrayEquals("all recipients must be returned",
+                    recipientKeyIds, result.getRecipientKeyIds());
+        }
+
+        { // without decrypting the session key, disallowed keys should still be reported
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setSkipSessionKeyDecryption(true);
+            input.setAllowedKeyIds(new HashSet<Long>());
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertEquals("recipients must fail with key disallowed status",
+                    DecryptVerifyResult.RESULT_KEY_DISALLOWED, result.getResult());
+        }
+
+        { // without a secret key, the data should be reported as not decryptable
+
+            new ProviderHelper(RuntimeEnvironment.application).getContentResolver().delete(
+                    KeyRingData.buildPublicKeyRingUri(mStaticRing1.getMasterKeyId()), null, null);
+            new ProviderHelper(RuntimeEnvironment.application).getContentResolver().delete(
+                    KeyRingData.buildPublicKeyRingUri(mStaticRing2.getMasterKeyId()), null, null);
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayInputStream in = new ByteArrayInputStream(ciphertext);
+            InputData data = new InputData(in, in.available());
+
+            PgpDecryptVerify op = operationWithFakePassphraseCache(null, null, null);
+            PgpDecryptVerifyInputParcel input = new PgpDecryptVerifyInputParcel();
+            input.setSkipSessionKeyDecryption(true);
+            DecryptVerifyResult result = op.execute(input, new CryptoInputParcel(), data, out);
+
+            Assert.assertTrue("recipients must be returned without secret key", result.success());
+            Assert.assertFalse("data must not be decryptable", result.isDecryptable());
+            Assert.assertArrayEquals("all recipients must be returned",
+                    recipientKeyIds, result.getRecipientKeyIds());
+        }
+
+    }
+
     @Test
     public void testForeignEncoding() throws Exception {
         String plaintext = "ウィキペディア";
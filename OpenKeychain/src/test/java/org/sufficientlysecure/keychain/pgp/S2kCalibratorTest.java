@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.pgp;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.spongycastle.openpgp.PGPKeyPair;
+import org.spongycastle.openpgp.PGPPublicKey;
+import org.spongycastle.openpgp.PGPSecretKey;
+import org.spongycastle.openpgp.operator.PBESecretKeyDecryptor;
+import org.spongycastle.openpgp.operator.PBESecretKeyEncryptor;
+import org.spongycastle.openpgp.operator.PGPDigestCalculator;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPDigestCalculatorProviderBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcaPGPKeyPair;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyDecryptorBuilder;
+import org.spongycastle.openpgp.operator.jcajce.JcePBESecretKeyEncryptorBuilder;
+import org.sufficientlysecure.keychain.Constants;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Curve;
+
+import java.security.Security;
+import java.util.Date;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class S2kCalibratorTest {
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testDecodeCount() throws Exception {
+        Assert.assertEquals(65536, S2kCalibrator.decodeCount(0x60));
+        Assert.assertEquals(524288, S2kCalibrator.decodeCount(PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT));
+        Assert.assertEquals(65011712, S2kCalibrator.decodeCount(0xff));
+    }
+
+    @Test
+    public void testEncodeCount() throws Exception {
+        Assert.assertEquals("count must not be lower than minimum",
+                S2kCalibrator.MIN_S2K_COUNT, S2kCalibrator.encodeCount(0));
+        Assert.assertTrue("count must never be lower than the previous fixed count",
+                S2kCalibrator.MIN_S2K_COUNT >= PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
+        Assert.assertEquals(0x90, S2kCalibrator.encodeCount(524288));
+        Assert.assertEquals("count must be rounded up", 0x91, S2kCalibrator.encodeCount(524289));
+        Assert.assertEquals("count must not be higher than maximum",
+                S2kCalibrator.MAX_S2K_COUNT, S2kCalibrator.encodeCount(Long.MAX_VALUE));
+
+        for (int s2kCount = S2kCalibrator.MIN_S2K_COUNT; s2kCount <= S2kCalibrator.MAX_S2K_COUNT; s2kCount++) {
+            Assert.assertEquals(s2kCount, S2kCalibrator.encodeCount(S2kCalibrator.decodeCount(s2kCount)));
+        }
+    }
+
+    @Test
+    public void testCalibrate() throws Exception {
+        int hashAlgo = PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO;
+        Assert.assertTrue(S2kCalibrator.measureThroughput(hashAlgo) > 0);
+
+        int shortCount = S2kCalibrator.calibrate(hashAlgo, 10);
+        int longCount = S2kCalibrator.calibrate(hashAlgo, 1000);
+        Assert.assertTrue("calibrated count must not be lower than minimum",
+                shortCount >= S2kCalibrator.MIN_S2K_COUNT);
+        Assert.assertTrue("longer target time must not give lower count", longCount >= shortCount);
+    }
+
+    /** A key protected with the calibrated count must unlock, and not be weaker than before. */
+    @Test
+    public void testUnlockCalibrated() throws Exception {
+        KeyPairPool.Spec spec = new KeyPairPool.Spec(Algorithm.ECDSA, null, Curve.NIST_P256);
+        PGPKeyPair keyPair = new JcaPGPKeyPair(PGPPublicKey.ECDSA,
+                new KeyPairPool().generate(spec), new Date());
+        char[] passphrase = "passphrase".toCharArray();
+
+        int calibrated = S2kCalibrator.calibrate(
+                PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO, S2kCalibrator.TARGET_MILLIS);
+        Assert.assertTrue("calibrated count must not be lower than the previous fixed count",
+                calibrated >= PgpConstants.SECRET_KEY_ENCRYPTOR_S2K_COUNT);
+
+        PGPDigestCalculator encryptorHashCalc = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(PgpConstants.SECRET_KEY_ENCRYPTOR_HASH_ALGO);
+        PBESecretKeyEncryptor keyEncryptor = new JcePBESecretKeyEncryptorBuilder(
+                PgpConstants.SECRET_KEY_ENCRYPTOR_SYMMETRIC_ALGO, encryptorHashCalc, calibrated)
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase);
+        PGPDigestCalculator sha1Calc = new JcaPGPDigestCalculatorProviderBuilder()
+                .build().get(PgpConstants.SECRET_KEY_SIGNATURE_CHECKSUM_HASH_ALGO);
+        PGPSecretKey secretKey = new PGPSecretKey(keyPair.getPrivateKey(), keyPair.getPublicKey(),
+                sha1Calc, true, keyEncryptor);
+
+        Assert.assertEquals("key must be protected with the calibrated count",
+                S2kCalibrator.decodeCount(calibrated), secretKey.getS2K().getIterationCount());
+        PBESecretKeyDecryptor keyDecryptor = new JcePBESecretKeyDecryptorBuilder()
+                .setProvider(Constants.BOUNCY_CASTLE_PROVIDER_NAME).build(passphrase);
+        Assert.assertNotNull("key must unlock", secretKey.extractPrivateKey(keyDecryptor));
+    }
+
+}
@@ -60,6 +60,7 @@ import org.sufficientlysecure.keychain.operations.results.OperationResult;
 import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogEntryParcel;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
@@ -74,6 +75,7 @@ import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Iterator;
+import java.util.List;
 
 
 /** Tests for the UncachedKeyring.canonicalize method.
@@ -588,6 +590,129 @@ public class UncachedKeyringCanonicalizeTest {
 
     }
 
+    @Test public void testVerificationCache() throws Exception {
+
+        SignatureVerificationCache cache = new SignatureVerificationCache();
+        CanonicalizedKeyRing first = ring.canonicalize(new OperationLog(), 0, false, cache);
+        Assert.assertNotNull("canonicalization must succeed", first);
+        Assert.assertEquals("no verification can be skipped with an empty cache",
+                0, cache.getHitCount());
+        Assert.assertEquals("all good verifications must be added to the cache",
+                cache.getMissCount(), cache.getAdded().size());
+
+        SignatureVerificationCache loaded = new SignatureVerificationCache(cache.getAdded());
+        OperationLog log = new OperationLog();
+        CanonicalizedKeyRing second = ring.canonicalize(log, 0, false, loaded);
+        Assert.assertEquals("all verifications must be skipped with a filled cache",
+                cache.getMissCount(), loaded.getHitCount());
+        Assert.assertEquals("no verification must be done with a filled cache",
+                0, loaded.getMissCount());
+        Assert.assertTrue("log must contain verify_cached event",
+                log.containsType(LogType.MSG_KC_VERIFY_CACHED));
+        Assert.assertArrayEquals("cached verifications must not change the result",
+                first.getEncoded(), second.getEncoded());
+
+        { // a broken signature is not found in the cache, and must still be stripped
+            UncachedPublicKey masterKey = ring.getPublicKey();
+            WrappedSignature sig = masterKey.getSignaturesForRawId(
+                    Strings.toUTF8ByteArray("twi")).next();
+            byte[] raw = sig.getEncoded();
+            raw[raw.length - 5] += 1;
+
+            UncachedKeyRing modified = KeyringTestingHelper.injectPacket(ring, raw, 3);
+            CanonicalizedKeyRing canonicalized = modified.canonicalize(log, 0, false, loaded);
+            Assert.assertFalse("broken signature must be stripped despite the cache",
+                    KeyringTestingHelper.diffKeyrings(
+                            ring.getEncoded(), canonicalized.getEncoded(), onlyA, onlyB));
+        }
+
+    }
+
+    @Test public void testParallelVerification() throws Exception {
+
+        assertParallelSameAsSequential(ring);
+
+        // with a broken user id certificate, which must be logged in the same place
+        UncachedPublicKey masterKey = ring.getPublicKey();
+        WrappedSignature sig = masterKey.getSignaturesForRawId(
+                Strings.toUTF8ByteArray("pink")).next();
+        byte[] raw = sig.getEncoded();
+        raw[raw.length - 5] += 1;
+        assertParallelSameAsSequential(KeyringTestingHelper.injectPacket(ring, raw, 5));
+
+        // and with the same certificate misplaced on a subkey
+        assertParallelSameAsSequential(KeyringTestingHelper.injectPacket(ring, raw, totalPackets - 1));
+
+    }
+
+    @Test public void testParallelVerificationInterrupted() throws Exception {
+
+        OperationLog sequentialLog = new OperationLog(), parallelLog = new OperationLog();
+        CanonicalizedKeyRing sequential = ring.canonicalize(sequentialLog, 0, false, null, false);
+
+        // waits for tasks which are already running, and verifies the rest itself
+        Thread.currentThread().interrupt();
+        CanonicalizedKeyRing parallel = ring.canonicalize(parallelLog, 0, false, null, true);
+        Assert.assertTrue("interrupt must be kept", Thread.interrupted());
+
+        Assert.assertNotNull("interrupted canonicalization must succeed", parallel);
+        Assert.assertArrayEquals("interrupted canonicalization must yield the same keyring",
+                sequential.getEncoded(), parallel.getEncoded());
+        Assert.assertEquals("interrupted canonicalization must yield the same log",
+                sequentialLog.toList().size(), parallelLog.toList().size());
+
+    }
+
+    /** The parallel path verifies in advance, and then walks the keyring in order as before,
+     * looking up each self-certificate by its digest. This checks that the walk with all
+     * verifications known, which is what remains sequential, is cheaper than verifying.
+     */
+    @Test public void testParallelVerificationWalk() throws Exception {
+
+        SignatureVerificationCache verified = new SignatureVerificationCache();
+        ring.canonicalize(new OperationLog(), 0, false, verified, false);
+        List<byte[]> digests = verified.getAdded();
+
+        int runs = 50;
+        long verifyTime = 0, walkTime = 0;
+        for (int i = 0; i < runs; i++) {
+            long start = System.nanoTime();
+            ring.canonicalize(new OperationLog(), 0, false, null, false);
+            verifyTime += System.nanoTime() - start;
+
+            SignatureVerificationCache cache = new SignatureVerificationCache(digests);
+            start = System.nanoTime();
+            ring.canonicalize(new OperationLog(), 0, false, cache, false);
+            walkTime += System.nanoTime() - start;
+            Assert.assertEquals("walk must not verify anything", 0, cache.getMissCount());
+        }
+
+        Assert.assertTrue("walk with known verifications must be faster than verifying",
+                walkTime < verifyTime);
+
+    }
+
+    private static void assertParallelSameAsSequential(UncachedKeyRing ring) throws Exception {
+        OperationLog sequentialLog = new OperationLog(), parallelLog = new OperationLog();
+        CanonicalizedKeyRing sequential = ring.canonicalize(sequentialLog, 0, false, null, false);
+        CanonicalizedKeyRing parallel = ring.canonicalize(parallelLog, 0, false, null, true);
+
+        Assert.assertNotNull("sequential canonicalization must succeed", sequential);
+        Assert.assertNotNull("parallel canonicalization must succeed", parallel);
+        Assert.assertArrayEquals("parallel canonicalization must yield the same keyring",
+                sequential.getEncoded(), parallel.getEncoded());
+
+        List<LogEntryParcel> expected = sequentialLog.toList(), actual = parallelLog.toList();
+        Assert.assertEquals("parallel canonicalization must yield the same log",
+                expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assert.assertEquals("parallel canonicalization must log in the same order",
+                    expected.get(i).mType, actual.get(i).mType);
+            Assert.assertEquals("parallel canonicalization must log with the same indent",
+                    expected.get(i).mIndent, actual.get(i).mIndent);
+        }
+    }
+
     private static final int[] sigtypes_direct = new int[] {
         PGPSignature.KEY_REVOCATION,
         PGPSignature.DIRECT_KEY,
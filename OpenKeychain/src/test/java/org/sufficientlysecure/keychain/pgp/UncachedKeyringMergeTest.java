@@ -51,6 +51,7 @@ import org.sufficientlysecure.keychain.util.Passphrase;
 import org.sufficientlysecure.keychain.util.ProgressScaler;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.security.Security;
 import java.util.ArrayList;
 import java.util.Date;
@@ -390,6 +391,91 @@ public class UncachedKeyringMergeTest {
 
     }
 
+    @Test
+    public void testManyCertificates() throws Exception {
+
+        int count = 10000;
+        UncachedKeyRing pubA = ringA.extractPublicKeyRing();
+
+        // certificates are not verified during merge, so variations of one certificate will do
+        UncachedKeyRing stored = injectCertificates(pubA, 1, count);
+        UncachedKeyRing refreshed = injectCertificates(pubA, 1, count + 1);
+
+        UncachedKeyRing merged;
+        long mergeTime;
+        {
+            OperationLog log = new OperationLog();
+            long start = System.nanoTime();
+            merged = stored.merge(refreshed, log, 0);
+            mergeTime = System.nanoTime() - start;
+
+            Assert.assertNotNull("merge must succeed", merged);
+            Assert.assertTrue("merge must find the new certificate",
+                    log.containsType(OperationResult.LogType.MSG_MG_FOUND_NEW));
+            Assert.assertFalse("merge result must contain all certificates",
+                    KeyringTestingHelper.diffKeyrings(
+                            merged.getEncoded(), refreshed.getEncoded(), onlyA, onlyB));
+        }
+
+        long unchangedTime;
+        {
+            // the merge result doesn't know its input data, so all certificates are compared
+            OperationLog log = new OperationLog();
+            long start = System.nanoTime();
+            UncachedKeyRing unchanged = merged.merge(refreshed, log, 0);
+            unchangedTime = System.nanoTime() - start;
+
+            Assert.assertSame("merge which adds nothing must return the base keyring",
+                    merged, unchanged);
+            Assert.assertTrue("merge which adds nothing must not change anything",
+                    log.containsType(OperationResult.LogType.MSG_MG_UNCHANGED));
+        }
+
+        {
+            // keyrings decoded from the same data are detected without looking at certificates
+            byte[] encoded = refreshed.getEncoded();
+            UncachedKeyRing base = UncachedKeyRing.decodeFromData(encoded);
+            UncachedKeyRing other = UncachedKeyRing.decodeFromData(encoded);
+            OperationLog log = new OperationLog();
+            long start = System.nanoTime();
+            UncachedKeyRing identical = base.merge(other, log, 0);
+            long identicalTime = System.nanoTime() - start;
+
+            Assert.assertSame("merge with an identical keyring must return the base keyring",
+                    base, identical);
+            Assert.assertTrue("merge with an identical keyring must not change anything",
+                    log.containsType(OperationResult.LogType.MSG_MG_UNCHANGED));
+            Assert.assertTrue("merge with an identical keyring must be faster than comparing "
+                    + count + " certificates", identicalTime < unchangedTime);
+            Assert.assertTrue("merge with an identical keyring must be faster than merging "
+                    + count + " certificates", identicalTime < mergeTime);
+        }
+
+    }
+
+    /** Injects copies of the first user id certificate with modified signature values. */
+    private static UncachedKeyRing injectCertificates(UncachedKeyRing ring, int from, int to)
+            throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Iterator<RawPacket> it = KeyringTestingHelper.parseKeyring(ring.getEncoded());
+        boolean userId = false, injected = false;
+        while (it.hasNext()) {
+            RawPacket packet = it.next();
+            out.write(packet.buf);
+            userId |= packet.tag == PacketTags.USER_ID;
+            if (userId && !injected && packet.tag == PacketTags.SIGNATURE) {
+                for (int i = from; i <= to; i++) {
+                    byte[] cert = packet.buf.clone();
+                    cert[cert.length - 1] ^= (byte) i;
+                    cert[cert.length - 2] ^= (byte) (i >> 8);
+                    out.write(cert);
+                }
+                injected = true;
+            }
+        }
+        return UncachedKeyRing.decodeFromData(out.toByteArray());
+    }
+
     private UncachedKeyRing mergeWithChecks(UncachedKeyRing a, UncachedKeyRing b)
             throws Exception {
         return mergeWithChecks(a, b, a);
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.EmailKeyResolver.EmailStatus;
+import org.sufficientlysecure.keychain.provider.KeychainContract.UserPackets;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class EmailKeyResolverTest {
+
+    static UncachedKeyRing mStaticRing1, mStaticRing2, mStaticRing3;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        mStaticRing1 = createRing("Alice <alice@example.com>", "Bob <bob@example.com>");
+        // same email as the first ring, in different case
+        mStaticRing2 = createRing("Other Alice <Alice@Example.com>");
+        // user ids which splitUserId doesn't split, saved only by the tests which need them
+        mStaticRing3 = createRing("<carol@example.com>", "Dave<Dave@example.com>", "erin@example.com");
+    }
+
+    private static UncachedKeyRing createRing(String... userIds) {
+        return createRing(0L, userIds);
+    }
+
+    private static UncachedKeyRing createRing(long expiry, String... userIds) {
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, expiry));
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.ENCRYPT_COMMS, 0L));
+        parcel.mAddUserIds.addAll(Arrays.asList(userIds));
+        parcel.mNewUnlock = new ChangeUnlockParcel(TestingUtils.genPassphrase(true));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        return result.getRing();
+    }
+
+    @Before
+    public void setUp() {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        Preferences.getPreferences(RuntimeEnvironment.application).setDatabaseBackfillPending(false);
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        providerHelper.saveSecretKeyRing(mStaticRing1, new ProgressScaler());
+        providerHelper.savePublicKeyRing(mStaticRing2.extractPublicKeyRing(), new ProgressScaler());
+    }
+
+    @Test
+    public void testNormalizeEmail() {
+        Assert.assertEquals("alice@example.com", EmailKeyResolver.normalizeEmail(" Alice@Example.COM "));
+        Assert.assertEquals("alice@example.com", EmailKeyResolver.normalizeEmail("<alice@example.com>"));
+        Assert.assertEquals("alice@example.com",
+                EmailKeyResolver.normalizeEmail("Alice <alice@example.com>"));
+        Assert.assertNull(EmailKeyResolver.normalizeEmail(" "));
+        Assert.assertNull(EmailKeyResolver.normalizeEmail(null));
+    }
+
+    @Test
+    public void testExtractEmail() {
+        Assert.assertEquals("alice@example.com",
+                EmailKeyResolver.extractEmail("Alice (Wonderland) <Alice@Example.com>"));
+        Assert.assertEquals("email in brackets only must be extracted", "alice@example.com",
+                EmailKeyResolver.extractEmail("<alice@example.com>"));
+        Assert.assertEquals("email directly after the name must be extracted", "alice@example.com",
+                EmailKeyResolver.extractEmail("Alice<alice@example.com>"));
+        Assert.assertEquals("plain address must be extracted", "alice@example.com",
+                EmailKeyResolver.extractEmail(" alice@example.com "));
+        Assert.assertNull("name only must have no email", EmailKeyResolver.extractEmail("Alice"));
+        Assert.assertNull("address after a name without brackets must not be extracted",
+                EmailKeyResolver.extractEmail("Alice alice@example.com"));
+        Assert.assertNull(EmailKeyResolver.extractEmail(null));
+    }
+
+    @Test
+    public void testUserIdShapes() throws Exception {
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(
+                mStaticRing3.extractPublicKeyRing(), new ProgressScaler());
+        assertUserIdShapesResolved();
+    }
+
+    @Test
+    public void testResolveBeforeBackfill() throws Exception {
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(
+                mStaticRing3.extractPublicKeyRing(), new ProgressScaler());
+
+        // as after an upgrade: no emails filled in, and nothing in the index
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        db.execSQL("UPDATE " + Tables.USER_PACKETS + " SET " + UserPackets.EMAIL + " = NULL");
+        UserIdSearchIndex.clear(db);
+        Preferences.getPreferences(RuntimeEnvironment.application).setDatabaseBackfillPending(true);
+
+        EmailKeyResolver resolver = new EmailKeyResolver(RuntimeEnvironment.application);
+        List<EmailStatus> statuses = resolver.resolve(null, new String[] {
+                "alice@example.com", "bob@example.com", "nobody@example.com", "a_ice@example.com" });
+        Assert.assertEquals("email of two keys must be found before backfill",
+                2, statuses.get(0).getMasterKeyIds().length);
+        Assert.assertArrayEquals("email must be found before backfill",
+                new long[] { mStaticRing1.getMasterKeyId() }, statuses.get(1).getMasterKeyIds());
+        Assert.assertTrue("unknown email must be missing", statuses.get(2).isMissing());
+        Assert.assertTrue("email with a LIKE wildcard must not match another email", statuses.get(3).isMissing());
+        Assert.assertEquals("emails must be looked up with one query for candidates,"
+                + " and one for their keyrings", 2, resolver.getQueryCount());
+
+        assertUserIdShapesResolved();
+    }
+
+    private void assertUserIdShapesResolved() {
+        EmailKeyResolver resolver = new EmailKeyResolver(RuntimeEnvironment.application);
+        List<EmailStatus> statuses = resolver.resolve(null, new String[] {
+                "carol@example.com", "dave@example.com", "erin@example.com" });
+        long[] expected = { mStaticRing3.getMasterKeyId() };
+        Assert.assertArrayEquals("email in brackets only must be found",
+                expected, statuses.get(0).getMasterKeyIds());
+        Assert.assertArrayEquals("email directly after the name must be found",
+                expected, statuses.get(1).getMasterKeyIds());
+        Assert.assertArrayEquals("plain address must be found",
+                expected, statuses.get(2).getMasterKeyIds());
+    }
+
+    @Test
+    public void testResolve() throws Exception {
+        EmailKeyResolver resolver = new EmailKeyResolver(RuntimeEnvironment.application);
+
+        List<EmailStatus> statuses = resolver.resolve(null, new String[] {
+                "<ALICE@example.com>", "bob@example.com", "nobody@example.com", "" });
+        Assert.assertEquals("all emails must be resolved in order", 4, statuses.size());
+
+        EmailStatus alice = statuses.get(0);
+        Assert.assertEquals("alice@example.com", alice.getEmail());
+        Assert.assertTrue("email of two keys must be a duplicate", alice.isDuplicate());
+        long[] aliceKeyIds = alice.getMasterKeyIds();
+        Arrays.sort(aliceKeyIds);
+        long[] expected = { mStaticRing1.getMasterKeyId(), mStaticRing2.getMasterKeyId() };
+        Arrays.sort(expected);
+        Assert.assertArrayEquals("both keys must be found, regardless of case", expected, aliceKeyIds);
+
+        EmailStatus bob = statuses.get(1);
+        Assert.assertFalse(bob.isMissing());
+        Assert.assertFalse(bob.isDuplicate());
+        Assert.assertArrayEquals(new long[] { mStaticRing1.getMasterKeyId() }, bob.getMasterKeyIds());
+
+        Assert.assertTrue("unknown email must be missing", statuses.get(2).isMissing());
+        Assert.assertFalse("missing email must not be revoked", statuses.get(2).hasRevoked());
+        Assert.assertFalse("missing email must not be expired", statuses.get(2).hasExpired());
+        Assert.assertTrue("empty email must be missing", statuses.get(3).isMissing());
+        Assert.assertNull(statuses.get(3).getEmail());
+
+        Assert.assertEquals("all emails must be resolved with one query for candidates,"
+                + " and one for their keyrings", 2, resolver.getQueryCount());
+    }
+
+    @Test
+    public void testManyEmails() throws Exception {
+        EmailKeyResolver resolver = new EmailKeyResolver(RuntimeEnvironment.application);
+
+        int count = 2 * EmailKeyResolver.QUERY_CHUNK_SIZE + 1;
+        String[] emails = new String[count];
+        for (int i = 0; i < count - 1; i++) {
+            emails[i] = "user" + i + "@example.com";
+        }
+        emails[count - 1] = "bob@example.com";
+
+        List<EmailStatus> statuses = resolver.resolve(null, emails);
+        Assert.assertTrue(statuses.get(0).isMissing());
+        Assert.assertFalse("email in the last chunk must be found", statuses.get(count - 1).isMissing());
+        Assert.assertEquals("emails must be looked up in chunks", 4, resolver.getQueryCount());
+    }
+
+    @Test
+    public void testCache() throws Exception {
+        EmailKeyResolver resolver = EmailKeyResolver.getInstance(RuntimeEnvironment.application, true);
+        String[] emails = { "alice@example.com", "bob@example.com", "carol@example.com" };
+
+        resolver.resolve("app:default", emails);
+        int queries = resolver.getQueryCount();
+
+        List<EmailStatus> statuses = resolver.resolve("app:default", new String[] { "Bob@Example.com" });
+        Assert.assertEquals("cached email must not be queried again", queries, resolver.getQueryCount());
+        Assert.assertArrayEquals(new long[] { mStaticRing1.getMasterKeyId() },
+                statuses.get(0).getMasterKeyIds());
+
+        resolver.resolve("app:other", emails);
+        Assert.assertTrue("results must be cached per account", resolver.getQueryCount() > queries);
+        queries = resolver.getQueryCount();
+
+        // deleting a keyring changes the result, the resolver is notified of that
+        new ProviderHelper(RuntimeEnvironment.application).deleteKeyRings(
+                new long[] { mStaticRing2.getMasterKeyId() });
+        statuses = resolver.resolve("app:default", emails);
+        Assert.assertTrue("results must be queried again after delete", resolver.getQueryCount() > queries);
+        Assert.assertFalse("deleted keyring must not be found anymore", statuses.get(0).isDuplicate());
+        Assert.assertTrue(statuses.get(2).isMissing());
+        queries = resolver.getQueryCount();
+
+        // so is saving one
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(
+                mStaticRing3.extractPublicKeyRing(), new ProgressScaler());
+        statuses = resolver.resolve("app:default", emails);
+        Assert.assertTrue("results must be queried again after save", resolver.getQueryCount() > queries);
+        Assert.assertArrayEquals("saved keyring must be found",
+                new long[] { mStaticRing3.getMasterKeyId() }, statuses.get(2).getMasterKeyIds());
+    }
+
+    @Test
+    public void testCacheExpiry() throws Exception {
+        long expiry = System.currentTimeMillis() / 1000 + 3;
+        UncachedKeyRing expiring = createRing(expiry, "Frank <frank@example.com>");
+        new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(
+                expiring.extractPublicKeyRing(), new ProgressScaler());
+
+        EmailKeyResolver resolver = new EmailKeyResolver(RuntimeEnvironment.application);
+        String[] emails = { "frank@example.com" };
+        EmailStatus status = resolver.resolve("app:default", emails).get(0);
+        Assert.assertArrayEquals("key must be usable before it expires",
+                new long[] { expiring.getMasterKeyId() }, status.getMasterKeyIds());
+        int queries = resolver.getQueryCount();
+
+        // nothing changes in the database, the key only expires
+        while (System.currentTimeMillis() / 1000 <= expiry) {
+            Thread.sleep(200);
+        }
+        status = resolver.resolve("app:default", emails).get(0);
+        Assert.assertTrue("expired key must be queried again", resolver.getQueryCount() > queries);
+        Assert.assertTrue("expired key must not be usable anymore", status.isMissing());
+        Assert.assertTrue(status.hasExpired());
+    }
+
+}
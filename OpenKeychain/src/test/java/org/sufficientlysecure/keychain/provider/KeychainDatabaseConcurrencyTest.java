@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
+import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.support.KeyringTestingHelper;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainDatabaseConcurrencyTest {
+
+    ArrayList<UncachedKeyRing> mRings = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+
+        mRings.add(readRingFromResource(
+                "/test-keys/cooperpair/9E669861368BCA0BE42DAF7DDDA252EBB8EBE1AF.asc"));
+        mRings.add(readRingFromResource("/test-keys/symantec_public.asc"));
+        mRings.add(readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc"));
+    }
+
+    @Test
+    public void testWriteAheadLogging() throws Exception {
+        KeychainDatabase db = new KeychainDatabase(RuntimeEnvironment.application);
+        Assert.assertTrue("write-ahead logging must be enabled",
+                db.getWritableDatabase().isWriteAheadLoggingEnabled());
+        // must not fail, whether or not there is anything to checkpoint
+        new ProviderHelper(RuntimeEnvironment.application).checkpoint();
+    }
+
+    @Test
+    public void testQueriesDuringImport() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        for (UncachedKeyRing ring : mRings) {
+            SaveKeyringResult result = providerHelper.savePublicKeyRing(ring);
+            Assert.assertTrue("initial import must succeed", result.success());
+        }
+        // the re-imports below leave this unchanged, so it is both the old and new state
+        HashMap<Long, String> expected = queryKeyList();
+        Assert.assertEquals("all keyrings must be imported", mRings.size(), expected.size());
+
+        // an outdated version of each stored keyring, which lacks its last packet
+        final ArrayList<byte[]> outdated = new ArrayList<>();
+        for (UncachedKeyRing ring : mRings) {
+            byte[] stored = providerHelper.getCanonicalizedPublicKeyRing(ring.getMasterKeyId())
+                    .getUncachedKeyRing().getEncoded();
+            int packets = KeyringTestingHelper.itToList(KeyringTestingHelper.parseKeyring(stored)).size();
+            outdated.add(KeyringTestingHelper.removePacket(stored, packets - 1));
+        }
+
+        // import the keyrings over and over. an unchanged keyring isn't written at all, so
+        // the stored keyring data is replaced by the outdated version before each import.
+        // the import then merges, and replaces the whole keyring in a single batch
+        final AtomicReference<Throwable> importError = new AtomicReference<>();
+        final AtomicInteger writes = new AtomicInteger();
+        Thread importer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application)
+                            .getWritableDatabase();
+                    for (int i = 0; i < 20; i++) {
+                        for (int j = 0; j < mRings.size(); j++) {
+                            UncachedKeyRing ring = mRings.get(j);
+                            db.execSQL("UPDATE " + Tables.KEY_RINGS_PUBLIC
+                                    + " SET " + KeyRingData.KEY_RING_DATA + " = ?, "
+                                            + KeyRingData.DIGEST + " = NULL"
+                                    + " WHERE " + KeyRingData.MASTER_KEY_ID + " = ?",
+                                    new Object[] { outdated.get(j), ring.getMasterKeyId() });
+
+                            SaveKeyringResult result = new ProviderHelper(RuntimeEnvironment.application)
+                                    .savePublicKeyRing(ring);
+                            if (!result.success()
+                                    || result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL)) {
+                                throw new AssertionError("re-import must write the keyring");
+                            }
+                            writes.incrementAndGet();
+                        }
+                    }
+                } catch (Throwable e) {
+                    importError.set(e);
+                }
+            }
+        };
+
+        importer.start();
+        int queriesDuringWrites = 0;
+        while (importer.isAlive()) {
+            // each keyring is replaced in a single transaction, so a reader must see either
+            // the old or the new keyring, never one that is missing or only partly written
+            int writesBefore = writes.get();
+            Assert.assertEquals("key list must be complete during import",
+                    expected, queryKeyList());
+            if (writesBefore > 0 && importer.isAlive()) {
+                queriesDuringWrites += 1;
+            }
+        }
+        importer.join();
+
+        Assert.assertNull("import must not fail", importError.get());
+        Assert.assertEquals("every re-import must write", 20 * mRings.size(), writes.get());
+        Assert.assertTrue("queries must run while keyrings are written", queriesDuringWrites > 0);
+        Assert.assertEquals("key list must be unchanged after import", expected, queryKeyList());
+    }
+
+    /** Returns the primary user id of each keyring in the key list, by master key id. */
+    HashMap<Long, String> queryKeyList() {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                KeyRings.buildUnifiedKeyRingsUri(),
+                new String[] { KeyRings.MASTER_KEY_ID, KeyRings.USER_ID }, null, null, null);
+        Assert.assertNotNull("query must succeed during import", cursor);
+        HashMap<Long, String> result = new HashMap<>();
+        try {
+            while (cursor.moveToNext()) {
+                Assert.assertNull("each keyring must be listed once",
+                        result.put(cursor.getLong(0), cursor.getString(1)));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    UncachedKeyRing readRingFromResource(String name) throws Exception {
+        return UncachedKeyRing.fromStream(
+                KeychainDatabaseConcurrencyTest.class.getResourceAsStream(name)).next();
+    }
+
+}
@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.Shadows;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.Preferences;
+
+import java.util.ArrayList;
+import java.util.Collections;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeychainDatabaseMigrationTest {
+
+    SQLiteDatabase mDb;
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+
+        // the relevant tables as of version 10
+        mDb = SQLiteDatabase.create(null);
+        mDb.execSQL("CREATE TABLE keyrings_public (master_key_id INTEGER PRIMARY KEY,"
+                + " key_ring_data BLOB)");
+        mDb.execSQL("CREATE TABLE keyrings_secret (master_key_id INTEGER PRIMARY KEY,"
+                + " key_ring_data BLOB)");
+        mDb.execSQL("CREATE TABLE user_packets (master_key_id INTEGER, type INT, user_id TEXT,"
+                + " attribute_data BLOB, is_primary INTEGER, is_revoked INTEGER, rank INTEGER,"
+                + " PRIMARY KEY(master_key_id, rank))");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mDb.close();
+    }
+
+    @Test
+    public void testMigrationFlags() throws Exception {
+
+        int[] consolidate = { 1, 2, 3, 4, 5, 7, 9 };
+        int[] nothing = { 10, 11, 13, 14 };
+
+        for (int version : consolidate) {
+            Assert.assertEquals("migration from version " + version + " must consolidate",
+                    KeychainDatabase.MIGRATION_CONSOLIDATE,
+                    KeychainDatabase.migrateFrom(mDb, version) & KeychainDatabase.MIGRATION_CONSOLIDATE);
+        }
+
+        // later migrations only need the tables they touch, which exist from here on
+        for (int version : nothing) {
+            Assert.assertEquals("migration from version " + version + " must not need more work",
+                    0, KeychainDatabase.migrateFrom(mDb, version));
+        }
+        Assert.assertEquals("migration from version 12 must backfill",
+                KeychainDatabase.MIGRATION_BACKFILL, KeychainDatabase.migrateFrom(mDb, 12));
+        Assert.assertEquals("migration from version 15 must backfill",
+                KeychainDatabase.MIGRATION_BACKFILL, KeychainDatabase.migrateFrom(mDb, 15));
+
+        try {
+            KeychainDatabase.migrateFrom(mDb, KeychainDatabase.DATABASE_VERSION);
+            Assert.fail("migration from the current version must fail");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+    }
+
+    @Test
+    public void testMigrateWithoutConsolidate() throws Exception {
+
+        mDb.execSQL("INSERT INTO keyrings_public VALUES (1, X'00')");
+        mDb.execSQL("INSERT INTO user_packets VALUES (1, NULL, 'Alice <alice@example.com>',"
+                + " NULL, 1, 0, 0)");
+
+        int flags = 0;
+        for (int version = 10; version < KeychainDatabase.DATABASE_VERSION; version++) {
+            flags |= KeychainDatabase.migrateFrom(mDb, version);
+        }
+
+        Assert.assertEquals("upgrade from version 10 must only backfill, not consolidate",
+                KeychainDatabase.MIGRATION_BACKFILL, flags);
+        Assert.assertTrue("export checksums must be added",
+                getColumns("keyrings_public").contains("export_checksum"));
+        Assert.assertTrue("export checksums must be added",
+                getColumns("keyrings_secret").contains("export_checksum"));
+        Assert.assertEquals("existing keyrings must be kept",
+                1, DatabaseUtils.queryNumEntries(mDb, "keyrings_public"));
+        Assert.assertEquals("existing user ids must be kept",
+                1, DatabaseUtils.queryNumEntries(mDb, "user_packets"));
+        Assert.assertEquals("index must be empty before the backfill",
+                0, DatabaseUtils.queryNumEntries(mDb, "user_ids_fts"));
+
+    }
+
+    @Test
+    public void testBackfill() throws Exception {
+
+        KeychainDatabase.migrateFrom(mDb, 12);
+
+        int count = 25;
+        for (int i = 0; i < count; i++) {
+            mDb.execSQL("INSERT INTO user_packets VALUES (?, NULL, ?, NULL, 1, 0, 0)",
+                    new Object[] { i, "User " + i + " <user" + i + "@example.com>" });
+        }
+        // attribute packets have no user id, and are not indexed
+        mDb.execSQL("INSERT INTO user_packets VALUES (0, 1, NULL, X'00', 0, 0, 1)");
+        // one user id which is already indexed must not be indexed twice
+        UserIdSearchIndex.insert(mDb, 1, "User 0 <user0@example.com>");
+
+        // the email column is added to existing user packets, and filled by the same backfill
+        KeychainDatabase.migrateFrom(mDb, 15);
+
+        int steps = 0;
+        long rowId = 0;
+        while ((rowId = UserIdSearchIndex.backfill(mDb, rowId, 10)) != -1) {
+            steps += 1;
+        }
+
+        Assert.assertEquals("backfill must be done in chunks", 3, steps);
+        Assert.assertEquals("all user ids must be indexed exactly once",
+                count, DatabaseUtils.queryNumEntries(mDb, "user_ids_fts"));
+
+        // backfills are idempotent
+        rowId = 0;
+        while ((rowId = UserIdSearchIndex.backfill(mDb, rowId, 10)) != -1) {
+            // nothing to do
+        }
+        Assert.assertEquals("repeated backfill must not index again",
+                count, DatabaseUtils.queryNumEntries(mDb, "user_ids_fts"));
+        Assert.assertEquals("emails of all user ids must be filled in",
+                count, DatabaseUtils.queryNumEntries(mDb, "user_packets", "email IS NOT NULL"));
+        Assert.assertEquals("emails must be normalized", "user12@example.com",
+                DatabaseUtils.stringForQuery(mDb,
+                        "SELECT email FROM user_packets WHERE master_key_id = 12", null));
+
+        Cursor cursor = mDb.rawQuery("SELECT docid FROM user_ids_fts WHERE user_ids_fts MATCH ?",
+                new String[] { UserIdSearchIndex.buildPrefixMatch("user12") });
+        try {
+            Assert.assertTrue("backfilled user id must be found", cursor.moveToFirst());
+            Assert.assertEquals("index must refer to the user packet", 13, cursor.getLong(0));
+        } finally {
+            cursor.close();
+        }
+
+    }
+
+    @Test
+    public void testUpgradeFrom1() throws Exception {
+        assertUpgradeFrom(1);
+    }
+
+    @Test
+    public void testUpgradeFrom2() throws Exception {
+        assertUpgradeFrom(2);
+    }
+
+    @Test
+    public void testUpgradeFrom3() throws Exception {
+        assertUpgradeFrom(3);
+    }
+
+    @Test
+    public void testUpgradeFrom4() throws Exception {
+        assertUpgradeFrom(4);
+    }
+
+    @Test
+    public void testUpgradeFrom5() throws Exception {
+        assertUpgradeFrom(5);
+    }
+
+    @Test
+    public void testUpgradeFrom6() throws Exception {
+        assertUpgradeFrom(6);
+    }
+
+    @Test
+    public void testUpgradeFrom7() throws Exception {
+        assertUpgradeFrom(7);
+    }
+
+    @Test
+    public void testUpgradeFrom8() throws Exception {
+        assertUpgradeFrom(8);
+    }
+
+    @Test
+    public void testUpgradeFrom9() throws Exception {
+        assertUpgradeFrom(9);
+    }
+
+    @Test
+    public void testUpgradeFrom10() throws Exception {
+        assertUpgradeFrom(10);
+    }
+
+    @Test
+    public void testUpgradeFrom11() throws Exception {
+        assertUpgradeFrom(11);
+    }
+
+    @Test
+    public void testUpgradeFrom12() throws Exception {
+        assertUpgradeFrom(12);
+    }
+
+    @Test
+    public void testUpgradeFrom13() throws Exception {
+        assertUpgradeFrom(13);
+    }
+
+    @Test
+    public void testUpgradeFrom14() throws Exception {
+        assertUpgradeFrom(14);
+    }
+
+    @Test
+    public void testUpgradeFrom15() throws Exception {
+        assertUpgradeFrom(15);
+    }
+
+    /** Upgrades a database with the schema of the given version to the current one, and
+     * checks that the result has the same schema as a newly created database. */
+    private void assertUpgradeFrom(int version) {
+        KeychainDatabase helper = new KeychainDatabase(RuntimeEnvironment.application);
+
+        SQLiteDatabase created = SQLiteDatabase.create(null);
+        SQLiteDatabase upgraded = SQLiteDatabase.create(null);
+        try {
+            helper.onCreate(created);
+
+            createSchema(upgraded, version);
+            upgraded.execSQL("INSERT INTO keyrings_public (master_key_id, key_ring_data)"
+                    + " VALUES (1, X'00')");
+            helper.onUpgrade(upgraded, version, KeychainDatabase.DATABASE_VERSION);
+
+            Assert.assertEquals("upgrade from version " + version + " must create the same tables",
+                    getSchema(created, "table"), getSchema(upgraded, "table"));
+            Assert.assertEquals("upgrade from version " + version + " must create the same indexes",
+                    getSchema(created, "index"), getSchema(upgraded, "index"));
+            for (String table : getSchema(created, "table")) {
+                Assert.assertEquals("upgrade from version " + version + " must create the same"
+                                + " columns in " + table,
+                        getColumnInfo(created, table), getColumnInfo(upgraded, table));
+                Assert.assertEquals("upgrade from version " + version + " must create the same"
+                                + " foreign keys in " + table,
+                        getForeignKeys(created, table), getForeignKeys(upgraded, table));
+            }
+            Assert.assertEquals("upgrade from version " + version + " must keep keyrings",
+                    1, DatabaseUtils.queryNumEntries(upgraded, "keyrings_public"));
+        } finally {
+            created.close();
+            upgraded.close();
+        }
+
+        // every historic version predates the email column, which is backfilled
+        Assert.assertTrue("upgrade from version " + version + " must start the backfill",
+                Preferences.getPreferences(RuntimeEnvironment.application).isDatabaseBackfillPending());
+        // user packets are filled from the keyrings since version 10, older ones consolidate
+        Assert.assertEquals("upgrade from version " + version + " must consolidate up to version 9",
+                version <= 9, Shadows.shadowOf(RuntimeEnvironment.application)
+                        .getNextStartedActivity() != null);
+    }
+
+    /** Creates the tables of the given historic database version. Each column and table
+     * is listed with the version which introduced it, independently of the migrations. */
+    private static void createSchema(SQLiteDatabase db, int version) {
+        String keyRingColumns = "master_key_id INTEGER PRIMARY KEY, key_ring_data BLOB"
+                + (version >= 12 ? ", export_checksum BLOB" : "")
+                + (version >= 15 ? ", digest BLOB" : "");
+        db.execSQL("CREATE TABLE keyrings_public (" + keyRingColumns + ")");
+        db.execSQL("CREATE TABLE keyrings_secret (" + keyRingColumns + ", FOREIGN KEY(master_key_id)"
+                + " REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)");
+
+        db.execSQL("CREATE TABLE keys (master_key_id INTEGER, rank INTEGER, key_id INTEGER,"
+                + " key_size INTEGER,"
+                + (version >= 3 ? " key_curve_oid TEXT," : "")
+                + " algorithm INTEGER, fingerprint BLOB, can_certify INTEGER, can_sign INTEGER,"
+                + " can_encrypt INTEGER,"
+                + (version >= 5 ? " can_authenticate INTEGER," : "")
+                + " is_revoked INTEGER,"
+                + (version >= 2 ? " has_secret INTEGER," : "")
+                + " creation INTEGER, expiry INTEGER, PRIMARY KEY(master_key_id, rank),"
+                + " FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id)"
+                + " ON DELETE CASCADE)");
+
+        // user ids were renamed to user packets in version 10
+        String userPackets = version >= 10 ? "user_packets" : "user_ids";
+        db.execSQL("CREATE TABLE " + userPackets + " (master_key_id INTEGER,"
+                + (version >= 7 ? " type INT," : "")
+                + " user_id TEXT,"
+                + (version >= 7 ? " attribute_data BLOB," : "")
+                + " is_primary INTEGER, is_revoked INTEGER, rank INTEGER,"
+                + " PRIMARY KEY(master_key_id, rank), FOREIGN KEY(master_key_id)"
+                + " REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)");
+        db.execSQL("CREATE TABLE certs (master_key_id INTEGER, rank INTEGER,"
+                + " key_id_certifier INTEGER, type INTEGER, verified INTEGER, creation INTEGER,"
+                + " data BLOB, PRIMARY KEY(master_key_id, rank, key_id_certifier),"
+                + " FOREIGN KEY(master_key_id) REFERENCES keyrings_public(master_key_id)"
+                + " ON DELETE CASCADE, FOREIGN KEY(master_key_id, rank) REFERENCES "
+                + userPackets + "(master_key_id, rank) ON DELETE CASCADE)");
+
+        if (version >= 11) {
+            db.execSQL("CREATE TABLE updated_keys (master_key_id INTEGER PRIMARY KEY,"
+                    + " last_updated INTEGER, FOREIGN KEY(master_key_id)"
+                    + " REFERENCES keyrings_public(master_key_id) ON DELETE CASCADE)");
+        }
+        if (version >= 13) {
+            db.execSQL("CREATE VIRTUAL TABLE user_ids_fts USING fts4(name, email, comment)");
+        }
+        if (version >= 14) {
+            db.execSQL("CREATE TABLE verified_signatures (master_key_id INTEGER, digest BLOB,"
+                    + " PRIMARY KEY(master_key_id, digest))");
+        }
+
+        db.execSQL("CREATE TABLE api_apps (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " package_name TEXT NOT NULL UNIQUE, package_signature BLOB)");
+        db.execSQL("CREATE TABLE api_accounts (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + " account_name TEXT NOT NULL, key_id INTEGER, encryption_algorithm INTEGER,"
+                + " hash_algorithm INTEGER, compression INTEGER, package_name TEXT NOT NULL,"
+                + " UNIQUE(account_name, package_name), FOREIGN KEY(package_name)"
+                + " REFERENCES api_apps(package_name) ON DELETE CASCADE)");
+        if (version >= 9) {
+            db.execSQL("CREATE TABLE api_allowed_keys (_id INTEGER PRIMARY KEY AUTOINCREMENT,"
+                    + " key_id INTEGER, package_name TEXT NOT NULL, UNIQUE(key_id, package_name),"
+                    + " FOREIGN KEY(package_name) REFERENCES api_apps(package_name)"
+                    + " ON DELETE CASCADE)");
+        }
+    }
+
+    /** Returns the sorted columns of a table, independent of the order they were added in. */
+    private static ArrayList<String> getColumnInfo(SQLiteDatabase db, String table) {
+        return queryRows(db, "PRAGMA table_info(" + table + ")", "name", "type", "notnull", "pk");
+    }
+
+    private static ArrayList<String> getForeignKeys(SQLiteDatabase db, String table) {
+        return queryRows(db, "PRAGMA foreign_key_list(" + table + ")",
+                "table", "from", "to", "on_delete");
+    }
+
+    /** Returns the sorted names of all tables or indexes. */
+    private static ArrayList<String> getSchema(SQLiteDatabase db, String type) {
+        return queryRows(db, "SELECT name FROM sqlite_master WHERE type = '" + type + "'"
+                + " AND name != 'sqlite_sequence'", "name");
+    }
+
+    /** Returns the given columns of each result row joined into one string, sorted. */
+    private static ArrayList<String> queryRows(SQLiteDatabase db, String query, String... columns) {
+        ArrayList<String> rows = new ArrayList<>();
+        Cursor cursor = db.rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                StringBuilder row = new StringBuilder();
+                for (String column : columns) {
+                    row.append(cursor.getString(cursor.getColumnIndexOrThrow(column))).append(' ');
+                }
+                rows.add(row.toString().trim());
+            }
+        } finally {
+            cursor.close();
+        }
+        Collections.sort(rows);
+        return rows;
+    }
+
+    private ArrayList<String> getColumns(String table) {
+        ArrayList<String> columns = new ArrayList<>();
+        Cursor cursor = mDb.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(cursor.getColumnIndex("name")));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+}
@@ -18,6 +18,9 @@
 
 package org.sufficientlysecure.keychain.provider;
 
+import android.database.Cursor;
+import android.support.v4.util.LongSparseArray;
+
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -37,6 +40,10 @@ import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKey.SecretKeyType;
 import org.sufficientlysecure.keychain.pgp.CanonicalizedSecretKeyRing;
 import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.CachedPublicKeyRing.Snapshot;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRingData;
+import org.sufficientlysecure.keychain.provider.KeychainContract.VerifiedSignatures;
+import org.sufficientlysecure.keychain.operations.results.OperationResult.LogType;
 import org.sufficientlysecure.keychain.operations.results.OperationResult.OperationLog;
 import org.sufficientlysecure.keychain.operations.results.SaveKeyringResult;
 import org.sufficientlysecure.keychain.util.IterableIterator;
@@ -107,6 +114,85 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testVerificationCache() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long keyId = pub.getMasterKeyId();
+
+        SaveKeyringResult result;
+
+        result = new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(pub);
+        Assert.assertTrue("import must succeed", result.success());
+        Assert.assertFalse("first import must not skip any verifications",
+                result.getLog().containsType(LogType.MSG_KC_VERIFY_CACHED));
+
+        int verified = countVerifiedSignatures(keyId);
+        Assert.assertTrue("verifications must be saved along with the keyring", verified > 0);
+
+        // forget the digest, so the repeated import isn't skipped as unchanged altogether
+        new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase().execSQL(
+                "UPDATE " + KeychainDatabase.Tables.KEY_RINGS_PUBLIC + " SET "
+                        + KeyRingData.DIGEST + " = NULL");
+
+        result = new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(pub);
+        Assert.assertTrue("repeated import must succeed", result.success());
+        Assert.assertTrue("repeated import must skip known verifications",
+                result.getLog().containsType(LogType.MSG_KC_VERIFY_CACHED));
+        Assert.assertEquals("verifications must be kept when the keyring is saved again",
+                verified, countVerifiedSignatures(keyId));
+
+        mProviderHelper.deleteKeyRings(new long[] { keyId });
+        Assert.assertEquals("verifications must be deleted along with the keyring",
+                0, countVerifiedSignatures(keyId));
+
+        result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("import after delete must succeed", result.success());
+        RuntimeEnvironment.application.getContentResolver().delete(
+                KeyRingData.buildPublicKeyRingUri(keyId), null, null);
+        Assert.assertEquals("verifications must be deleted with a single keyring",
+                0, countVerifiedSignatures(keyId));
+
+        result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("import after delete must succeed", result.success());
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        Assert.assertEquals("verifications must be deleted when the database is cleared",
+                0, countVerifiedSignatures(keyId));
+
+    }
+
+    private static int countVerifiedSignatures(long masterKeyId) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(
+                VerifiedSignatures.CONTENT_URI, new String[] { VerifiedSignatures.DIGEST },
+                VerifiedSignatures.MASTER_KEY_ID + " = ?", new String[] { Long.toString(masterKeyId) },
+                null);
+        try {
+            return cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Test public void testUnchangedKeyRing() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        long keyId = pub.getMasterKeyId();
+
+        SaveKeyringResult result;
+
+        result = mProviderHelper.savePublicKeyRing(pub);
+        Assert.assertTrue("import must succeed", result.success());
+
+        // re-import exactly the keyring which was stored
+        UncachedKeyRing stored = mProviderHelper.getCanonicalizedPublicKeyRing(keyId).getUncachedKeyRing();
+        result = new ProviderHelper(RuntimeEnvironment.application).savePublicKeyRing(stored);
+        Assert.assertTrue("repeated import must succeed", result.success());
+        Assert.assertTrue("repeated import must be recognized as unchanged",
+                result.getLog().containsType(LogType.MSG_IP_SUCCESS_IDENTICAL));
+        Assert.assertFalse("unchanged keyring must not be merged",
+                result.getLog().containsType(LogType.MSG_IP_MERGE_PUBLIC));
+
+    }
+
     @Test public void testImportNoFlagKey() throws Exception {
 
         UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
@@ -130,6 +216,49 @@ public class ProviderHelperSaveTest {
 
     }
 
+    @Test public void testCachedKeyRingSnapshot() throws Exception {
+
+        UncachedKeyRing pub = readRingFromResource("/test-keys/mailvelope_07_no_key_flags.asc");
+        UncachedKeyRing sec = readRingFromResource("/test-keys/divert_to_card_sec.asc");
+        mProviderHelper.savePublicKeyRing(pub);
+        mProviderHelper.saveSecretKeyRing(sec, new ProgressScaler());
+
+        for (long keyId : new long[] { pub.getMasterKeyId(), sec.getMasterKeyId() }) {
+            CachedPublicKeyRing cachedRing = mProviderHelper.getCachedPublicKeyRing(keyId);
+            Snapshot snapshot = cachedRing.getSnapshot();
+
+            Assert.assertEquals("master key id must match",
+                    cachedRing.getMasterKeyId(), snapshot.getMasterKeyId());
+            Assert.assertArrayEquals("fingerprint must match",
+                    cachedRing.getFingerprint(), snapshot.getFingerprint());
+            Assert.assertEquals("primary user id must match",
+                    cachedRing.getPrimaryUserId(), snapshot.getPrimaryUserId());
+            Assert.assertEquals("revocation status must match",
+                    cachedRing.isRevoked(), snapshot.isRevoked());
+            Assert.assertEquals("certification capability must match",
+                    cachedRing.canCertify(), snapshot.canCertify());
+            Assert.assertEquals("encryption key id must match",
+                    cachedRing.getEncryptId(), snapshot.getEncryptId());
+            Assert.assertEquals("signing key id must match",
+                    cachedRing.getSecretSignId(), snapshot.getSecretSignId());
+            Assert.assertEquals("verification status must match",
+                    cachedRing.getVerified(), snapshot.getVerified());
+            Assert.assertEquals("secret key availability must match",
+                    cachedRing.hasAnySecret(), snapshot.hasAnySecret());
+        }
+
+        long unknownKeyId = 0x1234567812345678L;
+        LongSparseArray<Snapshot> snapshots = mProviderHelper.getCachedKeyRingSnapshots(
+                new long[] { pub.getMasterKeyId(), sec.getMasterKeyId(), unknownKeyId });
+        Assert.assertEquals("bulk loading must find both keyrings", 2, snapshots.size());
+        Assert.assertFalse("public keyring has no secret key",
+                snapshots.get(pub.getMasterKeyId()).hasAnySecret());
+        Assert.assertTrue("secret keyring has a secret key",
+                snapshots.get(sec.getMasterKeyId()).hasAnySecret());
+        Assert.assertNull("unknown keyring must be missing", snapshots.get(unknownKeyId));
+
+    }
+
     @Test public void testImportDivertToCard() throws Exception {
 
         UncachedKeyRing sec = readRingFromResource("/test-keys/divert_to_card_sec.asc");
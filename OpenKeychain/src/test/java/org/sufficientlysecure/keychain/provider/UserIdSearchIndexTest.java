@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.provider;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.sig.KeyFlags;
+import org.spongycastle.jce.provider.BouncyCastleProvider;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.operations.results.PgpEditKeyResult;
+import org.sufficientlysecure.keychain.pgp.PgpKeyOperation;
+import org.sufficientlysecure.keychain.pgp.UncachedKeyRing;
+import org.sufficientlysecure.keychain.provider.KeychainContract.KeyRings;
+import org.sufficientlysecure.keychain.provider.KeychainDatabase.Tables;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.Algorithm;
+import org.sufficientlysecure.keychain.service.SaveKeyringParcel.ChangeUnlockParcel;
+import org.sufficientlysecure.keychain.util.Preferences;
+import org.sufficientlysecure.keychain.util.ProgressScaler;
+import org.sufficientlysecure.keychain.util.TestingUtils;
+
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class UserIdSearchIndexTest {
+
+    static UncachedKeyRing mStaticRing;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        Security.insertProviderAt(new BouncyCastleProvider(), 1);
+        ShadowLog.stream = System.out;
+
+        SaveKeyringParcel parcel = new SaveKeyringParcel();
+        parcel.mAddSubKeys.add(new SaveKeyringParcel.SubkeyAdd(
+                Algorithm.RSA, 1024, null, KeyFlags.CERTIFY_OTHER, 0L));
+        parcel.mAddUserIds.add("Alice Liddell (Wonderland) <alice@example.com>");
+        parcel.mAddUserIds.add("Queen of Hearts <queen@hearts.example.org>");
+        parcel.mNewUnlock = new ChangeUnlockParcel(TestingUtils.genPassphrase(true));
+
+        PgpEditKeyResult result = new PgpKeyOperation(null).createSecretKeyRing(parcel);
+        Assert.assertTrue("initial test key creation must succeed", result.success());
+        mStaticRing = result.getRing();
+    }
+
+    @Before
+    public void setUp() {
+        new KeychainDatabase(RuntimeEnvironment.application).clearDatabase();
+        Preferences.getPreferences(RuntimeEnvironment.application).setDatabaseBackfillPending(false);
+    }
+
+    @Test
+    public void testTokenize() {
+        Assert.assertEquals("tokens must be split at ascii punctuation and whitespace",
+                Arrays.asList("Alice", "alice", "example", "com"),
+                UserIdSearchIndex.tokenize(" Alice <alice@example.com>"));
+        Assert.assertEquals("non-ascii characters must be part of tokens",
+                Arrays.asList("Jürgen", "ö"), UserIdSearchIndex.tokenize("Jürgen (ö)"));
+
+        Assert.assertEquals("prefix match must quote each token",
+                "\"ali*\" \"exa*\"", UserIdSearchIndex.buildPrefixMatch("ali exa"));
+        Assert.assertEquals("query syntax must not be passed through",
+                "\"OR*\" \"x*\"", UserIdSearchIndex.buildPrefixMatch("OR \"x*"));
+        Assert.assertNull("query without tokens must yield no match",
+                UserIdSearchIndex.buildPrefixMatch(" -- "));
+
+        Assert.assertEquals("email match must be a phrase",
+                "\"alice example com\"", UserIdSearchIndex.buildEmailMatch("alice@example.com"));
+    }
+
+    @Test
+    public void testFindByUserId() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        providerHelper.saveSecretKeyRing(mStaticRing, new ProgressScaler());
+        long masterKeyId = mStaticRing.getMasterKeyId();
+
+        Assert.assertEquals("name prefix must be found", Arrays.asList(masterKeyId),
+                findByUserId("lid"));
+        Assert.assertEquals("tokens from name and email must be found", Arrays.asList(masterKeyId),
+                findByUserId("alice exam"));
+        Assert.assertEquals("non-primary user ids must be found", Arrays.asList(masterKeyId),
+                findByUserId("hearts"));
+        Assert.assertEquals("comment must be found", Arrays.asList(masterKeyId),
+                findByUserId("wonder"));
+        Assert.assertTrue("all tokens must match the same user id",
+                findByUserId("alice queen").isEmpty());
+        Assert.assertTrue("unknown tokens must not be found", findByUserId("bob").isEmpty());
+
+        Assert.assertEquals("email lookup must find exact match", Arrays.asList(masterKeyId),
+                findByEmail("queen@hearts.example.org"));
+        Assert.assertEquals("email lookup must support multiple emails", Arrays.asList(masterKeyId),
+                findByEmail("bob@example.com, alice@example.com"));
+        Assert.assertTrue("email lookup must not match a partial email",
+                findByEmail("hearts.example.org").isEmpty());
+        Assert.assertTrue("email lookup must not match a different email",
+                findByEmail("alice@example.co").isEmpty());
+
+        // saving the keyring again must not leave stale entries in the index
+        providerHelper.saveSecretKeyRing(mStaticRing, new ProgressScaler());
+        Assert.assertEquals("index must have one row per user id", 2, countIndexRows());
+
+        providerHelper.deleteKeyRings(new long[] { masterKeyId });
+        Assert.assertEquals("index rows must be deleted with keyring", 0, countIndexRows());
+        Assert.assertTrue("deleted keyring must not be found", findByUserId("alice").isEmpty());
+    }
+
+    /** After an upgrade, the index is empty until the backfill is done. */
+    @Test
+    public void testFindBeforeBackfill() throws Exception {
+        ProviderHelper providerHelper = new ProviderHelper(RuntimeEnvironment.application);
+        providerHelper.saveSecretKeyRing(mStaticRing, new ProgressScaler());
+        long masterKeyId = mStaticRing.getMasterKeyId();
+
+        // recreate the index the way the upgrade from version 12 does
+        KeychainDatabase database = new KeychainDatabase(RuntimeEnvironment.application);
+        SQLiteDatabase db = database.getWritableDatabase();
+        db.execSQL("DROP TABLE " + Tables.USER_IDS_FTS);
+        Assert.assertEquals("upgrade must request a backfill", KeychainDatabase.MIGRATION_BACKFILL,
+                KeychainDatabase.migrateFrom(db, 12));
+        Preferences preferences = Preferences.getPreferences(RuntimeEnvironment.application);
+        preferences.setDatabaseBackfillPending(true);
+        Assert.assertEquals("index must be empty before the backfill", 0, countIndexRows());
+
+        Assert.assertEquals("name prefix must be found before backfill", Arrays.asList(masterKeyId),
+                findByUserId("lid"));
+        Assert.assertEquals("tokens must be found before backfill", Arrays.asList(masterKeyId),
+                findByUserId("alice exam"));
+        Assert.assertTrue("all tokens must match the same user id before backfill",
+                findByUserId("alice queen").isEmpty());
+        Assert.assertEquals("email lookup must work before backfill", Arrays.asList(masterKeyId),
+                findByEmail("queen@hearts.example.org"));
+        Assert.assertTrue("email lookup must not match a partial email before backfill",
+                findByEmail("hearts.example.org").isEmpty());
+
+        long rowId = 0;
+        while ((rowId = database.backfillStep(rowId)) != -1) {
+            // continue until done
+        }
+        preferences.setDatabaseBackfillPending(false);
+
+        Assert.assertEquals("index must be filled by the backfill", 2, countIndexRows());
+        Assert.assertEquals("name prefix must be found after backfill", Arrays.asList(masterKeyId),
+                findByUserId("lid"));
+        Assert.assertEquals("email lookup must work after backfill", Arrays.asList(masterKeyId),
+                findByEmail("queen@hearts.example.org"));
+    }
+
+    /** User ids without the " <" separator are not split, their email ends up in the name. */
+    @Test
+    public void testFindByEmailWithoutName() throws Exception {
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+        insertKeyRing(db, 1, "<bob@example.com>");
+        insertKeyRing(db, 2, "Carol<carol@example.com>");
+
+        Assert.assertEquals("email lookup must find bare email in brackets", Arrays.asList(1L),
+                findByEmail("bob@example.com"));
+        Assert.assertEquals("email lookup must find email directly after name", Arrays.asList(2L),
+                findByEmail("carol@example.com"));
+        Assert.assertTrue("email lookup must not match a partial email",
+                findByEmail("ob@example.com").isEmpty());
+    }
+
+    /** Compares the full text search with the LIKE search it replaces, on 50k user ids. */
+    @Test
+    public void testSearchManyUserIds() throws Exception {
+        int numKeys = 50000;
+        SQLiteDatabase db = new KeychainDatabase(RuntimeEnvironment.application).getWritableDatabase();
+
+        db.beginTransaction();
+        try {
+            for (long i = 1; i <= numKeys; i++) {
+                String userId = "User " + i + " (benchmark) <user" + i + "@" + (i % 100) + ".example.org>";
+                insertKeyRing(db, i, userId);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        ArrayList<Long> like = queryMasterKeyIds(KeyRings.buildUnifiedKeyRingsUri(),
+                KeyRings.USER_ID + " LIKE ?", new String[] { "%user12345@%" });
+        ArrayList<Long> fts = findByUserId("user12345");
+        ArrayList<Long> email = findByEmail("user12345@45.example.org");
+
+        Assert.assertEquals("full text search must find the same keys as LIKE", like, fts);
+        Assert.assertEquals("email lookup must find the same key", like, email);
+        Assert.assertEquals("search must find exactly one key", Arrays.asList(12345L), fts);
+    }
+
+    private void insertKeyRing(SQLiteDatabase db, long masterKeyId, String userId) {
+        ContentValues values = new ContentValues();
+        values.put(KeychainContract.KeyRingData.MASTER_KEY_ID, masterKeyId);
+        db.insertOrThrow(Tables.KEY_RINGS_PUBLIC, null, values);
+
+        values = new ContentValues();
+        values.put(KeychainContract.Keys.MASTER_KEY_ID, masterKeyId);
+        values.put(KeychainContract.Keys.KEY_ID, masterKeyId);
+        values.put(KeychainContract.Keys.RANK, 0);
+        db.insertOrThrow(Tables.KEYS, null, values);
+
+        values = new ContentValues();
+        values.put(KeychainContract.UserPackets.MASTER_KEY_ID, masterKeyId);
+        values.put(KeychainContract.UserPackets.USER_ID, userId);
+        values.put(KeychainContract.UserPackets.RANK, 0);
+        long rowId = db.insertOrThrow(Tables.USER_PACKETS, null, values);
+        UserIdSearchIndex.insert(db, rowId, userId);
+    }
+
+    private ArrayList<Long> findByUserId(String query) {
+        return queryMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByUserIdUri(query), null, null);
+    }
+
+    private ArrayList<Long> findByEmail(String email) {
+        return queryMasterKeyIds(KeyRings.buildUnifiedKeyRingsFindByEmailUri(email), null, null);
+    }
+
+    private ArrayList<Long> queryMasterKeyIds(Uri uri, String selection, String[] selectionArgs) {
+        Cursor cursor = RuntimeEnvironment.application.getContentResolver().query(uri,
+                new String[] { KeyRings.MASTER_KEY_ID }, selection, selectionArgs, null);
+        ArrayList<Long> result = new ArrayList<>();
+        try {
+            while (cursor.moveToNext()) {
+                result.add(cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    private int countIndexRows() {
+        Cursor cursor = new KeychainDatabase(RuntimeEnvironment.application).getReadableDatabase()
+                .rawQuery("SELECT COUNT(*) FROM " + Tables.USER_IDS_FTS, null);
+        try {
+            cursor.moveToFirst();
+            return cursor.getInt(0);
+        } finally {
+            cursor.close();
+        }
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.service;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.service.OperationScheduler.ScheduledOperation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OperationSchedulerTest {
+
+    /** An operation which records its name, and whether it was cancelled, once it has run. */
+    static class RecordingOperation implements ScheduledOperation {
+        final String mName;
+        final List<String> mRecord;
+        final CountDownLatch mDone;
+
+        RecordingOperation(String name, List<String> record, CountDownLatch done) {
+            mName = name;
+            mRecord = record;
+            mDone = done;
+        }
+
+        @Override
+        public void run(AtomicBoolean cancelled) {
+            mRecord.add(cancelled.get() ? mName + " cancelled" : mName);
+            mDone.countDown();
+        }
+    }
+
+    /** An operation which occupies its thread until it is released. */
+    static class BlockingOperation implements ScheduledOperation {
+        final CountDownLatch mStarted = new CountDownLatch(1);
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        volatile boolean mSawCancel;
+
+        @Override
+        public void run(AtomicBoolean cancelled) {
+            mStarted.countDown();
+            try {
+                mRelease.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                // just finish
+            }
+            mSawCancel = cancelled.get();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testPriorityOrder() throws Exception {
+        OperationScheduler scheduler = new OperationScheduler(1);
+        List<String> record = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(4);
+
+        // occupy the only thread, so all following operations have to wait in the queue
+        BlockingOperation blocker = new BlockingOperation();
+        scheduler.submit("blocker", OperationScheduler.PRIORITY_BACKGROUND, blocker);
+        Assert.assertTrue(blocker.mStarted.await(10, TimeUnit.SECONDS));
+
+        scheduler.submit("a", OperationScheduler.PRIORITY_BACKGROUND,
+                new RecordingOperation("background 1", record, done));
+        scheduler.submit("b", OperationScheduler.PRIORITY_INTERACTIVE,
+                new RecordingOperation("interactive 1", record, done));
+        scheduler.submit("c", OperationScheduler.PRIORITY_BACKGROUND,
+                new RecordingOperation("background 2", record, done));
+        scheduler.submit("d", OperationScheduler.PRIORITY_INTERACTIVE,
+                new RecordingOperation("interactive 2", record, done));
+        Assert.assertEquals("all operations must be pending", 5, scheduler.getPendingCount());
+
+        blocker.mRelease.countDown();
+        Assert.assertTrue("all operations must run", done.await(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals("interactive operations must run first, each class in order",
+                Arrays.asList("interactive 1", "interactive 2", "background 1", "background 2"),
+                record);
+    }
+
+    @Test
+    public void testCancelWaiting() throws Exception {
+        OperationScheduler scheduler = new OperationScheduler(1);
+        List<String> record = Collections.synchronizedList(new ArrayList<String>());
+        CountDownLatch done = new CountDownLatch(2);
+
+        BlockingOperation blocker = new BlockingOperation();
+        scheduler.submit("blocker", OperationScheduler.PRIORITY_INTERACTIVE, blocker);
+        Assert.assertTrue(blocker.mStarted.await(10, TimeUnit.SECONDS));
+
+        Object tag = new Object();
+        AtomicBoolean token = scheduler.submit(tag, OperationScheduler.PRIORITY_INTERACTIVE,
+                new RecordingOperation("cancelled", record, done));
+        scheduler.submit("other", OperationScheduler.PRIORITY_INTERACTIVE,
+                new RecordingOperation("other", record, done));
+
+        Assert.assertTrue("waiting operation must be found", scheduler.cancel(tag));
+        Assert.assertTrue("token of the operation must be set", token.get());
+
+        blocker.mRelease.countDown();
+        Assert.assertTrue("all operations must run", done.await(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals("only the tagged operation must be cancelled",
+                Arrays.asList("cancelled cancelled", "other"), record);
+        Assert.assertFalse("blocking operation must not be cancelled", blocker.mSawCancel);
+    }
+
+    @Test
+    public void testCancelRunning() throws Exception {
+        OperationScheduler scheduler = new OperationScheduler(2);
+
+        BlockingOperation blocker = new BlockingOperation();
+        AtomicBoolean token = scheduler.submit("running", OperationScheduler.PRIORITY_BACKGROUND,
+                blocker);
+        Assert.assertTrue(blocker.mStarted.await(10, TimeUnit.SECONDS));
+
+        Assert.assertFalse("unknown tag must not be found", scheduler.cancel("unknown"));
+        Assert.assertFalse("operation must not be cancelled by another tag", token.get());
+
+        Assert.assertTrue("running operation must be found", scheduler.cancel("running"));
+        blocker.mRelease.countDown();
+
+        // wait for the operation to be removed, it can't be cancelled after that
+        for (int i = 0; i < 100 && scheduler.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("running operation must see its cancellation", blocker.mSawCancel);
+        Assert.assertEquals("finished operation must be removed", 0, scheduler.getPendingCount());
+        Assert.assertFalse("finished operation can't be cancelled", scheduler.cancel("running"));
+    }
+
+}
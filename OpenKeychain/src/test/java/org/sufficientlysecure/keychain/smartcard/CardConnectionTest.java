@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class CardConnectionTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testEncodeShort() throws Exception {
+        Assert.assertArrayEquals(Hex.decode("00A40400"),
+                new CommandApdu(0x00, 0xA4, 0x04, 0x00).encode(false));
+        Assert.assertArrayEquals(Hex.decode("00CA006E00"),
+                new CommandApdu(0x00, 0xCA, 0x00, 0x6E, 256).encode(false));
+        Assert.assertArrayEquals(Hex.decode("0020008106313233343536"),
+                new CommandApdu(0x00, 0x20, 0x00, 0x81, "123456".getBytes()).encode(false));
+        Assert.assertArrayEquals(Hex.decode("00A4040006D2760001240100"),
+                new CommandApdu(0x00, 0xA4, 0x04, 0x00, Hex.decode("D27600012401"), 256).encode(false));
+        Assert.assertArrayEquals("short encoding must be used when possible",
+                Hex.decode("00CA006E10"), new CommandApdu(0x00, 0xCA, 0x00, 0x6E, 16).encode(true));
+    }
+
+    @Test
+    public void testEncodeExtended() throws Exception {
+        Assert.assertArrayEquals(Hex.decode("00CA006E000000"),
+                new CommandApdu(0x00, 0xCA, 0x00, 0x6E, 65536).encode(true));
+        Assert.assertArrayEquals(Hex.decode("00CA006E000200"),
+                new CommandApdu(0x00, 0xCA, 0x00, 0x6E, 512).encode(true));
+
+        byte[] data = new byte[300];
+        byte[] encoded = new CommandApdu(0x00, 0x2A, 0x80, 0x86, data, 65536).encode(true);
+        Assert.assertEquals(4 + 3 + 300 + 2, encoded.length);
+        Assert.assertArrayEquals(Hex.decode("002A808600012C"), java.util.Arrays.copyOf(encoded, 7));
+        Assert.assertArrayEquals(Hex.decode("0000"),
+                java.util.Arrays.copyOfRange(encoded, encoded.length - 2, encoded.length));
+
+        try {
+            new CommandApdu(0x00, 0x2A, 0x80, 0x86, data).encode(false);
+            Assert.fail("long command must not be encoded with short length");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCommandChaining() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(261);
+        CardConnection connection = new CardConnection(transport);
+
+        byte[] data = new byte[600];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        transport.reply("9000");
+        transport.reply("9000");
+        transport.reply("AABB9000");
+
+        ResponseApdu response = connection.transceive(
+                new CommandApdu(0x00, 0x2A, 0x80, 0x86, data, 256));
+
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertArrayEquals(Hex.decode("AABB"), response.getData());
+        Assert.assertEquals("data must be split into three commands", 3, transport.mCommands.size());
+
+        byte[] first = transport.mCommands.get(0);
+        Assert.assertEquals("chained command must have chaining bit", 0x10, first[0]);
+        Assert.assertEquals("chained command must not have Le", 4 + 1 + 255, first.length);
+        byte[] last = transport.mCommands.get(2);
+        Assert.assertEquals("last command must not have chaining bit", 0x00, last[0]);
+        Assert.assertEquals(600 - 2 * 255, last[4] & 0xff);
+        Assert.assertEquals("last command must have Le", 4 + 1 + 90 + 1, last.length);
+        Assert.assertEquals("data must be sent in order", (byte) 510, last[5]);
+    }
+
+    @Test
+    public void testChainingAbortsOnError() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(261);
+        CardConnection connection = new CardConnection(transport);
+
+        transport.reply("6883");
+        ResponseApdu response = connection.transceive(
+                new CommandApdu(0x00, 0xDB, 0x3F, 0xFF, new byte[600]));
+
+        Assert.assertEquals(0x6883, response.getSw());
+        Assert.assertEquals("chain must stop at first error", 1, transport.mCommands.size());
+    }
+
+    @Test
+    public void testGetResponse() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(261);
+        CardConnection connection = new CardConnection(transport);
+
+        transport.reply("01026104");
+        transport.reply("030405066102");
+        transport.reply("07089000");
+
+        ResponseApdu response = connection.transceive(new CommandApdu(0x00, 0xCA, 0x00, 0x6E, 256));
+
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertArrayEquals(Hex.decode("0102030405060708"), response.getData());
+        Assert.assertArrayEquals(Hex.decode("00C0000004"), transport.mCommands.get(1));
+        Assert.assertArrayEquals(Hex.decode("00C0000002"), transport.mCommands.get(2));
+    }
+
+    @Test
+    public void testWrongLe() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(261);
+        CardConnection connection = new CardConnection(transport);
+
+        transport.reply("6C07");
+        transport.reply("01020304050607" + "9000");
+
+        ResponseApdu response = connection.transceive(new CommandApdu(0x00, 0xCA, 0x00, 0xC4, 256));
+
+        Assert.assertTrue(response.isSuccess());
+        Assert.assertEquals(7, response.getData().length);
+        Assert.assertArrayEquals(Hex.decode("00CA00C407"), transport.mCommands.get(1));
+    }
+
+    @Test
+    public void testExtendedLength() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(2048);
+        CardConnection connection = new CardConnection(transport);
+        connection.setCapabilities(new CardCapabilities(true, true, 1024, 1024));
+
+        transport.reply("9000");
+        connection.transceive(new CommandApdu(0x00, 0x2A, 0x80, 0x86, new byte[600], 65536));
+
+        Assert.assertEquals("extended length command must not be chained", 1, transport.mCommands.size());
+        Assert.assertArrayEquals("Ne must be limited to card capability", Hex.decode("0400"),
+                java.util.Arrays.copyOfRange(transport.mCommands.get(0), 4 + 3 + 600, 4 + 3 + 600 + 2));
+    }
+
+    @Test
+    public void testExtendedLengthLimitedByTransport() throws Exception {
+        ScriptedTransport transport = new ScriptedTransport(261);
+        CardConnection connection = new CardConnection(transport);
+        connection.setCapabilities(new CardCapabilities(true, true, 1024, 1024));
+
+        Assert.assertFalse("transport without extended length support must use short apdus",
+                connection.isExtendedLength());
+        Assert.assertEquals(255, connection.getMaxCommandData());
+    }
+
+    @Test
+    public void testCapabilitiesFromApplicationRelatedData() throws Exception {
+        // 6E { 4F aid, 5F52 historical bytes, 73 { C0 extended capabilities } }
+        byte[] historical = Hex.decode("0031C573C00140059000");
+        byte[] extCaps = Hex.decode("7C000800080008000800");
+        byte[] ard = Hex.decode("6E" + "21"
+                + "4F" + "04" + "D2760001"
+                + "5F52" + "0A" + Hex.toHexString(historical)
+                + "73" + "0C" + "C0" + "0A" + Hex.toHexString(extCaps));
+
+        CardCapabilities capabilities = CardCapabilities.fromApplicationRelatedData(ard);
+        Assert.assertTrue(capabilities.mExtendedLength);
+        Assert.assertFalse(capabilities.mCommandChaining);
+        Assert.assertEquals(0x800, capabilities.mMaxCommandData);
+        Assert.assertEquals(0x800, capabilities.mMaxResponseData);
+
+        byte[] noCaps = Hex.decode("6E" + "06" + "4F" + "04" + "D2760001");
+        capabilities = CardCapabilities.fromApplicationRelatedData(noCaps);
+        Assert.assertFalse("missing capabilities must default to short length",
+                capabilities.mExtendedLength);
+        Assert.assertTrue(capabilities.mCommandChaining);
+    }
+
+    static class ScriptedTransport implements CardTransport {
+        final int mMaxLength;
+        final LinkedList<byte[]> mReplies = new LinkedList<>();
+        final ArrayList<byte[]> mCommands = new ArrayList<>();
+
+        ScriptedTransport(int maxLength) {
+            mMaxLength = maxLength;
+        }
+
+        void reply(String hex) {
+            mReplies.add(Hex.decode(hex));
+        }
+
+        @Override
+        public byte[] transceive(byte[] command) throws IOException {
+            if (command.length > mMaxLength) {
+                throw new IOException("command too long for transport");
+            }
+            mCommands.add(command);
+            if (mReplies.isEmpty()) {
+                throw new IOException("no reply scripted");
+            }
+            return mReplies.removeFirst();
+        }
+
+        @Override
+        public int getMaxTransceiveLength() {
+            return mMaxLength;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+}
@@ -0,0 +1,586 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import org.spongycastle.crypto.AsymmetricBlockCipher;
+import org.spongycastle.crypto.InvalidCipherTextException;
+import org.spongycastle.crypto.encodings.PKCS1Encoding;
+import org.spongycastle.crypto.engines.RSAEngine;
+import org.spongycastle.crypto.params.RSAPrivateCrtKeyParameters;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.util.Iso7816TLV;
+
+/** A software implementation of the OpenPGP card application, version 2.0.1.
+ *
+ * This implements the subset of the specification which OpenKeychain uses:
+ * SELECT, GET DATA, VERIFY, CHANGE REFERENCE DATA, PUT DATA (including key
+ * import with the extended header list), PSO:COMPUTE DIGITAL SIGNATURE,
+ * PSO:DECIPHER and GET RESPONSE, with command chaining and optional extended
+ * length fields. RSA operations are done with spongycastle.
+ *
+ * For timing tests, a fixed latency can be injected into every exchanged
+ * APDU, which approximates the round trip over NFC.
+ */
+public class OpenPgpCardSimulator implements CardTransport {
+
+    public static final String DEFAULT_PIN = "123456";
+    public static final String DEFAULT_ADMIN_PIN = "12345678";
+
+    private static final byte[] AID = Hex.decode("D2760001240102000005000012340000");
+
+    private static final int SW_OK = 0x9000;
+    private static final int SW_WRONG_LENGTH = 0x6700;
+    private static final int SW_LAST_COMMAND_EXPECTED = 0x6883;
+    private static final int SW_SECURITY_STATUS_NOT_SATISFIED = 0x6982;
+    private static final int SW_AUTHENTICATION_BLOCKED = 0x6983;
+    private static final int SW_CONDITIONS_NOT_SATISFIED = 0x6985;
+    private static final int SW_WRONG_DATA = 0x6A80;
+    private static final int SW_FILE_NOT_FOUND = 0x6A82;
+    private static final int SW_REFERENCED_DATA_NOT_FOUND = 0x6A88;
+    private static final int SW_WRONG_P1P2 = 0x6B00;
+    private static final int SW_INS_NOT_SUPPORTED = 0x6D00;
+    private static final int SW_CLA_NOT_SUPPORTED = 0x6E00;
+
+    private static final int MAX_RETRIES = 3;
+
+    private final boolean mExtendedLength;
+    private final int mMaxTransceiveLength;
+    private final boolean mPw1ValidForMultipleSignatures;
+
+    private byte[] mPw1 = DEFAULT_PIN.getBytes();
+    private byte[] mPw3 = DEFAULT_ADMIN_PIN.getBytes();
+    private int mPw1Retries = MAX_RETRIES;
+    private int mPw3Retries = MAX_RETRIES;
+
+    private boolean mSelected;
+    private boolean mPw1VerifiedForSignature;
+    private boolean mPw1VerifiedForOther;
+    private boolean mPw3Verified;
+
+    private final HashMap<Integer, byte[]> mDataObjects = new HashMap<>();
+    private final HashMap<Integer, RSAPrivateCrtKeyParameters> mKeys = new HashMap<>();
+
+    // state of a command chain in progress
+    private CommandApdu mChainHeader;
+    private final ByteArrayOutputStream mChainData = new ByteArrayOutputStream();
+
+    // response data which didn't fit into the last response, for GET RESPONSE
+    private byte[] mPendingResponse;
+
+    private long mLatencyMillis;
+    private int mCommandCount;
+    private int mSignatureCount;
+
+    /** Creates a card with short length fields only, behind a transport as found in most
+     * Android devices, and PW1 valid for multiple signatures. */
+    public OpenPgpCardSimulator() {
+        this(false, 261, true);
+    }
+
+    public OpenPgpCardSimulator(boolean extendedLength, int maxTransceiveLength,
+                                boolean pw1ValidForMultipleSignatures) {
+        mExtendedLength = extendedLength;
+        mMaxTransceiveLength = maxTransceiveLength;
+        mPw1ValidForMultipleSignatures = pw1ValidForMultipleSignatures;
+    }
+
+    /** Sets a delay which is added to every exchanged APDU. */
+    public void setLatency(long millis) {
+        mLatencyMillis = millis;
+    }
+
+    /** Returns the number of APDUs exchanged so far. */
+    public int getCommandCount() {
+        return mCommandCount;
+    }
+
+    /** Returns the number of signatures computed so far. */
+    public int getSignatureCount() {
+        return mSignatureCount;
+    }
+
+    public int getPw1Retries() {
+        return mPw1Retries;
+    }
+
+    /** Places a key on the card directly, as if it had been imported before. */
+    public void setKey(int slot, RSAPrivateCrtKey key) {
+        mKeys.put(slot, new RSAPrivateCrtKeyParameters(key.getModulus(), key.getPublicExponent(),
+                key.getPrivateExponent(), key.getPrimeP(), key.getPrimeQ(),
+                key.getPrimeExponentP(), key.getPrimeExponentQ(), key.getCrtCoefficient()));
+    }
+
+    public boolean hasKey(int slot) {
+        return mKeys.containsKey(slot);
+    }
+
+    public void setDataObject(int tag, byte[] value) {
+        mDataObjects.put(tag, value);
+    }
+
+    public byte[] getDataObject(int tag) {
+        return mDataObjects.get(tag);
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) throws IOException {
+        if (command.length > mMaxTransceiveLength) {
+            throw new IOException("Transceive length exceeds supported maximum");
+        }
+        mCommandCount += 1;
+        if (mLatencyMillis > 0) {
+            try {
+                Thread.sleep(mLatencyMillis);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+        }
+
+        // a zero byte after the header is only used by extended length fields
+        boolean extended = command.length > 5 && command[4] == 0;
+        if (extended && !mExtendedLength) {
+            return status(SW_WRONG_LENGTH);
+        }
+
+        CommandApdu apdu;
+        try {
+            apdu = CommandApdu.fromBytes(command);
+        } catch (IOException e) {
+            return status(SW_WRONG_LENGTH);
+        }
+        return process(apdu).toBytes();
+    }
+
+    @Override
+    public int getMaxTransceiveLength() {
+        return mMaxTransceiveLength;
+    }
+
+    @Override
+    public void close() {
+        mSelected = false;
+    }
+
+    private ResponseApdu process(CommandApdu apdu) {
+        if ((apdu.mCla & ~CommandApdu.CLA_CHAINING) != 0x00) {
+            return new ResponseApdu(new byte[0], SW_CLA_NOT_SUPPORTED);
+        }
+
+        if (apdu.mIns != 0xC0) {
+            mPendingResponse = null;
+        }
+
+        // collect the parts of a command chain, the last part is processed as a whole
+        boolean chained = (apdu.mCla & CommandApdu.CLA_CHAINING) != 0;
+        if (mChainHeader != null) {
+            if (apdu.mIns != mChainHeader.mIns || apdu.mP1 != mChainHeader.mP1
+                    || apdu.mP2 != mChainHeader.mP2) {
+                mChainHeader = null;
+                mChainData.reset();
+                return new ResponseApdu(new byte[0], SW_LAST_COMMAND_EXPECTED);
+            }
+        } else if (chained) {
+            mChainHeader = apdu;
+            mChainData.reset();
+        }
+        if (mChainHeader != null) {
+            mChainData.write(apdu.getData(), 0, apdu.getNc());
+            if (chained) {
+                return new ResponseApdu(new byte[0], SW_OK);
+            }
+            apdu = new CommandApdu(0x00, apdu.mIns, apdu.mP1, apdu.mP2,
+                    mChainData.toByteArray(), apdu.mNe);
+            mChainHeader = null;
+            mChainData.reset();
+        }
+
+        if (!mSelected && apdu.mIns != 0xA4) {
+            return new ResponseApdu(new byte[0], SW_CONDITIONS_NOT_SATISFIED);
+        }
+
+        ResponseApdu response;
+        switch (apdu.mIns) {
+            case 0xA4:
+                response = select(apdu);
+                break;
+            case 0xCA:
+                response = getData(apdu);
+                break;
+            case 0x20:
+                response = verify(apdu);
+                break;
+            case 0x24:
+                response = changeReferenceData(apdu);
+                break;
+            case 0xDA:
+                response = putData(apdu);
+                break;
+            case 0xDB:
+                response = putKey(apdu);
+                break;
+            case 0x2A:
+                response = performSecurityOperation(apdu);
+                break;
+            case 0xC0:
+                return getResponse(apdu);
+            default:
+                response = new ResponseApdu(new byte[0], SW_INS_NOT_SUPPORTED);
+        }
+
+        return limitResponse(response, apdu.mNe);
+    }
+
+    /** Returns at most ne bytes of data, the rest is available with GET RESPONSE. */
+    private ResponseApdu limitResponse(ResponseApdu response, int ne) {
+        byte[] data = response.getData();
+        if (!response.isSuccess() || data.length <= ne) {
+            return response;
+        }
+        mPendingResponse = Arrays.copyOfRange(data, ne, data.length);
+        return new ResponseApdu(Arrays.copyOf(data, ne), 0x6100 | remainingSw2());
+    }
+
+    private ResponseApdu getResponse(CommandApdu apdu) {
+        if (mPendingResponse == null) {
+            return new ResponseApdu(new byte[0], SW_CONDITIONS_NOT_SATISFIED);
+        }
+        byte[] pending = mPendingResponse;
+        mPendingResponse = null;
+        return limitResponse(new ResponseApdu(pending, SW_OK), apdu.mNe);
+    }
+
+    private int remainingSw2() {
+        return mPendingResponse.length >= 256 ? 0x00 : mPendingResponse.length;
+    }
+
+    private ResponseApdu select(CommandApdu apdu) {
+        if (apdu.mP1 != 0x04) {
+            return new ResponseApdu(new byte[0], SW_WRONG_P1P2);
+        }
+        byte[] aid = apdu.getData();
+        if (aid.length < OpenPgpCard.AID_OPENPGP.length || !Arrays.equals(
+                Arrays.copyOf(aid, OpenPgpCard.AID_OPENPGP.length), OpenPgpCard.AID_OPENPGP)) {
+            mSelected = false;
+            return new ResponseApdu(new byte[0], SW_FILE_NOT_FOUND);
+        }
+        mSelected = true;
+        mPw1VerifiedForSignature = false;
+        mPw1VerifiedForOther = false;
+        mPw3Verified = false;
+        return new ResponseApdu(new byte[0], SW_OK);
+    }
+
+    private ResponseApdu getData(CommandApdu apdu) {
+        int tag = (apdu.mP1 << 8) | apdu.mP2;
+        byte[] data;
+        switch (tag) {
+            case 0x004F:
+                data = AID;
+                break;
+            case 0x5F52:
+                data = historicalBytes();
+                break;
+            case 0x00C4:
+                data = pwStatusBytes();
+                break;
+            case 0x0065:
+                data = tlv(0x65, tlv(0x5B, value(0x5B, 0)));
+                break;
+            case 0x006E:
+                data = applicationRelatedData();
+                break;
+            default:
+                data = mDataObjects.get(tag);
+        }
+        if (data == null) {
+            return new ResponseApdu(new byte[0], SW_REFERENCED_DATA_NOT_FOUND);
+        }
+        return new ResponseApdu(data, SW_OK);
+    }
+
+    private ResponseApdu verify(CommandApdu apdu) {
+        if (apdu.mP1 != 0x00 || apdu.mP2 < 0x81 || apdu.mP2 > 0x83) {
+            return new ResponseApdu(new byte[0], SW_WRONG_P1P2);
+        }
+        boolean admin = apdu.mP2 == 0x83;
+        if ((admin ? mPw3Retries : mPw1Retries) == 0) {
+            return new ResponseApdu(new byte[0], SW_AUTHENTICATION_BLOCKED);
+        }
+        if (!Arrays.equals(apdu.getData(), admin ? mPw3 : mPw1)) {
+            int retries = admin ? --mPw3Retries : --mPw1Retries;
+            return new ResponseApdu(new byte[0], 0x63C0 | retries);
+        }
+
+        if (admin) {
+            mPw3Retries = MAX_RETRIES;
+            mPw3Verified = true;
+        } else {
+            mPw1Retries = MAX_RETRIES;
+            if (apdu.mP2 == 0x81) {
+                mPw1VerifiedForSignature = true;
+            } else {
+                mPw1VerifiedForOther = true;
+            }
+        }
+        return new ResponseApdu(new byte[0], SW_OK);
+    }
+
+    private ResponseApdu changeReferenceData(CommandApdu apdu) {
+        if (apdu.mP1 != 0x00 || (apdu.mP2 != 0x81 && apdu.mP2 != 0x83)) {
+            return new ResponseApdu(new byte[0], SW_WRONG_P1P2);
+        }
+        boolean admin = apdu.mP2 == 0x83;
+        byte[] current = admin ? mPw3 : mPw1;
+        if ((admin ? mPw3Retries : mPw1Retries) == 0) {
+            return new ResponseApdu(new byte[0], SW_AUTHENTICATION_BLOCKED);
+        }
+
+        // the data field is the old PIN immediately followed by the new one
+        byte[] data = apdu.getData();
+        if (data.length <= current.length
+                || !Arrays.equals(Arrays.copyOf(data, current.length), current)) {
+            int retries = admin ? --mPw3Retries : --mPw1Retries;
+            return new ResponseApdu(new byte[0], 0x63C0 | retries);
+        }
+
+        byte[] newPin = Arrays.copyOfRange(data, current.length, data.length);
+        if (admin) {
+            mPw3 = newPin;
+            mPw3Retries = MAX_RETRIES;
+        } else {
+            mPw1 = newPin;
+            mPw1Retries = MAX_RETRIES;
+        }
+        return new ResponseApdu(new byte[0], SW_OK);
+    }
+
+    private ResponseApdu putData(CommandApdu apdu) {
+        int tag = (apdu.mP1 << 8) | apdu.mP2;
+        boolean privateUseWithPw1 = tag == 0x0101 || tag == 0x0103;
+        if (privateUseWithPw1 ? !mPw1VerifiedForOther : !mPw3Verified) {
+            return new ResponseApdu(new byte[0], SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        mDataObjects.put(tag, apdu.getData());
+        return new ResponseApdu(new byte[0], SW_OK);
+    }
+
+    /** PUT DATA with odd INS, the key import with an extended header list (page 33). */
+    private ResponseApdu putKey(CommandApdu apdu) {
+        if (apdu.mP1 != 0x3F || apdu.mP2 != 0xFF) {
+            return new ResponseApdu(new byte[0], SW_WRONG_P1P2);
+        }
+        if (!mPw3Verified) {
+            return new ResponseApdu(new byte[0], SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        try {
+            Iso7816TLV headerList = Iso7816TLV.readSingle(apdu.getData(), false);
+            if (headerList.mT != 0x4D) {
+                return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+            }
+            Iso7816TLV[] parts = Iso7816TLV.readList(headerList.mV, false);
+            if (parts.length != 3 || parts[1].mT != 0x7F48 || parts[2].mT != 0x5F48) {
+                return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+            }
+            int slot = parts[0].mT;
+            if (slot != OpenPgpCard.SLOT_SIGNATURE && slot != OpenPgpCard.SLOT_DECIPHERMENT
+                    && slot != OpenPgpCard.SLOT_AUTHENTICATION) {
+                return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+            }
+
+            // the template lists tags and lengths, the values follow in the same order in 5F48
+            HashMap<Integer, BigInteger> values = new HashMap<>();
+            ByteBuffer template = ByteBuffer.wrap(parts[1].mV);
+            ByteBuffer keyData = ByteBuffer.wrap(parts[2].mV);
+            while (template.hasRemaining()) {
+                int tag = template.get() & 0xff;
+                int length = readLength(template);
+                byte[] value = new byte[length];
+                keyData.get(value);
+                values.put(tag, new BigInteger(1, value));
+            }
+
+            BigInteger e = values.get(0x91), p = values.get(0x92), q = values.get(0x93),
+                    qInv = values.get(0x94), dP = values.get(0x95), dQ = values.get(0x96),
+                    n = values.get(0x97);
+            if (e == null || p == null || q == null || qInv == null || dP == null || dQ == null) {
+                return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+            }
+            if (n == null) {
+                n = p.multiply(q);
+            }
+            BigInteger d = e.modInverse(p.subtract(BigInteger.ONE).multiply(q.subtract(BigInteger.ONE)));
+            mKeys.put(slot, new RSAPrivateCrtKeyParameters(n, e, d, p, q, dP, dQ, qInv));
+        } catch (IOException | RuntimeException e) {
+            return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+        }
+
+        return new ResponseApdu(new byte[0], SW_OK);
+    }
+
+    private ResponseApdu performSecurityOperation(CommandApdu apdu) {
+        int operation = (apdu.mP1 << 8) | apdu.mP2;
+        if (operation == 0x9E9A) {
+            return computeDigitalSignature(apdu.getData());
+        } else if (operation == 0x8086) {
+            return decipher(apdu.getData());
+        }
+        return new ResponseApdu(new byte[0], SW_WRONG_P1P2);
+    }
+
+    private ResponseApdu computeDigitalSignature(byte[] digestInfo) {
+        if (!mPw1VerifiedForSignature) {
+            return new ResponseApdu(new byte[0], SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+        if (!mPw1ValidForMultipleSignatures) {
+            mPw1VerifiedForSignature = false;
+        }
+
+        RSAPrivateCrtKeyParameters key = mKeys.get(OpenPgpCard.SLOT_SIGNATURE);
+        if (key == null) {
+            return new ResponseApdu(new byte[0], SW_REFERENCED_DATA_NOT_FOUND);
+        }
+
+        // PKCS#1 v1.5 signature padding (block type 1) over the DigestInfo
+        AsymmetricBlockCipher engine = new PKCS1Encoding(new RSAEngine());
+        engine.init(true, key);
+        try {
+            byte[] signature = engine.processBlock(digestInfo, 0, digestInfo.length);
+            mSignatureCount += 1;
+            return new ResponseApdu(signature, SW_OK);
+        } catch (InvalidCipherTextException | RuntimeException e) {
+            return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+        }
+    }
+
+    private ResponseApdu decipher(byte[] data) {
+        if (!mPw1VerifiedForOther) {
+            return new ResponseApdu(new byte[0], SW_SECURITY_STATUS_NOT_SATISFIED);
+        }
+
+        RSAPrivateCrtKeyParameters key = mKeys.get(OpenPgpCard.SLOT_DECIPHERMENT);
+        if (key == null) {
+            return new ResponseApdu(new byte[0], SW_REFERENCED_DATA_NOT_FOUND);
+        }
+
+        // first byte is the padding indicator, always 0x00 for RSA
+        if (data.length < 2 || data[0] != 0x00) {
+            return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+        }
+
+        AsymmetricBlockCipher engine = new PKCS1Encoding(new RSAEngine());
+        engine.init(false, key);
+        try {
+            return new ResponseApdu(engine.processBlock(data, 1, data.length - 1), SW_OK);
+        } catch (InvalidCipherTextException | RuntimeException e) {
+            return new ResponseApdu(new byte[0], SW_WRONG_DATA);
+        }
+    }
+
+    private byte[] historicalBytes() {
+        // category indicator, card capabilities (compact-TLV tag 7), status indicator
+        int capabilities = 0x80 | (mExtendedLength ? 0x40 : 0x00);
+        return new byte[] { 0x00, 0x73, 0x00, 0x00, (byte) capabilities, 0x05, (byte) 0x90, 0x00 };
+    }
+
+    private byte[] pwStatusBytes() {
+        return new byte[] {
+                (byte) (mPw1ValidForMultipleSignatures ? 0x01 : 0x00),
+                0x7F, 0x7F, 0x7F,
+                (byte) mPw1Retries, 0x00, (byte) mPw3Retries
+        };
+    }
+
+    private byte[] applicationRelatedData() {
+        // page 23: no secure messaging, max 2048 bytes of command and response data
+        byte[] extendedCapabilities = Hex.decode("7C000800080008000800");
+
+        ByteArrayOutputStream discretionary = new ByteArrayOutputStream();
+        write(discretionary, tlv(0xC0, extendedCapabilities));
+        write(discretionary, tlv(0xC4, pwStatusBytes()));
+        write(discretionary, tlv(0xC5, concat(value(0xC7, 20), value(0xC8, 20), value(0xC9, 20))));
+        write(discretionary, tlv(0xCD, concat(value(0xCE, 4), value(0xCF, 4), value(0xD0, 4))));
+
+        ByteArrayOutputStream ard = new ByteArrayOutputStream();
+        write(ard, tlv(0x4F, AID));
+        write(ard, tlv(0x5F52, historicalBytes()));
+        write(ard, tlv(0x73, discretionary.toByteArray()));
+        return tlv(0x6E, ard.toByteArray());
+    }
+
+    /** Returns a stored data object, or zero bytes of the given length if it isn't set. */
+    private byte[] value(int tag, int length) {
+        byte[] value = mDataObjects.get(tag);
+        return value != null ? value : new byte[length];
+    }
+
+    private static int readLength(ByteBuffer buf) {
+        int length = buf.get() & 0xff;
+        if (length == 0x81) {
+            return buf.get() & 0xff;
+        } else if (length == 0x82) {
+            return ((buf.get() & 0xff) << 8) | (buf.get() & 0xff);
+        }
+        return length;
+    }
+
+    private static byte[] tlv(int tag, byte[] value) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(value.length + 5);
+        if (tag > 0xff) {
+            out.write(tag >> 8);
+        }
+        out.write(tag & 0xff);
+        if (value.length < 0x80) {
+            out.write(value.length);
+        } else if (value.length <= 0xff) {
+            out.write(0x81);
+            out.write(value.length);
+        } else {
+            out.write(0x82);
+            out.write(value.length >> 8);
+            out.write(value.length & 0xff);
+        }
+        write(out, value);
+        return out.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            write(out, part);
+        }
+        return out.toByteArray();
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    private static byte[] status(int sw) {
+        return new ResponseApdu(new byte[0], sw).toBytes();
+    }
+
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.smartcard;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.spongycastle.bcpg.HashAlgorithmTags;
+import org.spongycastle.util.encoders.Hex;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.Passphrase;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.interfaces.RSAPrivateCrtKey;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class OpenPgpCardTest {
+
+    static KeyPair staticSignKey, staticDecryptKey;
+
+    OpenPgpCardSimulator mSimulator;
+
+    @BeforeClass
+    public static void setUpOnce() throws Exception {
+        ShadowLog.stream = System.out;
+
+        KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+        generator.initialize(2048);
+        staticSignKey = generator.generateKeyPair();
+        staticDecryptKey = generator.generateKeyPair();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mSimulator = new OpenPgpCardSimulator();
+        mSimulator.setKey(OpenPgpCard.SLOT_SIGNATURE, (RSAPrivateCrtKey) staticSignKey.getPrivate());
+        mSimulator.setKey(OpenPgpCard.SLOT_DECIPHERMENT, (RSAPrivateCrtKey) staticDecryptKey.getPrivate());
+    }
+
+    private OpenPgpCard connect(OpenPgpCardSimulator simulator) throws Exception {
+        OpenPgpCard card = new OpenPgpCard(new CardConnection(simulator));
+        card.select();
+        card.setPin(new Passphrase(OpenPgpCardSimulator.DEFAULT_PIN));
+        card.setAdminPin(new Passphrase(OpenPgpCardSimulator.DEFAULT_ADMIN_PIN));
+        return card;
+    }
+
+    @Test
+    public void testSelectAndReadData() throws Exception {
+        mSimulator.setDataObject(0x5B, "Alice<<Example".getBytes());
+        byte[] fingerprint = Hex.decode("0102030405060708090a0b0c0d0e0f1011121314");
+        mSimulator.setDataObject(0xC8, fingerprint);
+
+        OpenPgpCard card = connect(mSimulator);
+
+        Assert.assertEquals(16, card.getAid().length);
+        Assert.assertEquals("Alice  Example", card.getUserId());
+        Assert.assertEquals(60, card.getFingerprints().length);
+        Assert.assertArrayEquals(fingerprint, card.getFingerprint(1));
+        Assert.assertEquals(0x0d0e0f1011121314L, (long) card.getKeyId(1));
+        Assert.assertEquals("pw1 retry counter must be read from status bytes",
+                3, card.getPwStatusBytes()[4]);
+    }
+
+    @Test
+    public void testSignature() throws Exception {
+        OpenPgpCard card = connect(mSimulator);
+
+        byte[] data = "the quick brown fox".getBytes();
+        byte[] hash = MessageDigest.getInstance("SHA-256").digest(data);
+        byte[] signature = card.calculateSignature(hash, HashAlgorithmTags.SHA256);
+
+        Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(staticSignKey.getPublic());
+        verifier.update(data);
+        Assert.assertTrue("signature from card must verify", verifier.verify(signature));
+    }
+
+    @Test
+    public void testMultipleSignatures() throws Exception {
+        byte[][] hashes = new byte[3][];
+        int[] algos = new int[3];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = MessageDigest.getInstance("SHA-512").digest(new byte[] { (byte) i });
+            algos[i] = HashAlgorithmTags.SHA512;
+        }
+
+        OpenPgpCard card = connect(mSimulator);
+        int commandsBefore = mSimulator.getCommandCount();
+        byte[][] signatures = card.calculateSignatures(hashes, algos);
+        Assert.assertEquals(3, signatures.length);
+        Assert.assertEquals("pin must be verified only once, followed by one command per signature",
+                1 + 3, mSimulator.getCommandCount() - commandsBefore);
+
+        // a card which allows one signature per verification gets the pin each time
+        OpenPgpCardSimulator singleSignature = new OpenPgpCardSimulator(false, 261, false);
+        singleSignature.setKey(OpenPgpCard.SLOT_SIGNATURE, (RSAPrivateCrtKey) staticSignKey.getPrivate());
+        card = connect(singleSignature);
+        commandsBefore = singleSignature.getCommandCount();
+        byte[][] singleSignatures = card.calculateSignatures(hashes, algos);
+        Assert.assertEquals(2 * 3, singleSignature.getCommandCount() - commandsBefore);
+        for (int i = 0; i < signatures.length; i++) {
+            Assert.assertArrayEquals("pkcs#1 signatures are deterministic",
+                    signatures[i], singleSignatures[i]);
+        }
+    }
+
+    @Test
+    public void testBadHashIsRejectedBeforeSigning() throws Exception {
+        OpenPgpCard card = connect(mSimulator);
+
+        byte[][] hashes = { new byte[32], new byte[20] };
+        int[] algos = { HashAlgorithmTags.SHA256, HashAlgorithmTags.SHA256 };
+        try {
+            card.calculateSignatures(hashes, algos);
+            Assert.fail("hash of wrong length must be rejected");
+        } catch (CardException e) {
+            Assert.fail("hash must be rejected before it is sent to the card");
+        } catch (java.io.IOException e) {
+            // expected
+        }
+        Assert.assertEquals("no signature must be made", 0, mSimulator.getSignatureCount());
+    }
+
+    @Test
+    public void testWrongPin() throws Exception {
+        OpenPgpCard card = connect(mSimulator);
+        card.setPin(new Passphrase("654321"));
+
+        try {
+            card.calculateSignature(new byte[32], HashAlgorithmTags.SHA256);
+            Assert.fail("wrong pin must not be accepted");
+        } catch (PinException e) {
+            Assert.assertEquals("status must indicate remaining tries", 0x63C2, e.getResponseCode());
+        }
+        Assert.assertEquals(2, mSimulator.getPw1Retries());
+        Assert.assertEquals(0, mSimulator.getSignatureCount());
+    }
+
+    @Test
+    public void testDecryptSessionKey() throws Exception {
+        byte[] sessionKey = Hex.decode("09" + "00112233445566778899aabbccddeeff" + "0870");
+
+        Cipher cipher = Cipher.getInstance("RSA/ECB/PKCS1Padding");
+        cipher.init(Cipher.ENCRYPT_MODE, staticDecryptKey.getPublic());
+        byte[] cryptogram = cipher.doFinal(sessionKey);
+
+        // encoded mpi, the low byte of its bit length doubles as the padding indicator
+        byte[] mpi = new byte[2 + cryptogram.length];
+        mpi[0] = 0x08;
+        System.arraycopy(cryptogram, 0, mpi, 2, cryptogram.length);
+
+        OpenPgpCard card = connect(mSimulator);
+        Assert.assertArrayEquals(sessionKey, card.decryptSessionKey(mpi));
+
+        // same thing with extended length, which sends the cryptogram in one piece
+        OpenPgpCardSimulator extended = new OpenPgpCardSimulator(true, 2048, true);
+        extended.setKey(OpenPgpCard.SLOT_DECIPHERMENT, (RSAPrivateCrtKey) staticDecryptKey.getPrivate());
+        card = connect(extended);
+        Assert.assertTrue(card.getConnection().isExtendedLength());
+        int commandsBefore = extended.getCommandCount();
+        Assert.assertArrayEquals(sessionKey, card.decryptSessionKey(mpi));
+        Assert.assertEquals("verify and a single decipher command", 2,
+                extended.getCommandCount() - commandsBefore);
+    }
+
+    @Test
+    public void testKeyToCard() throws Exception {
+        OpenPgpCardSimulator blank = new OpenPgpCardSimulator();
+        OpenPgpCard card = connect(blank);
+
+        byte[] fingerprint = Hex.decode("a0a1a2a3a4a5a6a7a8a9aaabacadaeafb0b1b2b3");
+        byte[] timestamp = Hex.decode("55555555");
+        card.putKey(OpenPgpCard.SLOT_SIGNATURE, (RSAPrivateCrtKey) staticSignKey.getPrivate());
+        card.putData(0xCE, timestamp);
+        card.putData(0xC7, fingerprint);
+
+        Assert.assertTrue(blank.hasKey(OpenPgpCard.SLOT_SIGNATURE));
+        Assert.assertArrayEquals(fingerprint, card.getFingerprint(0));
+
+        // the imported key must produce valid signatures
+        byte[] data = "imported".getBytes();
+        byte[] signature = card.calculateSignature(
+                MessageDigest.getInstance("SHA-1").digest(data), HashAlgorithmTags.SHA1);
+        Signature verifier = Signature.getInstance("SHA1withRSA");
+        verifier.initVerify(staticSignKey.getPublic());
+        verifier.update(data);
+        Assert.assertTrue(verifier.verify(signature));
+    }
+
+    @Test
+    public void testPutDataRequiresAdminPin() throws Exception {
+        OpenPgpCard card = connect(mSimulator);
+        card.setAdminPin(null);
+
+        try {
+            card.putData(0xC7, new byte[20]);
+            Assert.fail("put data without admin pin must fail");
+        } catch (CardException e) {
+            Assert.assertEquals((short) 0x6982, e.getResponseCode());
+        }
+    }
+
+    @Test
+    public void testModifyPin() throws Exception {
+        OpenPgpCard card = connect(mSimulator);
+        card.modifyPin(0x81, "abcdef12");
+
+        card = connect(mSimulator);
+        card.setPin(new Passphrase("abcdef12"));
+        card.verifyPin(0x82);
+        card.setPin(new Passphrase(OpenPgpCardSimulator.DEFAULT_PIN));
+        try {
+            card.verifyPin(0x82);
+            Assert.fail("old pin must not be accepted anymore");
+        } catch (PinException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLatency() throws Exception {
+        OpenPgpCard card = connect(mSimulator);
+
+        byte[][] hashes = { new byte[32], new byte[32] };
+        hashes[1][0] = 1;
+        int[] algos = { HashAlgorithmTags.SHA256, HashAlgorithmTags.SHA256 };
+
+        mSimulator.setLatency(20);
+        int commandsBefore = mSimulator.getCommandCount();
+        long start = System.currentTimeMillis();
+        card.calculateSignatures(hashes, algos);
+        long elapsed = System.currentTimeMillis() - start;
+
+        int commands = mSimulator.getCommandCount() - commandsBefore;
+        Assert.assertTrue("each command must take at least the injected latency",
+                elapsed >= commands * 20);
+    }
+
+    @Test
+    public void testResponseLongerThanLe() throws Exception {
+        mSimulator.setDataObject(0x0102, new byte[300]);
+        OpenPgpCard card = connect(mSimulator);
+
+        Assert.assertEquals("long response must be assembled with get response",
+                300, card.getData(0x0102).length);
+        Assert.assertTrue(Arrays.equals(new byte[300], card.getData(0x0102)));
+    }
+
+}
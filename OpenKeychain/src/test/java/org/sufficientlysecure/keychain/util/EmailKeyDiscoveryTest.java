@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.keyimport.ImportKeysListEntry;
+import org.sufficientlysecure.keychain.keyimport.Keyserver;
+import org.sufficientlysecure.keychain.keyimport.KeyserverResolver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class EmailKeyDiscoveryTest {
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testOneResolutionPerDomain() throws Exception {
+        StubKeyserver example = new StubKeyserver(0);
+        StubResolver resolver = new StubResolver(60);
+        resolver.mKeyservers.put("example.com", example);
+        StubKeyserver fallback = new StubKeyserver(0);
+
+        EmailKeyDiscovery discovery = new EmailKeyDiscovery(resolver, 4, 10000);
+        Set<ImportKeysListEntry> keys = discovery.discover(Arrays.asList(
+                "alice@example.com", "bob@EXAMPLE.com", "carol@example.com", "dave@other.org"), fallback);
+
+        Assert.assertEquals("each domain must be resolved once", 2, resolver.mQueries.get());
+        Assert.assertEquals("domain keyserver must be searched for its addresses",
+                3, example.mSearches.get());
+        Assert.assertEquals("fallback must be searched for domains without keyserver",
+                1, fallback.mSearches.get());
+        Assert.assertEquals("keys of all addresses must be found", 4, keys.size());
+    }
+
+    @Test
+    public void testResolverCacheTtl() throws Exception {
+        StubResolver resolver = new StubResolver(60);
+        resolver.mKeyservers.put("example.com", new StubKeyserver(0));
+
+        final long[] now = new long[] { 1000000L };
+        EmailKeyDiscovery discovery = new EmailKeyDiscovery(resolver, 2, 10000) {
+            @Override
+            long currentTimeMillis() {
+                return now[0];
+            }
+        };
+
+        List<String> mails = Arrays.asList("alice@example.com");
+        discovery.discover(mails, null);
+        discovery.discover(mails, null);
+        Assert.assertEquals("cached record must be reused within its ttl", 1, resolver.mQueries.get());
+
+        now[0] += 61 * 1000;
+        discovery.discover(mails, null);
+        Assert.assertEquals("expired record must be resolved again", 2, resolver.mQueries.get());
+    }
+
+    @Test
+    public void testFailedResolutionNotCached() throws Exception {
+        StubResolver resolver = new StubResolver(60);
+        resolver.mFail = true;
+        StubKeyserver fallback = new StubKeyserver(0);
+
+        EmailKeyDiscovery discovery = new EmailKeyDiscovery(resolver, 2, 10000);
+        List<String> mails = Arrays.asList("alice@example.com");
+        discovery.discover(mails, fallback);
+        discovery.discover(mails, fallback);
+
+        Assert.assertEquals("failed lookups must not be cached", 2, resolver.mQueries.get());
+        Assert.assertEquals("fallback must be used if lookup failed", 2, fallback.mSearches.get());
+    }
+
+    @Test
+    public void testBoundedConcurrency() throws Exception {
+        StubResolver resolver = new StubResolver(60);
+        StubKeyserver fallback = new StubKeyserver(50);
+
+        ArrayList<String> mails = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            mails.add("user" + i + "@domain" + i + ".com");
+        }
+
+        EmailKeyDiscovery discovery = new EmailKeyDiscovery(resolver, 3, 10000);
+        Set<ImportKeysListEntry> keys = discovery.discover(mails, fallback);
+
+        Assert.assertEquals(20, keys.size());
+        Assert.assertTrue("searches must run concurrently", fallback.mMaxActive.get() > 1);
+        Assert.assertTrue("concurrency must be bounded", fallback.mMaxActive.get() <= 3);
+    }
+
+    @Test
+    public void testDeadline() throws Exception {
+        StubResolver resolver = new StubResolver(60);
+        StubKeyserver slow = new StubKeyserver(5000);
+
+        EmailKeyDiscovery discovery = new EmailKeyDiscovery(resolver, 2, 200);
+        long start = System.currentTimeMillis();
+        Set<ImportKeysListEntry> keys = discovery.discover(
+                Arrays.asList("alice@example.com", "bob@example.org"), slow);
+        long time = System.currentTimeMillis() - start;
+
+        Assert.assertTrue("discovery must return at its deadline", time < 2000);
+        Assert.assertTrue("unfinished searches must not return results", keys.isEmpty());
+    }
+
+    static class StubResolver implements KeyserverResolver {
+        final ConcurrentHashMap<String, Keyserver> mKeyservers = new ConcurrentHashMap<>();
+        final AtomicInteger mQueries = new AtomicInteger();
+        final long mTtl;
+        boolean mFail;
+
+        StubResolver(long ttl) {
+            mTtl = ttl;
+        }
+
+        @Override
+        public Result resolve(String domain) throws Exception {
+            mQueries.incrementAndGet();
+            if (mFail) {
+                throw new Exception("stub failure");
+            }
+            return new Result(mKeyservers.get(domain), mTtl);
+        }
+    }
+
+    static class StubKeyserver extends Keyserver {
+        final AtomicInteger mSearches = new AtomicInteger();
+        final AtomicInteger mActive = new AtomicInteger();
+        final AtomicInteger mMaxActive = new AtomicInteger();
+        final long mDelay;
+
+        StubKeyserver(long delay) {
+            mDelay = delay;
+        }
+
+        @Override
+        public List<ImportKeysListEntry> search(String query) throws QueryFailedException {
+            mSearches.incrementAndGet();
+            int active = mActive.incrementAndGet();
+            while (true) {
+                int max = mMaxActive.get();
+                if (active <= max || mMaxActive.compareAndSet(max, active)) {
+                    break;
+                }
+            }
+            try {
+                if (mDelay > 0) {
+                    Thread.sleep(mDelay);
+                }
+            } catch (InterruptedException e) {
+                throw new QueryFailedException("interrupted");
+            } finally {
+                mActive.decrementAndGet();
+            }
+
+            ImportKeysListEntry entry = new ImportKeysListEntry();
+            entry.setFingerprintHex(Integer.toHexString(query.hashCode()));
+            ArrayList<String> userIds = new ArrayList<>();
+            userIds.add("User <" + query + ">");
+            entry.setUserIds(userIds);
+            ArrayList<ImportKeysListEntry> result = new ArrayList<>();
+            result.add(entry);
+            return result;
+        }
+
+        @Override
+        public String get(String keyIdHex) throws QueryFailedException {
+            return null;
+        }
+
+        @Override
+        public void add(String armoredKey) throws AddKeyException {
+        }
+    }
+
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.util.KeyUpdateHelper.RefreshCandidate;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class KeyUpdateHelperTest {
+
+    static final long HOUR = 60 * 60 * 1000L;
+    static final long WEEK = 7 * 24 * HOUR;
+
+    @Test
+    public void testSliceSize() {
+        // 28 runs per week
+        Assert.assertEquals(0, KeyUpdateHelper.getSliceSize(0, 6 * HOUR, WEEK));
+        Assert.assertEquals(1, KeyUpdateHelper.getSliceSize(1, 6 * HOUR, WEEK));
+        Assert.assertEquals(1, KeyUpdateHelper.getSliceSize(28, 6 * HOUR, WEEK));
+        Assert.assertEquals(2, KeyUpdateHelper.getSliceSize(29, 6 * HOUR, WEEK));
+        Assert.assertEquals("slice must be capped", KeyUpdateHelper.MAX_SLICE_SIZE,
+                KeyUpdateHelper.getSliceSize(1000000, 6 * HOUR, WEEK));
+        Assert.assertEquals("period shorter than interval must refresh all keys",
+                10, KeyUpdateHelper.getSliceSize(10, WEEK, HOUR));
+    }
+
+    @Test
+    public void testSelectOnlyDueKeys() {
+        long now = 1000000000L;
+        long weekSeconds = WEEK / 1000;
+
+        ArrayList<RefreshCandidate> candidates = new ArrayList<>();
+        candidates.add(new RefreshCandidate(1, "01", 0));
+        candidates.add(new RefreshCandidate(2, "02", now - weekSeconds - 1));
+        candidates.add(new RefreshCandidate(3, "03", now - 10));
+        candidates.add(new RefreshCandidate(4, "04", now - weekSeconds + 60));
+
+        List<RefreshCandidate> selected = KeyUpdateHelper.selectKeysToRefresh(
+                candidates, now, WEEK, 10, new Random(0));
+
+        HashSet<Long> ids = new HashSet<>();
+        for (RefreshCandidate candidate : selected) {
+            ids.add(candidate.mMasterKeyId);
+        }
+        Assert.assertEquals(2, ids.size());
+        Assert.assertTrue("never refreshed key must be due", ids.contains(1L));
+        Assert.assertTrue("key older than period must be due", ids.contains(2L));
+    }
+
+    @Test
+    public void testRefreshAllKeysWithinPeriod() {
+        long runSeconds = 6 * HOUR / 1000;
+        long now = 1000000000L;
+
+        ArrayList<RefreshCandidate> candidates = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            candidates.add(new RefreshCandidate(i, Integer.toHexString(i), 0));
+        }
+        int slice = KeyUpdateHelper.getSliceSize(candidates.size(), 6 * HOUR, WEEK);
+
+        Random random = new Random(42);
+        HashSet<Long> refreshed = new HashSet<>();
+        for (int run = 0; run < WEEK / (6 * HOUR); run++) {
+            List<RefreshCandidate> selected = KeyUpdateHelper.selectKeysToRefresh(
+                    candidates, now, WEEK, slice, random);
+            Assert.assertTrue(selected.size() <= slice);
+
+            ArrayList<RefreshCandidate> next = new ArrayList<>();
+            for (RefreshCandidate candidate : candidates) {
+                boolean isSelected = selected.contains(candidate);
+                if (isSelected) {
+                    Assert.assertTrue("key must only be refreshed once per period",
+                            refreshed.add(candidate.mMasterKeyId));
+                }
+                next.add(isSelected
+                        ? new RefreshCandidate(candidate.mMasterKeyId, candidate.mFingerprint, now)
+                        : candidate);
+            }
+            candidates = next;
+            now += runSeconds;
+        }
+
+        Assert.assertEquals("all keys must be refreshed within one period", 300, refreshed.size());
+    }
+
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import android.os.Parcel;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.robolectric.shadows.ShadowLog;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+
+import java.util.ArrayList;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ParcelableCacheTest {
+
+    static final ParcelableCache.SizeEstimator<byte[]> BYTE_ARRAY_SIZE =
+            new ParcelableCache.SizeEstimator<byte[]>() {
+                @Override
+                public long estimateSize(byte[] object) {
+                    return object.length;
+                }
+            };
+
+    static class TestCache extends ParcelableCache<byte[]> {
+        long mTime = 1000;
+
+        TestCache(long ttl, long maxBytes) {
+            super(ttl, maxBytes, BYTE_ARRAY_SIZE);
+        }
+
+        @Override
+        protected long getCurrentTime() {
+            return mTime;
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        ShadowLog.stream = System.out;
+    }
+
+    @Test
+    public void testHandoff() throws Exception {
+        TestCache cache = new TestCache(1000, 1000);
+        byte[] object = new byte[100];
+
+        Parcel parcel = write(cache, object);
+        Assert.assertEquals(1, cache.size());
+        Assert.assertEquals(100, cache.getStrongBytes());
+
+        Assert.assertSame(object, read(cache, parcel));
+        Assert.assertEquals("object must be removed from cache when read", 0, cache.size());
+        Assert.assertEquals(0, cache.getStrongBytes());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(0, cache.getMissCount());
+
+        parcel = write(cache, null);
+        Assert.assertNull(read(cache, parcel));
+        Assert.assertEquals("null must not be cached", 0, cache.size());
+    }
+
+    @Test
+    public void testAbandonedHandoffsExpire() throws Exception {
+        TestCache cache = new TestCache(1000, 1000000);
+
+        // simulate a long running service, whose results are never read
+        for (int i = 0; i < 100; i++) {
+            write(cache, new byte[100]);
+            cache.mTime += 100;
+            Assert.assertTrue("only objects within ttl may be held strongly",
+                    cache.getStrongBytes() <= 11 * 100);
+        }
+        Assert.assertTrue(cache.getExpiredCount() >= 89);
+        Assert.assertEquals(0, cache.getEvictedCount());
+
+        cache.mTime += 1000;
+        Parcel parcel = write(cache, new byte[100]);
+        Assert.assertEquals(100, cache.getStrongBytes());
+        Assert.assertEquals(100, cache.getExpiredCount());
+
+        Assert.assertNotNull("fresh object must still be available", read(cache, parcel));
+        Assert.assertEquals(0, cache.getStrongBytes());
+    }
+
+    @Test
+    public void testSizeBudget() throws Exception {
+        TestCache cache = new TestCache(1000000, 1000);
+
+        ArrayList<Parcel> parcels = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            parcels.add(write(cache, new byte[300]));
+            Assert.assertTrue("strongly held objects must stay within budget",
+                    cache.getStrongBytes() <= 1000);
+        }
+        Assert.assertEquals(900, cache.getStrongBytes());
+        Assert.assertEquals(47, cache.getEvictedCount());
+        Assert.assertEquals(0, cache.getExpiredCount());
+
+        // the most recent objects are still held strongly
+        for (int i = 47; i < 50; i++) {
+            Assert.assertNotNull(read(cache, parcels.get(i)));
+        }
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(0, cache.getStrongBytes());
+    }
+
+    @Test
+    public void testReleasedObjectStillReachable() throws Exception {
+        TestCache cache = new TestCache(1000, 1000);
+
+        // as long as the object is referenced elsewhere, it can't be collected
+        byte[] object = new byte[100];
+        Parcel parcel = write(cache, object);
+
+        cache.mTime += 2000;
+        write(cache, new byte[100]);
+        Assert.assertEquals(1, cache.getExpiredCount());
+        Assert.assertEquals(100, cache.getStrongBytes());
+
+        Assert.assertSame("released object must be reachable through weak reference",
+                object, read(cache, parcel));
+        Assert.assertEquals(1, cache.getWeakHitCount());
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(0, cache.getMissCount());
+    }
+
+    @Test
+    public void testUnknownTicket() throws Exception {
+        TestCache cache = new TestCache(1000, 1000);
+
+        Parcel parcel = write(cache, new byte[10]);
+        Assert.assertNotNull(read(cache, parcel));
+
+        // reading the same ticket twice must not return anything
+        parcel.setDataPosition(0);
+        Assert.assertNull(cache.readFromParcelAndGetFromCache(parcel));
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    static Parcel write(ParcelableCache<byte[]> cache, byte[] object) {
+        Parcel parcel = Parcel.obtain();
+        cache.cacheAndWriteToParcel(object, parcel);
+        return parcel;
+    }
+
+    static byte[] read(ParcelableCache<byte[]> cache, Parcel parcel) {
+        parcel.setDataPosition(0);
+        return cache.readFromParcelAndGetFromCache(parcel);
+    }
+
+}
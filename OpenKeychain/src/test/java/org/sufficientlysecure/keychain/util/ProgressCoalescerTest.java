@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2015 Dominik Schürmann <dominik@dominikschuermann.de>
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.sufficientlysecure.keychain.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricGradleTestRunner;
+import org.robolectric.annotation.Config;
+import org.sufficientlysecure.keychain.WorkaroundBuildConfig;
+import org.sufficientlysecure.keychain.pgp.Progressable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+@RunWith(RobolectricGradleTestRunner.class)
+@Config(constants = WorkaroundBuildConfig.class, sdk = 21, manifest = "src/main/AndroidManifest.xml")
+public class ProgressCoalescerTest {
+
+    static class RecordingProgressable implements Progressable {
+        ArrayList<String> mRecord = new ArrayList<>();
+
+        @Override
+        public void setProgress(String message, int current, int total) {
+            mRecord.add(message + " " + current + "/" + total);
+        }
+
+        @Override
+        public void setProgress(int resourceId, int current, int total) {
+            mRecord.add(resourceId + " " + current + "/" + total);
+        }
+
+        @Override
+        public void setProgress(int current, int total) {
+            mRecord.add(current + "/" + total);
+        }
+
+        @Override
+        public void setPreventCancel() {
+            mRecord.add("prevent cancel");
+        }
+    }
+
+    static class TestCoalescer extends ProgressCoalescer {
+        long mTime = 1000;
+
+        TestCoalescer(Progressable wrapped, int updatesPerSecond) {
+            super(wrapped, updatesPerSecond);
+        }
+
+        @Override
+        protected long getCurrentTime() {
+            return mTime;
+        }
+    }
+
+    @Test
+    public void testCoalescing() throws Exception {
+        RecordingProgressable recorder = new RecordingProgressable();
+        TestCoalescer coalescer = new TestCoalescer(recorder, 10);
+
+        coalescer.setProgress("first", 0, 100);
+        // too soon, dropped
+        coalescer.setProgress(10, 100);
+        coalescer.mTime += 50;
+        coalescer.setProgress(20, 100);
+        // a new message is always passed on
+        coalescer.setProgress("second", 30, 100);
+        coalescer.setProgress("second", 40, 100);
+        coalescer.setPreventCancel();
+        // one interval later, updates are passed on again
+        coalescer.mTime += 100;
+        coalescer.setProgress(50, 100);
+        coalescer.setProgress(60, 100);
+        // the final update is always passed on
+        coalescer.setProgress(100, 100);
+
+        Assert.assertEquals(Arrays.asList(
+                "first 0/100", "second 30/100", "prevent cancel", "50/100", "100/100"),
+                recorder.mRecord);
+    }
+
+}